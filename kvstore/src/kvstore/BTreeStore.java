@@ -0,0 +1,1281 @@
+package kvstore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A StorageEngine for read-heavy slaves and ordered scans: a B+-tree of
+ * PAGE_SIZE pages in the file dir/btree, which is memory-mapped, so a get
+ * searches the pages where the operating system caches them rather than
+ * copies on the heap, and the store can grow far beyond the heap.
+ *
+ * Pages are never changed once committed. A put or del copies the pages on
+ * its path from the leaf to the root, unless the current transaction wrote
+ * them already, and the pages it replaced are only reused once the next
+ * transaction is committed. A commit forces the new pages to disk and then
+ * writes the root and the list of free pages to the older of two meta pages,
+ * so a crash leaves the tree of the last commit. Commits are made by sync()
+ * and close(); on a slave, TPCLog checkpoints call sync() and the log
+ * replays what came after.
+ *
+ * The pages the current transaction writes are kept in a page cache on the
+ * heap of cachePages pages. When it is full, a page is evicted by the clock
+ * algorithm: the hand passes over the pages used since it last came by,
+ * clearing their mark, and writes the first unmarked one to the mapped file.
+ * Values of more than MAX_INLINE_VALUE bytes go to a chain of overflow
+ * pages written straight to the file.
+ *
+ * Keys are ordered by their UTF-8 bytes, which is code point order; see
+ * scan(). Pages emptied by a del are dropped, but pages are not merged, and
+ * a branch left with one child is replaced by it. Gets and scans run
+ * concurrently; puts and dels take turns with them through a read-write
+ * lock.
+ */
+public class BTreeStore implements StorageEngine {
+
+    public static final int DEFAULT_CACHE_PAGES = 4096;
+
+    static final int PAGE_SIZE = 4096;
+
+    private static final int CHUNK_PAGES = 16384;
+    private static final long CHUNK_SIZE = (long) CHUNK_PAGES * PAGE_SIZE;
+    private static final int META_MAGIC = 0x4B564254; // "KVBT"
+    private static final int META_SIZE = 32;
+    private static final String FILE_NAME = "btree";
+
+    /*
+     * Page layout: byte type, byte unused, char number of cells, int first
+     * child (branches), then a char offset per cell in key order; the cells
+     * themselves fill the page from the end. A leaf cell is char key length,
+     * key, int value length, then the value or, if it is longer than
+     * MAX_INLINE_VALUE, int first overflow page. A branch cell is char key
+     * length, key, int child holding the keys from key on; the first child
+     * holds the keys before the first cell's.
+     */
+    private static final byte LEAF = 1;
+    private static final byte BRANCH = 2;
+    private static final int TYPE = 0;
+    private static final int COUNT = 2;
+    private static final int FIRST_CHILD = 4;
+    private static final int HEADER_SIZE = 8;
+
+    // Small enough for any two cells to fit a page, so a split always works
+    private static final int MAX_KEY_BYTES = 1000;
+    private static final int MAX_INLINE_VALUE = 900;
+
+    // Overflow and free list pages start with int next page
+    private static final int OVERFLOW_DATA = PAGE_SIZE - 4;
+    private static final int FREE_IDS_PER_PAGE = (PAGE_SIZE - 8) / 4;
+
+    private File dir;
+    private File file;
+    private int cachePages;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /* Guarded by lock */
+    private FileChannel channel;
+    private ArrayList<MappedByteBuffer> chunks;
+    private BitSet dirtyChunks;
+    private PageCache cache;
+    private long txn;
+    private int root;
+    private int pageCount;
+    private boolean changed;
+    // Pages free to reuse now; replaced by the current transaction, free
+    // once it is committed; freed by commits while a snapshot is written;
+    // holding the free list of the last commit
+    private IntList free;
+    private IntList pendingFree;
+    private IntList held;
+    private IntList freeListPages;
+    // Pages written by the current transaction, changed in place
+    private BitSet owned;
+    private boolean snapshotActive = false;
+    private boolean closed = false;
+
+    /* Held by writeSnapshot(), readSnapshot() and close() throughout,
+     * before lock */
+    private final Object maintenanceLock = new Object();
+
+    /**
+     * Opens the store in dir, creating it if need be, with a page cache of
+     * DEFAULT_CACHE_PAGES.
+     *
+     * @throws KVException if the file cannot be read
+     */
+    public BTreeStore(String dir) throws KVException {
+        this(dir, DEFAULT_CACHE_PAGES);
+    }
+
+    /**
+     * Opens the store in dir, creating it if need be.
+     *
+     * @param cachePages pages the current transaction keeps on the heap
+     * @throws KVException if the file cannot be read
+     */
+    public BTreeStore(String dir, int cachePages) throws KVException {
+        this.dir = new File(dir);
+        this.file = new File(this.dir, FILE_NAME);
+        this.cachePages = cachePages;
+        try {
+            if (!this.dir.isDirectory()) {
+                Files.createDirectories(this.dir.toPath());
+            }
+            lock.writeLock().lock();
+            try {
+                open();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            throw new KVException("Unable to open store " + dir + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_OVERSIZED_KEY if the key takes more
+     *         than MAX_KEY_BYTES in UTF-8, or if the file cannot be written
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        byte[] keyBytes = keyBytes(key);
+        byte[] valueBytes = value.getBytes(UTF_8);
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            byte[] cellValue = storeValue(valueBytes);
+            if (root == 0) {
+                Node leaf = new Node(true);
+                leaf.keys.add(keyBytes);
+                leaf.values.add(cellValue);
+                root = write(leaf, 0).id;
+            } else {
+                Result result = insert(root, keyBytes, cellValue);
+                root = result.id;
+                if (result.separator != null) {
+                    Node branch = new Node(false);
+                    branch.firstChild = result.id;
+                    branch.keys.add(result.separator);
+                    branch.children.add(result.right);
+                    root = write(branch, 0).id;
+                }
+            }
+            changed = true;
+        } catch (IOException e) {
+            throw new KVException("Unable to write store " + dir + ": "
+                    + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int id = root;
+            while (id != 0) {
+                ByteBuffer page = view(id);
+                int count = page.getChar(COUNT);
+                if (page.get(TYPE) == BRANCH) {
+                    id = childFor(page, count, keyBytes);
+                    continue;
+                }
+                int index = search(page, count, keyBytes);
+                if (index < 0) {
+                    break;
+                }
+                int cell = cell(page, index);
+                return new String(readValue(page, cell + 2
+                        + page.getChar(cell)), UTF_8);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (root == 0) {
+                throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+            }
+            root = delete(root, keyBytes);
+            changed = true;
+        } catch (IOException e) {
+            throw new KVException("Unable to write store " + dir + ": "
+                    + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return up to limit pairs in key order, starting from the first key
+     * not before from. Keys are ordered by their UTF-8 bytes, which differs
+     * from String.compareTo() only for characters outside the Basic
+     * Multilingual Plane.
+     *
+     * @param from first key to return, if stored
+     * @param limit most pairs to return
+     * @throws KVException if the file cannot be read
+     */
+    public List<Map.Entry<String, String>> scan(String from, int limit)
+            throws KVException {
+        ArrayList<Map.Entry<String, String>> pairs =
+                new ArrayList<Map.Entry<String, String>>();
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            if (root != 0 && limit > 0) {
+                collect(root, from.getBytes(UTF_8), pairs, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return pairs;
+    }
+
+    /**
+     * Write the pairs of the store as a binary snapshot. The tree as it is
+     * at the start of the call is pinned: puts and dels go on meanwhile,
+     * copying the pages they change, and the pages they replace are not
+     * reused until the snapshot is written.
+     */
+    @Override
+    public void writeSnapshot(OutputStream out) throws IOException {
+        synchronized (maintenanceLock) {
+            int pinned;
+            lock.writeLock().lock();
+            try {
+                checkOpenIO();
+                snapshotActive = true;
+                // from now on every page of the pinned tree is copied
+                owned.clear();
+                pinned = root;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                KVSnapshot.Writer writer = new KVSnapshot.Writer(out, false);
+                if (pinned != 0) {
+                    writeSubtree(pinned, writer);
+                }
+                writer.finish();
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    snapshotActive = false;
+                    free.addAll(held);
+                    held.clear();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the pairs of the store with a snapshot written by
+     * writeSnapshot. The file is deleted first, so if the snapshot turns
+     * out to be corrupt the store holds part of it.
+     */
+    @Override
+    public void readSnapshot(InputStream in) throws IOException {
+        synchronized (maintenanceLock) {
+            lock.writeLock().lock();
+            try {
+                checkOpenIO();
+                channel.close();
+                Files.delete(file.toPath());
+                open();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            KVSnapshot.read(in, this);
+        }
+    }
+
+    /**
+     * @return true: the tree is on disk
+     */
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Commit the current transaction.
+     */
+    @Override
+    public void sync() throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpenIO();
+            commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Commit the current transaction and close the file. The mappings stay
+     * until they are garbage collected, as Java cannot unmap them.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (maintenanceLock) {
+            lock.writeLock().lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                try {
+                    commit();
+                } finally {
+                    closed = true;
+                    chunks = null;
+                    cache = null;
+                    channel.close();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return pages in the file, in use or free
+     */
+    int pageCount() {
+        lock.readLock().lock();
+        try {
+            return pageCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return pages free for the current transaction to reuse
+     */
+    int freePages() {
+        lock.readLock().lock();
+        try {
+            return free.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BTreeStore " + dir + ": " + pageCount() + " pages";
+    }
+
+    /**
+     * Opens the file, creating it if need be, maps it and reads the newer
+     * valid meta page and the free list. Called holding the write lock.
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        chunks = new ArrayList<MappedByteBuffer>();
+        dirtyChunks = new BitSet();
+        cache = new PageCache(cachePages);
+        free = new IntList();
+        pendingFree = new IntList();
+        held = new IntList();
+        freeListPages = new IntList();
+        owned = new BitSet();
+        changed = false;
+        long size = channel.size();
+        if (size == 0) {
+            txn = 0;
+            root = 0;
+            pageCount = 2;
+            map(pageCount);
+            writeMeta(0, 0, 0);
+            force();
+            return;
+        }
+        map((int) Math.min(Integer.MAX_VALUE, (size + PAGE_SIZE - 1)
+                / PAGE_SIZE));
+        long[] best = null;
+        for (int slot = 0; slot < 2; slot++) {
+            long[] meta = readMeta(slot);
+            if (meta != null && (best == null || meta[0] > best[0])) {
+                best = meta;
+            }
+        }
+        if (best == null) {
+            throw new IOException(file + " is corrupt");
+        }
+        txn = best[0];
+        root = (int) best[1];
+        pageCount = (int) best[2];
+        int next = (int) best[3];
+        int remaining = (int) best[4];
+        while (next != 0) {
+            checkPage(next);
+            freeListPages.add(next);
+            ByteBuffer page = view(next);
+            int count = page.getInt(4);
+            for (int i = 0; i < count; i++) {
+                free.add(page.getInt(8 + 4 * i));
+            }
+            remaining -= count;
+            next = page.getInt(0);
+        }
+        if (remaining != 0) {
+            throw new IOException(file + " is corrupt");
+        }
+    }
+
+    /**
+     * Writes every page of the transaction and a new free list, forces them
+     * to disk, then writes and forces the meta page that makes them the
+     * current tree. Called holding the write lock.
+     */
+    private void commit() throws IOException {
+        if (!changed) {
+            return;
+        }
+        cache.flush();
+        // the list goes to pages free since the last commit, or new ones,
+        // so the last commit's list stays intact until this one is
+        int pages = (free.size() + pendingFree.size() + held.size()
+                + freeListPages.size() + FREE_IDS_PER_PAGE - 1)
+                / FREE_IDS_PER_PAGE;
+        IntList listPages = new IntList();
+        for (int i = 0; i < pages; i++) {
+            listPages.add(allocate());
+        }
+        IntList persisted = new IntList();
+        persisted.addAll(free);
+        persisted.addAll(pendingFree);
+        persisted.addAll(held);
+        persisted.addAll(freeListPages);
+        for (int i = 0; i < pages; i++) {
+            ByteBuffer page = mapped(listPages.get(i));
+            int from = Math.min(i * FREE_IDS_PER_PAGE, persisted.size());
+            int count = Math.min(FREE_IDS_PER_PAGE, persisted.size() - from);
+            page.putInt(0, i + 1 < pages ? listPages.get(i + 1) : 0);
+            page.putInt(4, count);
+            for (int j = 0; j < count; j++) {
+                page.putInt(8 + 4 * j, persisted.get(from + j));
+            }
+        }
+        force();
+        writeMeta(txn + 1, pages > 0 ? listPages.get(0) : 0,
+                persisted.size());
+        force();
+        txn++;
+
+        free.addAll(freeListPages);
+        if (snapshotActive) {
+            held.addAll(pendingFree);
+        } else {
+            free.addAll(pendingFree);
+        }
+        pendingFree.clear();
+        freeListPages = listPages;
+        owned.clear();
+        changed = false;
+    }
+
+    private void writeMeta(long number, int freeList, int freeCount) {
+        ByteBuffer meta = mapped((int) (number % 2));
+        meta.putInt(0, META_MAGIC);
+        meta.putLong(4, number);
+        meta.putInt(12, root);
+        meta.putInt(16, pageCount);
+        meta.putInt(20, freeList);
+        meta.putInt(24, freeCount);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < META_SIZE - 4; i++) {
+            crc.update(meta.get(i));
+        }
+        meta.putInt(META_SIZE - 4, (int) crc.getValue());
+    }
+
+    /**
+     * @return txn, root, page count, first free list page and free pages of
+     *         a meta page, or null if it is not valid
+     */
+    private long[] readMeta(int slot) {
+        ByteBuffer meta = mapped(slot);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < META_SIZE - 4; i++) {
+            crc.update(meta.get(i));
+        }
+        if (meta.getInt(0) != META_MAGIC
+                || meta.getInt(META_SIZE - 4) != (int) crc.getValue()) {
+            return null;
+        }
+        return new long[] { meta.getLong(4), meta.getInt(12),
+                meta.getInt(16), meta.getInt(20), meta.getInt(24) };
+    }
+
+    private void force() {
+        for (int i = dirtyChunks.nextSetBit(0); i >= 0;
+                i = dirtyChunks.nextSetBit(i + 1)) {
+            chunks.get(i).force();
+        }
+        dirtyChunks.clear();
+    }
+
+    /**
+     * Maps the file up to pages, growing it as need be.
+     */
+    private void map(int pages) throws IOException {
+        while ((long) chunks.size() * CHUNK_PAGES < pages) {
+            chunks.add(channel.map(MapMode.READ_WRITE,
+                    chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * @return page id as it is in the mapped file, for writing
+     */
+    private ByteBuffer mapped(int id) {
+        dirtyChunks.set(id / CHUNK_PAGES);
+        return slice(id);
+    }
+
+    private ByteBuffer slice(int id) {
+        ByteBuffer chunk = chunks.get(id / CHUNK_PAGES).duplicate();
+        int base = (id % CHUNK_PAGES) * PAGE_SIZE;
+        chunk.position(base);
+        chunk.limit(base + PAGE_SIZE);
+        return chunk.slice();
+    }
+
+    /**
+     * @return page id for reading: the copy in the page cache, if any, else
+     *         the page in the mapped file
+     */
+    private ByteBuffer view(int id) {
+        ByteBuffer cached = cache.get(id);
+        return cached != null ? cached : slice(id);
+    }
+
+    private void checkPage(int id) throws IOException {
+        if (id < 2 || id >= pageCount) {
+            throw new IOException(file + " is corrupt: no page " + id);
+        }
+    }
+
+    /**
+     * @return a page for the current transaction to write, reusing a free
+     *         one if it can
+     */
+    private int allocate() throws IOException {
+        int id;
+        if (free.size() > 0) {
+            id = free.pop();
+        } else {
+            id = pageCount++;
+            map(pageCount);
+        }
+        owned.set(id);
+        return id;
+    }
+
+    /**
+     * Frees a page the tree no longer uses: at once if the current
+     * transaction wrote it, else once the transaction is committed.
+     */
+    private void retire(int id) {
+        if (owned.get(id)) {
+            owned.clear(id);
+            cache.remove(id);
+            free.add(id);
+        } else {
+            pendingFree.add(id);
+        }
+    }
+
+    private Result insert(int id, byte[] key, byte[] cellValue)
+            throws IOException {
+        checkPage(id);
+        if (view(id).get(TYPE) == BRANCH) {
+            int[] child = child(id, key);
+            Result result = insert(child[1], key, cellValue);
+            if (result.id == child[1] && result.separator == null) {
+                // changed in place: the branch need not be
+                result.id = id;
+                return result;
+            }
+            Node node = decode(id);
+            node.setChild(child[0], result.id);
+            if (result.separator != null) {
+                node.keys.add(child[0], result.separator);
+                node.children.add(child[0], result.right);
+            }
+            return write(node, id);
+        }
+        Node node = decode(id);
+        int index = node.search(key);
+        if (index >= 0) {
+            freeValue(node.values.get(index));
+            node.values.set(index, cellValue);
+        } else {
+            node.keys.add(-index - 1, key);
+            node.values.add(-index - 1, cellValue);
+        }
+        return write(node, id);
+    }
+
+    /**
+     * @return the page replacing id, or 0 if the subtree is left empty
+     * @throws KVException with ERROR_NO_SUCH_KEY if key is not in it
+     */
+    private int delete(int id, byte[] key) throws IOException, KVException {
+        checkPage(id);
+        if (view(id).get(TYPE) == BRANCH) {
+            int[] child = child(id, key);
+            int replaced = delete(child[1], key);
+            if (replaced == child[1]) {
+                return id;
+            }
+            Node node = decode(id);
+            if (replaced != 0) {
+                node.setChild(child[0], replaced);
+            } else if (child[0] == 0) {
+                node.firstChild = node.children.remove(0);
+                node.keys.remove(0);
+            } else {
+                node.keys.remove(child[0] - 1);
+                node.children.remove(child[0] - 1);
+            }
+            if (node.keys.isEmpty()) {
+                retire(id);
+                return node.firstChild;
+            }
+            return write(node, id).id;
+        }
+        Node node = decode(id);
+        int index = node.search(key);
+        if (index < 0) {
+            throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+        }
+        freeValue(node.values.get(index));
+        node.keys.remove(index);
+        node.values.remove(index);
+        if (node.keys.isEmpty()) {
+            retire(id);
+            return 0;
+        }
+        return write(node, id).id;
+    }
+
+    /**
+     * @return the index of the child of branch id to hold key, 0 being the
+     *         first child, and the child's page
+     */
+    private int[] child(int id, byte[] key) {
+        ByteBuffer page = view(id);
+        int index = searchBranch(page, page.getChar(COUNT), key);
+        return new int[] { index + 1, index < 0 ? page.getInt(FIRST_CHILD)
+                : page.getInt(cellValue(page, index)) };
+    }
+
+    /**
+     * Writes node in place of page id, or as a new page if id is 0,
+     * copying it if the transaction did not write it, and splitting it in
+     * two if it does not fit a page.
+     */
+    private Result write(Node node, int id) throws IOException {
+        Result result = new Result();
+        if (node.size() <= PAGE_SIZE) {
+            result.id = place(node, id);
+            return result;
+        }
+        int split = node.split();
+        Node right = new Node(node.leaf);
+        if (node.leaf) {
+            result.separator = node.keys.get(split);
+            right.keys.addAll(node.keys.subList(split, node.keys.size()));
+            right.values.addAll(node.values.subList(split,
+                    node.values.size()));
+            node.keys.subList(split, node.keys.size()).clear();
+            node.values.subList(split, node.values.size()).clear();
+        } else {
+            result.separator = node.keys.get(split);
+            right.firstChild = node.children.get(split);
+            right.keys.addAll(node.keys.subList(split + 1,
+                    node.keys.size()));
+            right.children.addAll(node.children.subList(split + 1,
+                    node.children.size()));
+            node.keys.subList(split, node.keys.size()).clear();
+            node.children.subList(split, node.children.size()).clear();
+        }
+        result.id = place(node, id);
+        result.right = place(right, 0);
+        return result;
+    }
+
+    private int place(Node node, int id) throws IOException {
+        int target = id != 0 && owned.get(id) ? id : allocate();
+        if (id != 0 && target != id) {
+            retire(id);
+        }
+        node.encode(cache.dirty(target));
+        return target;
+    }
+
+    private Node decode(int id) throws IOException {
+        checkPage(id);
+        ByteBuffer page = view(id);
+        byte type = page.get(TYPE);
+        if (type != LEAF && type != BRANCH) {
+            throw new IOException(file + " is corrupt at page " + id);
+        }
+        Node node = new Node(type == LEAF);
+        node.firstChild = page.getInt(FIRST_CHILD);
+        int count = page.getChar(COUNT);
+        for (int i = 0; i < count; i++) {
+            int cell = cell(page, i);
+            int keyLength = page.getChar(cell);
+            node.keys.add(bytes(page, cell + 2, keyLength));
+            int pos = cell + 2 + keyLength;
+            if (node.leaf) {
+                int valueLength = page.getInt(pos);
+                node.values.add(bytes(page, pos, 4
+                        + (valueLength > MAX_INLINE_VALUE ? 4
+                                : valueLength)));
+            } else {
+                node.children.add(page.getInt(pos));
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return the value part of a leaf cell for value: its length and the
+     *         value itself, or the first of the overflow pages it was
+     *         written to
+     */
+    private byte[] storeValue(byte[] value) throws IOException {
+        if (value.length <= MAX_INLINE_VALUE) {
+            ByteBuffer cell = ByteBuffer.allocate(4 + value.length);
+            cell.putInt(value.length);
+            cell.put(value);
+            return cell.array();
+        }
+        int pages = (value.length + OVERFLOW_DATA - 1) / OVERFLOW_DATA;
+        int[] ids = new int[pages];
+        for (int i = 0; i < pages; i++) {
+            ids[i] = allocate();
+        }
+        for (int i = 0; i < pages; i++) {
+            // straight to the file: they are new, and would only crowd the
+            // tree's pages out of the cache
+            ByteBuffer page = mapped(ids[i]);
+            page.putInt(0, i + 1 < pages ? ids[i + 1] : 0);
+            page.position(4);
+            int from = i * OVERFLOW_DATA;
+            page.put(value, from, Math.min(OVERFLOW_DATA,
+                    value.length - from));
+        }
+        ByteBuffer cell = ByteBuffer.allocate(8);
+        cell.putInt(value.length);
+        cell.putInt(ids[0]);
+        return cell.array();
+    }
+
+    private void freeValue(byte[] cellValue) throws IOException {
+        ByteBuffer cell = ByteBuffer.wrap(cellValue);
+        if (cell.getInt(0) <= MAX_INLINE_VALUE) {
+            return;
+        }
+        int id = cell.getInt(4);
+        while (id != 0) {
+            checkPage(id);
+            int next = view(id).getInt(0);
+            retire(id);
+            id = next;
+        }
+    }
+
+    private byte[] readValue(ByteBuffer page, int pos) {
+        int length = page.getInt(pos);
+        if (length <= MAX_INLINE_VALUE) {
+            return bytes(page, pos + 4, length);
+        }
+        byte[] value = new byte[length];
+        int id = page.getInt(pos + 4);
+        for (int from = 0; from < length; from += OVERFLOW_DATA) {
+            ByteBuffer overflow = view(id);
+            overflow.position(4);
+            overflow.get(value, from, Math.min(OVERFLOW_DATA,
+                    length - from));
+            id = overflow.getInt(0);
+        }
+        return value;
+    }
+
+    private void collect(int id, byte[] from,
+            List<Map.Entry<String, String>> pairs, int limit) {
+        ByteBuffer page = view(id);
+        int count = page.getChar(COUNT);
+        if (page.get(TYPE) == BRANCH) {
+            int start = 0;
+            if (from != null) {
+                int index = searchBranch(page, count, from);
+                start = index + 1;
+            }
+            for (int i = start; i <= count && pairs.size() < limit; i++) {
+                int child = i == 0 ? page.getInt(FIRST_CHILD)
+                        : page.getInt(cellValue(page, i - 1));
+                collect(child, i == start ? from : null, pairs, limit);
+            }
+            return;
+        }
+        int start = 0;
+        if (from != null) {
+            start = search(page, count, from);
+            start = start >= 0 ? start : -start - 1;
+        }
+        for (int i = start; i < count && pairs.size() < limit; i++) {
+            int cell = cell(page, i);
+            int keyLength = page.getChar(cell);
+            pairs.add(new AbstractMap.SimpleImmutableEntry<String, String>(
+                    new String(bytes(page, cell + 2, keyLength), UTF_8),
+                    new String(readValue(page, cell + 2 + keyLength),
+                            UTF_8)));
+        }
+    }
+
+    /**
+     * Writes the pairs under page id, holding the read lock one page at a
+     * time: the pages of a pinned tree do not change.
+     */
+    private void writeSubtree(int id, KVSnapshot.Writer writer)
+            throws IOException {
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<String> values = new ArrayList<String>();
+        ArrayList<Integer> children = new ArrayList<Integer>();
+        lock.readLock().lock();
+        try {
+            checkOpenIO();
+            ByteBuffer page = view(id);
+            int count = page.getChar(COUNT);
+            if (page.get(TYPE) == BRANCH) {
+                children.add(page.getInt(FIRST_CHILD));
+                for (int i = 0; i < count; i++) {
+                    children.add(page.getInt(cellValue(page, i)));
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    int cell = cell(page, i);
+                    int keyLength = page.getChar(cell);
+                    keys.add(new String(bytes(page, cell + 2, keyLength),
+                            UTF_8));
+                    values.add(new String(readValue(page, cell + 2
+                            + keyLength), UTF_8));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int child : children) {
+            writeSubtree(child, writer);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            writer.add(keys.get(i), values.get(i));
+        }
+    }
+
+    private static int cell(ByteBuffer page, int index) {
+        return page.getChar(HEADER_SIZE + 2 * index);
+    }
+
+    private static int cellValue(ByteBuffer page, int index) {
+        int cell = cell(page, index);
+        return cell + 2 + page.getChar(cell);
+    }
+
+    /**
+     * @return the index of key among the cells of page, or -(insertion
+     *         point) - 1 if it is not there
+     */
+    private static int search(ByteBuffer page, int count, byte[] key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(page, cell(page, mid), key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+
+    /**
+     * @return the index of the last cell of a branch not after key, or -1
+     */
+    private static int searchBranch(ByteBuffer page, int count, byte[] key) {
+        int index = search(page, count, key);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static int childFor(ByteBuffer page, int count, byte[] key) {
+        int index = searchBranch(page, count, key);
+        return index < 0 ? page.getInt(FIRST_CHILD)
+                : page.getInt(cellValue(page, index));
+    }
+
+    private static int compare(ByteBuffer page, int cell, byte[] key) {
+        int length = page.getChar(cell);
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = (page.get(cell + 2 + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] bytes(ByteBuffer page, int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = page.duplicate();
+        view.position(pos);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] keyBytes(String key) throws KVException {
+        byte[] bytes = key.getBytes(UTF_8);
+        if (bytes.length > MAX_KEY_BYTES) {
+            throw new KVException(new KVMessage(RESP, ERROR_OVERSIZED_KEY));
+        }
+        return bytes;
+    }
+
+    private void checkOpen() throws KVException {
+        if (closed) {
+            throw new KVException("Store " + dir + " is closed");
+        }
+    }
+
+    private void checkOpenIO() throws IOException {
+        if (closed) {
+            throw new IOException("Store " + dir + " is closed");
+        }
+    }
+
+    /**
+     * A page decoded for a put or del to change.
+     */
+    private static final class Node {
+
+        final boolean leaf;
+        int firstChild = 0;
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        final ArrayList<byte[]> values = new ArrayList<byte[]>();
+        final ArrayList<Integer> children = new ArrayList<Integer>();
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        int search(byte[] key) {
+            int low = 0;
+            int high = keys.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(keys.get(mid), key);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -low - 1;
+        }
+
+        /**
+         * Sets child i of a branch, 0 being the first child.
+         */
+        void setChild(int i, int id) {
+            if (i == 0) {
+                firstChild = id;
+            } else {
+                children.set(i - 1, id);
+            }
+        }
+
+        int cellSize(int i) {
+            return 2 + keys.get(i).length
+                    + (leaf ? values.get(i).length : 4);
+        }
+
+        int size() {
+            int size = HEADER_SIZE;
+            for (int i = 0; i < keys.size(); i++) {
+                size += 2 + cellSize(i);
+            }
+            return size;
+        }
+
+        /**
+         * @return the cell to split at: the first cell of the right half
+         *         of a leaf, or the cell of a branch that moves up, chosen
+         *         to even out the halves
+         */
+        int split() {
+            int total = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                total += 2 + cellSize(i);
+            }
+            int best = 1;
+            int bestSize = Integer.MAX_VALUE;
+            int left = 0;
+            int last = leaf ? keys.size() - 1 : keys.size() - 2;
+            for (int i = 0; i < last; i++) {
+                left += 2 + cellSize(i);
+                int right = total - left - (leaf ? 0 : 2 + cellSize(i + 1));
+                int larger = Math.max(left, right);
+                if (larger < bestSize) {
+                    bestSize = larger;
+                    best = i + 1;
+                }
+            }
+            return best;
+        }
+
+        void encode(ByteBuffer page) {
+            page.clear();
+            page.put(TYPE, leaf ? LEAF : BRANCH);
+            page.put(TYPE + 1, (byte) 0);
+            page.putChar(COUNT, (char) keys.size());
+            page.putInt(FIRST_CHILD, leaf ? 0 : firstChild);
+            int pos = PAGE_SIZE;
+            for (int i = 0; i < keys.size(); i++) {
+                pos -= cellSize(i);
+                page.putChar(HEADER_SIZE + 2 * i, (char) pos);
+                page.position(pos);
+                page.putChar((char) keys.get(i).length);
+                page.put(keys.get(i));
+                if (leaf) {
+                    page.put(values.get(i));
+                } else {
+                    page.putInt(children.get(i));
+                }
+            }
+            page.clear();
+        }
+    }
+
+    private static final class Result {
+
+        int id;
+        byte[] separator;
+        int right;
+    }
+
+    /**
+     * The pages written by the current transaction, with clock eviction
+     * back to the mapped file. Only changed holding the write lock; gets
+     * look pages up holding the read lock.
+     */
+    private final class PageCache {
+
+        private final HashMap<Integer, Entry> pages =
+                new HashMap<Integer, Entry>();
+        private final Entry[] ring;
+        private int hand = 0;
+
+        PageCache(int capacity) {
+            ring = new Entry[Math.max(1, capacity)];
+        }
+
+        ByteBuffer get(int id) {
+            Entry entry = pages.get(id);
+            if (entry == null) {
+                return null;
+            }
+            entry.referenced = true;
+            return entry.page.duplicate();
+        }
+
+        /**
+         * @return the cached copy of page id to write, added if need be
+         */
+        ByteBuffer dirty(int id) {
+            Entry entry = pages.get(id);
+            if (entry == null) {
+                entry = new Entry(id, evict());
+                ring[entry.slot = hand] = entry;
+                hand = (hand + 1) % ring.length;
+                pages.put(id, entry);
+            }
+            entry.referenced = true;
+            return entry.page;
+        }
+
+        void remove(int id) {
+            Entry entry = pages.remove(id);
+            if (entry != null) {
+                ring[entry.slot] = null;
+            }
+        }
+
+        /**
+         * Writes every page back to the file and empties the cache.
+         */
+        void flush() {
+            for (Entry entry : pages.values()) {
+                writeBack(entry);
+            }
+            pages.clear();
+            Arrays.fill(ring, null);
+        }
+
+        /**
+         * Moves the hand to a free slot, writing back the first page not
+         * used since the hand last passed it.
+         *
+         * @return the evicted page's buffer to reuse, or null
+         */
+        private ByteBuffer evict() {
+            while (true) {
+                Entry entry = ring[hand];
+                if (entry == null) {
+                    return null;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    hand = (hand + 1) % ring.length;
+                    continue;
+                }
+                writeBack(entry);
+                pages.remove(entry.id);
+                ring[hand] = null;
+                return entry.page;
+            }
+        }
+
+        private void writeBack(Entry entry) {
+            ByteBuffer source = entry.page.duplicate();
+            source.clear();
+            mapped(entry.id).put(source);
+        }
+    }
+
+    private static final class Entry {
+
+        final int id;
+        final ByteBuffer page;
+        int slot;
+        volatile boolean referenced = true;
+
+        Entry(int id, ByteBuffer reuse) {
+            this.id = id;
+            this.page = reuse != null ? reuse : ByteBuffer.allocate(PAGE_SIZE);
+        }
+    }
+
+    /**
+     * A growable list of page numbers.
+     */
+    private static final class IntList {
+
+        private int[] ids = new int[16];
+        private int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        void addAll(IntList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.ids[i]);
+            }
+        }
+
+        int get(int i) {
+            return ids[i];
+        }
+
+        int pop() {
+            return ids[--size];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+}
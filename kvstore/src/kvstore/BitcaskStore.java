@@ -0,0 +1,996 @@
+package kvstore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static kvstore.KVConstants.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.zip.CRC32;
+
+/**
+ * A StorageEngine that keeps its pairs on disk in the style of Bitcask: a log
+ * of append-only data files plus a key directory on the heap that maps every
+ * key to the location of its latest record. Only keys and locations take
+ * heap, so the data can outgrow it.
+ *
+ * The data files are named dir/data.00000001, dir/data.00000002, and so on.
+ * Each starts with FILE_MAGIC, followed by records of the form
+ * [int CRC32 of the rest][long seq][int key length][int value length, -1
+ * for a del][key UTF-8][value UTF-8]. A put or del appends a record to the
+ * active file and updates the key directory; a get reads the one record the
+ * directory points at with a positional read. Every record gets the next
+ * sequence number, and on open the files are read back and the record with
+ * the highest sequence number wins for each key. A crash can leave a partly
+ * written record at the end of a file, which is cut off when the store is
+ * next opened. Writes are not forced to disk until sync() or close(); on a
+ * KVServer slave it is the TPCLog that makes writes durable, calling sync()
+ * at its checkpoints.
+ *
+ * A record is dead once its key is written again or deleted. When the dead
+ * bytes in the files other than the active one reach the compaction ratio
+ * of their size, a background thread merges those files (see compact()):
+ * it copies their live records into new files, points the key directory at
+ * the copies and deletes the merged files. Each new active file is only
+ * started after the merged files are chosen, so they hold every record older
+ * than the del records among them, and the dels can be dropped. The merged
+ * files are deleted in the order of their newest record, so a crash part way
+ * never leaves a record behind without a del that replaced it. A merge that
+ * fails in the background is reported by the next sync() or close().
+ */
+public class BitcaskStore implements StorageEngine {
+
+    public static final long DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    private static final int FILE_MAGIC = 0x4B564231; // "KVB1"
+    private static final int FILE_HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int MERGE_BUFFER_SIZE = 1024 * 1024;
+    private static final String FILE_PREFIX = "data.";
+
+    private File dir;
+    private long fileSize;
+    private double compactionRatio;
+
+    private final ConcurrentHashMap<String, Location> keys =
+            new ConcurrentHashMap<String, Location>();
+    private final ConcurrentHashMap<Integer, DataFile> files =
+            new ConcurrentHashMap<Integer, DataFile>();
+
+    /* Guarded by this */
+    private DataFile active;
+    private long nextSeq = 1;
+    private int nextFile = 1;
+    private boolean compacting = false;
+    private int merges = 0;
+    private IOException mergeFailure = null;
+    private Preserved snapshot = null;
+    private final CRC32 crc = new CRC32();
+
+    private volatile boolean closed = false;
+
+    /* Held by compact(), writeSnapshot(), readSnapshot() and close()
+     * throughout, before this */
+    private final Object maintenanceLock = new Object();
+
+    /**
+     * Opens the store in dir, creating it if need be, with the default file
+     * size and compaction ratio.
+     *
+     * @throws KVException if the data files cannot be read
+     */
+    public BitcaskStore(String dir) throws KVException {
+        this(dir, DEFAULT_FILE_SIZE, DEFAULT_COMPACTION_RATIO);
+    }
+
+    /**
+     * Opens the store in dir, creating it if need be.
+     *
+     * @param fileSize size at which the active file is closed and a new one
+     *        started
+     * @param compactionRatio fraction of the bytes outside the active file
+     *        that must be dead to start a merge, or 0 for no merges but
+     *        those compact() is called for
+     * @throws KVException if the data files cannot be read
+     */
+    public BitcaskStore(String dir, long fileSize, double compactionRatio)
+            throws KVException {
+        this.dir = new File(dir);
+        this.fileSize = fileSize;
+        this.compactionRatio = compactionRatio;
+        try {
+            if (!this.dir.isDirectory()) {
+                Files.createDirectories(this.dir.toPath());
+            }
+            synchronized (this) {
+                open();
+            }
+        } catch (IOException e) {
+            throw new KVException("Unable to open store " + dir + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException if the record cannot be written
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        ByteBuffer record = encode(key.getBytes(UTF_8),
+                value.getBytes(UTF_8));
+        synchronized (this) {
+            checkOpen();
+            try {
+                append(key, record, false);
+            } catch (IOException e) {
+                throw new KVException("Unable to write store " + dir + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        while (true) {
+            Location location = keys.get(key);
+            if (location == null) {
+                throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+            }
+            try {
+                return read(location);
+            } catch (ClosedChannelException e) {
+                // merged away meanwhile; the key now points at the copy
+                checkOpen();
+            } catch (IOException e) {
+                throw new KVException("Unable to read store " + dir + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        ByteBuffer record = encode(key.getBytes(UTF_8), null);
+        synchronized (this) {
+            checkOpen();
+            if (!keys.containsKey(key)) {
+                throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+            }
+            try {
+                append(key, record, true);
+            } catch (IOException e) {
+                throw new KVException("Unable to write store " + dir + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the pairs of the store as a binary snapshot. Puts and dels go on
+     * meanwhile: a write that replaces a record the snapshot has yet to read
+     * keeps its location for the snapshot. Merges wait until it is done.
+     */
+    @Override
+    public void writeSnapshot(OutputStream out) throws IOException {
+        synchronized (maintenanceLock) {
+            Preserved preserved;
+            synchronized (this) {
+                checkOpenIO();
+                preserved = new Preserved(nextSeq - 1);
+                snapshot = preserved;
+            }
+            try {
+                KVSnapshot.Writer writer = new KVSnapshot.Writer(out, false);
+                for (Map.Entry<String, Location> pair : keys.entrySet()) {
+                    Location location = pair.getValue();
+                    if (location.seq <= preserved.seq
+                            && location.claim(preserved.seq)) {
+                        writer.add(pair.getKey(), read(location));
+                    }
+                }
+                synchronized (this) {
+                    snapshot = null;
+                }
+                for (Map.Entry<String, Location> pair
+                        : preserved.locations.entrySet()) {
+                    writer.add(pair.getKey(), read(pair.getValue()));
+                }
+                writer.finish();
+            } finally {
+                synchronized (this) {
+                    snapshot = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the pairs of the store with a snapshot written by
+     * writeSnapshot. The existing data files are deleted first, so if the
+     * snapshot turns out to be corrupt the store holds part of it.
+     */
+    @Override
+    public void readSnapshot(InputStream in) throws IOException {
+        synchronized (maintenanceLock) {
+            synchronized (this) {
+                checkOpenIO();
+                for (DataFile file : files.values()) {
+                    file.channel.close();
+                    Files.delete(file.file.toPath());
+                }
+                files.clear();
+                keys.clear();
+                active = startFile();
+            }
+            KVSnapshot.read(in, this);
+        }
+    }
+
+    /**
+     * Merge every data file but the active one into new files holding only
+     * their live records, and delete them. Runs in the background on its
+     * own once enough of the data is dead; puts, dels and gets go on
+     * meanwhile.
+     *
+     * @throws KVException if the merge fails; the store is left as it was,
+     *         apart from new files that may hold copies of live records
+     */
+    public void compact() throws KVException {
+        synchronized (maintenanceLock) {
+            try {
+                merge();
+                mergeDone();
+            } catch (IOException e) {
+                throw new KVException("Unable to compact store " + dir + ": "
+                        + e.getMessage());
+            } finally {
+                compactionDone();
+            }
+        }
+    }
+
+    private synchronized void mergeDone() {
+        merges++;
+    }
+
+    private synchronized void compactionDone() {
+        compacting = false;
+        notifyAll();
+    }
+
+    /**
+     * @return true: the data files are on disk
+     */
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Force the data files to disk, after waiting for a merge in progress.
+     *
+     * @throws IOException if the files cannot be forced, or if a merge run
+     *         in the background has failed since the last sync() or close()
+     */
+    @Override
+    public void sync() throws IOException {
+        synchronized (maintenanceLock) {
+            ArrayList<DataFile> open;
+            synchronized (this) {
+                checkOpenIO();
+                open = new ArrayList<DataFile>(files.values());
+            }
+            for (DataFile file : open) {
+                file.channel.force(false);
+            }
+            synchronized (this) {
+                checkMergeFailure();
+            }
+        }
+    }
+
+    /**
+     * Force everything written to disk and close the data files, after
+     * waiting for a merge in progress.
+     *
+     * @throws IOException if the files cannot be forced or closed, or if a
+     *         merge run in the background has failed since the last sync()
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (maintenanceLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                IOException failure = null;
+                for (DataFile file : files.values()) {
+                    try {
+                        file.channel.force(true);
+                        file.channel.close();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                checkMergeFailure();
+            }
+        }
+    }
+
+    /**
+     * @return bytes in the data files, live and dead
+     */
+    synchronized long fileBytes() {
+        long bytes = 0;
+        for (DataFile file : files.values()) {
+            bytes += file.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes of dead records in the data files
+     */
+    synchronized long deadBytes() {
+        long bytes = 0;
+        for (DataFile file : files.values()) {
+            bytes += file.dead;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of data files
+     */
+    int fileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return the number of merges finished since the store was opened
+     */
+    synchronized int merges() {
+        return merges;
+    }
+
+    /**
+     * Waits for the merge started in the background, if any, to finish.
+     */
+    synchronized void awaitCompaction() throws InterruptedException {
+        while (compacting) {
+            wait();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BitcaskStore " + dir + ": " + keys.size() + " keys in "
+                + files.size() + " files";
+    }
+
+    /**
+     * Reads back every data file and starts a new active file. Called with
+     * the lock held.
+     */
+    private void open() throws IOException {
+        HashMap<String, Long> deleted = new HashMap<String, Long>();
+        for (int number : listFiles()) {
+            DataFile file = new DataFile(number, dataFile(number),
+                    FileChannel.open(dataFile(number).toPath(),
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE));
+            files.put(number, file);
+            RecordReader reader = new RecordReader(file);
+            while (reader.next()) {
+                load(file, reader, deleted);
+            }
+            if (reader.end < file.channel.size()) {
+                file.channel.truncate(reader.end);
+            }
+            file.size = reader.end;
+            nextFile = number + 1;
+        }
+        active = startFile();
+    }
+
+    /**
+     * Applies a record read back on open to the key directory, unless a
+     * later record of its key has been read already.
+     */
+    private void load(DataFile file, RecordReader record,
+            HashMap<String, Long> deleted) {
+        nextSeq = Math.max(nextSeq, record.seq + 1);
+        file.maxSeq = Math.max(file.maxSeq, record.seq);
+        Location current = keys.get(record.key);
+        Long deletedAt = deleted.get(record.key);
+        long latest = Math.max(current != null ? current.seq : 0,
+                deletedAt != null ? deletedAt : 0);
+        if (record.seq <= latest) {
+            file.dead += record.length;
+            return;
+        }
+        if (current != null) {
+            files.get(current.file).dead += current.length;
+        }
+        if (record.deleted) {
+            keys.remove(record.key);
+            deleted.put(record.key, record.seq);
+            file.dead += record.length;
+        } else {
+            keys.put(record.key, new Location(file.number, record.offset,
+                    record.length, record.seq));
+            deleted.remove(record.key);
+        }
+    }
+
+    /**
+     * Appends a record to the active file and points key at it, or removes
+     * key for a del. Called with the lock held.
+     */
+    private void append(String key, ByteBuffer record, boolean del)
+            throws IOException {
+        int length = record.remaining();
+        if (active.size > FILE_HEADER_SIZE
+                && active.size + length > fileSize) {
+            active = startFile();
+            maybeCompact();
+        }
+        long seq = nextSeq;
+        record.putLong(4, seq);
+        crc.reset();
+        crc.update(record.array(), 4, length - 4);
+        record.putInt(0, (int) crc.getValue());
+        writeFully(active.channel, record, active.size);
+        nextSeq++;
+        Location location = new Location(active.number, active.size, length,
+                seq);
+        active.size += length;
+        active.maxSeq = seq;
+        Location old;
+        if (del) {
+            old = keys.remove(key);
+            active.dead += length;
+        } else {
+            old = keys.put(key, location);
+        }
+        if (old != null) {
+            retire(key, old);
+        }
+    }
+
+    /**
+     * Counts a record replaced or deleted as dead, and keeps its location
+     * for a snapshot being written that has yet to read it. Called with the
+     * lock held.
+     */
+    private void retire(String key, Location old) {
+        DataFile file = files.get(old.file);
+        if (file != null) {
+            file.dead += old.length;
+        }
+        if (snapshot != null && old.seq <= snapshot.seq
+                && old.claim(snapshot.seq)) {
+            snapshot.locations.put(key, old);
+        }
+    }
+
+    /**
+     * Starts a merge in the background if enough of the data outside the
+     * active file is dead. Called with the lock held.
+     */
+    private void maybeCompact() {
+        if (compacting || compactionRatio <= 0) {
+            return;
+        }
+        long total = 0;
+        long dead = 0;
+        for (DataFile file : files.values()) {
+            if (file != active) {
+                total += file.size - FILE_HEADER_SIZE;
+                dead += file.dead;
+            }
+        }
+        if (total == 0 || dead < compactionRatio * total) {
+            return;
+        }
+        compacting = true;
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the failure is kept before sync(), close() and
+                // awaitCompaction() can see the merge is over
+                synchronized (maintenanceLock) {
+                    try {
+                        merge();
+                        mergeDone();
+                    } catch (IOException e) {
+                        synchronized (BitcaskStore.this) {
+                            if (mergeFailure == null) {
+                                mergeFailure = new IOException(
+                                        "Unable to compact store " + dir
+                                        + ": " + e.getMessage(), e);
+                            }
+                        }
+                    } finally {
+                        compactionDone();
+                    }
+                }
+            }
+        }, "BitcaskStore compaction");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Copies the live records of every file but the active one into new
+     * files and deletes the old ones. Called holding maintenanceLock.
+     */
+    private void merge() throws IOException {
+        ArrayList<DataFile> inputs = new ArrayList<DataFile>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (DataFile file : files.values()) {
+                if (file != active) {
+                    inputs.add(file);
+                }
+            }
+        }
+        if (inputs.isEmpty()) {
+            return;
+        }
+        MergeOutput output = new MergeOutput();
+        for (DataFile input : inputs) {
+            RecordReader reader = new RecordReader(input);
+            while (reader.next()) {
+                Location current = keys.get(reader.key);
+                if (current != null && current.file == input.number
+                        && current.offset == reader.offset) {
+                    output.copy(reader, current);
+                }
+            }
+        }
+        output.finish();
+
+        synchronized (this) {
+            for (DataFile input : inputs) {
+                files.remove(input.number);
+            }
+        }
+        Collections.sort(inputs, new Comparator<DataFile>() {
+            @Override
+            public int compare(DataFile a, DataFile b) {
+                return a.maxSeq < b.maxSeq ? -1 : a.maxSeq > b.maxSeq ? 1 : 0;
+            }
+        });
+        for (DataFile input : inputs) {
+            input.channel.close();
+            Files.delete(input.file.toPath());
+        }
+    }
+
+    /**
+     * Reads the value of the record at location.
+     *
+     * @throws ClosedChannelException if its file has been merged away
+     */
+    private String read(Location location) throws IOException {
+        DataFile file = files.get(location.file);
+        if (file == null) {
+            throw new ClosedChannelException();
+        }
+        ByteBuffer record = ByteBuffer.allocate(location.length);
+        long position = location.offset;
+        while (record.hasRemaining()) {
+            int n = file.channel.read(record, position);
+            if (n < 0) {
+                throw new EOFException(file.file + " is truncated");
+            }
+            position += n;
+        }
+        byte[] bytes = record.array();
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 4, bytes.length - 4);
+        int keyLength = record.getInt(12);
+        int valueLength = record.getInt(16);
+        if (record.getInt(0) != (int) checksum.getValue() || valueLength < 0
+                || RECORD_HEADER_SIZE + keyLength + valueLength
+                        != bytes.length) {
+            throw new IOException(file.file + " is corrupt at offset "
+                    + location.offset);
+        }
+        return new String(bytes, RECORD_HEADER_SIZE + keyLength, valueLength,
+                UTF_8);
+    }
+
+    /**
+     * @return a record for key and value, or a del record if value is null,
+     *         with its sequence number and checksum still to be filled in
+     */
+    private static ByteBuffer encode(byte[] key, byte[] value) {
+        int valueLength = value != null ? value.length : 0;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE
+                + key.length + valueLength);
+        record.putInt(0);
+        record.putLong(0);
+        record.putInt(key.length);
+        record.putInt(value != null ? value.length : -1);
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Creates the next data file and writes its header. Called with the
+     * lock held.
+     */
+    private DataFile startFile() throws IOException {
+        int number = nextFile++;
+        File path = dataFile(number);
+        DataFile file = new DataFile(number, path, FileChannel.open(
+                path.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(FILE_MAGIC);
+        header.flip();
+        writeFully(file.channel, header, 0);
+        file.size = FILE_HEADER_SIZE;
+        files.put(number, file);
+        return file;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf,
+            long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private void checkOpen() throws KVException {
+        if (closed) {
+            throw new KVException("Store " + dir + " is closed");
+        }
+    }
+
+    /**
+     * Reports, once, the failure of a merge run in the background. Called
+     * with the lock held.
+     */
+    private void checkMergeFailure() throws IOException {
+        IOException failed = mergeFailure;
+        if (failed != null) {
+            mergeFailure = null;
+            throw failed;
+        }
+    }
+
+    private void checkOpenIO() throws IOException {
+        if (closed) {
+            throw new IOException("Store " + dir + " is closed");
+        }
+    }
+
+    private File dataFile(int number) {
+        return new File(dir, FILE_PREFIX + String.format("%08d", number));
+    }
+
+    /**
+     * @return numbers of the existing data files in ascending order
+     */
+    private int[] listFiles() {
+        String[] names = dir.list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] numbers = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.length() == FILE_PREFIX.length() + 8
+                    && name.startsWith(FILE_PREFIX)) {
+                try {
+                    numbers[count] = Integer.parseInt(name.substring(
+                            FILE_PREFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // not a data file
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * A data file. The channel is used for positional reads by any thread;
+     * the counters are guarded by the store's lock.
+     */
+    private static final class DataFile {
+
+        final int number;
+        final File file;
+        final FileChannel channel;
+        long size = 0;
+        long dead = 0;
+        long maxSeq = 0;
+
+        DataFile(int number, File file, FileChannel channel) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Where the latest record of a key is.
+     */
+    private static final class Location {
+
+        private static final AtomicLongFieldUpdater<Location> CLAIMED =
+                AtomicLongFieldUpdater.newUpdater(Location.class, "claimed");
+
+        final int file;
+        final long offset;
+        final int length;
+        final long seq;
+
+        /* The seq of the last snapshot to read or preserve the record */
+        private volatile long claimed = 0;
+
+        Location(int file, long offset, int length, long seq) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.seq = seq;
+        }
+
+        /**
+         * @return true the first time it is called for a snapshot
+         */
+        boolean claim(long snapshotSeq) {
+            while (true) {
+                long current = claimed;
+                if (current >= snapshotSeq) {
+                    return false;
+                }
+                if (CLAIMED.compareAndSet(this, current, snapshotSeq)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The records a snapshot is made of that writers replaced while it was
+     * being written: it includes the records up to seq.
+     */
+    private static final class Preserved {
+
+        final long seq;
+        final HashMap<String, Location> locations =
+                new HashMap<String, Location>();
+
+        Preserved(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Reads the records of a data file in order, stopping at the end or at
+     * the first record that is cut off or corrupt.
+     */
+    private static final class RecordReader {
+
+        private final FileChannel channel;
+        private final long size;
+        private ByteBuffer buf;
+        private CRC32 checksum = new CRC32();
+
+        /* Offset just past the last record read */
+        long end = 0;
+
+        /* The record last read */
+        long offset;
+        int length;
+        long seq;
+        String key;
+        boolean deleted;
+        private int start;
+
+        RecordReader(DataFile file) throws IOException {
+            channel = file.channel;
+            size = channel.size();
+            buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            buf.flip();
+            if (size < FILE_HEADER_SIZE) {
+                return;
+            }
+            channel.position(0);
+            fill();
+            if (buf.getInt() != FILE_MAGIC) {
+                throw new IOException(file.file + " is not a data file");
+            }
+            end = FILE_HEADER_SIZE;
+        }
+
+        boolean next() throws IOException {
+            if (end == 0) {
+                return false;
+            }
+            if (buf.remaining() < RECORD_HEADER_SIZE) {
+                fill();
+                if (buf.remaining() < RECORD_HEADER_SIZE) {
+                    return false;
+                }
+            }
+            int p = buf.position();
+            int keyLength = buf.getInt(p + 12);
+            int valueLength = buf.getInt(p + 16);
+            if (keyLength < 0 || keyLength > MAX_FRAME_SIZE
+                    || valueLength < -1 || valueLength > MAX_FRAME_SIZE) {
+                return false;
+            }
+            int recordLength = RECORD_HEADER_SIZE + keyLength
+                    + Math.max(valueLength, 0);
+            if (end + recordLength > size) {
+                return false;
+            }
+            if (buf.remaining() < recordLength) {
+                fill();
+                if (buf.capacity() < recordLength) {
+                    ByteBuffer bigger = ByteBuffer.allocate(recordLength);
+                    bigger.put(buf);
+                    bigger.flip();
+                    buf = bigger;
+                    fill();
+                }
+                if (buf.remaining() < recordLength) {
+                    return false;
+                }
+            }
+            p = buf.position();
+            byte[] bytes = buf.array();
+            checksum.reset();
+            checksum.update(bytes, p + 4, recordLength - 4);
+            if (buf.getInt(p) != (int) checksum.getValue()) {
+                return false;
+            }
+            offset = end;
+            length = recordLength;
+            seq = buf.getLong(p + 4);
+            key = new String(bytes, p + RECORD_HEADER_SIZE, keyLength, UTF_8);
+            deleted = valueLength == -1;
+            start = p;
+            buf.position(p + recordLength);
+            end += recordLength;
+            return true;
+        }
+
+        /**
+         * Copies the record last read to out.
+         */
+        void copyTo(ByteBuffer out) {
+            out.put(buf.array(), start, length);
+        }
+
+        private void fill() throws IOException {
+            buf.compact();
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                // keep reading
+            }
+            buf.flip();
+        }
+    }
+
+    /**
+     * The files a merge copies live records to. Copies are buffered, and
+     * each buffer is written out before the key directory is pointed at
+     * the records in it, unless a writer has replaced them meanwhile.
+     */
+    private class MergeOutput {
+
+        private ArrayList<DataFile> outputs = new ArrayList<DataFile>();
+        private DataFile file;
+        private ByteBuffer buf = ByteBuffer.allocate(MERGE_BUFFER_SIZE);
+        private long written;
+        private long end;
+        private ArrayList<String> copiedKeys = new ArrayList<String>();
+        private ArrayList<Location> from = new ArrayList<Location>();
+        private ArrayList<Location> to = new ArrayList<Location>();
+
+        void copy(RecordReader record, Location current) throws IOException {
+            if (file == null || (end > FILE_HEADER_SIZE
+                    && end + record.length > fileSize)) {
+                flush();
+                synchronized (BitcaskStore.this) {
+                    file = startFile();
+                }
+                outputs.add(file);
+                written = end = FILE_HEADER_SIZE;
+            }
+            if (buf.remaining() < record.length) {
+                flush();
+                if (buf.capacity() < record.length) {
+                    buf = ByteBuffer.allocate(record.length);
+                }
+            }
+            record.copyTo(buf);
+            copiedKeys.add(record.key);
+            from.add(current);
+            to.add(new Location(file.number, end, record.length,
+                    record.seq));
+            end += record.length;
+        }
+
+        void finish() throws IOException {
+            flush();
+            for (DataFile output : outputs) {
+                output.channel.force(true);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (file == null) {
+                return;
+            }
+            buf.flip();
+            writeFully(file.channel, buf, written);
+            buf.clear();
+            written = end;
+            synchronized (BitcaskStore.this) {
+                file.size = end;
+                for (int i = 0; i < copiedKeys.size(); i++) {
+                    Location copy = to.get(i);
+                    file.maxSeq = Math.max(file.maxSeq, copy.seq);
+                    if (!keys.replace(copiedKeys.get(i), from.get(i), copy)) {
+                        file.dead += copy.length;
+                    }
+                }
+            }
+            copiedKeys.clear();
+            from.clear();
+            to.clear();
+        }
+    }
+
+}
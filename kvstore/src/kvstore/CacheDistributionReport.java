@@ -0,0 +1,194 @@
+package kvstore;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Reports how a sample of keys spreads over the sets of a KVCache, and how
+ * many misses that costs, for the current set hashing and for the original
+ * Math.abs(hashCode()) % numSets.
+ *
+ * Occupancy is the number of distinct sample keys that map to each set. The
+ * miss rates come from replaying random accesses to the sample through a
+ * set-associative cache with each hashing and through a fully associative
+ * cache of the same total size; conflict misses are the misses in excess of
+ * the fully associative ones.
+ *
+ * Usage:
+ *   CacheDistributionReport numSets maxElemsPerSet keyFile [accesses] [-v]
+ *   CacheDistributionReport numSets maxElemsPerSet -pattern fmt count [accesses] [-v]
+ *
+ * keyFile has one key per line. With -pattern the sample is
+ * String.format(fmt, i) for i from 0 to count - 1, e.g. "user:%06d".
+ * accesses defaults to ten times the number of keys. -v also lists the
+ * occupancy of every set.
+ */
+public class CacheDistributionReport {
+
+    private static final String USAGE = "usage: CacheDistributionReport "
+            + "numSets maxElemsPerSet (keyFile | -pattern fmt count) "
+            + "[accesses] [-v]";
+
+    public static void main(String[] args) throws IOException {
+        List<String> rest = new ArrayList<String>();
+        boolean verbose = false;
+        for (String arg : args) {
+            if (arg.equals("-v")) {
+                verbose = true;
+            } else {
+                rest.add(arg);
+            }
+        }
+        if (rest.size() < 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        int numSets = Integer.parseInt(rest.get(0));
+        int maxElemsPerSet = Integer.parseInt(rest.get(1));
+        String[] keys;
+        int next;
+        if (rest.get(2).equals("-pattern")) {
+            if (rest.size() < 5) {
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            keys = patternKeys(rest.get(3), Integer.parseInt(rest.get(4)));
+            next = 5;
+        } else {
+            keys = fileKeys(rest.get(2));
+            next = 3;
+        }
+        int accesses = rest.size() > next ? Integer.parseInt(rest.get(next))
+                : 10 * keys.length;
+
+        KVCache layout = new KVCache(numSets, 1);
+        int[] current = new int[keys.length];
+        int[] legacy = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            current[i] = layout.getSetId(keys[i]);
+            legacy[i] = Math.abs(keys[i].hashCode() % numSets);
+        }
+
+        int[] trace = new int[accesses];
+        Random random = new Random(1);
+        for (int i = 0; i < accesses; i++) {
+            trace[i] = random.nextInt(keys.length);
+        }
+        int fullMisses = replay(keys, trace, null, 1,
+                numSets * maxElemsPerSet);
+
+        System.out.format("%d keys, %d sets x %d ways, %d accesses%n",
+                keys.length, numSets, maxElemsPerSet, accesses);
+        System.out.format("fully associative miss rate: %.2f%%%n%n",
+                100.0 * fullMisses / accesses);
+        System.out.format("%-8s %6s %6s %8s %8s %6s %6s %8s %9s%n", "hash",
+                "min", "max", "mean", "stddev", "empty", "over", "miss%",
+                "conflict%");
+        int[][] occupancies = new int[2][];
+        String[] names = { "fmix32", "legacy" };
+        int[][] mappings = { current, legacy };
+        for (int h = 0; h < 2; h++) {
+            int[] occupancy = new int[numSets];
+            for (int set : mappings[h]) {
+                occupancy[set]++;
+            }
+            occupancies[h] = occupancy;
+            int misses = replay(keys, trace, mappings[h], numSets,
+                    maxElemsPerSet);
+            printSummary(names[h], occupancy, maxElemsPerSet,
+                    100.0 * misses / accesses,
+                    100.0 * (misses - fullMisses) / accesses);
+        }
+        if (verbose) {
+            System.out.format("%n%-6s %8s %8s%n", "set", names[0], names[1]);
+            for (int i = 0; i < numSets; i++) {
+                System.out.format("%-6d %8d %8d%n", i, occupancies[0][i],
+                        occupancies[1][i]);
+            }
+        }
+    }
+
+    private static String[] patternKeys(String format, int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = String.format(format, i);
+        }
+        return keys;
+    }
+
+    private static String[] fileKeys(String fileName) throws IOException {
+        Set<String> keys = new LinkedHashSet<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    keys.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Replays the accesses through numSets independent second-chance sets,
+     * each a single-set KVCache, with keys assigned to sets by mapping (all
+     * to set 0 when mapping is null). A miss inserts the key.
+     *
+     * @return number of misses
+     */
+    private static int replay(String[] keys, int[] trace, int[] mapping,
+            int numSets, int ways) {
+        KVCache[] sets = new KVCache[numSets];
+        for (int i = 0; i < numSets; i++) {
+            sets[i] = new KVCache(1, ways);
+        }
+        int misses = 0;
+        for (int k : trace) {
+            KVCache set = sets[mapping == null ? 0 : mapping[k]];
+            if (set.get(keys[k]) == null) {
+                set.put(keys[k], keys[k]);
+                misses++;
+            }
+        }
+        return misses;
+    }
+
+    private static void printSummary(String name, int[] occupancy, int ways,
+            double missRate, double conflictRate) {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        int empty = 0;
+        int over = 0;
+        double sum = 0;
+        for (int n : occupancy) {
+            min = Math.min(min, n);
+            max = Math.max(max, n);
+            sum += n;
+            if (n == 0) {
+                empty++;
+            }
+            if (n > ways) {
+                over++;
+            }
+        }
+        double mean = sum / occupancy.length;
+        double variance = 0;
+        for (int n : occupancy) {
+            variance += (n - mean) * (n - mean);
+        }
+        double stddev = Math.sqrt(variance / occupancy.length);
+        System.out.format("%-8s %6d %6d %8.1f %8.1f %6d %6d %7.2f%% %8.2f%%%n",
+                name, min, max, mean, stddev, empty, over, missRate,
+                conflictRate);
+    }
+
+}
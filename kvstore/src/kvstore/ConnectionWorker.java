@@ -0,0 +1,134 @@
+package kvstore;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Runnable that services one accepted socket for a NetworkHandler. It detects
+ * the protocol the peer speaks, then answers a single request on an XML
+ * connection, or every frame sent on a binary connection until the peer
+ * closes it or leaves it idle for longer than the idle timeout. Requests on
+ * one connection are handled strictly in the order they arrive.
+ */
+abstract class ConnectionWorker implements Runnable {
+
+    protected Socket sock;
+    private int idleTimeout;
+
+    /**
+     * @param sock Socket accepted from the peer
+     * @param idleTimeout milliseconds a binary connection may sit idle
+     *        between requests before it is closed, 0 for no limit
+     */
+    ConnectionWorker(Socket sock, int idleTimeout) {
+        this.sock = sock;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Carries out a single request.
+     *
+     * @param request KVMessage received from the peer
+     * @return response to send back
+     * @throws KVException if the request fails; its KVMessage is the response
+     */
+    protected abstract KVMessage handleRequest(KVMessage request)
+            throws KVException;
+
+    /**
+     * Called after a response has been handed to the connection. It has been
+     * flushed unless the peer already sent another request.
+     *
+     * @param response the KVMessage that was sent
+     */
+    protected void responseSent(KVMessage response) {
+    }
+
+    /**
+     * Processes requests from the peer and sends back a response for each.
+     * The delivery of a response is best-effort. If we are unable to return
+     * a response, there is nothing else we can do but close the connection.
+     */
+    @Override
+    public void run() {
+        KVConnection conn = null;
+        try {
+            conn = KVConnection.accept(sock);
+            if (!conn.isBinary()) {
+                serveOne(conn);
+            } else {
+                conn.setTimeout(idleTimeout);
+                while (conn.awaitNext() && serveOne(conn)) {
+                    // keep serving requests on this connection
+                }
+            }
+        } catch (KVException e) {
+            if (conn == null) {
+                try {
+                    e.getKVMessage().sendMessage(sock);
+                } catch (KVException e1) {
+                    // ignore
+                }
+            }
+            // otherwise the connection idled out or the peer went away
+        } finally {
+            if (conn != null && conn.isBinary()) {
+                try {
+                    conn.flush();
+                } catch (KVException e) {
+                    // ignore
+                }
+            }
+            try {
+                sock.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Receives one request, handles it and sends the response.
+     *
+     * @return true if the connection can carry another request
+     */
+    private boolean serveOne(KVConnection conn) {
+        KVMessage request;
+        try {
+            request = conn.receive();
+        } catch (KVException e) {
+            send(conn, e.getKVMessage());
+            return false;
+        }
+        KVMessage response;
+        try {
+            response = handleRequest(request);
+        } catch (KVException e) {
+            response = e.getKVMessage();
+        }
+        return send(conn, response);
+    }
+
+    /**
+     * Sends a response. On a binary connection whose peer has already sent
+     * its next request, the response is left buffered so that the responses
+     * to pipelined requests go out together.
+     */
+    private boolean send(KVConnection conn, KVMessage response) {
+        try {
+            if (!conn.isBinary()) {
+                conn.send(response);
+            } else {
+                conn.write(response);
+                if (!conn.hasPendingInput()) {
+                    conn.flush();
+                }
+            }
+        } catch (KVException e) {
+            return false;
+        }
+        responseSent(response);
+        return true;
+    }
+
+}
@@ -1,6 +1,7 @@
 package kvstore;
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -22,36 +23,81 @@ import org.xml.sax.SAXException;
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
  * the eviction policy.
+ *
+ * Each set has a small hash index from keys to slots, so lookups do not
+ * scan the set and stay cheap at high associativity.
+ *
+ * Besides the usual get under the set lock, getOptimistic() serves hits
+ * without locking. Every change to a set's entries happens between two
+ * increments of the set's version, a seqlock: the version is odd while a
+ * change is in progress, and a reader whose scan saw the same even version
+ * before and after knows it did not observe a half-made change.
  */
 public class KVCache implements KeyValueInterface {
 	
 	private int numSets = 100;
 	private int maxElemsPerSet = 10;
 	private Entry[][] cache;
-	private LinkedList<Entry>[] entryQueue;
+	// Second-chance queue of each set: the valid slots form a circular
+	// doubly linked list through next/prev, in the order they would leave
+	// the queue, and hand points at its front (-1 when the set is empty).
+	// Sending the front entry to the back is just advancing the hand.
+	private int[][] next;
+	private int[][] prev;
+	private int[] hand;
+	// Slots of each set that hold no entry, used as a stack.
+	private int[][] freeSlots;
+	private int[] freeCount;
+	// Index of each set: an open-addressing hash table with linear probing
+	// whose cells hold slot + 1, or 0 when empty. Every set has indexSize
+	// cells, at least twice its number of slots, in one shared array so that
+	// lock-free readers see them through volatile reads.
+	private AtomicIntegerArray index;
+	private int indexSize;
+	private int indexShift;
+	// numSets - 1 if numSets is a power of two, otherwise -1
+	private int setMask;
 	private ReentrantLock[] cacheLock;
+	private AtomicLongArray versions;
+
+	// Versions of neighbouring sets are kept a cache line apart, so readers
+	// of one set are not slowed down by writes to the next.
+	private static final int VERSION_STRIDE = 8;
+	private static final int OPTIMISTIC_ATTEMPTS = 4;
 	
     /**
-     * Constructs a second-chance-replacement cache.
+     * Constructs a second-chance-replacement cache. A power-of-two number
+     * of sets makes choosing a key's set slightly cheaper.
      *
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
         // implement me
     	this.numSets = numSets;
     	this.maxElemsPerSet = maxElemsPerSet;
+    	this.setMask = Integer.bitCount(numSets) == 1 ? numSets - 1 : -1;
     	cache = new Entry[numSets][];
-    	entryQueue =(LinkedList<Entry>[]) new LinkedList<?>[numSets];
+    	next = new int[numSets][maxElemsPerSet];
+    	prev = new int[numSets][maxElemsPerSet];
+    	hand = new int[numSets];
+    	freeSlots = new int[numSets][maxElemsPerSet];
+    	freeCount = new int[numSets];
+    	indexShift = 32 - Integer.numberOfTrailingZeros(
+    			Integer.highestOneBit(Math.max(1, maxElemsPerSet - 1)) << 2);
+    	indexSize = 1 << (32 - indexShift);
+    	index = new AtomicIntegerArray(numSets * indexSize);
     	cacheLock = new ReentrantLock[numSets];
+    	versions = new AtomicLongArray(numSets * VERSION_STRIDE);
     	for(int i = 0; i < numSets; i++){
     		cache[i] = new Entry[maxElemsPerSet];
-    		entryQueue[i] = new LinkedList<Entry>();
+    		hand[i] = -1;
     		cacheLock[i] = new ReentrantLock();
     		for(int j = 0; j < maxElemsPerSet; j++){
     			cache[i][j] = new Entry();
+    			freeSlots[i][j] = j;
     		}
+    		freeCount[i] = maxElemsPerSet;
     	}
     }
 
@@ -67,16 +113,15 @@ public class KVCache implements KeyValueInterface {
     @Override
     public String get(String key) {
         // implement me
-        String res = null;
-        int setId = this.getSetId(key);
-        for(int i = 0; i < this.maxElemsPerSet; i++){
-        	Entry entry = cache[setId][i];
-        	if(entry.valid && entry.key.equals(key)){
-        		entry.referenceBit = true;
-        		res = entry.value;
-        	}
+        int hash = spread(key.hashCode());
+        int setId = setOf(hash);
+        int slot = findSlot(setId, key, hash);
+        if(slot < 0){
+        	return null;
         }
-        return res;
+        Entry entry = cache[setId][slot];
+        entry.referenceBit = true;
+        return entry.value;
     }
 
     /**
@@ -85,12 +130,11 @@ public class KVCache implements KeyValueInterface {
      * replaced by the new entry. When an entry is replaced, its reference bit
      * will be set to True. If the set is full, an entry is removed from
      * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * will be inserted behind all existing entries. The queue is kept as a
+     * circular list of slot indices with a clock hand at its front, so that
+     * neither insertion, eviction nor deletion allocates or shifts entries.
+     * More details and explanations in the spec. Assumes access to the
+     * corresponding set has already been locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
@@ -98,39 +142,159 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void put(String key, String value) {
         // implement me
-    	int setId = this.getSetId(key);
-    	Entry emptyEntry = null;
-    	for (int i = 0; i < this.maxElemsPerSet; i++){
-    		Entry entry = cache[setId][i];
-    		if(entry.valid){
-    			if(entry.key.equals(key)){
-    				entry.value = value;
-    				entry.referenceBit = true;
-    				return;
-    			}
-    		}else{
-    			emptyEntry = entry;
-    		}
+    	int hash = spread(key.hashCode());
+    	int setId = setOf(hash);
+    	int slot = findSlot(setId, key, hash);
+    	if(slot >= 0){
+    		Entry entry = cache[setId][slot];
+    		beginWrite(setId);
+    		entry.value = value;
+    		entry.referenceBit = true;
+    		endWrite(setId);
+    		return;
     	}
-    	if(emptyEntry != null){
+    	if(freeCount[setId] > 0){
+    		slot = freeSlots[setId][--freeCount[setId]];
+    		Entry emptyEntry = cache[setId][slot];
+    		beginWrite(setId);
     		emptyEntry.key = key;
+    		emptyEntry.hash = hash;
     		emptyEntry.value = value;
     		emptyEntry.valid = true;
     		emptyEntry.referenceBit = false;
-    		entryQueue[setId].addLast(emptyEntry);
+    		addToIndex(setId, slot);
+    		endWrite(setId);
+    		linkLast(setId, slot);
     		return;
     	}else{
-    		Entry entry = entryQueue[setId].removeFirst();
+    		slot = hand[setId];
+    		Entry entry = cache[setId][slot];
     		while(entry.referenceBit){
     			entry.referenceBit = false;
-    			entryQueue[setId].addLast(entry);
-    			entry = entryQueue[setId].removeFirst();
+    			slot = next[setId][slot];
+    			entry = cache[setId][slot];
     		}
+    		beginWrite(setId);
+    		removeFromIndex(setId, slot);
     		entry.key = key;
+    		entry.hash = hash;
     		entry.value = value;
-    		entryQueue[setId].addLast(entry);
+    		addToIndex(setId, slot);
+    		endWrite(setId);
+    		// the victim's slot now holds the newest entry, at the back
+    		hand[setId] = next[setId][slot];
+    		return;
+    	}
+    }
+
+    /**
+     * Inserts a slot at the back of its set's queue, just behind the hand.
+     */
+    private void linkLast(int setId, int slot) {
+    	int front = hand[setId];
+    	if(front < 0){
+    		next[setId][slot] = slot;
+    		prev[setId][slot] = slot;
+    		hand[setId] = slot;
+    		return;
+    	}
+    	int back = prev[setId][front];
+    	next[setId][back] = slot;
+    	prev[setId][slot] = back;
+    	next[setId][slot] = front;
+    	prev[setId][front] = slot;
+    }
+
+    /**
+     * Removes a slot from its set's queue.
+     */
+    private void unlink(int setId, int slot) {
+    	int after = next[setId][slot];
+    	if(after == slot){
+    		hand[setId] = -1;
     		return;
     	}
+    	int before = prev[setId][slot];
+    	next[setId][before] = after;
+    	prev[setId][after] = before;
+    	if(hand[setId] == slot){
+    		hand[setId] = after;
+    	}
+    }
+
+    /**
+     * Looks a key up in its set's index. Safe without the set lock as long
+     * as the caller validates the set's version afterwards.
+     *
+     * @return slot holding the key, or -1
+     */
+    private int findSlot(int setId, String key, int hash) {
+    	int base = setId * indexSize;
+    	int mask = indexSize - 1;
+    	int cell = homeCell(hash);
+    	for(int probes = 0; probes < indexSize; probes++){
+    		int slot = index.get(base + cell) - 1;
+    		if(slot < 0){
+    			return -1;
+    		}
+    		Entry entry = cache[setId][slot];
+    		if(entry.hash == hash && key.equals(entry.key)){
+    			return slot;
+    		}
+    		cell = (cell + 1) & mask;
+    	}
+    	return -1;
+    }
+
+    /**
+     * First index cell to probe for a spread hash. Taken from the high bits
+     * of a product that mixes in every bit of the hash, so that it varies
+     * among keys of the same set whichever bits chose the set.
+     */
+    private int homeCell(int hash) {
+    	return (hash * 0x9E3779B9) >>> indexShift;
+    }
+
+    private void addToIndex(int setId, int slot) {
+    	int base = setId * indexSize;
+    	int mask = indexSize - 1;
+    	int cell = homeCell(cache[setId][slot].hash);
+    	while(index.get(base + cell) != 0){
+    		cell = (cell + 1) & mask;
+    	}
+    	index.set(base + cell, slot + 1);
+    }
+
+    /**
+     * Removes a slot from its set's index, shifting later entries of the
+     * probe sequence back so that no tombstones are needed.
+     */
+    private void removeFromIndex(int setId, int slot) {
+    	int base = setId * indexSize;
+    	int mask = indexSize - 1;
+    	int hole = homeCell(cache[setId][slot].hash);
+    	while(index.get(base + hole) != slot + 1){
+    		hole = (hole + 1) & mask;
+    	}
+    	int cell = hole;
+    	while(true){
+    		cell = (cell + 1) & mask;
+    		int value = index.get(base + cell);
+    		if(value == 0){
+    			break;
+    		}
+    		int home = homeCell(cache[setId][value - 1].hash);
+    		// move the entry into the hole unless its home lies cyclically
+    		// after the hole, in which case it would no longer be found
+    		boolean stays = hole <= cell
+    				? (home > hole && home <= cell)
+    				: (home > hole || home <= cell);
+    		if(!stays){
+    			index.set(base + hole, value);
+    			hole = cell;
+    		}
+    	}
+    	index.set(base + hole, 0);
     }
 
     /**
@@ -143,17 +307,76 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void del(String key) {
         // implement me
-    	int setId = this.getSetId(key);
-    	for(int i = 0; i < this.maxElemsPerSet; i++){
-    		Entry entry = cache[setId][i];
-    		if(entry.valid && entry.key.equals(key)){
-    			entry.valid = false;
-    			entryQueue[setId].remove(entry);
-    			return;
+    	int hash = spread(key.hashCode());
+    	int setId = setOf(hash);
+    	int slot = findSlot(setId, key, hash);
+    	if(slot < 0){
+    		return;
+    	}
+    	beginWrite(setId);
+    	removeFromIndex(setId, slot);
+    	cache[setId][slot].valid = false;
+    	endWrite(setId);
+    	unlink(setId, slot);
+    	freeSlots[setId][freeCount[setId]++] = slot;
+    }
+
+    /**
+     * Retrieves an entry from the cache without the caller holding the set
+     * lock. Hits on entries whose reference bit is already set take no lock
+     * at all; the first hit after the bit was cleared takes the set lock
+     * briefly to set it, so eviction order is the same as with get(). Falls
+     * back to locking the set if writers keep changing it during the lookup.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key or null if no value is
+     *         associated with this key in the cache
+     */
+    public String getOptimistic(String key) {
+    	int hash = spread(key.hashCode());
+    	int setId = setOf(hash);
+    	int versionIndex = setId * VERSION_STRIDE;
+    	for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++){
+    		long version = versions.get(versionIndex);
+    		if((version & 1) != 0){
+    			continue;
     		}
+    		int slot = findSlot(setId, key, hash);
+    		Entry hit = slot < 0 ? null : cache[setId][slot];
+    		String res = hit == null ? null : hit.value;
+    		if(versions.get(versionIndex) != version){
+    			continue;
+    		}
+    		if(hit != null && !hit.referenceBit){
+    			cacheLock[setId].lock();
+    			try{
+    				// the entry may have been evicted since; then the read
+    				// still stands but there is no bit left to set
+    				if(hit.valid && hit.key.equals(key)){
+    					hit.referenceBit = true;
+    				}
+    			}finally{
+    				cacheLock[setId].unlock();
+    			}
+    		}
+    		return res;
+    	}
+    	cacheLock[setId].lock();
+    	try{
+    		return get(key);
+    	}finally{
+    		cacheLock[setId].unlock();
     	}
     }
 
+    private void beginWrite(int setId) {
+    	versions.incrementAndGet(setId * VERSION_STRIDE);
+    }
+
+    private void endWrite(int setId) {
+    	versions.incrementAndGet(setId * VERSION_STRIDE);
+    }
+
     /**
      * Get a lock for the set corresponding to a given key.
      * The lock should be used by the caller of the get/put/del methods
@@ -173,8 +396,35 @@ public class KVCache implements KeyValueInterface {
      * @param  key key of interest
      * @return set of the key
      */
-    private int getSetId(String key) {
-        return Math.abs(key.hashCode()) % numSets;
+    int getSetId(String key) {
+        return setOf(spread(key.hashCode()));
+    }
+
+    /**
+     * Map a spread hash to a set. With a power-of-two number of sets this
+     * is a mask of the low bits; otherwise the high bits of hash * numSets,
+     * which is uniform over the sets without a division.
+     */
+    private int setOf(int hash) {
+    	if(setMask >= 0){
+    		return hash & setMask;
+    	}
+    	return (int) (((hash & 0xFFFFFFFFL) * numSets) >>> 32);
+    }
+
+    /**
+     * The murmur3 32-bit finalizer. String.hashCode() of keys that differ only
+     * in their last characters, such as sequential ids, differ only in the
+     * low bits; this spreads every input bit over the whole word. It is a
+     * bijection, so spread hashes are equal exactly when hash codes are.
+     */
+    static int spread(int h) {
+    	h ^= h >>> 16;
+    	h *= 0x85EBCA6B;
+    	h ^= h >>> 13;
+    	h *= 0xC2B2AE35;
+    	h ^= h >>> 16;
+    	return h;
     }
 
     /**
@@ -220,10 +470,11 @@ public class KVCache implements KeyValueInterface {
     }
     
     private class Entry{
-    	public String key;
-    	public String value;
-    	public boolean referenceBit;
-    	public boolean valid;
+    	public volatile String key;
+    	public volatile int hash; // spread(key.hashCode())
+    	public volatile String value;
+    	public volatile boolean referenceBit;
+    	public volatile boolean valid;
     	
     	public Entry(){
     		this.valid = false;
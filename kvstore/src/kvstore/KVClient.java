@@ -6,6 +6,9 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Client API used to issue requests to key-value server.
@@ -14,10 +17,23 @@ public class KVClient implements KeyValueInterface {
 
     private String server;
     private int port;
+    private boolean binaryProtocol;
+    private boolean keepAlive;
+    private LinkedList<KVConnection> idleConnections = new LinkedList<KVConnection>();
     
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
 
+    // Idle connections kept open for reuse, and how long they may stay idle.
+    // Servers close connections after IDLE_TIMEOUT_MILLISECONDS; giving up on
+    // them well before that avoids sending a request into a closing socket.
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long MAX_REUSE_IDLE_MILLIS = IDLE_TIMEOUT_MILLISECONDS / 2;
+
+    // Limits on requests a Pipeline has sent but not yet seen responses for.
+    private static final int MAX_PIPELINE_DEPTH = 64;
+    private static final int MAX_PIPELINE_BYTES = 64 * 1024;
+
     /**
      * Constructs a KVClient connected to a server.
      *
@@ -25,8 +41,44 @@ public class KVClient implements KeyValueInterface {
      * @param port is the port on which the server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, false);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server, choosing the wire protocol.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param binaryProtocol true to send length-prefixed binary frames
+     *        instead of XML documents
+     */
+    public KVClient(String server, int port, boolean binaryProtocol) {
+        this(server, port, binaryProtocol, false);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server. With keepAlive set,
+     * connections stay open after a response and carry later requests
+     * instead of paying for a new TCP connection every time. Idle connections
+     * are shared by all threads using this client; call close() to release
+     * them.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param binaryProtocol true to send length-prefixed binary frames
+     *        instead of XML documents
+     * @param keepAlive true to reuse connections, requires binaryProtocol
+     */
+    public KVClient(String server, int port, boolean binaryProtocol,
+            boolean keepAlive) {
+        if (keepAlive && !binaryProtocol) {
+            throw new IllegalArgumentException(
+                    "keepAlive requires the binary protocol");
+        }
         this.server = server;
         this.port = port;
+        this.binaryProtocol = binaryProtocol;
+        this.keepAlive = keepAlive;
     }
 
     private void checkKey(String key) throws KVException{
@@ -88,6 +140,100 @@ public class KVClient implements KeyValueInterface {
 		}
     }
 
+    /**
+     * Sends a request and waits for the response, over a new connection or,
+     * with keepAlive, over an idle connection left open by an earlier request.
+     *
+     * @param request KVMessage to send
+     * @return response from the server
+     * @throws KVException if unable to connect, send or receive
+     */
+    private KVMessage sendRequest(KVMessage request) throws KVException {
+    	if(!keepAlive){
+    		Socket socket = connectHost();
+    		try{
+    			KVConnection conn = new KVConnection(socket, binaryProtocol);
+    			conn.send(request);
+    			conn.setTimeout(0);
+    			return conn.receive();
+    		}finally{
+    			closeHost(socket);
+    		}
+    	}
+
+    	KVConnection conn = takeIdleConnection();
+    	boolean reused = conn != null;
+    	if(!reused){
+    		conn = new KVConnection(connectHost(), true);
+    	}
+    	try{
+    		conn.send(request);
+    		conn.setTimeout(0);
+    		KVMessage response = conn.receive();
+    		returnIdleConnection(conn);
+    		return response;
+    	}catch(KVException e){
+    		conn.close();
+    		// The server may have closed a reused connection just before we
+    		// sent on it. Retry once on a fresh one, unless the request is a
+    		// del, which we could not tell apart from one that went through.
+    		String error = e.getKVMessage().getMessage();
+    		if(reused && !request.getMsgType().equals(DEL_REQ)
+    				&& (ERROR_COULD_NOT_SEND_DATA.equals(error)
+    						|| ERROR_COULD_NOT_RECEIVE_DATA.equals(error))){
+    			conn = new KVConnection(connectHost(), true);
+    			try{
+    				conn.send(request);
+    				conn.setTimeout(0);
+    				KVMessage response = conn.receive();
+    				returnIdleConnection(conn);
+    				return response;
+    			}catch(KVException e1){
+    				conn.close();
+    				throw e1;
+    			}
+    		}
+    		throw e;
+    	}
+    }
+
+    private KVConnection takeIdleConnection() {
+    	synchronized(idleConnections){
+    		while(!idleConnections.isEmpty()){
+    			KVConnection conn = idleConnections.removeLast();
+    			if(conn.getIdleMillis() < MAX_REUSE_IDLE_MILLIS){
+    				return conn;
+    			}
+    			conn.close();
+    		}
+    		return null;
+    	}
+    }
+
+    private void returnIdleConnection(KVConnection conn) {
+    	conn.markIdle();
+    	synchronized(idleConnections){
+    		if(idleConnections.size() < MAX_IDLE_CONNECTIONS){
+    			idleConnections.addLast(conn);
+    			return;
+    		}
+    	}
+    	conn.close();
+    }
+
+    /**
+     * Closes any idle connections kept open for reuse. The client can still
+     * be used afterwards.
+     */
+    public void close() {
+    	synchronized(idleConnections){
+    		for(KVConnection conn : idleConnections){
+    			conn.close();
+    		}
+    		idleConnections.clear();
+    	}
+    }
+
     /**
      * Issues a PUT request to the server.
      *
@@ -101,13 +247,10 @@ public class KVClient implements KeyValueInterface {
 			checkKey(key);
 			checkValue(value);
 			
-			Socket socket = connectHost();
 			KVMessage putMsg = new KVMessage(PUT_REQ);
 			putMsg.setKey(key);
 			putMsg.setValue(value);
-			putMsg.sendMessage(socket);
-			KVMessage respMsg = new KVMessage(socket);
-			closeHost(socket);
+			KVMessage respMsg = sendRequest(putMsg);
 			if(!respMsg.getMessage().equals("Success")){
 				KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
 				throw new KVException(excpMsg);
@@ -130,12 +273,9 @@ public class KVClient implements KeyValueInterface {
     	try{
     		checkKey(key);
     		
-    		Socket socket = connectHost();
     		KVMessage getMsg = new KVMessage(GET_REQ);
     		getMsg.setKey(key);
-    		getMsg.sendMessage(socket);
-    		KVMessage respMsg = new KVMessage(socket);
-    		closeHost(socket);
+    		KVMessage respMsg = sendRequest(getMsg);
     		if(respMsg.getValue() == null){
     			KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
     			throw new KVException(excpMsg);
@@ -159,12 +299,9 @@ public class KVClient implements KeyValueInterface {
     	try{
     		checkKey(key);
     		
-    		Socket socket = connectHost();
     		KVMessage delMsg = new KVMessage(DEL_REQ);
     		delMsg.setKey(key);
-    		delMsg.sendMessage(socket);
-    		KVMessage respMsg = new KVMessage(socket);
-    		closeHost(socket);
+    		KVMessage respMsg = sendRequest(delMsg);
     		if(!respMsg.getMessage().equals("Success")){
     			KVMessage excpMsg = new KVMessage(RESP, respMsg.getMessage());
     			throw new KVException(excpMsg);
@@ -175,4 +312,163 @@ public class KVClient implements KeyValueInterface {
     }
 
 
+    /**
+     * Starts a new pipeline of requests to the server.
+     *
+     * @return empty Pipeline using this client's connection settings
+     */
+    public Pipeline pipeline() {
+    	return new Pipeline();
+    }
+
+    /**
+     * A batch of requests sent back-to-back over one connection without
+     * waiting for each response in turn. Requests are queued with put, get
+     * and del and sent by execute(), which returns the responses in the order
+     * the requests were queued. The server handles the requests in that order
+     * too, so a get queued after a put of the same key sees the new value.
+     *
+     * The server stops reading a connection while it writes a response, so
+     * sending without limit could leave both ends blocked on full socket
+     * buffers. execute() therefore stops sending while MAX_PIPELINE_DEPTH
+     * requests, or MAX_PIPELINE_BYTES of request data, await responses.
+     *
+     * Over XML each request needs its own connection, so the requests are
+     * simply sent one after another. A Pipeline is not thread-safe.
+     */
+    public class Pipeline {
+
+    	private List<KVMessage> requests = new ArrayList<KVMessage>();
+    	private boolean hasDel = false;
+
+    	private Pipeline() {
+    	}
+
+    	/**
+    	 * Queues a PUT request.
+    	 *
+    	 * @throws KVException if the key or value is invalid
+    	 */
+    	public void put(String key, String value) throws KVException {
+    		checkKey(key);
+    		checkValue(value);
+    		KVMessage putMsg = new KVMessage(PUT_REQ);
+    		putMsg.setKey(key);
+    		putMsg.setValue(value);
+    		requests.add(putMsg);
+    	}
+
+    	/**
+    	 * Queues a GET request.
+    	 *
+    	 * @throws KVException if the key is invalid
+    	 */
+    	public void get(String key) throws KVException {
+    		checkKey(key);
+    		KVMessage getMsg = new KVMessage(GET_REQ);
+    		getMsg.setKey(key);
+    		requests.add(getMsg);
+    	}
+
+    	/**
+    	 * Queues a DEL request.
+    	 *
+    	 * @throws KVException if the key is invalid
+    	 */
+    	public void del(String key) throws KVException {
+    		checkKey(key);
+    		KVMessage delMsg = new KVMessage(DEL_REQ);
+    		delMsg.setKey(key);
+    		requests.add(delMsg);
+    		hasDel = true;
+    	}
+
+    	/**
+    	 * @return number of requests queued since the last execute()
+    	 */
+    	public int size() {
+    		return requests.size();
+    	}
+
+    	/**
+    	 * Sends the queued requests and waits for all of their responses. The
+    	 * pipeline is empty afterwards and can be reused.
+    	 *
+    	 * A request the server rejects does not stop the others; its response
+    	 * carries the error message. A successful get is answered with the key
+    	 * and value, a successful put or del with SUCCESS.
+    	 *
+    	 * @return one response per queued request, in the same order
+    	 * @throws KVException if the connection fails, in which case any
+    	 *         number of the requests may have been carried out
+    	 */
+    	public List<KVMessage> execute() throws KVException {
+    		List<KVMessage> batch = requests;
+    		boolean retryable = !hasDel;
+    		requests = new ArrayList<KVMessage>();
+    		hasDel = false;
+
+    		List<KVMessage> responses = new ArrayList<KVMessage>(batch.size());
+    		if(!binaryProtocol){
+    			for(KVMessage request : batch){
+    				responses.add(sendRequest(request));
+    			}
+    			return responses;
+    		}
+
+    		KVConnection conn = keepAlive ? takeIdleConnection() : null;
+    		boolean reused = conn != null;
+    		if(!reused){
+    			conn = new KVConnection(connectHost(), true);
+    		}
+    		try{
+    			sendPipelined(conn, batch, responses);
+    		}catch(KVException e){
+    			conn.close();
+    			// Same as sendRequest: a reused connection may have been closed
+    			// by the server while idle. Nothing has been answered yet, and
+    			// puts and gets are safe to repeat.
+    			if(!reused || !responses.isEmpty() || !retryable){
+    				throw e;
+    			}
+    			conn = new KVConnection(connectHost(), true);
+    			try{
+    				sendPipelined(conn, batch, responses);
+    			}catch(KVException e1){
+    				conn.close();
+    				throw e1;
+    			}
+    		}
+    		if(keepAlive){
+    			returnIdleConnection(conn);
+    		}else{
+    			conn.close();
+    		}
+    		return responses;
+    	}
+
+    	private void sendPipelined(KVConnection conn, List<KVMessage> batch,
+    			List<KVMessage> responses) throws KVException {
+    		int[] frameSizes = new int[batch.size()];
+    		int sent = 0;
+    		int received = 0;
+    		int bytesInFlight = 0;
+    		conn.setTimeout(0);
+    		while(received < batch.size()){
+    			while(sent < batch.size() && (sent == received
+    					|| (sent - received < MAX_PIPELINE_DEPTH
+    							&& bytesInFlight < MAX_PIPELINE_BYTES))){
+    				frameSizes[sent] = conn.write(batch.get(sent));
+    				bytesInFlight += frameSizes[sent];
+    				sent++;
+    			}
+    			conn.flush();
+    			responses.add(conn.receive());
+    			bytesInFlight -= frameSizes[received];
+    			received++;
+    		}
+    	}
+
+    }
+
 }
@@ -0,0 +1,284 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A socket carrying KVMessages in either the XML or the binary protocol.
+ *
+ * XML messages are delimited by the end of the stream, so an XML connection
+ * carries exactly one message in each direction. Binary messages are sent as
+ * frames: a 4-byte big-endian body length followed by the body produced by
+ * KVMessage.toBinary(). A client picks the binary protocol by sending
+ * BINARY_PROTOCOL_MAGIC and BINARY_PROTOCOL_VERSION before its first frame;
+ * servers inspect the first byte of every connection to tell the two apart.
+ */
+public class KVConnection {
+
+    private Socket sock;
+    private boolean binary;
+    private boolean handshakeSent;
+    private PushbackInputStream rawIn;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private long idleSince;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Wrap a connected client socket.
+     *
+     * @param sock Socket connected to the server
+     * @param binary true to speak the binary protocol, false for XML
+     * @throws KVException with ERROR_COULD_NOT_CONNECT if the socket streams
+     *         cannot be opened
+     */
+    public KVConnection(Socket sock, boolean binary) throws KVException {
+        this.sock = sock;
+        this.binary = binary;
+        this.handshakeSent = !binary;
+        openStreams();
+    }
+
+    private KVConnection(Socket sock) throws KVException {
+        this.sock = sock;
+        this.handshakeSent = true;
+        openStreams();
+    }
+
+    private void openStreams() throws KVException {
+        try {
+            if (rawIn == null) {
+                rawIn = new PushbackInputStream(sock.getInputStream(), 1);
+            }
+            if (binary) {
+                // Frames are flushed whole; without this, Nagle's algorithm
+                // holds back the tail of any frame larger than a segment
+                // until the peer's delayed ACK fires.
+                sock.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(rawIn,
+                        BUFFER_SIZE));
+                out = new DataOutputStream(new BufferedOutputStream(
+                        sock.getOutputStream(), BUFFER_SIZE));
+            }
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_CONNECT));
+        }
+    }
+
+    /**
+     * Wrap a socket accepted by a server, detecting which protocol the
+     * client speaks from the first byte it sends. Blocks until that byte
+     * arrives, subject to the socket's current timeout.
+     *
+     * @param sock Socket accepted from a client
+     * @return connection speaking the client's protocol
+     * @throws KVException with ERROR_COULD_NOT_RECEIVE_DATA if nothing can be
+     *         read, or ERROR_INVALID_FORMAT for an unknown protocol version
+     */
+    public static KVConnection accept(Socket sock) throws KVException {
+        KVConnection conn = new KVConnection(sock);
+        try {
+            int first = conn.rawIn.read();
+            if (first < 0) {
+                throw new KVException(new KVMessage(RESP,
+                        ERROR_COULD_NOT_RECEIVE_DATA));
+            }
+            if (first != BINARY_PROTOCOL_MAGIC) {
+                conn.rawIn.unread(first);
+                return conn;
+            }
+            if (conn.rawIn.read() != BINARY_PROTOCOL_VERSION) {
+                throw new KVException(new KVMessage(RESP,
+                        ERROR_INVALID_FORMAT));
+            }
+            conn.binary = true;
+            conn.openStreams();
+            return conn;
+        } catch (SocketTimeoutException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_SOCKET_TIMEOUT));
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP,
+                    ERROR_COULD_NOT_RECEIVE_DATA));
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public Socket getSocket() {
+        return sock;
+    }
+
+    /**
+     * Set the read timeout used by subsequent calls to receive().
+     *
+     * @param timeout timeout in milliseconds, 0 for no timeout
+     * @throws KVException with ERROR_COULD_NOT_RECEIVE_DATA
+     */
+    public void setTimeout(int timeout) throws KVException {
+        try {
+            sock.setSoTimeout(timeout);
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP,
+                    ERROR_COULD_NOT_RECEIVE_DATA));
+        }
+    }
+
+    /**
+     * Send a message to the peer. On an XML connection this also shuts down
+     * the output side of the socket.
+     *
+     * @param msg KVMessage to send
+     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_COULD_NOT_SEND_DATA
+     */
+    public void send(KVMessage msg) throws KVException {
+        if (!binary) {
+            msg.sendMessage(sock);
+            return;
+        }
+        write(msg);
+        flush();
+    }
+
+    /**
+     * Buffer a message for sending on a binary connection without flushing
+     * it, so that several requests can go out in one write. The buffer is
+     * flushed whenever it fills up and by flush().
+     *
+     * @param msg KVMessage to send
+     * @return number of bytes the message takes on the wire
+     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_COULD_NOT_SEND_DATA
+     */
+    public int write(KVMessage msg) throws KVException {
+        byte[] body = msg.toBinary();
+        try {
+            if (!handshakeSent) {
+                out.write(BINARY_PROTOCOL_MAGIC);
+                out.write(BINARY_PROTOCOL_VERSION);
+                handshakeSent = true;
+            }
+            out.writeInt(body.length);
+            out.write(body);
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA));
+        }
+        return 4 + body.length;
+    }
+
+    /**
+     * Send any messages buffered by write().
+     *
+     * @throws KVException with ERROR_COULD_NOT_SEND_DATA
+     */
+    public void flush() throws KVException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA));
+        }
+    }
+
+    /**
+     * Receive a message from the peer, blocking until it has fully arrived.
+     *
+     * @return KVMessage sent by the peer
+     * @throws KVException with ERROR_COULD_NOT_RECEIVE_DATA,
+     *         ERROR_SOCKET_TIMEOUT, ERROR_INVALID_FORMAT or ERROR_PARSER
+     */
+    public KVMessage receive() throws KVException {
+        if (!binary) {
+            return new KVMessage(rawIn);
+        }
+        try {
+            int length = in.readInt();
+            if (length < 2 || length > MAX_FRAME_SIZE) {
+                throw new KVException(new KVMessage(RESP, ERROR_INVALID_FORMAT));
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return new KVMessage(body);
+        } catch (SocketTimeoutException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_SOCKET_TIMEOUT));
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP,
+                    ERROR_COULD_NOT_RECEIVE_DATA));
+        }
+    }
+
+    /**
+     * Wait until the peer starts sending another frame on a binary
+     * connection, subject to the socket's current timeout.
+     *
+     * @return true once the next frame begins to arrive, false if the peer
+     *         closed the connection instead
+     * @throws KVException with ERROR_SOCKET_TIMEOUT or
+     *         ERROR_COULD_NOT_RECEIVE_DATA
+     */
+    public boolean awaitNext() throws KVException {
+        if (!binary) {
+            return false;
+        }
+        try {
+            in.mark(1);
+            if (in.read() < 0) {
+                return false;
+            }
+            in.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            throw new KVException(new KVMessage(RESP, ERROR_SOCKET_TIMEOUT));
+        } catch (IOException e) {
+            throw new KVException(new KVMessage(RESP,
+                    ERROR_COULD_NOT_RECEIVE_DATA));
+        }
+    }
+
+    /**
+     * @return true if the peer has already sent more data that a call to
+     *         receive() could start reading without blocking
+     */
+    public boolean hasPendingInput() {
+        try {
+            return binary && in.available() > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record that the connection is about to sit idle, e.g. in a pool.
+     */
+    public void markIdle() {
+        idleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * @return milliseconds since markIdle() was last called
+     */
+    public long getIdleMillis() {
+        return System.currentTimeMillis() - idleSince;
+    }
+
+    /**
+     * Closes the underlying socket.
+     * Best effort, ignores error since the response has already been received.
+     */
+    public void close() {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
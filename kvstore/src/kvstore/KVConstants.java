@@ -17,7 +17,28 @@ public class KVConstants {
 
     // Timeout value used during 2PC operations
     public static final int TIMEOUT_MILLISECONDS = 2000;
-    
+
+    /**
+     * First byte a client sends on a connection that speaks the binary
+     * protocol, followed by BINARY_PROTOCOL_VERSION. XML documents can never
+     * start with this byte, so servers use it to pick the protocol.
+     */
+    public static final int BINARY_PROTOCOL_MAGIC = 0xB1;
+    public static final int BINARY_PROTOCOL_VERSION = 1;
+
+    /**
+     * Largest binary frame body accepted. A maximal put request (256 byte
+     * key, 256 * 1024 character value) fits with room to spare even when
+     * every character takes three bytes in UTF-8.
+     */
+    public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * How long servers keep an idle binary connection open waiting for the
+     * next request. Clients stop reusing a connection well before this.
+     */
+    public static final int IDLE_TIMEOUT_MILLISECONDS = 30000;
+
 
     /**
      * Error message used if an IOException arises while parsing the
@@ -116,4 +137,12 @@ public class KVConstants {
     public static final String ERROR_INVALID_VALUE =
         "Data Error: Null or empty value";
 
+    /**
+     * Error message a slave votes to abort with if a phase1 request comes
+     * for a transaction it already has the decision of, e.g. after the
+     * master stopped waiting for its vote.
+     */
+    public static final String ERROR_TXN_DECIDED =
+        "2PC Error: Transaction already decided";
+
 }
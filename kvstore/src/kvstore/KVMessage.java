@@ -1,6 +1,7 @@
 package kvstore;
 
 import static kvstore.KVConstants.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.*;
 import java.net.*;
@@ -19,7 +20,8 @@ import org.xml.sax.SAXException;
 
 /**
  * This is the object that is used to generate the XML based messages for
- * communication between clients and servers.
+ * communication between clients and servers. Messages can also be encoded in
+ * a compact binary form for connections that negotiate it (see KVConnection).
  */
 public class KVMessage implements Serializable {
 
@@ -27,9 +29,21 @@ public class KVMessage implements Serializable {
 	private String key;
 	private String value;
 	private String message;
+	private String txnID;
 
 	public static final long serialVersionUID = 6473128480951955693L;
 
+	/*
+	 * Message types in the order of their binary type codes (code = index + 1).
+	 */
+	private static final String[] BINARY_TYPES = { GET_REQ, PUT_REQ, DEL_REQ,
+			RESP, REGISTER, READY, ABORT, COMMIT, ACK };
+
+	private static final int FIELD_KEY = 1;
+	private static final int FIELD_VALUE = 2;
+	private static final int FIELD_MESSAGE = 4;
+	private static final int FIELD_TXN_ID = 8;
+
 	/**
 	 * Construct KVMessage with only a type.
 	 * 
@@ -82,13 +96,78 @@ public class KVMessage implements Serializable {
 	 */
 	public KVMessage(Socket sock, int timeout) throws KVException {
 		// implement me
+		try {
+			sock.setSoTimeout(timeout);
+			parseXML(sock.getInputStream());
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			// e.printStackTrace();
+			KVMessage exceptMessage = new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+			throw new KVException(exceptMessage);
+		}
+	}
+
+	/**
+	 * Construct KVMessage by parsing XML from an InputStream that has already
+	 * been set up by the caller, e.g. after the first byte of a connection
+	 * was inspected to pick a protocol. Reads until EOF.
+	 * 
+	 * @param in
+	 *            stream positioned at the start of the XML document
+	 * @throws KVException
+	 *             if we fail to create a valid KVMessage
+	 */
+	KVMessage(InputStream in) throws KVException {
+		parseXML(in);
+	}
+
+	/**
+	 * Construct KVMessage from the body of a binary frame. See toBinary() for
+	 * the layout.
+	 * 
+	 * @param body
+	 *            frame body, without the length prefix
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT if the body is malformed
+	 */
+	public KVMessage(byte[] body) throws KVException {
+		try {
+			int type = body[0] & 0xFF;
+			if (type < 1 || type > BINARY_TYPES.length) {
+				throw new KVException(ERROR_INVALID_FORMAT);
+			}
+			this.msgType = BINARY_TYPES[type - 1];
+			int fields = body[1];
+			int[] pos = { 2 };
+			if ((fields & FIELD_KEY) != 0) {
+				this.key = readString(body, pos);
+			}
+			if ((fields & FIELD_VALUE) != 0) {
+				this.value = readString(body, pos);
+			}
+			if ((fields & FIELD_MESSAGE) != 0) {
+				this.message = readString(body, pos);
+			}
+			if ((fields & FIELD_TXN_ID) != 0) {
+				this.txnID = readString(body, pos);
+			}
+			if (pos[0] != body.length) {
+				throw new KVException(ERROR_INVALID_FORMAT);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new KVException(ERROR_INVALID_FORMAT);
+		}
+		checkReceivedFormat();
+	}
+
+	private void parseXML(InputStream in) throws KVException {
 		try {
 			this.message = this.key = this.value = this.msgType = null;
+			this.txnID = null;
 			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
 					.newDocumentBuilder();
-			sock.setSoTimeout(timeout);
-			NoCloseInputStream ncis = new NoCloseInputStream(
-					sock.getInputStream());
+			NoCloseInputStream ncis = new NoCloseInputStream(in);
 			Document doc = builder.parse(ncis);
 			Node KVMessage = doc.getElementsByTagName("KVMessage").item(0);
 			if (KVMessage == null) {
@@ -100,6 +179,7 @@ public class KVMessage implements Serializable {
 			Node Key = KVElement.getElementsByTagName("Key").item(0);
 			Node Value = KVElement.getElementsByTagName("Value").item(0);
 			Node Message = KVElement.getElementsByTagName("Message").item(0);
+			Node TxnID = KVElement.getElementsByTagName("TxnID").item(0);
 			if (Key != null) {
 				this.key = Key.getTextContent();
 			}
@@ -109,52 +189,10 @@ public class KVMessage implements Serializable {
 			if (Message != null) {
 				this.message = Message.getTextContent();
 			}
-			 
-			if (this.msgType.equals(KVConstants.PUT_REQ)) {
-				if (Key == null || Value == null || Message != null) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			} else if (this.msgType.equals(KVConstants.GET_REQ)) {
-				if (Key == null || Value != null || Message != null) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
-				if (Key == null || Value != null || Message != null) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			} else if (this.msgType.equals(KVConstants.RESP)) {
-				if (!((Key != null && Value != null && Message == null) || (Key == null
-						&& Value == null && Message != null))) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			} else if (this.msgType.equals(KVConstants.REGISTER)) {
-				if (Key != null || Value != null || Message == null) {
-					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				}
-			} else if (this.msgType.equals(KVConstants.READY)) {
-				if (Key != null || Value != null || Message != null) {
-					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				}
-			} else if (this.msgType.equals(KVConstants.ABORT)) {
-				if (Key != null || Value != null) {
-					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				}
-			} else if (this.msgType.equals(KVConstants.COMMIT)) {
-				if (Key != null || Value != null || Message != null) {
-					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				}
-			} else if (this.msgType.equals(KVConstants.ACK)) {
-				if (Key != null || Value != null || Message != null) {
-					throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-				}
-			} else {
-				throw new KVException(new KVMessage(KVConstants.RESP,
-						KVConstants.ERROR_INVALID_FORMAT));
+			if (TxnID != null) {
+				this.txnID = TxnID.getTextContent();
 			}
+			checkReceivedFormat();
 		} catch (ParserConfigurationException e) {
 			// TODO Auto-generated catch block
 			KVMessage exceptMessage = new KVMessage(KVConstants.RESP,
@@ -172,7 +210,66 @@ public class KVMessage implements Serializable {
 					KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
 			throw new KVException(exceptMessage);
 		}
+	}
 
+	/**
+	 * Check that a received message has exactly the fields its type needs.
+	 * 
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT otherwise
+	 */
+	private void checkReceivedFormat() throws KVException {
+		if (this.txnID != null && !carriesTxnID()) {
+			throw new KVException(new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_INVALID_FORMAT));
+		}
+		boolean Key = this.key != null;
+		boolean Value = this.value != null;
+		boolean Message = this.message != null;
+		if (this.msgType.equals(KVConstants.PUT_REQ)) {
+			if (!Key || !Value || Message) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		} else if (this.msgType.equals(KVConstants.GET_REQ)) {
+			if (!Key || Value || Message) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
+			if (!Key || Value || Message) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		} else if (this.msgType.equals(KVConstants.RESP)) {
+			if (!((Key && Value && !Message) || (!Key && !Value && Message))) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		} else if (this.msgType.equals(KVConstants.REGISTER)) {
+			if (Key || Value || !Message) {
+				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+			}
+		} else if (this.msgType.equals(KVConstants.READY)) {
+			if (Key || Value || Message) {
+				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+			}
+		} else if (this.msgType.equals(KVConstants.ABORT)) {
+			if (Key || Value) {
+				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+			}
+		} else if (this.msgType.equals(KVConstants.COMMIT)) {
+			if (Key || Value || Message) {
+				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+			}
+		} else if (this.msgType.equals(KVConstants.ACK)) {
+			if (Key || Value || Message) {
+				throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+			}
+		} else {
+			throw new KVException(new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_INVALID_FORMAT));
+		}
 	}
 
 	/**
@@ -187,6 +284,7 @@ public class KVMessage implements Serializable {
 		this.key = kvm.key;
 		this.value = kvm.value;
 		this.message = kvm.message;
+		this.txnID = kvm.txnID;
 	}
 
 	/**
@@ -200,63 +298,12 @@ public class KVMessage implements Serializable {
 	public String toXML() throws KVException {
 		// implement me
 		try {
-			if (this.msgType == null) {
-				throw new KVException(new KVMessage(KVConstants.RESP,
-						KVConstants.ERROR_INVALID_FORMAT));
-			}
+			int fields = fieldsToSend();
+			boolean shouldKey = (fields & FIELD_KEY) != 0;
+			boolean shouldValue = (fields & FIELD_VALUE) != 0;
+			boolean shouldMessage = (fields & FIELD_MESSAGE) != 0;
+			boolean shouldTxnID = (fields & FIELD_TXN_ID) != 0;
 
-			boolean shouldKey = false;
-			boolean shouldValue = false;
-			boolean shouldMessage = false;
-
-			if (this.msgType.equals(KVConstants.PUT_REQ)) {
-				shouldKey = true;
-				shouldValue = true;
-			} else if (this.msgType.equals(KVConstants.GET_REQ)) {
-				shouldKey = true;
-			} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
-				shouldKey = true;
-			} else if (this.msgType.equals(KVConstants.RESP)) {
-				if (this.message != null)
-					shouldMessage = true;
-				else {
-					shouldValue = true;
-					shouldKey = true;
-				}
-			} else if (this.msgType.equals(KVConstants.REGISTER)) {
-				shouldMessage = true;
-			} else if (this.msgType.equals(KVConstants.ABORT)) {
-				if (this.message != null) {
-					shouldMessage = true;
-				}
-			} else {
-				if (!(this.msgType.equals(KVConstants.READY)
-						|| this.msgType.equals(KVConstants.COMMIT) 
-						|| this.msgType.equals(KVConstants.ACK))) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			}
-
-			if (shouldKey) {
-				if (this.key == null || this.key.length() == 0) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			}
-			if (shouldValue) {
-				if (this.value == null || this.value.length() == 0) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			}
-			if (shouldMessage) {
-				if (this.message == null || this.message.length() == 0) {
-					throw new KVException(new KVMessage(KVConstants.RESP,
-							KVConstants.ERROR_INVALID_FORMAT));
-				}
-			}
-			
 			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
 					.newDocumentBuilder();
 			Document doc = builder.newDocument();
@@ -280,6 +327,11 @@ public class KVMessage implements Serializable {
 				KVMessage.appendChild(Message);
 				Message.appendChild(doc.createTextNode(this.message));
 			}
+			if (shouldTxnID) {
+				Element TxnID = doc.createElement("TxnID");
+				KVMessage.appendChild(TxnID);
+				TxnID.appendChild(doc.createTextNode(this.txnID));
+			}
 			
 			return printDoc(doc);
 		} catch (ParserConfigurationException e) {
@@ -290,6 +342,185 @@ public class KVMessage implements Serializable {
 
 	}
 
+	/**
+	 * Generate the binary representation for this message: a type byte, a
+	 * byte of field flags, then for each present field (key, value, message,
+	 * transaction ID in that order) its UTF-8 length as a varint followed by the raw UTF-8
+	 * bytes. The frame length prefix is added by KVConnection.
+	 * 
+	 * @return the frame body for this KVMessage
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT
+	 */
+	public byte[] toBinary() throws KVException {
+		int fields = fieldsToSend();
+		byte[] keyBytes = (fields & FIELD_KEY) != 0 ? key.getBytes(UTF_8) : null;
+		byte[] valueBytes = (fields & FIELD_VALUE) != 0 ? value
+				.getBytes(UTF_8) : null;
+		byte[] messageBytes = (fields & FIELD_MESSAGE) != 0 ? message
+				.getBytes(UTF_8) : null;
+		byte[] txnIDBytes = (fields & FIELD_TXN_ID) != 0 ? txnID
+				.getBytes(UTF_8) : null;
+
+		int size = 2 + encodedSize(keyBytes) + encodedSize(valueBytes)
+				+ encodedSize(messageBytes) + encodedSize(txnIDBytes);
+		byte[] body = new byte[size];
+		body[0] = (byte) binaryType();
+		body[1] = (byte) fields;
+		int pos = 2;
+		pos = writeBytes(body, pos, keyBytes);
+		pos = writeBytes(body, pos, valueBytes);
+		pos = writeBytes(body, pos, messageBytes);
+		writeBytes(body, pos, txnIDBytes);
+		return body;
+	}
+
+	private int binaryType() throws KVException {
+		for (int i = 0; i < BINARY_TYPES.length; i++) {
+			if (BINARY_TYPES[i].equals(msgType)) {
+				return i + 1;
+			}
+		}
+		throw new KVException(ERROR_INVALID_FORMAT);
+	}
+
+	private static int encodedSize(byte[] bytes) {
+		if (bytes == null) {
+			return 0;
+		}
+		int size = 1;
+		for (int n = bytes.length; n >= 0x80; n >>>= 7) {
+			size++;
+		}
+		return size + bytes.length;
+	}
+
+	private static int writeBytes(byte[] buf, int pos, byte[] bytes) {
+		if (bytes == null) {
+			return pos;
+		}
+		int n = bytes.length;
+		while (n >= 0x80) {
+			buf[pos++] = (byte) (n | 0x80);
+			n >>>= 7;
+		}
+		buf[pos++] = (byte) n;
+		System.arraycopy(bytes, 0, buf, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
+	private static String readString(byte[] buf, int[] pos)
+			throws KVException {
+		int len = 0;
+		for (int shift = 0;; shift += 7) {
+			if (shift > 28) {
+				throw new KVException(ERROR_INVALID_FORMAT);
+			}
+			int b = buf[pos[0]++];
+			len |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		if (len < 0 || len > buf.length - pos[0]) {
+			throw new KVException(ERROR_INVALID_FORMAT);
+		}
+		String s = new String(buf, pos[0], len, UTF_8);
+		pos[0] += len;
+		return s;
+	}
+
+	/**
+	 * Work out which fields this message carries on the wire, checking that
+	 * every field required by its type is set.
+	 * 
+	 * @return bitmask of FIELD_KEY, FIELD_VALUE, FIELD_MESSAGE and
+	 *         FIELD_TXN_ID
+	 * @throws KVException
+	 *             with ERROR_INVALID_FORMAT
+	 */
+	private int fieldsToSend() throws KVException {
+		if (this.msgType == null) {
+			throw new KVException(new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_INVALID_FORMAT));
+		}
+
+		boolean shouldKey = false;
+		boolean shouldValue = false;
+		boolean shouldMessage = false;
+
+		if (this.msgType.equals(KVConstants.PUT_REQ)) {
+			shouldKey = true;
+			shouldValue = true;
+		} else if (this.msgType.equals(KVConstants.GET_REQ)) {
+			shouldKey = true;
+		} else if (this.msgType.equals(KVConstants.DEL_REQ)) {
+			shouldKey = true;
+		} else if (this.msgType.equals(KVConstants.RESP)) {
+			if (this.message != null)
+				shouldMessage = true;
+			else {
+				shouldValue = true;
+				shouldKey = true;
+			}
+		} else if (this.msgType.equals(KVConstants.REGISTER)) {
+			shouldMessage = true;
+		} else if (this.msgType.equals(KVConstants.ABORT)) {
+			if (this.message != null) {
+				shouldMessage = true;
+			}
+		} else {
+			if (!(this.msgType.equals(KVConstants.READY)
+					|| this.msgType.equals(KVConstants.COMMIT) 
+					|| this.msgType.equals(KVConstants.ACK))) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		}
+
+		if (shouldKey) {
+			if (this.key == null || this.key.length() == 0) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		}
+		if (shouldValue) {
+			if (this.value == null || this.value.length() == 0) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		}
+		if (shouldMessage) {
+			if (this.message == null || this.message.length() == 0) {
+				throw new KVException(new KVMessage(KVConstants.RESP,
+						KVConstants.ERROR_INVALID_FORMAT));
+			}
+		}
+		
+		if (this.txnID != null && (this.txnID.length() == 0
+				|| !carriesTxnID())) {
+			throw new KVException(new KVMessage(KVConstants.RESP,
+					KVConstants.ERROR_INVALID_FORMAT));
+		}
+		
+		return (shouldKey ? FIELD_KEY : 0) | (shouldValue ? FIELD_VALUE : 0)
+				| (shouldMessage ? FIELD_MESSAGE : 0)
+				| (this.txnID != null ? FIELD_TXN_ID : 0);
+	}
+
+	/**
+	 * Only the messages of a 2PC transaction may carry its ID: the phase1
+	 * request and vote, the decision and its acknowledgement.
+	 */
+	private boolean carriesTxnID() {
+		return this.msgType.equals(KVConstants.PUT_REQ)
+				|| this.msgType.equals(KVConstants.DEL_REQ)
+				|| this.msgType.equals(KVConstants.READY)
+				|| this.msgType.equals(KVConstants.ABORT)
+				|| this.msgType.equals(KVConstants.COMMIT)
+				|| this.msgType.equals(KVConstants.ACK);
+	}
+
 	/**
 	 * Send serialized version of this KVMessage over the network. You must call
 	 * sock.shutdownOutput() in order to flush the OutputStream and send an EOF
@@ -347,6 +578,18 @@ public class KVMessage implements Serializable {
 		return msgType;
 	}
 
+	/**
+	 * @return ID of the 2PC transaction this message belongs to, or null if
+	 *         it was sent without one
+	 */
+	public String getTxnID() {
+		return txnID;
+	}
+
+	public void setTxnID(String txnID) {
+		this.txnID = txnID;
+	}
+
 	@Override
 	public String toString() {
 		try {
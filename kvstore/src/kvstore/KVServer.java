@@ -2,6 +2,9 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -10,13 +13,26 @@ import java.util.concurrent.locks.ReentrantLock;
  * All KVServer request on keys from different sets must be parallel while
  * requests on keys from the same set should be serial. A write-through
  * policy should be followed when a put request is made.
+ *
+ * Requests on the same key are serialized by one of KEY_LOCK_STRIPES striped
+ * key locks, held across the store access and the cache update that goes
+ * with it. The cache set lock is only held for the cache operation itself,
+ * so store traffic for different keys, even in the same set, runs in
+ * parallel. A get that hits the cache takes no key lock, and usually no
+ * set lock either (see KVCache.getOptimistic): writers update the store
+ * before the cache, so the cached value is never older than the last
+ * completed write.
  */
 public class KVServer implements KeyValueInterface {
 
-    private KVStore dataStore;
+    private StorageEngine dataStore;
     private KVCache dataCache;
+    private int numSets;
+    private int maxElemsPerSet;
     
-    private Lock storeLock;
+    private Lock[] keyLocks;
+
+    private static final int KEY_LOCK_STRIPES = 1024;
 
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
@@ -29,9 +45,35 @@ public class KVServer implements KeyValueInterface {
      */
 
     public KVServer(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, new KVStore());
+    }
+
+    /**
+     * Constructs a KVServer backed by a KVCache and the given storage
+     * engine, e.g. a BitcaskStore to keep the pairs on disk.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param dataStore the store; the server takes it over
+     */
+    public KVServer(int numSets, int maxElemsPerSet, StorageEngine dataStore) {
+        this.numSets = numSets;
+        this.maxElemsPerSet = maxElemsPerSet;
         this.dataCache = new KVCache(numSets, maxElemsPerSet);
-        this.dataStore = new KVStore();
-        storeLock = new ReentrantLock();
+        this.dataStore = dataStore;
+        keyLocks = new Lock[KEY_LOCK_STRIPES];
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Get the lock that serializes requests on a key.
+     */
+    private Lock getKeyLock(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return keyLocks[h & (KEY_LOCK_STRIPES - 1)];
     }
 
     /**
@@ -81,17 +123,18 @@ public class KVServer implements KeyValueInterface {
     	checkKey(key);
     	checkValue(value);
     	
-    	dataCache.getLock(key).lock();
+    	Lock keyLock = getKeyLock(key);
+    	keyLock.lock();
     	try{
-    		dataCache.put(key, value);
-    		storeLock.lock();
+    		dataStore.put(key, value);
+    		dataCache.getLock(key).lock();
     		try{
-    			dataStore.put(key, value);
+    			dataCache.put(key, value);
     		}finally{
-    			storeLock.unlock();
+    			dataCache.getLock(key).unlock();
     		}
     	}finally{
-    		dataCache.getLock(key).unlock();
+    		keyLock.unlock();
     	}
     }
 
@@ -107,22 +150,24 @@ public class KVServer implements KeyValueInterface {
     public String get(String key) throws KVException {
         // implement me
     	checkKey(key);
-    	dataCache.getLock(key).lock();
-    	
+    	String value = dataCache.getOptimistic(key);
+    	if(value != null){
+    		return value;
+    	}
+
+    	Lock keyLock = getKeyLock(key);
+    	keyLock.lock();
     	try{
-    		String value = dataCache.get(key);
-    		if(value == null){
-    			storeLock.lock();
-    			try{
-    				value = dataStore.get(key);
-    			}finally{
-    				storeLock.unlock();
-    			}
+    		value = dataStore.get(key);
+    		dataCache.getLock(key).lock();
+    		try{
     			dataCache.put(key, value);
+    		}finally{
+    			dataCache.getLock(key).unlock();
     		}
     		return value;
     	}finally{
-    		dataCache.getLock(key).unlock();
+    		keyLock.unlock();
     	}
     }
 
@@ -136,20 +181,20 @@ public class KVServer implements KeyValueInterface {
     public void del(String key) throws KVException {
         // implement me
     	checkKey(key);
-    	dataCache.getLock(key).lock();
-    	
+    	Lock keyLock = getKeyLock(key);
+    	keyLock.lock();
     	try{
-    		storeLock.lock();
+    		// first call get: throw exception if key doesn't exist
+    		dataStore.get(key);
+    		dataCache.getLock(key).lock();
     		try{
-    			// first call get: throw exception if key doesn't exist
-    			dataStore.get(key);
     			dataCache.del(key);
-    			dataStore.del(key);
     		}finally{
-    			storeLock.unlock();
+    			dataCache.getLock(key).unlock();
     		}
+    		dataStore.del(key);
     	}finally{
-    		dataCache.getLock(key).unlock();
+    		keyLock.unlock();
     	}
     }
 
@@ -177,6 +222,104 @@ public class KVServer implements KeyValueInterface {
         }
     }
 
+    /**
+     * Write the contents of the store as a binary snapshot. Requests may run
+     * concurrently; the snapshot is the store as it was at the start of the
+     * call (see KVStore.snapshot()).
+     *
+     * @param out stream to write to, left open
+     * @throws IOException if out cannot be written
+     */
+    public void writeSnapshot(OutputStream out) throws IOException {
+        dataStore.writeSnapshot(out);
+    }
+
+    /**
+     * Replace the contents of the store with a snapshot written by
+     * writeSnapshot and empty the cache. Must not run concurrently with
+     * requests, e.g. used while recovering before the server is started.
+     *
+     * @param in buffered stream positioned at the start of the snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public void readSnapshot(InputStream in) throws IOException {
+        dataStore.readSnapshot(in);
+        resetCache();
+    }
+
+    /**
+     * @return true if the store keeps its pairs on disk (see
+     *         StorageEngine.isPersistent())
+     */
+    boolean hasPersistentStore() {
+        return dataStore.isPersistent();
+    }
+
+    /**
+     * Make every request completed so far durable in the store, if it keeps
+     * its pairs on disk (see StorageEngine.sync()). Requests may run
+     * concurrently.
+     *
+     * @return false if the store does not, so a snapshot is needed instead
+     * @throws IOException if the store cannot be written
+     */
+    boolean syncStore() throws IOException {
+        if (!dataStore.isPersistent()) {
+            return false;
+        }
+        dataStore.sync();
+        return true;
+    }
+
+    /**
+     * Close the store, e.g. to force a disk-backed store to disk when the
+     * server shuts down. The server cannot be used after.
+     *
+     * @throws IOException if the store cannot be closed
+     */
+    public void close() throws IOException {
+        dataStore.close();
+    }
+
+    /**
+     * Put a value replayed from a log straight into the store, leaving the
+     * cache alone. Only for recovery, before the server takes requests;
+     * replayed operations on the same key must not run concurrently.
+     *
+     * @param key String key
+     * @param value String value
+     * @throws KVException if the store fails
+     */
+    void replayPut(String key, String value) throws KVException {
+        dataStore.put(key, value);
+    }
+
+    /**
+     * Delete a key replayed from a log straight from the store, leaving the
+     * cache alone; a key that is already gone is ignored. Only for recovery,
+     * like replayPut.
+     *
+     * @param key String key
+     * @throws KVException if the store fails (though we expect none)
+     */
+    void replayDel(String key) throws KVException {
+        try {
+            dataStore.del(key);
+        } catch (KVException e) {
+            if (!ERROR_NO_SUCH_KEY.equals(e.getKVMessage().getMessage())) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Empty the cache, e.g. after the store was changed behind its back.
+     * Must not run concurrently with requests.
+     */
+    void resetCache() {
+        dataCache = new KVCache(numSets, maxElemsPerSet);
+    }
+
     /** This method is purely for convenience and will not be tested. */
     @Override
     public String toString() {
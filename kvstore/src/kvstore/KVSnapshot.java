@@ -0,0 +1,387 @@
+package kvstore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary snapshot format for the contents of a KVStore, used by
+ * KVStore.dumpSnapshotToFile() and TPCLog checkpoints.
+ *
+ * Version 2 layout, all integers big-endian:
+ *
+ *   int MAGIC, int VERSION, int flags (FLAG_DEFLATE)
+ *   per block:
+ *     int number of pairs (> 0), int raw length, int stored length,
+ *     int CRC32 of the raw bytes, stored bytes
+ *   int 0, long total number of pairs
+ *
+ * The raw bytes of a block are its pairs, each a varint key length, the key
+ * in UTF-8, a varint value length and the value in UTF-8. Blocks hold about
+ * BLOCK_SIZE raw bytes; the stored bytes are the raw bytes compressed with
+ * Deflater if FLAG_DEFLATE is set, else the raw bytes themselves. Writing
+ * and reading only ever hold one block in memory besides the store.
+ *
+ * Version 1, the original checkpoint format, is still read:
+ *
+ *   int MAGIC, int 1
+ *   per pair: int key length, key UTF-8, int value length, value UTF-8
+ *   int -1, long number of pairs
+ *   int CRC32 of everything before it
+ */
+final class KVSnapshot {
+
+    static final int MAGIC = 0x4B56534E; // "KVSN"
+    static final int VERSION = 2;
+
+    static final int FLAG_DEFLATE = 1;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // A block ends with the pair that takes it past BLOCK_SIZE, however big
+    private static final int MAX_BLOCK_SIZE = BLOCK_SIZE + 2
+            * KVConstants.MAX_FRAME_SIZE;
+
+    private KVSnapshot() {
+    }
+
+    /**
+     * Writes pairs to out, leaving out open.
+     *
+     * @param pairs pairs with distinct keys, e.g. a KVStore.Snapshot
+     * @param out stream to write to; buffering is up to the caller
+     * @param compress true to deflate every block
+     */
+    static void write(Iterable<Map.Entry<String, String>> pairs,
+            OutputStream out, boolean compress) throws IOException {
+        Writer writer = new Writer(out, compress);
+        for (Map.Entry<String, String> pair : pairs) {
+            writer.add(pair.getKey(), pair.getValue());
+        }
+        writer.finish();
+    }
+
+    /**
+     * Reads a snapshot of either version into pairs, reading exactly as many
+     * bytes from in as were written.
+     *
+     * @param in stream positioned at the start of the snapshot; buffering
+     *        is up to the caller
+     * @throws IOException if the snapshot is truncated or corrupt, or a put
+     *         into pairs fails
+     */
+    static void read(InputStream in, KeyValueInterface pairs)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a KVStore snapshot");
+        }
+        int version = data.readInt();
+        if (version == 1) {
+            // version 1 has a checksum over the whole stream, header included
+            CRC32 crc = new CRC32();
+            byte[] header = new byte[8];
+            ByteBuffer.wrap(header).putInt(MAGIC).putInt(version);
+            crc.update(header, 0, header.length);
+            CheckedInputStream checked = new CheckedInputStream(in, crc);
+            readVersion1(new DataInputStream(checked), checked, pairs);
+        } else if (version == VERSION) {
+            readBlocks(data, pairs);
+        } else {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+    }
+
+    /**
+     * @return true if bytes, the start of a file, look like a snapshot
+     */
+    static boolean isSnapshot(byte[] bytes, int length) {
+        return length >= 4 && ((bytes[0] & 0xFF) << 24
+                | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8
+                | (bytes[3] & 0xFF)) == MAGIC;
+    }
+
+    private static void readBlocks(DataInputStream data,
+            KeyValueInterface pairs) throws IOException {
+        int flags = data.readInt();
+        if ((flags & ~FLAG_DEFLATE) != 0) {
+            throw new IOException("Unsupported snapshot flags " + flags);
+        }
+        Inflater inflater = (flags & FLAG_DEFLATE) != 0 ? new Inflater()
+                : null;
+        try {
+            byte[] raw = new byte[BLOCK_SIZE];
+            byte[] stored = inflater != null ? new byte[BLOCK_SIZE] : null;
+            CRC32 crc = new CRC32();
+            long total = 0;
+            while (true) {
+                int count = data.readInt();
+                if (count == 0) {
+                    break;
+                }
+                int rawLength = data.readInt();
+                int storedLength = data.readInt();
+                int checksum = data.readInt();
+                if (count < 0 || rawLength < 0 || rawLength > MAX_BLOCK_SIZE
+                        || storedLength < 0 || storedLength > MAX_BLOCK_SIZE
+                        || (inflater == null && storedLength != rawLength)) {
+                    throw new IOException("Snapshot is corrupt");
+                }
+                if (raw.length < rawLength) {
+                    raw = new byte[rawLength];
+                }
+                if (inflater == null) {
+                    data.readFully(raw, 0, rawLength);
+                } else {
+                    if (stored.length < storedLength) {
+                        stored = new byte[storedLength];
+                    }
+                    data.readFully(stored, 0, storedLength);
+                    inflate(inflater, stored, storedLength, raw, rawLength);
+                }
+                crc.reset();
+                crc.update(raw, 0, rawLength);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Snapshot is corrupt");
+                }
+                parseBlock(raw, rawLength, count, pairs);
+                total += count;
+            }
+            if (data.readLong() != total) {
+                throw new IOException("Snapshot is corrupt");
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static void inflate(Inflater inflater, byte[] stored,
+            int storedLength, byte[] raw, int rawLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, rawLength - n);
+                if (inflated == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawLength || !inflater.finished()) {
+                throw new IOException("Snapshot is corrupt");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Snapshot is corrupt");
+        }
+    }
+
+    private static void parseBlock(byte[] raw, int rawLength, int count,
+            KeyValueInterface pairs) throws IOException {
+        int[] pos = { 0 };
+        try {
+            for (int i = 0; i < count; i++) {
+                String key = readString(raw, pos);
+                String value = readString(raw, pos);
+                put(pairs, key, value);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot is corrupt");
+        }
+        if (pos[0] != rawLength) {
+            throw new IOException("Snapshot is corrupt");
+        }
+    }
+
+    private static void put(KeyValueInterface pairs, String key, String value)
+            throws IOException {
+        try {
+            pairs.put(key, value);
+        } catch (KVException e) {
+            throw new IOException(e.getKVMessage().getMessage());
+        }
+    }
+
+    private static String readString(byte[] buf, int[] pos) {
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            int b = buf[pos[0]++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+        if (length < 0 || pos[0] + length > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        String s = new String(buf, pos[0], length, UTF_8);
+        pos[0] += length;
+        return s;
+    }
+
+    private static void readVersion1(DataInputStream data,
+            CheckedInputStream checked, KeyValueInterface pairs)
+            throws IOException {
+        long count = 0;
+        while (true) {
+            String key = readVersion1String(data);
+            if (key == null) {
+                break;
+            }
+            String value = readVersion1String(data);
+            if (value == null) {
+                throw new IOException("Snapshot is corrupt");
+            }
+            put(pairs, key, value);
+            count++;
+        }
+        boolean countMatches = data.readLong() == count;
+        int expected = (int) checked.getChecksum().getValue();
+        if (!countMatches || data.readInt() != expected) {
+            throw new IOException("Snapshot is corrupt");
+        }
+    }
+
+    private static String readVersion1String(DataInputStream in)
+            throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > KVConstants.MAX_FRAME_SIZE) {
+            throw new IOException("Snapshot is corrupt");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Writes a snapshot pair by pair, for stores that cannot hand write() an
+     * Iterable: collects pairs into blocks and writes each block out once it
+     * reaches BLOCK_SIZE. The pairs must have distinct keys.
+     */
+    static class Writer {
+
+        private DataOutputStream out;
+        private Deflater deflater;
+        private byte[] raw = new byte[BLOCK_SIZE + 1024];
+        private byte[] stored;
+        private int rawLength = 0;
+        private int count = 0;
+        private long total = 0;
+        private CRC32 crc = new CRC32();
+
+        /**
+         * Writes the snapshot header to out, which is left open.
+         */
+        Writer(OutputStream out, boolean compress) throws IOException {
+            this.out = new DataOutputStream(out);
+            if (compress) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                stored = new byte[raw.length];
+            }
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.writeInt(compress ? FLAG_DEFLATE : 0);
+        }
+
+        void add(String key, String value) throws IOException {
+            byte[] keyBytes = key.getBytes(UTF_8);
+            byte[] valueBytes = value.getBytes(UTF_8);
+            ensureCapacity(rawLength + 10 + keyBytes.length
+                    + valueBytes.length);
+            rawLength = writeBytes(raw, rawLength, keyBytes);
+            rawLength = writeBytes(raw, rawLength, valueBytes);
+            count++;
+            if (rawLength >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Writes the last block and the end of the snapshot.
+         */
+        void finish() throws IOException {
+            try {
+                if (count > 0) {
+                    writeBlock();
+                }
+                out.writeInt(0);
+                out.writeLong(total);
+                out.flush();
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            crc.reset();
+            crc.update(raw, 0, rawLength);
+            byte[] body = raw;
+            int bodyLength = rawLength;
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(raw, 0, rawLength);
+                deflater.finish();
+                bodyLength = 0;
+                while (!deflater.finished()) {
+                    if (bodyLength == stored.length) {
+                        stored = Arrays.copyOf(stored, stored.length * 2);
+                    }
+                    bodyLength += deflater.deflate(stored, bodyLength,
+                            stored.length - bodyLength);
+                }
+                body = stored;
+            }
+            out.writeInt(count);
+            out.writeInt(rawLength);
+            out.writeInt(bodyLength);
+            out.writeInt((int) crc.getValue());
+            out.write(body, 0, bodyLength);
+            total += count;
+            count = 0;
+            rawLength = 0;
+        }
+
+        private void ensureCapacity(int size) {
+            if (raw.length < size) {
+                raw = Arrays.copyOf(raw, Math.max(size, raw.length * 2));
+            }
+        }
+
+        private static int writeBytes(byte[] buf, int pos, byte[] bytes) {
+            int n = bytes.length;
+            while (n >= 0x80) {
+                buf[pos++] = (byte) (n | 0x80);
+                n >>>= 7;
+            }
+            buf[pos++] = (byte) n;
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            return pos + bytes.length;
+        }
+    }
+
+}
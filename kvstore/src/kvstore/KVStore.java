@@ -1,40 +1,167 @@
 package kvstore;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static kvstore.KVConstants.*;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Enumeration;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /**
- * This is a basic key-value store. Ideally this would go to disk, or some other
- * backing store.
+ * This is a basic key-value store, kept on the heap. BitcaskStore is the
+ * StorageEngine to use for data that should go to disk instead.
+ *
+ * snapshot() gives a point-in-time view of the store without blocking
+ * writers. Every value is stored with the generation it was written in, and
+ * opening a snapshot starts a new generation. While the snapshot is being
+ * read, a put or del that replaces a value from before the snapshot keeps
+ * that value aside for it, unless the snapshot has already read it. Opening
+ * and finishing a snapshot wait for the puts and dels in progress to finish,
+ * which bounds the wait by the time of a single map operation. Only one
+ * snapshot is open at a time; others wait for it to be closed.
+ *
+ * Constructed with offHeap true, the store keeps its values off the heap as
+ * UTF-8 in a SlabAllocator, and the map holds a handle per value. A value's
+ * chunk is freed once it is out of the map and no get or snapshot is still
+ * copying it out, which a count of references kept with it tells.
  */
-public class KVStore implements KeyValueInterface {
+public class KVStore implements StorageEngine {
+
+    private volatile ConcurrentHashMap<String, Value> store;
+
+    /* Where values are kept, or null to keep them on the heap */
+    private final SlabAllocator slabs;
+
+    private static final int SNAPSHOT_BUFFER_SIZE = 256 * 1024;
 
-    private ConcurrentHashMap<String, String> store;
+    /* Written only while holding snapshotLock */
+    private volatile long generation = 1;
+    private volatile Snapshot activeSnapshot = null;
+
+    /* Number of puts and dels in progress, by generation parity. A snapshot
+     * waiting for the writers of a past generation waits on its counter. */
+    private final AtomicInteger[] writers = { new AtomicInteger(),
+            new AtomicInteger() };
+
+    /* Held from opening a snapshot to closing it, and to replace store */
+    private final Semaphore snapshotLock = new Semaphore(1);
 
     /**
      * Construct a new KVStore.
      */
     public KVStore() {
+        this(false);
+    }
+
+    /**
+     * Construct a new KVStore.
+     *
+     * @param offHeap true to keep values off the heap, each at most
+     *        SlabAllocator.MAX_LENGTH bytes in UTF-8
+     */
+    public KVStore(boolean offHeap) {
+        this(offHeap ? new SlabAllocator() : null);
+    }
+
+    private KVStore(SlabAllocator slabs) {
+        this.slabs = slabs;
         resetStore();
     }
 
     private void resetStore() {
-        this.store = new ConcurrentHashMap<String, String>();
+        replaceStore(new ConcurrentHashMap<String, Value>());
+    }
+
+    /**
+     * Swaps in the map of another store sharing slabs, and frees the values
+     * of the map it replaces. No put or del may run meanwhile.
+     */
+    private void replaceStore(ConcurrentHashMap<String, Value> replacement) {
+        snapshotLock.acquireUninterruptibly();
+        ConcurrentHashMap<String, Value> replaced = this.store;
+        this.store = replacement;
+        snapshotLock.release();
+        if (replaced != null && slabs != null) {
+            for (Value value : replaced.values()) {
+                release(value);
+            }
+        }
+    }
+
+    private Value newValue(String value, long generation) {
+        if (slabs == null) {
+            return new Value(value, 0, generation);
+        }
+        return new Value(null, slabs.allocate(value.getBytes(UTF_8)),
+                generation);
+    }
+
+    /**
+     * @return the value, or null if it is off the heap and has been freed
+     *         since it was looked up
+     */
+    private String read(Value value) {
+        if (value.value != null) {
+            return value.value;
+        }
+        if (!value.retain()) {
+            return null;
+        }
+        try {
+            return new String(slabs.read(value.handle), UTF_8);
+        } finally {
+            release(value);
+        }
+    }
+
+    /**
+     * Drops a reference to a value, freeing its chunk with the last one.
+     */
+    private void release(Value value) {
+        if (value.value == null && value.release()) {
+            slabs.free(value.handle);
+        }
+    }
+
+    /**
+     * @return bytes of the slabs holding values off the heap
+     */
+    long offHeapBytes() {
+        return slabs != null ? slabs.slabBytes() : 0;
+    }
+
+    /**
+     * @return bytes of the chunks holding the values off the heap
+     */
+    long offHeapChunkBytes() {
+        return slabs != null ? slabs.chunkBytes() : 0;
     }
 
     /**
@@ -45,7 +172,16 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) {
-        store.put(key, value);
+        long writeGeneration = startWrite();
+        try {
+            Value old = store.put(key, newValue(value, writeGeneration));
+            if (old != null) {
+                preserve(key, old, writeGeneration);
+                release(old);
+            }
+        } finally {
+            endWrite(writeGeneration);
+        }
     }
 
     /**
@@ -55,12 +191,18 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
-        String retVal = this.store.get(key);
-        if (retVal == null) {
-            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
-            throw new KVException(msg);
+        while (true) {
+            Value retVal = this.store.get(key);
+            if (retVal == null) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            String value = read(retVal);
+            if (value != null) {
+                return value;
+            }
+            // replaced or removed since the lookup: look again
         }
-        return retVal;
     }
 
     /**
@@ -72,14 +214,392 @@ public class KVStore implements KeyValueInterface {
     @Override
     public void del(String key) throws KVException {
         if(key != null) {
-            if (!this.store.containsKey(key)) {
+            long writeGeneration = startWrite();
+            Value old;
+            try {
+                old = this.store.remove(key);
+                if (old != null) {
+                    preserve(key, old, writeGeneration);
+                    release(old);
+                }
+            } finally {
+                endWrite(writeGeneration);
+            }
+            if (old == null) {
                 KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
                 throw new KVException(msg);
             }
-            this.store.remove(key);
         }
     }
 
+    /**
+     * @return false: the pairs are lost with the process
+     */
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * Nothing to make durable for a store on the heap.
+     */
+    @Override
+    public void sync() {
+    }
+
+    /**
+     * Nothing to release for a store on the heap.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Open a point-in-time view of the store: iterating it gives exactly the
+     * pairs the store held when this method returned, while puts and dels
+     * carry on. The snapshot can be iterated once and must be closed, as
+     * until then writes keep the values it has yet to read and no other
+     * snapshot can be opened.
+     *
+     * @return the snapshot, to be closed by the caller
+     */
+    public Snapshot snapshot() {
+        snapshotLock.acquireUninterruptibly();
+        long snapshotGeneration = generation;
+        Snapshot snapshot = new Snapshot(store, snapshotGeneration);
+        activeSnapshot = snapshot;
+        generation = snapshotGeneration + 1;
+        awaitWriters(snapshotGeneration);
+        return snapshot;
+    }
+
+    /**
+     * Registers a put or del with the generation it writes in.
+     */
+    private long startWrite() {
+        while (true) {
+            long current = generation;
+            AtomicInteger count = writers[(int) current & 1];
+            count.incrementAndGet();
+            if (generation == current) {
+                return current;
+            }
+            // a snapshot started in between; it may be waiting on count
+            endWrite(current);
+        }
+    }
+
+    /**
+     * Unregisters a put or del, waking a snapshot waiting for the writers
+     * of its generation if it was the last of them.
+     */
+    private void endWrite(long writeGeneration) {
+        AtomicInteger count = writers[(int) writeGeneration & 1];
+        if (count.decrementAndGet() == 0 && generation != writeGeneration) {
+            synchronized (count) {
+                count.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for the puts and dels writing in the given generation, once the
+     * current generation has moved past it.
+     */
+    private void awaitWriters(long writeGeneration) {
+        AtomicInteger count = writers[(int) writeGeneration & 1];
+        boolean interrupted = false;
+        synchronized (count) {
+            while (count.get() != 0) {
+                try {
+                    count.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Keeps a value just replaced or removed by a write in writeGeneration
+     * for the open snapshot, if the snapshot includes it and has not read it.
+     * The write still holds the map's reference to the value.
+     */
+    private void preserve(String key, Value old, long writeGeneration) {
+        Snapshot snapshot = activeSnapshot;
+        if (snapshot != null && writeGeneration > snapshot.generation
+                && old.generation <= snapshot.generation
+                && old.claim(snapshot.generation)) {
+            snapshot.preserved.put(key, old.value != null ? old.value
+                    : new String(slabs.read(old.handle), UTF_8));
+        }
+    }
+
+    /**
+     * A value in the store, or the handle of its chunk if it is off the
+     * heap, with the generation it was written in.
+     */
+    private static final class Value {
+
+        private static final AtomicLongFieldUpdater<Value> CLAIMED =
+                AtomicLongFieldUpdater.newUpdater(Value.class, "claimed");
+        private static final AtomicIntegerFieldUpdater<Value> REFERENCES =
+                AtomicIntegerFieldUpdater.newUpdater(Value.class,
+                        "references");
+
+        final String value;
+        final long handle;
+        final long generation;
+
+        /* The generation of the last snapshot to read or preserve it */
+        private volatile long claimed = 0;
+
+        /* The map's, and those of the reads copying the value off the heap */
+        private volatile int references = 1;
+
+        Value(String value, long handle, long generation) {
+            this.value = value;
+            this.handle = handle;
+            this.generation = generation;
+        }
+
+        /**
+         * @return false if the last reference is gone and the chunk freed
+         */
+        boolean retain() {
+            while (true) {
+                int current = references;
+                if (current == 0) {
+                    return false;
+                }
+                if (REFERENCES.compareAndSet(this, current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if that was the last reference
+         */
+        boolean release() {
+            return REFERENCES.decrementAndGet(this) == 0;
+        }
+
+        /**
+         * @return true the first time it is called for a snapshot
+         */
+        boolean claim(long snapshotGeneration) {
+            while (true) {
+                long current = claimed;
+                if (current >= snapshotGeneration) {
+                    return false;
+                }
+                if (CLAIMED.compareAndSet(this, current, snapshotGeneration)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * A point-in-time view of a KVStore, see KVStore.snapshot().
+     */
+    public class Snapshot implements Iterable<Map.Entry<String, String>>,
+            Closeable {
+
+        private final Map<String, Value> live;
+        private final long generation;
+        private final ConcurrentHashMap<String, String> preserved =
+                new ConcurrentHashMap<String, String>();
+        private boolean iterated = false;
+        private volatile boolean closed = false;
+
+        Snapshot(Map<String, Value> live, long generation) {
+            this.live = live;
+            this.generation = generation;
+        }
+
+        /**
+         * Iterates over the pairs of the snapshot, in no particular order.
+         *
+         * @throws IllegalStateException if the snapshot has been iterated
+         *         before or is closed
+         */
+        @Override
+        public synchronized Iterator<Map.Entry<String, String>> iterator() {
+            if (iterated || closed) {
+                throw new IllegalStateException("Snapshot already used");
+            }
+            iterated = true;
+            return new SnapshotIterator();
+        }
+
+        /**
+         * Releases the snapshot; values written since it was opened are no
+         * longer kept for it.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                stopPreserving();
+                snapshotLock.release();
+            }
+        }
+
+        /**
+         * Once every pair of the live map has been read or preserved, stops
+         * writers preserving values and waits for those preserving now.
+         */
+        private void stopPreserving() {
+            if (activeSnapshot == this) {
+                activeSnapshot = null;
+                long current = KVStore.this.generation;
+                KVStore.this.generation = current + 1;
+                awaitWriters(current);
+            }
+        }
+
+        /**
+         * Reads the live map, skipping the values written after the snapshot
+         * and those writers preserved, then the preserved values.
+         */
+        private class SnapshotIterator implements
+                Iterator<Map.Entry<String, String>> {
+
+            private Iterator<Map.Entry<String, Value>> liveIterator =
+                    live.entrySet().iterator();
+            private Iterator<Map.Entry<String, String>> preservedIterator;
+            private Map.Entry<String, String> next;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                if (closed) {
+                    throw new IllegalStateException("Snapshot closed");
+                }
+                while (liveIterator != null && liveIterator.hasNext()) {
+                    Map.Entry<String, Value> pair = liveIterator.next();
+                    Value value = pair.getValue();
+                    // a value freed before it is claimed was preserved by
+                    // the write that replaced it
+                    if (value.generation <= generation
+                            && (value.value != null || value.retain())) {
+                        try {
+                            if (value.claim(generation)) {
+                                next = new AbstractMap.SimpleImmutableEntry<
+                                        String, String>(pair.getKey(),
+                                        value.value != null ? value.value
+                                                : new String(slabs.read(
+                                                        value.handle), UTF_8));
+                                return true;
+                            }
+                        } finally {
+                            release(value);
+                        }
+                    }
+                }
+                if (liveIterator != null) {
+                    liveIterator = null;
+                    synchronized (Snapshot.this) {
+                        stopPreserving();
+                    }
+                    preservedIterator = preserved.entrySet().iterator();
+                }
+                if (preservedIterator.hasNext()) {
+                    next = preservedIterator.next();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> pair = next;
+                next = null;
+                return pair;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+
+    /**
+     * Write the store to a stream in the binary snapshot format (see
+     * KVSnapshot), uncompressed. Puts and dels may run concurrently; the
+     * pairs written are those of the store when the call started (see
+     * snapshot()).
+     *
+     * @param out buffered stream to write to, left open
+     * @throws IOException if out cannot be written
+     */
+    @Override
+    public void writeSnapshot(OutputStream out) throws IOException {
+        writeSnapshot(out, false);
+    }
+
+    /**
+     * Write the store to a stream in the binary snapshot format, like
+     * writeSnapshot(out).
+     *
+     * @param out buffered stream to write to, left open
+     * @param compress true to deflate the snapshot blocks
+     * @throws IOException if out cannot be written
+     */
+    public void writeSnapshot(OutputStream out, boolean compress)
+            throws IOException {
+        Snapshot snapshot = snapshot();
+        try {
+            KVSnapshot.write(snapshot, out, compress);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Write the store to a file in the binary snapshot format. This is
+     * much smaller and faster than dumpToFile.
+     *
+     * @param fileName the file to write the snapshot to
+     * @param compress true to deflate the snapshot blocks
+     * @throws IOException if the file cannot be written
+     */
+    public void dumpSnapshotToFile(String fileName, boolean compress)
+            throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                fileName), SNAPSHOT_BUFFER_SIZE);
+        try {
+            writeSnapshot(out, compress);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces the contents of the store with a snapshot written by
+     * writeSnapshot; the previous contents of the store are lost.
+     *
+     * @param in buffered stream positioned at the start of the snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    @Override
+    public void readSnapshot(InputStream in) throws IOException {
+        KVStore restored = new KVStore(slabs);
+        KVSnapshot.read(in, restored);
+        replaceStore(restored.store);
+    }
+
     /**
      * Serialize the store to XML. See the spec for specific output format.
      * This method is best effort. Any exceptions that arise can be dropped.
@@ -87,33 +607,16 @@ public class KVStore implements KeyValueInterface {
      */
     public String toXML() throws Exception {
         // implement me
-		try {
-			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-
-			Document doc = builder.newDocument();
-			doc.setXmlStandalone(true);
-			Element KVStoreElement = doc.createElement("KVStore");
-			doc.appendChild(KVStoreElement);
-			Enumeration<String> keysEnumerator = this.store.keys();
-			for (int i = 0; i < store.size(); i++){
-				Element KVPairElement = doc.createElement("KVPair");
-				KVStoreElement.appendChild(KVPairElement);
-
-				String key = keysEnumerator.nextElement();
-				Element keyElement = doc.createElement("Key");
-				keyElement.appendChild(doc.createTextNode(key));
-				KVPairElement.appendChild(keyElement);
-
-				String value = store.get(key);
-				Element valueElement = doc.createElement("Value");
-				valueElement.appendChild(doc.createTextNode(value));
-				KVPairElement.appendChild(valueElement);
-
-			}
-			return KVMessage.printDoc(doc);
-		} catch (ParserConfigurationException e) {
-			throw new Exception(ERROR_PARSER);
-		}
+        StringWriter out = new StringWriter();
+        try {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                    .createXMLStreamWriter(out);
+            writeXML(writer);
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new Exception(ERROR_PARSER);
+        }
+        return out.toString();
     }
 
     @Override
@@ -130,24 +633,41 @@ public class KVStore implements KeyValueInterface {
      * Serialize to XML and write the output to a file.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
+     * The document is streamed to the file pair by pair, so this takes
+     * constant memory however large the store is.
+     *
      * @param fileName the file to write the serialized store
      * @throws Exception 
      */
     public void dumpToFile(String fileName) throws Exception {
         // implement me
-		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(fileName));
-			writer.write(toXML());
-	    	writer.close();
-		} catch (IOException e) {
-			throw new Exception(ERROR_PARSER);
-		}
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(Channels.newOutputStream(
+                    FileChannel.open(Paths.get(fileName),
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.WRITE)), SNAPSHOT_BUFFER_SIZE);
+            XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                    .createXMLStreamWriter(out, "UTF-8");
+            writeXML(writer);
+            writer.close();
+            out.close();
+            out = null;
+        } catch (IOException | XMLStreamException e) {
+            throw new Exception(ERROR_PARSER);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
     }
 
     /**
      * Replaces the contents of the store with the contents of a file
-     * written by dumpToFile; the previous contents of the store are lost.
-     * The store is cleared even if the file does not exist.
+     * written by dumpToFile or dumpSnapshotToFile, telling the two apart by
+     * the snapshot magic number; the previous contents of the store are
+     * lost. The store is cleared even if the file does not exist.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file containing the serialized store data
@@ -156,25 +676,199 @@ public class KVStore implements KeyValueInterface {
     public void restoreFromFile(String fileName) throws Exception {
         resetStore();
 
-        // implement me
-        
-        try{
-    		File xmlFile = new File(fileName);
-    		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-    		Document doc = builder.parse(xmlFile);
-    		
-    		this.resetStore();
-    		
-    		NodeList KVPairList = doc.getElementsByTagName("KVPair");
-    		
-    		for (int i = 0; i < KVPairList.getLength(); i++){
-    			Element KVPairElement = (Element) KVPairList.item(i);
-    			String key = KVPairElement.getElementsByTagName("Key").item(0).getTextContent();
-    			String value = KVPairElement.getElementsByTagName("Value").item(0).getTextContent();
-    			this.store.put(key, value);
-    		}
-    	} catch(Exception e){
-    		throw new Exception(ERROR_INVALID_FORMAT);
-    	}
+        boolean snapshot = isSnapshotFile(fileName);
+        KVStore restored = new KVStore(slabs);
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(fileName),
+                    SNAPSHOT_BUFFER_SIZE);
+            if (snapshot) {
+                KVSnapshot.read(in, restored);
+            } else {
+                readXML(in, restored);
+            }
+        } catch (IOException | XMLStreamException e) {
+            throw new Exception(ERROR_INVALID_FORMAT);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        replaceStore(restored.store);
+    }
+
+    /**
+     * Writes the store in the format toXML() has always produced: that of
+     * the JDK's DOM serializer with indentation on. Characters it would
+     * write as character references are written as such, so a dump stays
+     * byte for byte the same as before.
+     */
+    private void writeXML(XMLStreamWriter writer) throws XMLStreamException {
+        Snapshot snapshot = snapshot();
+        try {
+            writeXML(writer, snapshot);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void writeXML(XMLStreamWriter writer,
+            Iterable<Map.Entry<String, String>> pairs)
+            throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        boolean empty = true;
+        for (Map.Entry<String, String> pair : pairs) {
+            if (empty) {
+                writer.writeStartElement("KVStore");
+                empty = false;
+            }
+            writer.writeCharacters("\n    ");
+            writer.writeStartElement("KVPair");
+            writer.writeCharacters("\n        ");
+            writeTextElement(writer, "Key", pair.getKey());
+            writer.writeCharacters("\n        ");
+            writeTextElement(writer, "Value", pair.getValue());
+            writer.writeCharacters("\n    ");
+            writer.writeEndElement();
+        }
+        if (empty) {
+            writer.writeEmptyElement("KVStore");
+        } else {
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+        }
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+    }
+
+    private static void writeTextElement(XMLStreamWriter writer, String name,
+            String text) throws XMLStreamException {
+        if (text.isEmpty()) {
+            writer.writeEmptyElement(name);
+            return;
+        }
+        writer.writeStartElement(name);
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int ref;
+            if ((c < 0x20 && c != '\t' && c != '\n')
+                    || (c >= 0x7F && c <= 0x9F)) {
+                ref = c;
+            } else if (Character.isSurrogate(c)) {
+                ref = text.codePointAt(i);
+                if (!Character.isSupplementaryCodePoint(ref)) {
+                    throw new XMLStreamException("Unpaired surrogate");
+                }
+            } else {
+                continue;
+            }
+            if (i > start) {
+                writer.writeCharacters(text.substring(start, i));
+            }
+            writer.writeEntityRef("#" + ref);
+            i += Character.charCount(ref) - 1;
+            start = i + 1;
+        }
+        if (start < text.length()) {
+            writer.writeCharacters(start == 0 ? text : text.substring(start));
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Reads the pairs of an XML dump into pairs, one KVPair at a time. As
+     * with the DOM parser this replaces, a KVPair may be anywhere in the
+     * document and its pair is the text of the first Key and Value elements
+     * inside it.
+     */
+    private static void readXML(InputStream in, KVStore pairs)
+            throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                        && reader.getLocalName().equals("KVPair")) {
+                    readPair(reader, pairs);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readPair(XMLStreamReader reader, KVStore pairs) throws XMLStreamException {
+        String key = null;
+        String value = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (key == null && name.equals("Key")) {
+                    key = readText(reader);
+                } else if (value == null && name.equals("Value")) {
+                    value = readText(reader);
+                } else {
+                    depth++;
+                }
+            }
+        }
+        if (key == null || value == null) {
+            throw new XMLStreamException("KVPair without Key or Value");
+        }
+        pairs.put(key, value);
+    }
+
+    /**
+     * Returns all the text inside the current element, nested elements
+     * included, leaving the reader on its end tag.
+     */
+    private static String readText(XMLStreamReader reader)
+            throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                text.append(reader.getText());
+                break;
+            default:
+                break;
+            }
+        }
+        return text.toString();
+    }
+
+    private static boolean isSnapshotFile(String fileName) {
+        byte[] start = new byte[4];
+        int n = 0;
+        try {
+            FileInputStream in = new FileInputStream(fileName);
+            try {
+                int read;
+                while (n < start.length
+                        && (read = in.read(start, n, start.length - n)) > 0) {
+                    n += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return KVSnapshot.isSnapshot(start, n);
     }
 }
@@ -0,0 +1,1178 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A StorageEngine for write-heavy slaves, structured as a log-structured
+ * merge tree: puts and dels go to a memtable on the heap, which is written
+ * out as a sorted table (see SSTable) once it holds about memtable size
+ * bytes, and the tables are merged in the background.
+ *
+ * The memtable is a ConcurrentSkipListMap; a full one is made immutable and
+ * a new one started, and the "LSMStore flush" thread writes the immutable
+ * ones out, oldest first. Writers wait if MAX_IMMUTABLE_MEMTABLES are
+ * waiting to be written. The tables are kept in levels, as in LevelDB.
+ * Flushed tables go to level 0, where their keys may overlap. Once there
+ * are L0_COMPACTION_TRIGGER of them, the "LSMStore compaction" thread
+ * merges them with the level 1 tables they overlap into new level 1
+ * tables. The tables of each deeper level hold distinct key ranges, and once
+ * a level holds more than LEVEL_SIZE_MULTIPLIER times the bytes of the one
+ * above, one of its tables is merged into the next level in the same way.
+ * A del is kept as a tombstone until it is merged into the deepest level
+ * holding its key. A get looks in the memtables, then the level 0 tables
+ * newest first, then the one table of each deeper level whose range holds
+ * the key; each table's Bloom filter spares reading a block from tables
+ * without the key.
+ *
+ * The store has no log of its own: the memtables are lost in a crash. On a
+ * slave the TPCLog is their log; its checkpoints call sync(), which writes
+ * the memtable out, and the log is replayed over the tables after a
+ * restart. The tables in use are listed in dir/manifest, rewritten after
+ * every flush and compaction, and tables it does not list are deleted on
+ * open.
+ *
+ * A del looks the key up before writing its tombstone, so a del of a key
+ * racing with a put of it may see either; KVServer never issues those
+ * concurrently.
+ */
+public class LSMStore implements StorageEngine {
+
+    public static final long DEFAULT_MEMTABLE_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAX_IMMUTABLE_MEMTABLES = 2;
+    private static final int L0_COMPACTION_TRIGGER = 4;
+    private static final int LEVELS = 7;
+    private static final int LEVEL_SIZE_MULTIPLIER = 10;
+
+    // Rough heap taken by a skip list entry besides its strings
+    private static final int MEMTABLE_ENTRY_OVERHEAD = 120;
+
+    private static final int MANIFEST_MAGIC = 0x4C534D31; // "LSM1"
+    private static final String TABLE_PREFIX = "table.";
+    private static final String MANIFEST = "manifest";
+
+    private File dir;
+    private long memtableSize;
+
+    /* Puts hold the read lock, swapping the memtable the write lock */
+    private final ReentrantReadWriteLock rotateLock =
+            new ReentrantReadWriteLock();
+
+    /* Read before tables by gets, and set after it */
+    private volatile Memtable memtable = new Memtable();
+
+    /* Replaced, never changed, with this held */
+    private volatile Tables tables = new Tables(new Memtable[0],
+            new SSTable[LEVELS][0]);
+
+    /* Guarded by this */
+    private int nextTable = 1;
+    private IOException failure = null;
+    private String[] compactPointers = new String[LEVELS];
+    private Thread flusher;
+
+    private volatile boolean closed = false;
+
+    /* Held by compaction, writeSnapshot(), readSnapshot() and close()
+     * throughout, before rotateLock and this */
+    private final Object maintenanceLock = new Object();
+
+    private final AtomicLong userBytes = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicLong compactionReadBytes = new AtomicLong();
+    private final AtomicLong compactionWrittenBytes = new AtomicLong();
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong bloomChecks = new AtomicLong();
+    private final AtomicLong blockReads = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    /**
+     * Opens the store in dir, creating it if need be, with the default
+     * memtable size.
+     *
+     * @throws KVException if the tables cannot be read
+     */
+    public LSMStore(String dir) throws KVException {
+        this(dir, DEFAULT_MEMTABLE_SIZE);
+    }
+
+    /**
+     * Opens the store in dir, creating it if need be.
+     *
+     * @param memtableSize rough heap size at which the memtable is written
+     *        out, also the size of the tables compaction writes
+     * @throws KVException if the tables cannot be read
+     */
+    public LSMStore(String dir, long memtableSize) throws KVException {
+        this.dir = new File(dir);
+        this.memtableSize = memtableSize;
+        try {
+            if (!this.dir.isDirectory()) {
+                Files.createDirectories(this.dir.toPath());
+            }
+            synchronized (this) {
+                open();
+            }
+        } catch (IOException e) {
+            throw new KVException("Unable to open store " + dir + ": "
+                    + e.getMessage());
+        }
+        flusher = startThread("LSMStore flush", new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        });
+        startThread("LSMStore compaction", new Runnable() {
+            @Override
+            public void run() {
+                compactLoop();
+            }
+        });
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException if an earlier flush or compaction failed
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        write(key, value);
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        gets.incrementAndGet();
+        String value = find(key);
+        if (value == null || value == SSTable.TOMBSTONE) {
+            throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+        }
+        return value;
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        String value = find(key);
+        if (value == null || value == SSTable.TOMBSTONE) {
+            throw new KVException(new KVMessage(RESP, ERROR_NO_SUCH_KEY));
+        }
+        write(key, SSTable.TOMBSTONE);
+    }
+
+    /**
+     * Write the pairs of the store as a binary snapshot. The memtable is
+     * made immutable first, so the snapshot reads only memtables and tables
+     * that no longer change; puts and dels go on meanwhile, and compaction
+     * waits until it is done.
+     */
+    @Override
+    public void writeSnapshot(OutputStream out) throws IOException {
+        synchronized (maintenanceLock) {
+            checkOpenIO();
+            rotateLock.writeLock().lock();
+            Tables view;
+            try {
+                synchronized (this) {
+                    rotate();
+                    view = tables;
+                }
+            } finally {
+                rotateLock.writeLock().unlock();
+            }
+            KVSnapshot.Writer writer = new KVSnapshot.Writer(out, false);
+            Merger merger = new Merger(view.sources());
+            while (merger.next()) {
+                if (merger.value != SSTable.TOMBSTONE) {
+                    writer.add(merger.key, merger.value);
+                }
+            }
+            writer.finish();
+        }
+    }
+
+    /**
+     * Replace the pairs of the store with a snapshot written by
+     * writeSnapshot. The existing tables are deleted first, so if the
+     * snapshot turns out to be corrupt the store holds part of it.
+     */
+    @Override
+    public void readSnapshot(InputStream in) throws IOException {
+        synchronized (maintenanceLock) {
+            checkOpenIO();
+            Tables old;
+            rotateLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    old = tables;
+                    // a flush in progress sees its memtable gone and
+                    // drops its table
+                    memtable = new Memtable();
+                    tables = new Tables(new Memtable[0],
+                            new SSTable[LEVELS][0]);
+                    writeManifest();
+                    notifyAll();
+                }
+            } finally {
+                rotateLock.writeLock().unlock();
+            }
+            for (SSTable[] level : old.levels) {
+                delete(level);
+            }
+            KVSnapshot.read(in, this);
+        }
+    }
+
+    /**
+     * @return true: the tables are on disk
+     */
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Write out the memtable and wait for every memtable waiting to be
+     * written, so that all puts and dels so far are in tables.
+     */
+    @Override
+    public void sync() throws IOException {
+        rotateLock.writeLock().lock();
+        Memtable newest;
+        try {
+            synchronized (this) {
+                checkOpenIO();
+                rotate();
+                Memtable[] waiting = tables.immutables;
+                newest = waiting.length > 0 ? waiting[0] : null;
+            }
+        } finally {
+            rotateLock.writeLock().unlock();
+        }
+        synchronized (this) {
+            while (newest != null && tables.holds(newest)) {
+                if (failure != null) {
+                    throw failure;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a flush");
+                }
+            }
+        }
+    }
+
+    /**
+     * Write out the memtable and close the tables, after waiting for a
+     * compaction in progress.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (maintenanceLock) {
+            if (closed) {
+                return;
+            }
+            try {
+                sync();
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+                try {
+                    flusher.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (SSTable[] level : tables.levels) {
+                    for (SSTable table : level) {
+                        table.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run compactions until no level needs one. They also run in the
+     * background on their own.
+     *
+     * @throws KVException if a compaction fails; the store is left as it
+     *         was
+     */
+    public void compact() throws KVException {
+        try {
+            while (compactOnce()) {
+                // again
+            }
+        } catch (IOException e) {
+            throw new KVException("Unable to compact store " + dir + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of tables in each level
+     */
+    int[] tableCounts() {
+        SSTable[][] levels = tables.levels;
+        int[] counts = new int[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            counts[i] = levels[i].length;
+        }
+        return counts;
+    }
+
+    /**
+     * Reports the tables in each level, the write amplification (bytes
+     * written to tables per byte put, not counting the TPCLog) and the read
+     * amplification (Bloom filter checks and blocks read per get).
+     */
+    String amplificationReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-6s %8s %10s%n", "level", "tables",
+                "MB"));
+        SSTable[][] levels = tables.levels;
+        for (int i = 0; i < levels.length; i++) {
+            long bytes = 0;
+            for (SSTable table : levels[i]) {
+                bytes += table.size;
+            }
+            if (levels[i].length > 0) {
+                report.append(String.format("L%-5d %8d %10.1f%n", i,
+                        levels[i].length, bytes / 1e6));
+            }
+        }
+        long user = Math.max(1, userBytes.get());
+        long flushed = flushedBytes.get();
+        long compacted = compactionWrittenBytes.get();
+        report.append(String.format("write amplification %.2f: %.1f MB put,"
+                + " %.1f MB flushed, %.1f MB compacted (%.1f MB read)%n",
+                (flushed + compacted) / (double) user, user / 1e6,
+                flushed / 1e6, compacted / 1e6,
+                compactionReadBytes.get() / 1e6));
+        long n = Math.max(1, gets.get());
+        long reads = blockReads.get();
+        report.append(String.format("read amplification %.2f blocks per get:"
+                + " %.2f Bloom checks per get, %.2f%% false positives%n",
+                reads / (double) n, bloomChecks.get() / (double) n,
+                100.0 * falsePositives.get() / Math.max(1, bloomChecks.get()
+                        - reads + falsePositives.get())));
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "LSMStore " + dir + ": tables per level "
+                + Arrays.toString(tableCounts());
+    }
+
+    /**
+     * Reads the manifest and opens the tables it lists, deleting any
+     * others. Called with the lock held.
+     */
+    private void open() throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        ArrayList<ArrayList<SSTable>> levels =
+                new ArrayList<ArrayList<SSTable>>();
+        for (int i = 0; i < LEVELS; i++) {
+            levels.add(new ArrayList<SSTable>());
+        }
+        ArrayList<Integer> listed = new ArrayList<Integer>();
+        if (manifest.isFile()) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(
+                    manifest.toPath()));
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), 0, Math.max(0, data.limit() - 4));
+            if (data.limit() < 16 || data.getInt() != MANIFEST_MAGIC
+                    || data.getInt(data.limit() - 4) != (int) crc.getValue()) {
+                throw new IOException(manifest + " is corrupt");
+            }
+            data.limit(data.limit() - 4);
+            try {
+                nextTable = data.getInt();
+                int count = data.getInt();
+                for (int i = 0; i < count; i++) {
+                    int level = data.getInt();
+                    int number = data.getInt();
+                    if (level < 0 || level >= LEVELS) {
+                        throw new IOException(manifest + " is corrupt");
+                    }
+                    levels.get(level).add(SSTable.open(number,
+                            tableFile(number)));
+                    listed.add(number);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException(manifest + " is corrupt");
+            }
+        }
+        String[] names = dir.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.startsWith(TABLE_PREFIX)) {
+                try {
+                    int number = Integer.parseInt(name.substring(
+                            TABLE_PREFIX.length()));
+                    if (!listed.contains(number)) {
+                        Files.delete(new File(dir, name).toPath());
+                    }
+                } catch (NumberFormatException e) {
+                    // not a table
+                }
+            }
+        }
+        SSTable[][] opened = new SSTable[LEVELS][];
+        for (int i = 0; i < LEVELS; i++) {
+            opened[i] = sort(levels.get(i), i);
+        }
+        tables = new Tables(new Memtable[0], opened);
+    }
+
+    /**
+     * Writes the list of tables under a temporary name, syncs it and
+     * renames it over the previous one. Called with the lock held.
+     */
+    private void writeManifest() throws IOException {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(file,
+                    new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            int count = 0;
+            for (SSTable[] level : tables.levels) {
+                count += level.length;
+            }
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(nextTable);
+            out.writeInt(count);
+            for (int i = 0; i < LEVELS; i++) {
+                for (SSTable table : tables.levels[i]) {
+                    out.writeInt(i);
+                    out.writeInt(table.number);
+                }
+            }
+            out.flush();
+            new DataOutputStream(file).writeInt(
+                    (int) checked.getChecksum().getValue());
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String find(String key) throws KVException {
+        while (true) {
+            checkOpen();
+            // the memtable before the tables: see rotate()
+            String value = memtable.map.get(key);
+            if (value != null) {
+                return value;
+            }
+            Tables current = tables;
+            try {
+                return lookup(current, key);
+            } catch (ClosedChannelException e) {
+                // compacted away meanwhile; the tables now hold the output
+            } catch (IOException e) {
+                throw new KVException("Unable to read store " + dir + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private String lookup(Tables current, String key) throws IOException {
+        for (Memtable immutable : current.immutables) {
+            String value = immutable.map.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (SSTable table : current.levels[0]) {
+            String value = probe(table, key);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (int i = 1; i < LEVELS; i++) {
+            SSTable[] level = current.levels[i];
+            int low = 0;
+            int high = level.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (level[mid].largest.compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (low < level.length) {
+                String value = probe(level[low], key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private String probe(SSTable table, String key) throws IOException {
+        if (!table.overlaps(key, key)) {
+            return null;
+        }
+        bloomChecks.incrementAndGet();
+        if (!table.mightContain(key)) {
+            return null;
+        }
+        blockReads.incrementAndGet();
+        String value = table.get(key);
+        if (value == null) {
+            falsePositives.incrementAndGet();
+        }
+        return value;
+    }
+
+    private void write(String key, String value) throws KVException {
+        Memtable target;
+        rotateLock.readLock().lock();
+        try {
+            checkOpen();
+            target = memtable;
+            target.put(key, value);
+        } finally {
+            rotateLock.readLock().unlock();
+        }
+        userBytes.addAndGet(key.length() + value.length());
+        if (target.size.get() >= memtableSize) {
+            rotateFull(target);
+        }
+    }
+
+    /**
+     * Makes full immutable, unless another writer has already, after
+     * waiting for room among the immutable memtables.
+     */
+    private void rotateFull(Memtable full) throws KVException {
+        synchronized (this) {
+            while (memtable == full && failure == null && !closed
+                    && tables.immutables.length >= MAX_IMMUTABLE_MEMTABLES) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            checkOpen();
+        }
+        rotateLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (memtable == full) {
+                    rotate();
+                }
+            }
+        } finally {
+            rotateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the memtable immutable and starts a new one, unless it is
+     * empty. The memtable joins the tables before it is replaced, so a get
+     * that reads the new memtable finds the old one in the tables. Called
+     * holding the write lock and this.
+     */
+    private void rotate() {
+        Memtable full = memtable;
+        if (full.map.isEmpty()) {
+            return;
+        }
+        Memtable[] immutables = new Memtable[tables.immutables.length + 1];
+        immutables[0] = full;
+        System.arraycopy(tables.immutables, 0, immutables, 1,
+                immutables.length - 1);
+        tables = new Tables(immutables, tables.levels);
+        memtable = new Memtable();
+        notifyAll();
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Memtable oldest;
+            synchronized (this) {
+                while (tables.immutables.length == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (tables.immutables.length == 0) {
+                    return;
+                }
+                oldest = tables.immutables[tables.immutables.length - 1];
+            }
+            try {
+                flush(oldest);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                System.err.println("Unable to flush store " + dir + ": "
+                        + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes an immutable memtable out as a level 0 table.
+     */
+    private void flush(Memtable immutable) throws IOException {
+        int number;
+        synchronized (this) {
+            number = nextTable++;
+        }
+        SSTable.Writer writer = new SSTable.Writer(tableFile(number));
+        SSTable table;
+        try {
+            for (Map.Entry<String, String> pair : immutable.map.entrySet()) {
+                writer.add(pair.getKey(), pair.getValue());
+            }
+            table = writer.finish(number);
+        } catch (IOException e) {
+            writer.abandon();
+            throw e;
+        }
+        flushedBytes.addAndGet(table.size);
+        synchronized (this) {
+            if (!tables.holds(immutable)) {
+                // dropped by readSnapshot()
+                table.close();
+                Files.delete(table.file.toPath());
+                return;
+            }
+            Memtable[] immutables = Arrays.copyOf(tables.immutables,
+                    tables.immutables.length - 1);
+            SSTable[][] levels = tables.levels.clone();
+            levels[0] = new SSTable[tables.levels[0].length + 1];
+            levels[0][0] = table;
+            System.arraycopy(tables.levels[0], 0, levels[0], 1,
+                    levels[0].length - 1);
+            tables = new Tables(immutables, levels);
+            writeManifest();
+            notifyAll();
+        }
+    }
+
+    private void compactLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!closed && failure == null && pick(tables) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed || failure != null) {
+                    return;
+                }
+            }
+            try {
+                compactOnce();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                System.err.println("Unable to compact store " + dir + ": "
+                        + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one compaction if a level needs one.
+     *
+     * @return false if none did
+     */
+    private boolean compactOnce() throws IOException {
+        synchronized (maintenanceLock) {
+            Compaction compaction;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                compaction = pick(tables);
+                if (compaction == null) {
+                    return false;
+                }
+            }
+            if (compaction.level > 0 && compaction.lower.length == 0) {
+                move(compaction);
+            } else {
+                merge(compaction);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the compaction the tables need most, or null if none does
+     */
+    private Compaction pick(Tables current) {
+        SSTable[][] levels = current.levels;
+        if (levels[0].length >= L0_COMPACTION_TRIGGER) {
+            return new Compaction(0, levels[0], levels[1]);
+        }
+        // level 1 holds about what level 0 does when it is compacted
+        long limit = L0_COMPACTION_TRIGGER * memtableSize;
+        for (int i = 1; i < LEVELS - 1; i++) {
+            if (i > 1) {
+                limit *= LEVEL_SIZE_MULTIPLIER;
+            }
+            long bytes = 0;
+            for (SSTable table : levels[i]) {
+                bytes += table.size;
+            }
+            if (bytes > limit) {
+                // take turns over the key range of the level
+                SSTable next = levels[i][0];
+                String after = compactPointers[i];
+                if (after != null) {
+                    for (SSTable table : levels[i]) {
+                        if (table.smallest.compareTo(after) > 0) {
+                            next = table;
+                            break;
+                        }
+                    }
+                }
+                return new Compaction(i, new SSTable[] { next },
+                        levels[i + 1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves a table into the next level when it overlaps nothing there.
+     */
+    private void move(Compaction compaction) throws IOException {
+        SSTable table = compaction.upper[0];
+        synchronized (this) {
+            SSTable[][] levels = tables.levels.clone();
+            levels[compaction.level] = without(levels[compaction.level],
+                    compaction.upper);
+            ArrayList<SSTable> next = new ArrayList<SSTable>(
+                    Arrays.asList(levels[compaction.level + 1]));
+            next.add(table);
+            levels[compaction.level + 1] = sort(next, compaction.level + 1);
+            tables = new Tables(tables.immutables, levels);
+            compactPointers[compaction.level] = table.largest;
+            writeManifest();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Merges the tables of a compaction into new tables in the next level
+     * and deletes them.
+     */
+    private void merge(Compaction compaction) throws IOException {
+        int output = compaction.level + 1;
+        boolean dropDels = true;
+        SSTable[][] levels = tables.levels;
+        for (int i = output + 1; i < LEVELS; i++) {
+            for (SSTable table : levels[i]) {
+                if (table.overlaps(compaction.smallest, compaction.largest)) {
+                    dropDels = false;
+                }
+            }
+        }
+
+        // newest first: level 0 is kept newest first already
+        ArrayList<Source> sources = new ArrayList<Source>();
+        long read = 0;
+        for (SSTable table : compaction.upper) {
+            sources.add(new TableSource(table));
+            read += table.size;
+        }
+        for (SSTable table : compaction.lower) {
+            sources.add(new TableSource(table));
+            read += table.size;
+        }
+        ArrayList<SSTable> outputs = new ArrayList<SSTable>();
+        SSTable.Writer writer = null;
+        int number = 0;
+        try {
+            Merger merger = new Merger(sources);
+            while (merger.next()) {
+                if (dropDels && merger.value == SSTable.TOMBSTONE) {
+                    continue;
+                }
+                if (writer == null) {
+                    synchronized (this) {
+                        number = nextTable++;
+                    }
+                    writer = new SSTable.Writer(tableFile(number));
+                }
+                writer.add(merger.key, merger.value);
+                if (writer.size() >= memtableSize) {
+                    outputs.add(writer.finish(number));
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish(number));
+                writer = null;
+            }
+        } catch (IOException e) {
+            if (writer != null) {
+                writer.abandon();
+            }
+            delete(outputs.toArray(new SSTable[outputs.size()]));
+            throw e;
+        }
+        long written = 0;
+        for (SSTable table : outputs) {
+            written += table.size;
+        }
+        compactionReadBytes.addAndGet(read);
+        compactionWrittenBytes.addAndGet(written);
+
+        synchronized (this) {
+            SSTable[][] replaced = tables.levels.clone();
+            replaced[compaction.level] = without(replaced[compaction.level],
+                    compaction.upper);
+            ArrayList<SSTable> next = new ArrayList<SSTable>(Arrays.asList(
+                    without(replaced[output], compaction.lower)));
+            next.addAll(outputs);
+            replaced[output] = sort(next, output);
+            tables = new Tables(tables.immutables, replaced);
+            if (compaction.level > 0) {
+                compactPointers[compaction.level] = compaction.largest;
+            }
+            writeManifest();
+            notifyAll();
+        }
+        // a get still reading them finds them closed and looks again
+        delete(compaction.upper);
+        delete(compaction.lower);
+    }
+
+    private void delete(SSTable[] tables) throws IOException {
+        for (SSTable table : tables) {
+            table.close();
+            Files.deleteIfExists(table.file.toPath());
+        }
+    }
+
+    private static SSTable[] without(SSTable[] tables, SSTable[] removed) {
+        ArrayList<SSTable> kept = new ArrayList<SSTable>();
+        for (SSTable table : tables) {
+            if (!Arrays.asList(removed).contains(table)) {
+                kept.add(table);
+            }
+        }
+        return kept.toArray(new SSTable[kept.size()]);
+    }
+
+    /**
+     * @return tables in the order of their level: newest first for level
+     *         0, by key for the others
+     */
+    private static SSTable[] sort(List<SSTable> tables, int level) {
+        SSTable[] sorted = tables.toArray(new SSTable[tables.size()]);
+        if (level == 0) {
+            Arrays.sort(sorted, new Comparator<SSTable>() {
+                @Override
+                public int compare(SSTable a, SSTable b) {
+                    return b.number - a.number;
+                }
+            });
+        } else {
+            Arrays.sort(sorted, new Comparator<SSTable>() {
+                @Override
+                public int compare(SSTable a, SSTable b) {
+                    return a.smallest.compareTo(b.smallest);
+                }
+            });
+        }
+        return sorted;
+    }
+
+    private Thread startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void checkOpen() throws KVException {
+        if (closed) {
+            throw new KVException("Store " + dir + " is closed");
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            throw new KVException("Store " + dir + " failed: "
+                    + failed.getMessage());
+        }
+    }
+
+    private void checkOpenIO() throws IOException {
+        if (closed) {
+            throw new IOException("Store " + dir + " is closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private File tableFile(int number) {
+        return new File(dir, TABLE_PREFIX + String.format("%08d", number));
+    }
+
+    /**
+     * A memtable: a skip list of the puts and dels since it was started,
+     * SSTable.TOMBSTONE standing for a del.
+     */
+    private static final class Memtable {
+
+        final ConcurrentSkipListMap<String, String> map =
+                new ConcurrentSkipListMap<String, String>();
+        final AtomicLong size = new AtomicLong();
+
+        void put(String key, String value) {
+            map.put(key, value);
+            size.addAndGet(MEMTABLE_ENTRY_OVERHEAD
+                    + 2 * (key.length() + value.length()));
+        }
+    }
+
+    /**
+     * The immutable memtables, newest first, and the tables of each level.
+     * Never changed; replaced as a whole.
+     */
+    private static final class Tables {
+
+        final Memtable[] immutables;
+        final SSTable[][] levels;
+
+        Tables(Memtable[] immutables, SSTable[][] levels) {
+            this.immutables = immutables;
+            this.levels = levels;
+        }
+
+        boolean holds(Memtable memtable) {
+            return Arrays.asList(immutables).contains(memtable);
+        }
+
+        /**
+         * @return everything in the tables, newest first
+         */
+        List<Source> sources() {
+            ArrayList<Source> sources = new ArrayList<Source>();
+            for (Memtable immutable : immutables) {
+                sources.add(new MemtableSource(immutable));
+            }
+            for (SSTable[] level : levels) {
+                for (SSTable table : level) {
+                    sources.add(new TableSource(table));
+                }
+            }
+            return sources;
+        }
+    }
+
+    /**
+     * The tables a compaction merges: a level 0 table or all of them, or
+     * one table of a deeper level, and the tables of the next level they
+     * overlap.
+     */
+    private static final class Compaction {
+
+        final int level;
+        final SSTable[] upper;
+        final SSTable[] lower;
+        final String smallest;
+        final String largest;
+
+        Compaction(int level, SSTable[] upper, SSTable[] next) {
+            this.level = level;
+            this.upper = upper;
+            String from = upper[0].smallest;
+            String to = upper[0].largest;
+            for (SSTable table : upper) {
+                from = table.smallest.compareTo(from) < 0 ? table.smallest
+                        : from;
+                to = table.largest.compareTo(to) > 0 ? table.largest : to;
+            }
+            ArrayList<SSTable> overlapping = new ArrayList<SSTable>();
+            for (SSTable table : next) {
+                if (table.overlaps(from, to)) {
+                    overlapping.add(table);
+                }
+            }
+            this.lower = overlapping.toArray(
+                    new SSTable[overlapping.size()]);
+            for (SSTable table : lower) {
+                from = table.smallest.compareTo(from) < 0 ? table.smallest
+                        : from;
+                to = table.largest.compareTo(to) > 0 ? table.largest : to;
+            }
+            this.smallest = from;
+            this.largest = to;
+        }
+    }
+
+    /**
+     * Pairs in key order from a memtable or table, with the value
+     * SSTable.TOMBSTONE for a del.
+     */
+    private abstract static class Source {
+
+        String key;
+        String value;
+        int priority;
+
+        abstract boolean next() throws IOException;
+    }
+
+    private static final class MemtableSource extends Source {
+
+        private final Iterator<Map.Entry<String, String>> pairs;
+
+        MemtableSource(Memtable memtable) {
+            pairs = memtable.map.entrySet().iterator();
+        }
+
+        @Override
+        boolean next() {
+            if (!pairs.hasNext()) {
+                return false;
+            }
+            Map.Entry<String, String> pair = pairs.next();
+            key = pair.getKey();
+            value = pair.getValue();
+            return true;
+        }
+    }
+
+    private static final class TableSource extends Source {
+
+        private final SSTable.Scanner scanner;
+
+        TableSource(SSTable table) {
+            scanner = table.scanner();
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!scanner.next()) {
+                return false;
+            }
+            key = scanner.key;
+            value = scanner.value;
+            return true;
+        }
+    }
+
+    /**
+     * Merges sources into one sequence in key order, taking each key from
+     * the first source that has it.
+     */
+    private static final class Merger {
+
+        private final PriorityQueue<Source> queue;
+
+        String key;
+        String value;
+
+        /**
+         * @param sources sources newest first
+         */
+        Merger(List<Source> sources) throws IOException {
+            queue = new PriorityQueue<Source>(Math.max(1, sources.size()),
+                    new Comparator<Source>() {
+                        @Override
+                        public int compare(Source a, Source b) {
+                            int c = a.key.compareTo(b.key);
+                            return c != 0 ? c : a.priority - b.priority;
+                        }
+                    });
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = sources.get(i);
+                source.priority = i;
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        boolean next() throws IOException {
+            Source first = queue.poll();
+            if (first == null) {
+                return false;
+            }
+            key = first.key;
+            value = first.value;
+            advance(first);
+            while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                advance(queue.poll());
+            }
+            return true;
+        }
+
+        private void advance(Source source) throws IOException {
+            if (source.next()) {
+                queue.add(source);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in buckets, for percentiles without keeping every
+ * sample. Each power of two nanoseconds is split into SUB_BUCKETS buckets,
+ * so a percentile is off by at most an eighth. record() takes no lock.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos)));
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the upper bound in microseconds of the bucket holding the p-th
+     *         percentile (0 < p <= 100), or 0 if nothing has been recorded
+     */
+    double percentileMicros(double p) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i) / 1000.0;
+            }
+        }
+        return upperBound(counts.length() - 1) / 1000.0;
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+}
@@ -0,0 +1,34 @@
+package kvstore;
+
+/**
+ * Interface for handlers that service requests already read off the network,
+ * as done by a non-blocking SocketServer.
+ */
+public interface MessageHandler {
+
+    /**
+     * Creates a job to carry out a request and returns immediately after
+     * enqueuing that job. The job hands its response, or the KVMessage of the
+     * KVException it failed with, to responder.respond() exactly once.
+     *
+     * @param request KVMessage received from another endpoint
+     * @param responder where to send the response
+     */
+    public void handle(KVMessage request, Responder responder);
+
+    /**
+     * Receives the response to a request passed to a MessageHandler.
+     */
+    public interface Responder {
+
+        /**
+         * Queues a response to be sent back. Safe to call from any thread;
+         * never blocks on the network.
+         *
+         * @param response KVMessage to send
+         */
+        public void respond(KVMessage response);
+
+    }
+
+}
@@ -0,0 +1,326 @@
+package kvstore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * One client connection of a non-blocking SocketServer. The selector thread
+ * reads bytes into a buffer until they form complete requests, which are
+ * passed to the MessageHandler one at a time and in order. Responses come
+ * back through respond(), usually on a worker thread, and wait in a queue
+ * until the selector thread writes them out.
+ *
+ * The protocols are the same as on a blocking server (see KVConnection): an
+ * XML connection carries a single request, complete once the client shuts
+ * down its output, and a binary connection carries frames until the client
+ * closes it.
+ */
+class NonBlockingConnection implements MessageHandler.Responder {
+
+    private static final int UNKNOWN = 0;
+    private static final int XML = 1;
+    private static final int BINARY = 2;
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // A client that sends requests faster than they are answered is not read
+    // from while this many requests, or this many bytes of responses, wait.
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    private static final int MAX_QUEUED_OUTPUT = 1024 * 1024;
+
+    private SocketServer server;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private MessageHandler handler;
+
+    /* Only changed by the selector thread */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile int protocol = UNKNOWN;
+    private volatile boolean inputClosed = false;
+    private long lastActive = System.currentTimeMillis();
+
+    /* Guarded by this */
+    private LinkedList<KVMessage> requests = new LinkedList<KVMessage>();
+    private KVMessage finalResponse;
+    private boolean busy = false;
+    private LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    private int outputBytes = 0;
+    private boolean closeAfterOutput = false;
+    private boolean readPaused = false;
+
+    NonBlockingConnection(SocketServer server, SocketChannel channel,
+            SelectionKey key, MessageHandler handler) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads whatever the client has sent and dispatches any requests it
+     * completes. Called by the selector thread when the channel is readable.
+     *
+     * @return false if the connection should be closed now
+     */
+    boolean read() {
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            return false;
+        }
+        lastActive = System.currentTimeMillis();
+        if (n < 0) {
+            inputClosed = true;
+        }
+        readBuffer.flip();
+        try {
+            parse();
+        } catch (KVException e) {
+            inputClosed = true;
+            synchronized (this) {
+                finalResponse = e.getKVMessage();
+            }
+        }
+        readBuffer.compact();
+        dispatch();
+        return update();
+    }
+
+    /**
+     * Writes as much queued output as the channel accepts. Called by the
+     * selector thread.
+     *
+     * @return false if the connection should be closed now
+     */
+    boolean write() {
+        synchronized (this) {
+            try {
+                while (!output.isEmpty()) {
+                    ByteBuffer next = output.getFirst();
+                    int n = channel.write(next);
+                    outputBytes -= n;
+                    if (next.hasRemaining()) {
+                        break;
+                    }
+                    output.removeFirst();
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        lastActive = System.currentTimeMillis();
+        return update();
+    }
+
+    /**
+     * @return true if the connection has been quiet for longer than timeout
+     *         milliseconds with no request being handled
+     */
+    synchronized boolean isIdle(long now, int timeout) {
+        return timeout > 0 && !busy && requests.isEmpty() && output.isEmpty()
+                && now - lastActive > timeout;
+    }
+
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Queues a response. If nothing else is waiting to go out, the response
+     * is written straight from the calling thread, and the selector thread
+     * is only woken up if part of it did not fit or the connection needs its
+     * attention for another reason.
+     */
+    @Override
+    public void respond(KVMessage response) {
+        ByteBuffer encoded = encode(response);
+        boolean wakeSelector;
+        synchronized (this) {
+            busy = false;
+            if (output.isEmpty() && protocol == BINARY) {
+                try {
+                    channel.write(encoded);
+                } catch (IOException e) {
+                    // leave it to the selector thread to find out
+                }
+            }
+            if (encoded.hasRemaining()) {
+                output.addLast(encoded);
+                outputBytes += encoded.remaining();
+            }
+            if (protocol == XML) {
+                closeAfterOutput = true;
+            }
+            wakeSelector = !output.isEmpty() || closeAfterOutput
+                    || readPaused || inputClosed;
+        }
+        if (dispatch() || wakeSelector) {
+            server.outputReady(this);
+        }
+    }
+
+    /**
+     * Moves complete requests from the read buffer to the request queue.
+     */
+    private void parse() throws KVException {
+        if (protocol == UNKNOWN && readBuffer.hasRemaining()) {
+            if ((readBuffer.get(readBuffer.position()) & 0xFF)
+                    != BINARY_PROTOCOL_MAGIC) {
+                protocol = XML;
+            } else if (readBuffer.remaining() >= 2) {
+                readBuffer.get();
+                if (readBuffer.get() != BINARY_PROTOCOL_VERSION) {
+                    throw new KVException(new KVMessage(RESP,
+                            ERROR_INVALID_FORMAT));
+                }
+                protocol = BINARY;
+            }
+        }
+        if (protocol == BINARY) {
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < 2 || length > MAX_FRAME_SIZE) {
+                    throw new KVException(new KVMessage(RESP,
+                            ERROR_INVALID_FORMAT));
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    ensureCapacity(4 + length);
+                    break;
+                }
+                readBuffer.getInt();
+                byte[] body = new byte[length];
+                readBuffer.get(body);
+                KVMessage request = new KVMessage(body);
+                synchronized (this) {
+                    requests.addLast(request);
+                }
+            }
+        } else if (protocol == XML) {
+            if (inputClosed) {
+                KVMessage request = new KVMessage(new ByteArrayInputStream(
+                        readBuffer.array(), readBuffer.position(),
+                        readBuffer.remaining()));
+                readBuffer.position(readBuffer.limit());
+                synchronized (this) {
+                    requests.addLast(request);
+                }
+            } else if (readBuffer.limit() == readBuffer.capacity()) {
+                if (readBuffer.capacity() >= MAX_FRAME_SIZE) {
+                    throw new KVException(new KVMessage(RESP,
+                            ERROR_INVALID_FORMAT));
+                }
+                ensureCapacity(readBuffer.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Grows the read buffer, which is in flipped state, to hold at least
+     * size bytes.
+     */
+    private void ensureCapacity(int size) {
+        if (readBuffer.capacity() >= size) {
+            return;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_FRAME_SIZE + 4,
+                Math.max(size, readBuffer.capacity() * 2)));
+        bigger.put(readBuffer);
+        bigger.flip();
+        readBuffer = bigger;
+    }
+
+    /**
+     * Passes the next queued request to the handler unless one is already
+     * being handled. Once input has ended and every request is answered,
+     * queues the final error response, if any, and marks the connection to
+     * be closed.
+     *
+     * @return true if output was queued
+     */
+    private boolean dispatch() {
+        KVMessage next;
+        synchronized (this) {
+            if (busy) {
+                return false;
+            }
+            next = requests.poll();
+            if (next == null) {
+                if (finalResponse != null) {
+                    ByteBuffer encoded = encode(finalResponse);
+                    output.addLast(encoded);
+                    outputBytes += encoded.remaining();
+                    finalResponse = null;
+                    closeAfterOutput = true;
+                    return true;
+                }
+                return false;
+            }
+            busy = true;
+        }
+        handler.handle(next, this);
+        return false;
+    }
+
+    /**
+     * Updates the operations the selector watches for.
+     *
+     * @return false if the connection is finished and should be closed
+     */
+    private boolean update() {
+        if (!key.isValid()) {
+            return false;
+        }
+        int ops = 0;
+        synchronized (this) {
+            if (output.isEmpty()) {
+                if (closeAfterOutput) {
+                    return false;
+                }
+                if (inputClosed && !busy && requests.isEmpty()
+                        && finalResponse == null) {
+                    return false;
+                }
+            } else {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            readPaused = requests.size() >= MAX_QUEUED_REQUESTS
+                    || outputBytes >= MAX_QUEUED_OUTPUT;
+            if (!inputClosed && !readPaused) {
+                ops |= SelectionKey.OP_READ;
+            }
+        }
+        key.interestOps(ops);
+        return true;
+    }
+
+    private ByteBuffer encode(KVMessage response) {
+        try {
+            if (protocol == BINARY) {
+                byte[] body = response.toBinary();
+                ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+                frame.putInt(body.length);
+                frame.put(body);
+                frame.flip();
+                return frame;
+            }
+            return ByteBuffer.wrap(response.toXML().getBytes(UTF_8));
+        } catch (KVException e) {
+            // e.g. a get response without a value; the error always encodes
+            return encode(e.getKVMessage());
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Applies the committed operations TPCLog finds while replaying its log to
+ * the store of a KVServer, spread over several threads.
+ *
+ * Operations are partitioned by key hash, one partition per thread, and each
+ * partition applies its operations in the order they were handed in, so
+ * operations on the same key keep their log order while different keys
+ * proceed in parallel. Operations go straight to the store (see
+ * KVServer.replayPut); the cache is emptied once replay is finished instead
+ * of being filled with whatever the log touched last. With a single thread
+ * the operations are applied by the caller.
+ */
+class ParallelReplay {
+
+    // Operations are handed to a partition in batches of this many, with at
+    // most QUEUED_BATCHES batches waiting for each thread.
+    private static final int BATCH_SIZE = 512;
+    private static final int QUEUED_BATCHES = 16;
+
+    private static final KVMessage[] END = new KVMessage[0];
+
+    private KVServer kvServer;
+    private Partition[] partitions;
+    private volatile KVException failure;
+
+    /**
+     * @param kvServer server whose store the operations are applied to
+     * @param threads number of threads to apply them with
+     */
+    ParallelReplay(KVServer kvServer, int threads) {
+        this.kvServer = kvServer;
+        if (threads > 1) {
+            partitions = new Partition[threads];
+            for (int i = 0; i < threads; i++) {
+                partitions[i] = new Partition(i);
+                partitions[i].start();
+            }
+        }
+    }
+
+    /**
+     * Queues a committed PUT_REQ or DEL_REQ to be applied.
+     *
+     * @throws KVException if applying an earlier operation failed
+     */
+    void apply(KVMessage operation) throws KVException {
+        if (partitions == null) {
+            applyNow(operation);
+            return;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        int h = operation.getKey().hashCode();
+        h ^= (h >>> 16);
+        partitions[(h & 0x7FFFFFFF) % partitions.length].add(operation);
+    }
+
+    /**
+     * Waits until every queued operation has been applied, stops the
+     * threads and empties the cache of the server.
+     *
+     * @throws KVException if applying any operation failed
+     */
+    void finish() throws KVException {
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                partition.end();
+            }
+            for (Partition partition : partitions) {
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        partition.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            partitions = null;
+        }
+        kvServer.resetCache();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void applyNow(KVMessage operation) throws KVException {
+        if (operation.getMsgType().equals(PUT_REQ)) {
+            kvServer.replayPut(operation.getKey(), operation.getValue());
+        } else {
+            kvServer.replayDel(operation.getKey());
+        }
+    }
+
+    /**
+     * A thread applying the operations of one partition.
+     */
+    private class Partition extends Thread {
+
+        private BlockingQueue<KVMessage[]> queue =
+                new ArrayBlockingQueue<KVMessage[]>(QUEUED_BATCHES);
+
+        /* Only used by the thread calling apply() */
+        private KVMessage[] batch = new KVMessage[BATCH_SIZE];
+        private int batchSize = 0;
+
+        Partition(int index) {
+            super("TPCLog replay " + index);
+            setDaemon(true);
+        }
+
+        void add(KVMessage operation) {
+            batch[batchSize++] = operation;
+            if (batchSize == BATCH_SIZE) {
+                put(batch);
+                batch = new KVMessage[BATCH_SIZE];
+                batchSize = 0;
+            }
+        }
+
+        void end() {
+            if (batchSize > 0) {
+                KVMessage[] last = new KVMessage[batchSize];
+                System.arraycopy(batch, 0, last, 0, batchSize);
+                put(last);
+                batchSize = 0;
+            }
+            put(END);
+        }
+
+        private void put(KVMessage[] operations) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(operations);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                KVMessage[] operations;
+                try {
+                    operations = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (operations == END) {
+                    return;
+                }
+                // after a failure keep draining, so apply() never blocks
+                for (int i = 0; i < operations.length && failure == null;
+                        i++) {
+                    try {
+                        applyNow(operations[i]);
+                    } catch (KVException e) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+}
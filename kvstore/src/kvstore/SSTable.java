@@ -0,0 +1,555 @@
+package kvstore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable file of pairs sorted by key, written by LSMStore when it
+ * flushes a memtable or compacts tables.
+ *
+ * Layout, all integers big-endian:
+ *
+ *   per data block: int raw length, int CRC32 of the raw bytes, raw bytes
+ *   index: int number of blocks,
+ *          per block: int key length, first key UTF-8, long offset,
+ *                     int length (of the whole block),
+ *          int key length, last key UTF-8, int CRC32 of the index
+ *   Bloom filter: int hashes, int words, long words, int CRC32
+ *   footer: long index offset, long filter offset, long pairs, int MAGIC
+ *
+ * The raw bytes of a data block are its pairs in key order, each a varint
+ * key length, the key in UTF-8, a varint of the value length plus one, or
+ * 0 for a del, and the value in UTF-8. Blocks hold about BLOCK_SIZE raw
+ * bytes. The index and the Bloom filter are kept on the heap while the
+ * table is open, so a get that misses reads nothing and a get that hits
+ * reads one block.
+ */
+final class SSTable {
+
+    /** The value of a key deleted by a del; compared by identity */
+    static final String TOMBSTONE = new String("");
+
+    private static final int MAGIC = 0x4B565354; // "KVST"
+    private static final int FOOTER_SIZE = 28;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    final int number;
+    final File file;
+    final String smallest;
+    final String largest;
+    final long size;
+    final long pairs;
+
+    private final FileChannel channel;
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final long[] bloom;
+    private final int bloomHashes;
+
+    private SSTable(int number, File file, FileChannel channel, long size,
+            long pairs, String[] blockKeys, long[] blockOffsets,
+            int[] blockLengths, String largest, long[] bloom,
+            int bloomHashes) {
+        this.number = number;
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+        this.pairs = pairs;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.smallest = blockKeys.length > 0 ? blockKeys[0] : "";
+        this.largest = largest;
+        this.bloom = bloom;
+        this.bloomHashes = bloomHashes;
+    }
+
+    /**
+     * Opens a table, reading its index and Bloom filter.
+     *
+     * @throws IOException if it cannot be read or is corrupt
+     */
+    static SSTable open(int number, File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException(file + " is not a table");
+            }
+            ByteBuffer footer = read(channel, size - FOOTER_SIZE,
+                    FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long pairs = footer.getLong();
+            if (footer.getInt() != MAGIC || indexOffset < 0
+                    || indexOffset > bloomOffset
+                    || bloomOffset > size - FOOTER_SIZE) {
+                throw new IOException(file + " is not a table");
+            }
+
+            ByteBuffer index = read(channel, indexOffset,
+                    (int) (bloomOffset - indexOffset));
+            checkCrc(file, index);
+            int blocks = index.getInt();
+            if (blocks < 0 || blocks > index.remaining() / 16) {
+                throw new IOException(file + " is corrupt");
+            }
+            String[] blockKeys = new String[blocks];
+            long[] blockOffsets = new long[blocks];
+            int[] blockLengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = readString(file, index);
+                blockOffsets[i] = index.getLong();
+                blockLengths[i] = index.getInt();
+            }
+            String largest = readString(file, index);
+
+            ByteBuffer filter = read(channel, bloomOffset,
+                    (int) (size - FOOTER_SIZE - bloomOffset));
+            checkCrc(file, filter);
+            int hashes = filter.getInt();
+            int words = filter.getInt();
+            if (words < 1 || words > filter.remaining() / 8) {
+                throw new IOException(file + " is corrupt");
+            }
+            long[] bloom = new long[words];
+            for (int i = 0; i < words; i++) {
+                bloom[i] = filter.getLong();
+            }
+            return new SSTable(number, file, channel, size, pairs, blockKeys,
+                    blockOffsets, blockLengths, largest, bloom, hashes);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException(file + " is corrupt");
+        }
+    }
+
+    /**
+     * @return true unless the Bloom filter rules key out
+     */
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int bits = bloom.length * 64;
+        for (int i = 0; i < bloomHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks key up in the block that would hold it, without consulting the
+     * Bloom filter.
+     *
+     * @return the value, TOMBSTONE if the table holds a del of key, or null
+     *         if it holds nothing for key
+     * @throws java.nio.channels.ClosedChannelException if the table has
+     *         been closed
+     */
+    String get(String key) throws IOException {
+        if (blockKeys.length == 0 || key.compareTo(smallest) < 0
+                || key.compareTo(largest) > 0) {
+            return null;
+        }
+        int block = Arrays.binarySearch(blockKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        BlockReader reader = new BlockReader(readBlock(block));
+        while (reader.next()) {
+            int c = reader.key.compareTo(key);
+            if (c == 0) {
+                return reader.value;
+            } else if (c > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the keys of this table and [from, to] overlap
+     */
+    boolean overlaps(String from, String to) {
+        return largest.compareTo(from) >= 0 && smallest.compareTo(to) <= 0;
+    }
+
+    /**
+     * @return a cursor over the pairs of the table in key order, dels
+     *         included
+     */
+    Scanner scanner() {
+        return new Scanner();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private byte[] readBlock(int block) throws IOException {
+        ByteBuffer buf = read(channel, blockOffsets[block],
+                blockLengths[block]);
+        int rawLength = buf.getInt();
+        int checksum = buf.getInt();
+        if (rawLength != buf.remaining()) {
+            throw new IOException(file + " is corrupt at offset "
+                    + blockOffsets[block]);
+        }
+        byte[] raw = new byte[rawLength];
+        buf.get(raw);
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, rawLength);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException(file + " is corrupt at offset "
+                    + blockOffsets[block]);
+        }
+        return raw;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position,
+            int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Checks the CRC32 in the last 4 bytes of buf and leaves them out of it.
+     */
+    private static void checkCrc(File file, ByteBuffer buf)
+            throws IOException {
+        if (buf.remaining() < 4) {
+            throw new IOException(file + " is corrupt");
+        }
+        int end = buf.limit() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, end);
+        if ((int) crc.getValue() != buf.getInt(end)) {
+            throw new IOException(file + " is corrupt");
+        }
+        buf.limit(end);
+    }
+
+    private static String readString(File file, ByteBuffer buf)
+            throws IOException {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException(file + " is corrupt");
+        }
+        String s = new String(buf.array(), buf.position(), length, UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * 64-bit FNV-1a over the chars of key, finished with the MurmurHash3
+     * mixer so both halves are usable for double hashing.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Parses the pairs of a block.
+     */
+    private static final class BlockReader {
+
+        private final byte[] raw;
+        private int pos = 0;
+
+        String key;
+        String value;
+
+        BlockReader(byte[] raw) {
+            this.raw = raw;
+        }
+
+        boolean next() throws IOException {
+            if (pos >= raw.length) {
+                return false;
+            }
+            try {
+                int keyLength = readVarint();
+                key = new String(raw, pos, keyLength, UTF_8);
+                pos += keyLength;
+                int valueLength = readVarint() - 1;
+                if (valueLength < 0) {
+                    value = TOMBSTONE;
+                } else {
+                    value = new String(raw, pos, valueLength, UTF_8);
+                    pos += valueLength;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Table block is corrupt");
+            }
+            if (pos > raw.length) {
+                throw new IOException("Table block is corrupt");
+            }
+            return true;
+        }
+
+        private int readVarint() {
+            int n = 0;
+            int shift = 0;
+            while (true) {
+                int b = raw[pos++];
+                n |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new IndexOutOfBoundsException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the pairs of a table in key order, a block at a time.
+     */
+    final class Scanner {
+
+        private int block = 0;
+        private BlockReader reader;
+
+        String key;
+        String value;
+
+        boolean next() throws IOException {
+            while (reader == null || !reader.next()) {
+                if (block == blockKeys.length) {
+                    return false;
+                }
+                reader = new BlockReader(readBlock(block++));
+            }
+            key = reader.key;
+            value = reader.value;
+            return true;
+        }
+    }
+
+    /**
+     * Writes a table. Pairs must be added in strictly ascending key order.
+     */
+    static final class Writer {
+
+        private final File file;
+        private final FileOutputStream stream;
+        private final DataOutputStream out;
+        private long offset = 0;
+        private byte[] raw = new byte[BLOCK_SIZE + 1024];
+        private int rawLength = 0;
+        private String blockKey;
+        private String lastKey;
+        private long pairs = 0;
+        private ArrayList<String> blockKeys = new ArrayList<String>();
+        private ArrayList<long[]> blocks = new ArrayList<long[]>();
+        private long[] hashes = new long[1024];
+        private CRC32 crc = new CRC32();
+
+        Writer(File file) throws IOException {
+            this.file = file;
+            stream = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(stream,
+                    65536));
+        }
+
+        /**
+         * @param value the value, or TOMBSTONE for a del
+         */
+        void add(String key, String value) throws IOException {
+            byte[] keyBytes = key.getBytes(UTF_8);
+            byte[] valueBytes = value == TOMBSTONE ? null
+                    : value.getBytes(UTF_8);
+            int needed = rawLength + 10 + keyBytes.length
+                    + (valueBytes != null ? valueBytes.length : 0);
+            if (raw.length < needed) {
+                raw = Arrays.copyOf(raw, Math.max(needed, raw.length * 2));
+            }
+            if (rawLength == 0) {
+                blockKey = key;
+            }
+            rawLength = writeVarint(raw, rawLength, keyBytes.length);
+            System.arraycopy(keyBytes, 0, raw, rawLength, keyBytes.length);
+            rawLength += keyBytes.length;
+            if (valueBytes == null) {
+                rawLength = writeVarint(raw, rawLength, 0);
+            } else {
+                rawLength = writeVarint(raw, rawLength,
+                        valueBytes.length + 1);
+                System.arraycopy(valueBytes, 0, raw, rawLength,
+                        valueBytes.length);
+                rawLength += valueBytes.length;
+            }
+            if (pairs == hashes.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            hashes[(int) pairs++] = hash(key);
+            lastKey = key;
+            if (rawLength >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * @return bytes written so far, roughly the size of the table
+         */
+        long size() {
+            return offset + rawLength;
+        }
+
+        long pairs() {
+            return pairs;
+        }
+
+        /**
+         * Writes the index, Bloom filter and footer, forces the file to disk
+         * and opens it.
+         */
+        SSTable finish(int number) throws IOException {
+            try {
+                if (rawLength > 0) {
+                    writeBlock();
+                }
+                long indexOffset = offset;
+                ByteArrayBuilder index = new ByteArrayBuilder();
+                index.out.writeInt(blockKeys.size());
+                for (int i = 0; i < blockKeys.size(); i++) {
+                    byte[] key = blockKeys.get(i).getBytes(UTF_8);
+                    index.out.writeInt(key.length);
+                    index.out.write(key);
+                    index.out.writeLong(blocks.get(i)[0]);
+                    index.out.writeInt((int) blocks.get(i)[1]);
+                }
+                byte[] last = (lastKey != null ? lastKey : "").getBytes(UTF_8);
+                index.out.writeInt(last.length);
+                index.out.write(last);
+                writeWithCrc(index);
+
+                long bloomOffset = offset;
+                int bits = (int) Math.max(64, Math.min(Integer.MAX_VALUE / 2,
+                        pairs * BLOOM_BITS_PER_KEY));
+                long[] bloom = new long[(bits + 63) / 64];
+                bits = bloom.length * 64;
+                for (int i = 0; i < pairs; i++) {
+                    int h1 = (int) hashes[i];
+                    int h2 = (int) (hashes[i] >>> 32);
+                    for (int k = 0; k < BLOOM_HASHES; k++) {
+                        int bit = ((h1 + k * h2) & Integer.MAX_VALUE) % bits;
+                        bloom[bit >>> 6] |= 1L << bit;
+                    }
+                }
+                ByteArrayBuilder filter = new ByteArrayBuilder();
+                filter.out.writeInt(BLOOM_HASHES);
+                filter.out.writeInt(bloom.length);
+                for (long word : bloom) {
+                    filter.out.writeLong(word);
+                }
+                writeWithCrc(filter);
+
+                out.writeLong(indexOffset);
+                out.writeLong(bloomOffset);
+                out.writeLong(pairs);
+                out.writeInt(MAGIC);
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            return open(number, file);
+        }
+
+        /**
+         * Closes and deletes the unfinished table.
+         */
+        void abandon() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // deleted anyway
+            }
+            file.delete();
+        }
+
+        private void writeBlock() throws IOException {
+            crc.reset();
+            crc.update(raw, 0, rawLength);
+            out.writeInt(rawLength);
+            out.writeInt((int) crc.getValue());
+            out.write(raw, 0, rawLength);
+            blockKeys.add(blockKey);
+            blocks.add(new long[] { offset, 8 + rawLength });
+            offset += 8 + rawLength;
+            rawLength = 0;
+        }
+
+        private void writeWithCrc(ByteArrayBuilder section)
+                throws IOException {
+            section.out.flush();
+            byte[] bytes = section.bytes.toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            out.write(bytes);
+            out.writeInt((int) crc.getValue());
+            offset += bytes.length + 4;
+        }
+
+        private static int writeVarint(byte[] buf, int pos, int n) {
+            while (n >= 0x80) {
+                buf[pos++] = (byte) (n | 0x80);
+                n >>>= 7;
+            }
+            buf[pos++] = (byte) n;
+            return pos;
+        }
+    }
+
+    private static final class ByteArrayBuilder {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+    }
+
+}
@@ -8,10 +8,11 @@ import java.net.Socket;
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements NetworkHandler, MessageHandler {
 
     private KVServer kvServer;
     private ThreadPool threadPool;
+    private int idleTimeout = IDLE_TIMEOUT_MILLISECONDS;
 
     /**
      * Constructs a ServerClientHandler with ThreadPool of a single thread.
@@ -51,11 +52,84 @@ public class ServerClientHandler implements NetworkHandler {
     }
 
     /**
-     * Runnable class with routine to service a request from the client.
+     * Creates a job to carry out a request read by a non-blocking
+     * SocketServer and enqueues that job in the thread pool. Ignore any
+     * InterruptedExceptions.
+     *
+     * @param request KVMessage received from the client
+     * @param responder where to send the response
+     */
+    @Override
+    public void handle(final KVMessage request, final Responder responder) {
+    	try{
+    		threadPool.addJob(new Runnable() {
+    			@Override
+    			public void run() {
+    				KVMessage response;
+    				try{
+    					response = handleMessage(request);
+    				}catch(KVException e){
+    					response = e.getKVMessage();
+    				}
+    				responder.respond(response);
+    			}
+    		});
+    	}
+    	catch(InterruptedException e){
+    		//ignore
+    	}
+    }
+
+    /**
+     * Carries out a single request on the KVServer.
+     *
+     * @param request KVMessage received from the client
+     * @return response to send back to the client
+     * @throws KVException if the request fails; its KVMessage is the response
+     */
+    private KVMessage handleMessage(KVMessage request) throws KVException {
+    	KVMessage response = null;
+    	if(request.getMsgType().equals(PUT_REQ)){
+    		String key = request.getKey();
+    		String value = request.getValue();
+    		kvServer.put(key, value);
+
+    		response = new KVMessage(RESP, SUCCESS);
+    	}
+    	else if(request.getMsgType().equals(GET_REQ)){
+    		String key = request.getKey();
+    		String value = kvServer.get(key);
+
+    		response = new KVMessage(RESP);
+    		response.setKey(key);
+    		response.setValue(value);
+    	}
+    	else if(request.getMsgType().equals(DEL_REQ)){
+    		String key = request.getKey();
+    		kvServer.del(key);
+
+    		response = new KVMessage(RESP, SUCCESS);
+    	}
+    	else{
+    		throw new KVException(ERROR_INVALID_FORMAT);
+    	}
+    	return response;
+    }
+
+    /**
+     * Sets how long a binary connection may sit idle between requests before
+     * it is closed, freeing its thread for other clients.
+     *
+     * @param idleTimeout timeout in milliseconds, 0 for no limit
      */
-    private class ClientHandler implements Runnable {
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
 
-        private Socket client;
+    /**
+     * Runnable class with routine to service requests from the client.
+     */
+    private class ClientHandler extends ConnectionWorker {
 
         /**
          * Construct a ClientHandler.
@@ -63,55 +137,13 @@ public class ServerClientHandler implements NetworkHandler {
          * @param client Socket connected to client with the request
          */
         public ClientHandler(Socket client) {
-            this.client = client;
+            super(client, idleTimeout);
         }
 
-        /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return a response, there is nothing else we can do.
-         */
         @Override
-        public void run() {
-        	KVMessage response = null;
-        	try{
-        		KVMessage request = new KVMessage(client);
-        		if(request.getMsgType().equals(PUT_REQ)){
-        			String key = request.getKey();
-        			String value = request.getValue();
-        			kvServer.put(key, value);
-        			
-        			response = new KVMessage(RESP, SUCCESS);
-        		}
-        		else if(request.getMsgType().equals(GET_REQ)){
-        			String key = request.getKey();
-        			String value = kvServer.get(key);
-        			
-        			response = new KVMessage(RESP);
-        			response.setKey(key);
-        			response.setValue(value);
-        		}
-        		else if(request.getMsgType().equals(DEL_REQ)){
-        			String key = request.getKey();
-        			kvServer.del(key);
-        			
-        			response = new KVMessage(RESP, SUCCESS);
-        		}
-        		else{
-        			throw new KVException(ERROR_INVALID_FORMAT);
-        		}
-        	}
-        	catch(KVException e){
-        		response = e.getKVMessage();
-        	}
-        	finally{
-        		try{
-        			response.sendMessage(client);
-        		}
-        		catch(Exception e){
-        			//ignore
-        		}
-        	}
+        protected KVMessage handleRequest(KVMessage request)
+                throws KVException {
+            return handleMessage(request);
         }
     }
 
@@ -0,0 +1,203 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Storage off the heap for the values of a KVStore, as UTF-8 bytes in
+ * direct ByteBuffers of SLAB_SIZE, so the heap holds a long handle per value
+ * rather than the value and the garbage collector never looks at the bytes.
+ *
+ * Memory is handed out as in memcached: each slab is given to a size class
+ * and cut into chunks of that size, the sizes growing by GROWTH_FACTOR from
+ * MIN_CHUNK to SLAB_SIZE. A value goes to a chunk of the smallest class it
+ * fits, so it wastes less than a fifth of its chunk. Freed chunks go back to
+ * their class; slabs are never returned to the operating system or moved
+ * to another class.
+ *
+ * A handle holds the slab, the offset of the chunk in it and the length of
+ * the value. allocate() and free() lock the size class; read() takes no
+ * lock, and the caller must make sure the chunk is not freed meanwhile.
+ */
+final class SlabAllocator {
+
+    static final int SLAB_SIZE = 1 << 20;
+
+    /* The longest value: MAX_VAL_SIZE chars of three UTF-8 bytes each */
+    static final int MAX_LENGTH = SLAB_SIZE - 1;
+
+    private static final int MIN_CHUNK = 16;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private static final int OFFSET_BITS = 20;
+    private static final int LENGTH_BITS = 20;
+
+    private final SizeClass[] classes;
+
+    /* Grown by copying holding this, so read() needs no lock */
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+    private int slabCount = 0;
+
+    SlabAllocator() {
+        int[] sizes = new int[64];
+        int n = 0;
+        for (double size = MIN_CHUNK; size < SLAB_SIZE;
+                size *= GROWTH_FACTOR) {
+            int chunk = ((int) size + 7) & ~7;
+            if (n == 0 || chunk > sizes[n - 1]) {
+                sizes[n++] = chunk;
+            }
+        }
+        sizes[n++] = SLAB_SIZE;
+        classes = new SizeClass[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new SizeClass(sizes[i]);
+        }
+    }
+
+    /**
+     * Copies value to a free chunk.
+     *
+     * @return the handle of the chunk
+     * @throws IllegalArgumentException if value is longer than MAX_LENGTH
+     */
+    long allocate(byte[] value) {
+        if (value.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Value of " + value.length
+                    + " bytes is too long");
+        }
+        SizeClass sizeClass = classes[classFor(value.length)];
+        long chunk = sizeClass.allocate();
+        long handle = chunk | value.length;
+        ByteBuffer slab = slabs[slab(handle)].duplicate();
+        slab.position(offset(handle));
+        slab.put(value);
+        return handle;
+    }
+
+    /**
+     * @return a copy of the value in chunk handle
+     */
+    byte[] read(long handle) {
+        byte[] value = new byte[length(handle)];
+        ByteBuffer slab = slabs[slab(handle)].duplicate();
+        slab.position(offset(handle));
+        slab.get(value);
+        return value;
+    }
+
+    /**
+     * Returns chunk handle to its size class, for the next allocate() to
+     * reuse.
+     */
+    void free(long handle) {
+        classes[classFor(length(handle))].free(handle
+                & ~((1L << LENGTH_BITS) - 1));
+    }
+
+    /**
+     * @return bytes of the slabs allocated so far
+     */
+    synchronized long slabBytes() {
+        return (long) slabCount * SLAB_SIZE;
+    }
+
+    /**
+     * @return bytes of the chunks in use
+     */
+    long chunkBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += sizeClass.usedBytes();
+        }
+        return bytes;
+    }
+
+    private int classFor(int length) {
+        int low = 0;
+        int high = classes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].chunkSize < length) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of a new slab
+     */
+    private synchronized int newSlab() {
+        ByteBuffer[] current = slabs;
+        if (slabCount == current.length) {
+            current = Arrays.copyOf(current, slabCount * 2);
+        }
+        current[slabCount] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        slabs = current;
+        return slabCount++;
+    }
+
+    private static int slab(long handle) {
+        return (int) (handle >>> (OFFSET_BITS + LENGTH_BITS));
+    }
+
+    private static int offset(long handle) {
+        return (int) (handle >>> LENGTH_BITS) & ((1 << OFFSET_BITS) - 1);
+    }
+
+    private static int length(long handle) {
+        return (int) handle & ((1 << LENGTH_BITS) - 1);
+    }
+
+    /**
+     * The chunks of one size: a stack of freed ones, and the rest of the
+     * slab last given to the class.
+     */
+    private final class SizeClass {
+
+        final int chunkSize;
+        private long[] free = new long[16];
+        private int freeCount = 0;
+        private int slab = -1;
+        private int nextOffset = SLAB_SIZE;
+        private long chunks = 0;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * @return the handle of a free chunk, with length 0
+         */
+        synchronized long allocate() {
+            chunks++;
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            if (nextOffset + chunkSize > SLAB_SIZE) {
+                slab = newSlab();
+                nextOffset = 0;
+            }
+            long chunk = ((long) slab << (OFFSET_BITS + LENGTH_BITS))
+                    | ((long) nextOffset << LENGTH_BITS);
+            nextOffset += chunkSize;
+            return chunk;
+        }
+
+        synchronized void free(long chunk) {
+            chunks--;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = chunk;
+        }
+
+        synchronized long usedBytes() {
+            return chunks * chunkSize;
+        }
+    }
+
+}
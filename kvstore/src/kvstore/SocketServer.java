@@ -1,17 +1,30 @@
 package kvstore;
 
+import static kvstore.KVConstants.*;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This is a generic class that should handle all TCP network connections
  * arriving on a unique (hostname, port) tuple. Ensure that this class
  * remains generic by providing the connection handling logic in a
  * NetworkHandler.
+ *
+ * A non-blocking SocketServer instead reads and writes every connection from
+ * a single selector thread and only hands complete requests to its handler,
+ * which must then also be a MessageHandler. Idle and slow clients cost a
+ * buffer each rather than a worker thread.
  */
 public class SocketServer {
 
@@ -19,9 +32,17 @@ public class SocketServer {
     private int port;
     private ServerSocket server;
     private NetworkHandler handler;
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
+
+    private boolean nonBlocking;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private ConcurrentLinkedQueue<NonBlockingConnection> outputReady =
+            new ConcurrentLinkedQueue<NonBlockingConnection>();
+    private int idleTimeout = IDLE_TIMEOUT_MILLISECONDS;
 
     private static final int TIMEOUT = 100;
+    private static final int IDLE_CHECK_INTERVAL = 1000;
 
     /**
      * Construct a SocketServer with a ServerSocket listening on a free port.
@@ -37,11 +58,39 @@ public class SocketServer {
      * @param port port on which to listen for connections
      */
     public SocketServer(String hostname, int port) {
+        this(hostname, port, false);
+    }
+
+    /**
+     * Construct a SocketServer listening on the port passed in, optionally
+     * in non-blocking mode.
+     *
+     * @param port port on which to listen for connections
+     * @param nonBlocking true to serve connections from a selector thread;
+     *        the handler must then implement MessageHandler
+     */
+    public SocketServer(String hostname, int port, boolean nonBlocking) {
         this.hostname = hostname;
         this.port = port;
+        this.nonBlocking = nonBlocking;
         this.stopped = false;
     }
 
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    /**
+     * Sets how long a connection to a non-blocking server may go without
+     * sending or receiving anything, while no request is outstanding, before
+     * it is closed.
+     *
+     * @param idleTimeout timeout in milliseconds, 0 for no limit
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
     public String getHostname() {
         return this.hostname;
     }
@@ -67,6 +116,10 @@ public class SocketServer {
      * @throws IOException if unable create and bind a ServerSocket
      */
     public void connect() {
+    	if(nonBlocking){
+    		connectChannel();
+    		return;
+    	}
     	try{
 			if (port <= 0) {
 				server = new ServerSocket(0);
@@ -88,6 +141,10 @@ public class SocketServer {
      *         listening for or servicing requests
      */
     public void start() throws IOException {
+        if (nonBlocking) {
+            startSelector();
+            return;
+        }
         while (!stopped) {
         	try{
         		Socket socket = this.server.accept();
@@ -107,15 +164,123 @@ public class SocketServer {
      * Stops the ServerSocket cleanly (does not force an exception to be thrown).
      * A call to stop() will result in the closing of the server no more than
      * TIMEOUT milliseconds later. That logic should be implemented in start().
+     * A non-blocking server is woken up and closes right away.
      */
     public void stop() {
         stopped = true;
-        /*
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void connectChannel() {
         try {
-			server.close();
-		} catch (IOException e) {
-		}
-        */
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(
+                    Math.max(port, 0)));
+            port = serverChannel.socket().getLocalPort();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Selector loop of a non-blocking server: accepts connections, reads and
+     * writes them as they become ready, and closes those left idle.
+     */
+    private void startSelector() throws IOException {
+        if (!(handler instanceof MessageHandler)) {
+            throw new IllegalStateException(
+                    "non-blocking SocketServer needs a MessageHandler");
+        }
+        MessageHandler messageHandler = (MessageHandler) handler;
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (!stopped) {
+                selector.select(IDLE_CHECK_INTERVAL);
+
+                NonBlockingConnection ready;
+                while ((ready = outputReady.poll()) != null) {
+                    if (!ready.write()) {
+                        ready.close();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(messageHandler);
+                        continue;
+                    }
+                    NonBlockingConnection conn =
+                            (NonBlockingConnection) key.attachment();
+                    boolean open = true;
+                    if (key.isWritable()) {
+                        open = conn.write();
+                    }
+                    if (open && key.isValid() && key.isReadable()) {
+                        open = conn.read();
+                    }
+                    if (!open) {
+                        conn.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    lastIdleCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        Object conn = key.attachment();
+                        if (conn != null && ((NonBlockingConnection) conn)
+                                .isIdle(now, idleTimeout)) {
+                            ((NonBlockingConnection) conn).close();
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            selector.close();
+        }
+    }
+
+    private void accept(MessageHandler messageHandler) {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector,
+                        SelectionKey.OP_READ);
+                key.attach(new NonBlockingConnection(this, channel, key,
+                        messageHandler));
+            }
+        } catch (IOException e) {
+            // the client went away before we got to it
+        }
+    }
+
+    /**
+     * Called by a NonBlockingConnection, from any thread, after it queued
+     * output for the selector thread to write.
+     */
+    void outputReady(NonBlockingConnection conn) {
+        outputReady.add(conn);
+        selector.wakeup();
     }
 
 }
@@ -0,0 +1,61 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Where a KVServer keeps its pairs, chosen when the server is constructed.
+ * KVStore keeps them on the heap; BitcaskStore, LSMStore and BTreeStore
+ * keep them on disk.
+ *
+ * put, get and del may be called concurrently, also with writeSnapshot.
+ * del and get throw a KVException with ERROR_NO_SUCH_KEY for a key that is
+ * not stored, and any other failure as a KVException too.
+ */
+public interface StorageEngine extends KeyValueInterface, Closeable {
+
+    /**
+     * Write the pairs of the store as a binary snapshot (see KVSnapshot).
+     * Puts and dels may run concurrently; the snapshot is the store as it
+     * was at the start of the call.
+     *
+     * @param out buffered stream to write to, left open
+     * @throws IOException if out cannot be written or the store read
+     */
+    public void writeSnapshot(OutputStream out) throws IOException;
+
+    /**
+     * Replace the pairs of the store with a snapshot written by
+     * writeSnapshot. Must not run concurrently with other calls.
+     *
+     * @param in buffered stream positioned at the start of the snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public void readSnapshot(InputStream in) throws IOException;
+
+    /**
+     * @return true if the store keeps its pairs on disk, so that those
+     *         made durable by sync() survive a restart
+     */
+    public boolean isPersistent();
+
+    /**
+     * Make every put and del that has returned so far durable, if the store
+     * is persistent; else do nothing. Puts and dels may run concurrently.
+     * A TPCLog checkpoint of a persistent store calls this instead of
+     * writing a snapshot.
+     *
+     * @throws IOException if the store cannot be written
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Release the resources of the store, making sure everything written
+     * so far is durable if the store is. The store cannot be used after.
+     */
+    @Override
+    public void close() throws IOException;
+
+}
@@ -2,14 +2,13 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.io.IOException;
 import java.net.Socket;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadPool to ensure that none of it's methods are blocking.
  */
-public class TPCClientHandler implements NetworkHandler {
+public class TPCClientHandler implements NetworkHandler, MessageHandler {
 
     private TPCMaster tpcMaster;
     private ThreadPool threadPool;
@@ -51,11 +50,70 @@ public class TPCClientHandler implements NetworkHandler {
     }
 
     /**
-     * Runnable class containing routine to service a request from the client.
+     * Creates a job to carry out a request read by a non-blocking
+     * SocketServer and enqueues that job in the thread pool. Ignore
+     * InterruptedExceptions.
+     *
+     * @param request KVMessage received from the client
+     * @param responder where to send the response
      */
-    private class ClientHandler implements Runnable {
+    @Override
+    public void handle(final KVMessage request, final Responder responder) {
+    	try{
+    		threadPool.addJob(new Runnable() {
+    			@Override
+    			public void run() {
+    				KVMessage response;
+    				try{
+    					response = handleMessage(request);
+    				}catch(KVException e){
+    					response = e.getKVMessage();
+    				}
+    				responder.respond(response);
+    			}
+    		});
+    	}
+    	catch (InterruptedException e){
+    		//ignore
+    	}
+    }
 
-        private Socket client = null;
+    /**
+     * Carries out a single client request through the TPCMaster.
+     *
+     * @param request KVMessage received from the client
+     * @return response to send back to the client
+     * @throws KVException if the request fails; its KVMessage is the response
+     */
+    private KVMessage handleMessage(KVMessage request) throws KVException {
+    	KVMessage response = null;
+    	if(request.getMsgType().equals(PUT_REQ)){
+    		tpcMaster.handleTPCRequest(request, true);
+
+    		response = new KVMessage(RESP, SUCCESS);
+    	}
+    	else if(request.getMsgType().equals(GET_REQ)){
+    		String key = request.getKey();
+    		String value = tpcMaster.handleGet(request);
+
+    		response = new KVMessage(RESP);
+    		response.setKey(key);
+    		response.setValue(value);
+    	}
+    	else if(request.getMsgType().equals(DEL_REQ)){
+    		tpcMaster.handleTPCRequest(request, false);
+    		response = new KVMessage(RESP, SUCCESS);
+    	}
+    	else{
+    		throw new KVException(ERROR_INVALID_FORMAT);
+    	}
+    	return response;
+    }
+
+    /**
+     * Runnable class containing routine to service requests from the client.
+     */
+    private class ClientHandler extends ConnectionWorker {
 
         /**
          * Construct a ClientHandler.
@@ -63,58 +121,13 @@ public class TPCClientHandler implements NetworkHandler {
          * @param client Socket connected to client with the request
          */
         public ClientHandler(Socket client) {
-            this.client = client;
+            super(client, IDLE_TIMEOUT_MILLISECONDS);
         }
 
-        /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return any response, there is nothing else we can do.
-         */
         @Override
-        public void run() {
-        	KVMessage response = null;
-        	try{
-        		KVMessage request = new KVMessage(client);
-        		if(request.getMsgType().equals(PUT_REQ)){
-        			tpcMaster.handleTPCRequest(request, true);
-        			
-        			response = new KVMessage(RESP, SUCCESS);
-        		}
-        		else if(request.getMsgType().equals(GET_REQ)){
-        			String key = request.getKey();
-        			String value = tpcMaster.handleGet(request);
-        			
-        			response = new KVMessage(RESP);
-        			response.setKey(key);
-        			response.setValue(value);
-        		}
-        		else if(request.getMsgType().equals(DEL_REQ)){
-        			tpcMaster.handleTPCRequest(request, false);
-        			response = new KVMessage(RESP, SUCCESS);
-        		}
-        		else{
-        			throw new KVException(ERROR_INVALID_FORMAT);
-        		}
-        	}
-        	catch(KVException e){
-        		response = e.getKVMessage();
-        	}
-        	finally{
-        		try{
-        			response.sendMessage(client);
-        		}
-        		catch(KVException e){
-        			//ignore
-        		}
-        		
-        		try{
-        			client.close();
-        		}catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-        	}
+        protected KVMessage handleRequest(KVMessage request)
+                throws KVException {
+            return handleMessage(request);
         }
     }
 
@@ -2,41 +2,308 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 
+/**
+ * Log of the 2PC messages a slave has received from its master, replayed to
+ * rebuild the slave's KVServer after a restart.
+ *
+ * The log is stored as segment files named logPath.00000001,
+ * logPath.00000002, and so on. Each segment starts with SEGMENT_MAGIC and is
+ * followed by records of the form [int length][int CRC32 of body][body],
+ * where the body is the entry's KVMessage.toBinary(). Entries are only ever
+ * appended to the last segment, so an append costs the same however long the
+ * log has grown; once a segment reaches the segment size the next append
+ * starts a new one. A crash can leave a partly written record at the end of
+ * the last segment, which is cut off when the log is next loaded.
+ *
+ * A checkpoint bounds how much of the log is replayed. checkpoint() starts a
+ * new segment, writes a snapshot of the store (see KVSnapshot) to
+ * logPath.checkpoint and then deletes the segments before the new one. The
+ * snapshot is taken while requests go on, so recovery loads it and replays
+ * every segment from the new one on; entries there that the snapshot already
+ * reflects are applied again to the same effect. The entries of the
+ * transactions still open when the segment was started are saved in the
+ * checkpoint file and replayed before the segments, as a commit logged just
+ * before the checkpoint may not have reached the store yet. Checkpoints are
+ * taken in the background every DEFAULT_CHECKPOINT_INTERVAL appends unless
+ * setCheckpointInterval() says otherwise; if one fails, the next call to
+ * checkpoint(), flushToDisk() or close() reports it.
+ *
+ * A store that keeps its pairs on disk (see StorageEngine.isPersistent())
+ * is not snapshotted: the checkpoint calls its sync() instead and is marked
+ * with STORE_CHECKPOINT_MAGIC, and recovery replays the segments over what
+ * the store holds when it is opened. The log is then the write-ahead log of
+ * the store, e.g. of an LSMStore's memtable, and nothing is written twice.
+ *
+ * Entries carry the ID of their transaction (see KVMessage.getTxnID()), so
+ * the entries of many transactions open at once can be interleaved in the
+ * log. The log keeps the entries of each open transaction, from its phase1
+ * request until its ACK, and replay carries out each COMMIT on the request
+ * of its own transaction; a decision for a transaction that is not open,
+ * sent again after it was acknowledged, is left alone. A phase1 request
+ * that comes after the decision of its transaction is refused (see
+ * appendPrepare()), as nothing would ever close it. Entries without an
+ * ID, from earlier masters or earlier logs, all belong to one transaction,
+ * which the next phase1 request without an ID replaces.
+ *
+ * A log left by earlier versions, a serialized ArrayList stored at logPath
+ * itself, is converted into a segment the first time it is loaded.
+ */
 public class TPCLog {
 
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+    public static final int DECIDED_TRANSACTIONS_KEPT = 65536;
+
+    private static final int SEGMENT_MAGIC = 0x54504C31; // "TPL1"
+    private static final int CHECKPOINT_MAGIC = 0x54504343; // "TPCC"
+    private static final int STORE_CHECKPOINT_MAGIC = 0x54504353; // "TPCS"
+    private static final int SEGMENT_HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
     private String logPath;
     private KVServer kvServer;
-    private ArrayList<KVMessage> entries;
+    private long segmentSize;
+    private SyncPolicy policy;
+    private int replayThreads;
+    private ParallelReplay replayer;
+
+    /* Last segment, open for appending. Only used by the thread that has
+     * set flushing, or with the lock held while nobody is flushing. */
+    private FileChannel channel;
+    private long segmentNumber;
+    private long position;
+
+    /* Guarded by this */
+    private ArrayList<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private long appended = 0;
+    private long written = 0;
+    private long synced = 0;
+    private boolean flushing = false;
+    private IOException failure;
+    private Thread syncer;
+    /* Entries of each open transaction by ID, in the order they began */
+    private LinkedHashMap<String, ArrayList<KVMessage>> openTransactions =
+            new LinkedHashMap<String, ArrayList<KVMessage>>();
+    /* IDs of the transactions decided most recently, oldest first */
+    private LinkedHashMap<String, Boolean> decided =
+            new LinkedHashMap<String, Boolean>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Boolean> eldest) {
+                    return size() > DECIDED_TRANSACTIONS_KEPT;
+                }
+            };
+    private long firstSegment = 1;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private long checkpointedAt = 0;
+    private boolean checkpointing = false;
+    private KVException checkpointFailure;
+
+    /* Held by checkpoint() throughout, before this */
+    private final Object checkpointLock = new Object();
+
+    private KVMessage lastEntry;
     private KVMessage operation = null; // keep track of interrupted 2PC operation
+
+    /* Phase1 requests replay has met and no decision for yet, by ID */
+    private HashMap<String, KVMessage> undecided;
+
     /**
-     * Constructs a TPCLog to log KVMessages from the master.
+     * Constructs a TPCLog to log KVMessages from the master, syncing every
+     * entry before appendAndFlush() returns.
      *
      * @param logPath path to location of log file for this server
      * @param kvServer reference to the KVServer of this slave
      */
     public TPCLog(String logPath, KVServer kvServer) throws KVException {
+        this(logPath, kvServer, SyncPolicy.ALWAYS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs a TPCLog to log KVMessages from the master.
+     *
+     * @param logPath path to location of log file for this server
+     * @param kvServer reference to the KVServer of this slave
+     * @param policy when appended entries are forced to disk
+     */
+    public TPCLog(String logPath, KVServer kvServer, SyncPolicy policy)
+            throws KVException {
+        this(logPath, kvServer, policy, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs a TPCLog to log KVMessages from the master.
+     *
+     * @param logPath path prefix of the segment files of this server's log
+     * @param kvServer reference to the KVServer of this slave
+     * @param policy when appended entries are forced to disk
+     * @param segmentSize size in bytes at which a new segment is started
+     */
+    public TPCLog(String logPath, KVServer kvServer, SyncPolicy policy,
+            long segmentSize) throws KVException {
+        this(logPath, kvServer, policy, segmentSize,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a TPCLog to log KVMessages from the master.
+     *
+     * @param logPath path prefix of the segment files of this server's log
+     * @param kvServer reference to the KVServer of this slave
+     * @param policy when appended entries are forced to disk
+     * @param segmentSize size in bytes at which a new segment is started
+     * @param replayThreads number of threads rebuildServer() applies
+     *        committed operations with (see ParallelReplay)
+     */
+    public TPCLog(String logPath, KVServer kvServer, SyncPolicy policy,
+            long segmentSize, int replayThreads) throws KVException {
         this.logPath = logPath;
         this.kvServer = kvServer;
-        this.entries = new ArrayList<KVMessage>();
+        this.policy = policy;
+        this.segmentSize = segmentSize;
+        this.replayThreads = replayThreads;
         rebuildServer();
     }
 
     /**
-     * Add an entry to the log and flush the entire log to disk.
-     * You do not have to efficiently append entries onto the log stored on disk.
+     * Append an entry to the log and flush it as the sync policy asks.
+     *
+     * Entries appended concurrently are written together: the first thread
+     * to find entries waiting writes all of them with one gathering write,
+     * and under SyncPolicy.ALWAYS one force, while the others wait for it.
+     * Every entry is written to the file, and so survives this process
+     * dying, before the call returns.
+     *
+     * Once a write or force has failed, the log cannot tell which entries
+     * reached the disk, so that append and every one after it fails until
+     * the log is loaded again.
      *
      * @param entry KVMessage to write to the log
+     * @throws KVException if the entry cannot be encoded or written
+     */
+    public void appendAndFlush(KVMessage entry) throws KVException {
+        append(entry);
+    }
+
+    /**
+     * Append the PUT_REQ or DEL_REQ of a transaction to the log and flush it
+     * as appendAndFlush() does, unless the transaction has been decided
+     * already: a phase1 request that comes after its decision, e.g. after
+     * the master stopped waiting for the vote, would otherwise stay open in
+     * the log for good. The last DECIDED_TRANSACTIONS_KEPT decisions are
+     * remembered; requests without a transaction ID are always logged.
+     *
+     * @param request PUT_REQ or DEL_REQ of a transaction
+     * @return true if the request was logged, false if its transaction was
+     *         decided already and it is to be refused
+     * @throws KVException if the request cannot be encoded or written
+     */
+    public boolean appendPrepare(KVMessage request) throws KVException {
+        ByteBuffer record = encode(request);
+        long seq;
+        boolean sync;
+        synchronized (this) {
+            checkFailure();
+            if (request.getTxnID() != null
+                    && decided.containsKey(request.getTxnID())) {
+                return false;
+            }
+            seq = enqueue(record, request);
+            sync = needsSync(seq);
+        }
+        flush(seq, sync);
+        return true;
+    }
+
+    /**
+     * Append the COMMIT or ABORT of a transaction to the log and flush it as
+     * the sync policy asks, as appendAndFlush() does.
+     *
+     * @param decision COMMIT or ABORT of a transaction
+     * @return the PUT_REQ or DEL_REQ of the transaction if it was prepared
+     *         and undecided until now, which a COMMIT is to carry out, or
+     *         null if the decision is being sent again
+     * @throws KVException if the decision cannot be encoded or written; it
+     *         is then not to be carried out
+     */
+    public KVMessage appendDecision(KVMessage decision) throws KVException {
+        return append(decision);
+    }
+
+    /**
+     * @return the phase1 request entry decides on, if it is a decision the
+     *         transaction had not had yet
+     */
+    private KVMessage append(KVMessage entry) throws KVException {
+        ByteBuffer record = encode(entry);
+        long seq;
+        boolean sync;
+        KVMessage prepared;
+        synchronized (this) {
+            checkFailure();
+            prepared = getPrepared(entry.getTxnID());
+            seq = enqueue(record, entry);
+            sync = needsSync(seq);
+        }
+        flush(seq, sync);
+        return prepared;
+    }
+
+    /**
+     * Queues the record of entry for the next flush and starts the
+     * background checkpoint or syncer if due. Called with the lock held.
+     *
+     * @return sequence number of the entry
      */
-    public void appendAndFlush(KVMessage entry) {
-        entries.add(entry);
-        flushToDisk();
+    private long enqueue(ByteBuffer record, KVMessage entry) {
+        pending.add(record);
+        long seq = ++appended;
+        lastEntry = entry;
+        track(entry);
+        if (checkpointInterval > 0 && !checkpointing
+                && seq - checkpointedAt >= checkpointInterval) {
+            startCheckpointer();
+        }
+        if (policy.kind == SyncPolicy.Kind.INTERVAL && syncer == null) {
+            startSyncer();
+        }
+        return seq;
+    }
+
+    /**
+     * @return true if the entry numbered seq is to be forced before its
+     *         append returns. Called with the lock held.
+     */
+    private boolean needsSync(long seq) {
+        return policy.kind == SyncPolicy.Kind.ALWAYS
+                || (policy.kind == SyncPolicy.Kind.RECORDS
+                && seq - synced >= policy.amount);
     }
 
     /**
@@ -44,56 +311,954 @@ public class TPCLog {
      *
      * @return last entry put into the log
      */
-    public KVMessage getLastEntry() {
-        if (entries.size() > 0) {
-            return entries.get(entries.size() - 1);
+    public synchronized KVMessage getLastEntry() {
+        return lastEntry;
+    }
+
+    /**
+     * Load log from persistent storage at logPath: reads every segment,
+     * cutting off a torn record at the end of the last one, and opens the
+     * last segment for appending.
+     */
+    public synchronized void loadFromDisk() {
+        try {
+            load(false);
+        } catch (IOException | KVException e) {
+            e.printStackTrace();
         }
-        return null;
     }
 
     /**
-     * Load log from persistent storage at logPath.
+     * Writes and forces every entry appended so far to persistent storage,
+     * whatever the sync policy.
+     *
+     * @throws KVException if the entries cannot be written, or if the last
+     *         checkpoint taken in the background failed
      */
-    @SuppressWarnings("unchecked")
-    public void loadFromDisk() {
-        ObjectInputStream inputStream = null;
+    public void flushToDisk() throws KVException {
+        long seq;
+        synchronized (this) {
+            checkCheckpointFailure();
+            seq = appended;
+        }
+        flush(seq, true);
+    }
 
+    /**
+     * Load log and rebuild KVServer by replaying the log entries segment by
+     * segment. You do not need to restore the previous cache state (i.e.
+     * ignore GETS). Committed operations are applied straight to the store,
+     * partitioned by key over the replay threads, and the cache is emptied
+     * afterwards; the server must not take requests meanwhile. Transactions
+     * prepared and not decided in the log stay open, for their decision to
+     * be carried out when it comes (see getPrepared()).
+     *
+     * @throws KVException if the log cannot be read or an error occurs in
+     *         KVServer (though we expect none)
+     */
+    public synchronized void rebuildServer() throws KVException {
+        replayer = new ParallelReplay(kvServer, replayThreads);
+        undecided = new HashMap<String, KVMessage>();
         try {
-            inputStream = new ObjectInputStream(new FileInputStream(logPath));
-            entries = (ArrayList<KVMessage>) inputStream.readObject();
-        } catch (Exception e) {
+            load(true);
+            findInterruptedOperation();
+        } catch (IOException e) {
+            throw new KVException("Unable to read log " + logPath + ": "
+                    + e.getMessage());
         } finally {
-            // if log did not exist, creating empty entries list
-            if (entries == null) {
-                entries = new ArrayList<KVMessage>();
+            ParallelReplay finished = replayer;
+            replayer = null;
+            undecided = null;
+            finished.finish();
+        }
+    }
+
+    /**
+     * Get the phase1 request of a transaction that is prepared in the log
+     * and not decided yet, the operation its COMMIT carries out.
+     *
+     * @param txnID ID of the transaction, null for the one without an ID
+     * @return the PUT_REQ or DEL_REQ of transaction txnID, or null if that
+     *         transaction is not open or has been decided on already
+     */
+    public synchronized KVMessage getPrepared(String txnID) {
+        ArrayList<KVMessage> entries = openTransactions.get(txnID);
+        if (entries == null || entries.size() > 1) {
+            return null;
+        }
+        return entries.get(0);
+    }
+
+    /**
+     * @return the number of transactions open in the log: prepared, or
+     *         decided and not yet acknowledged
+     */
+    public synchronized int openTransactions() {
+        return openTransactions.size();
+    }
+
+    public synchronized KVMessage getOperation(){
+        KVMessage log = operation;
+        operation = null;
+        return log;
+    }
+
+    /**
+     * Take a checkpoint: start a new segment, snapshot the store and delete
+     * the segments the snapshot makes unnecessary. Appends go on meanwhile.
+     *
+     * @throws KVException if the checkpoint cannot be written; the log is
+     *         left as it was, apart from having started a new segment. Also
+     *         if the last checkpoint taken in the background failed, which
+     *         is then reported instead of taking this one
+     */
+    public void checkpoint() throws KVException {
+        synchronized (this) {
+            checkCheckpointFailure();
+        }
+        try {
+            takeCheckpoint();
+        } catch (IOException e) {
+            throw checkpointError(e);
+        } finally {
+            checkpointDone();
+        }
+    }
+
+    /**
+     * Starts a new segment, writes out the checkpoint and deletes the
+     * segments it covers. The caller calls checkpointDone() afterwards,
+     * whether or not this succeeds.
+     */
+    private void takeCheckpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long first;
+            ArrayList<KVMessage> open;
+            synchronized (this) {
+                checkpointing = true;
+                startNextSegment();
+                first = segmentNumber;
+                open = new ArrayList<KVMessage>();
+                for (ArrayList<KVMessage> entries
+                        : openTransactions.values()) {
+                    open.addAll(entries);
+                }
+                checkpointedAt = appended;
             }
+            writeCheckpoint(first, open);
+            synchronized (this) {
+                firstSegment = first;
+            }
+            deleteSegmentsBefore(first);
+        }
+    }
+
+    private KVException checkpointError(IOException e) {
+        return new KVException("Unable to checkpoint log " + logPath + ": "
+                + e.getMessage());
+    }
 
+    private synchronized void checkpointDone() {
+        checkpointing = false;
+        notifyAll();
+    }
+
+    /**
+     * Set how many appends there are between the checkpoints taken in the
+     * background.
+     *
+     * @param records appends between checkpoints, 0 for none
+     */
+    public synchronized void setCheckpointInterval(int records) {
+        checkpointInterval = records;
+    }
+
+    /**
+     * Forces all appended entries to disk and closes the segment open for
+     * appending, after waiting for a checkpoint in progress. The log is
+     * reopened by the next append or load.
+     *
+     * @throws KVException if the appended entries cannot be written, or if
+     *         the last checkpoint taken in the background failed; the
+     *         segment is closed all the same
+     */
+    public synchronized void close() throws KVException {
+        while (checkpointing) {
             try {
-                if (inputStream != null) {
-                    inputStream.close();
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        try {
+            flushToDisk();
+        } finally {
+            if (syncer != null) {
+                syncer.interrupt();
+                syncer = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                channel = null;
             }
         }
     }
 
     /**
-     * Writes the log to persistent storage at logPath.
+     * When a TPCLog forces appended entries to disk. Until an entry is
+     * forced, an operating system crash or power failure can lose it.
      */
-    public void flushToDisk() {
-        ObjectOutputStream outputStream = null;
+    public static final class SyncPolicy {
+
+        enum Kind { ALWAYS, INTERVAL, RECORDS, OS }
+
+        /** Force every entry before appendAndFlush() returns. */
+        public static final SyncPolicy ALWAYS = new SyncPolicy(Kind.ALWAYS, 0);
+
+        /** Never force; leave writing back to the operating system. */
+        public static final SyncPolicy OS = new SyncPolicy(Kind.OS, 0);
 
+        private final Kind kind;
+        private final int amount;
+
+        private SyncPolicy(Kind kind, int amount) {
+            this.kind = kind;
+            this.amount = amount;
+        }
+
+        /**
+         * Force from a background thread every millis milliseconds, so an
+         * entry is on disk at most that long after it was appended.
+         */
+        public static SyncPolicy everyMillis(int millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("millis must be positive");
+            }
+            return new SyncPolicy(Kind.INTERVAL, millis);
+        }
+
+        /**
+         * Force once every records appends, in the append that reaches the
+         * count, so at most records - 1 entries are not yet on disk.
+         */
+        public static SyncPolicy everyRecords(int records) {
+            if (records <= 0) {
+                throw new IllegalArgumentException("records must be positive");
+            }
+            return new SyncPolicy(Kind.RECORDS, records);
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+            case INTERVAL:
+                return "every " + amount + "ms";
+            case RECORDS:
+                return "every " + amount + " records";
+            default:
+                return kind.name().toLowerCase();
+            }
+        }
+
+    }
+
+    /**
+     * Returns once the entry numbered seq has been written, and forced if
+     * sync is set. Unless another thread is already flushing, this writes
+     * every entry waiting in pending, otherwise it waits for that thread
+     * and checks again. A failed write or force is reported to the thread
+     * that made it and to every thread waiting, and to all later ones.
+     */
+    private void flush(long seq, boolean sync) throws KVException {
+        ByteBuffer[] batch;
+        long target;
+        synchronized (this) {
+            while (written < seq || (sync && synced < seq)) {
+                checkFailure();
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new KVException("Interrupted while writing log "
+                            + logPath);
+                }
+            }
+            if (written >= seq && (!sync || synced >= seq)) {
+                return;
+            }
+            flushing = true;
+            batch = pending.toArray(new ByteBuffer[pending.size()]);
+            pending.clear();
+            target = appended;
+        }
         try {
-            outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
-            outputStream.writeObject(entries);
+            write(batch);
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failed(e);
+                checkFailure();
+            }
+        }
+        synchronized (this) {
+            flushing = false;
+            written = target;
+            if (sync) {
+                synced = target;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records a failed write or force, after which written and synced stay
+     * where they are, and wakes the threads waiting for it. Called with the
+     * lock held by the thread that has set flushing.
+     */
+    private void failed(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        flushing = false;
+        notifyAll();
+    }
+
+    /**
+     * @throws KVException if a write or force has failed since the log was
+     *         loaded. Called with the lock held.
+     */
+    private void checkFailure() throws KVException {
+        if (failure != null) {
+            throw new KVException("Unable to write log " + logPath + ": "
+                    + failure.getMessage());
+        }
+    }
+
+    private void startSyncer() {
+        syncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncPeriodically();
+            }
+        }, "TPCLog sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    private void syncPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(policy.amount);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long seq;
+            synchronized (this) {
+                if (syncer != Thread.currentThread()) {
+                    return;
+                }
+                if (synced == appended) {
+                    continue;
+                }
+                seq = appended;
+            }
+            try {
+                flush(seq, true);
+            } catch (KVException e) {
+                // the failure is kept and reported to the appenders
+                return;
+            }
+        }
+    }
+
+    /**
+     * Keeps openTransactions up to date: the entries of each transaction
+     * from its phase1 request until it is acknowledged. Also notes the ID
+     * of each decision in decided, whether or not the transaction is open.
+     */
+    private void track(KVMessage entry) {
+        String txnID = entry.getTxnID();
+        if (txnID != null && (entry.getMsgType().equals(COMMIT)
+                || entry.getMsgType().equals(ABORT))) {
+            decided.put(txnID, Boolean.TRUE);
+        }
+        if (entry.getMsgType().equals(PUT_REQ)
+                || entry.getMsgType().equals(DEL_REQ)) {
+            ArrayList<KVMessage> entries = new ArrayList<KVMessage>();
+            entries.add(entry);
+            openTransactions.remove(txnID);
+            openTransactions.put(txnID, entries);
+        } else if (entry.getMsgType().equals(ACK)) {
+            openTransactions.remove(txnID);
+        } else if (openTransactions.containsKey(txnID)) {
+            openTransactions.get(txnID).add(entry);
+        }
+    }
+
+    /**
+     * Carries out each COMMIT on the phase1 request of its transaction. The
+     * same transaction may be decided twice, when the master sent its
+     * decision again; only the first decision counts.
+     */
+    private void replay(KVMessage entry) throws KVException {
+        String txnID = entry.getTxnID();
+        if (entry.getMsgType().equals(PUT_REQ)
+                || entry.getMsgType().equals(DEL_REQ)) {
+            undecided.put(txnID, entry);
+        } else if (entry.getMsgType().equals(COMMIT)) {
+            KVMessage prepared = undecided.remove(txnID);
+            if (prepared != null) {
+                // a del replayed after a checkpoint may find its key
+                // already gone from the snapshot, which is ignored
+                replayer.apply(prepared);
+            }
+        } else if (entry.getMsgType().equals(ABORT)) {
+            undecided.remove(txnID);
+        }
+    }
+
+    /**
+     * Sets operation from the last transaction still open after replay: its
+     * phase1 request if it is undecided, or an ACK if it is decided and
+     * the ACK is missing.
+     */
+    private void findInterruptedOperation() {
+        operation = null;
+        for (ArrayList<KVMessage> entries : openTransactions.values()) {
+            if (entries.size() == 1) {
+                operation = entries.get(0);
+            } else {
+                operation = new KVMessage(ACK);
+                operation.setTxnID(entries.get(0).getTxnID());
+            }
+        }
+    }
+
+    /**
+     * Reads the checkpoint, if any, and the segments after it in order,
+     * restoring the store and replaying each entry if replay is set, and
+     * leaves the last segment open for appending.
+     */
+    private void load(boolean replay) throws IOException, KVException {
+        if (failure != null) {
+            // entries not yet written were never reported durable, and
+            // the torn end of the last segment is cut off below
+            pending.clear();
+            written = synced = appended;
+            failure = null;
+        }
+        checkpointFailure = null;
+        close();
+        convertLegacyLog();
+        lastEntry = null;
+        openTransactions.clear();
+        decided.clear();
+        if (replay) {
+            operation = null;
+        }
+        firstSegment = 1;
+        if (checkpointFile().isFile()) {
+            readCheckpoint(replay);
+        }
+        deleteSegmentsBefore(firstSegment);
+        long[] segments = listSegments();
+        for (int i = 0; i < segments.length; i++) {
+            boolean last = i == segments.length - 1;
+            File file = segmentFile(segments[i]);
+            FileChannel segment = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long end = readSegment(file, segment, replay);
+                if (end < segment.size()) {
+                    if (!last) {
+                        throw new IOException(file + " is corrupt at offset "
+                                + end);
+                    }
+                    segment.truncate(end);
+                }
+                if (last) {
+                    if (end == 0) {
+                        writeFully(segment, segmentHeader(), 0);
+                        end = SEGMENT_HEADER_SIZE;
+                    }
+                    segment.force(true);
+                    channel = segment;
+                    segmentNumber = segments[i];
+                    position = end;
+                    segment = null;
+                }
+            } finally {
+                if (segment != null) {
+                    segment.close();
+                }
+            }
+        }
+        if (segments.length == 0) {
+            startSegment(firstSegment);
+        }
+    }
+
+    /**
+     * Reads logPath.checkpoint: sets firstSegment and, if replay is set,
+     * restores the store from the snapshot and replays the transaction that
+     * was open at the checkpoint.
+     */
+    private void readCheckpoint(boolean replay) throws IOException,
+            KVException {
+        File file = checkpointFile();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 65536));
+        try {
+            int magic = in.readInt();
+            if (magic != CHECKPOINT_MAGIC && magic != STORE_CHECKPOINT_MAGIC) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            if (replay && magic == STORE_CHECKPOINT_MAGIC
+                    && !kvServer.hasPersistentStore()) {
+                throw new IOException(file + " needs a store that keeps its"
+                        + " pairs on disk");
+            }
+            firstSegment = in.readLong();
+            int count = in.readInt();
+            ArrayList<KVMessage> open = new ArrayList<KVMessage>();
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 2 || length > MAX_FRAME_SIZE) {
+                    throw new IOException(file + " is corrupt");
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException(file + " is corrupt");
+                }
+                open.add(new KVMessage(body));
+            }
+            if (replay && magic == CHECKPOINT_MAGIC) {
+                kvServer.readSnapshot(in);
+            }
+            for (KVMessage entry : open) {
+                lastEntry = entry;
+                track(entry);
+                if (replay) {
+                    replay(entry);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the checkpoint under a temporary name, syncs it and renames it
+     * over the previous one, then syncs the directory so that the rename is
+     * on disk before any segment is deleted. A persistent store is synced
+     * instead of being written into it.
+     */
+    private void writeCheckpoint(long first, ArrayList<KVMessage> open)
+            throws IOException {
+        boolean persistent = kvServer.syncStore();
+        File tmp = new File(logPath + ".checkpoint.tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(file, 65536));
+            out.writeInt(persistent ? STORE_CHECKPOINT_MAGIC
+                    : CHECKPOINT_MAGIC);
+            out.writeLong(first);
+            out.writeInt(open.size());
+            for (KVMessage entry : open) {
+                try {
+                    ByteBuffer record = encode(entry);
+                    out.write(record.array(), 0, record.limit());
+                } catch (KVException e) {
+                    // it was encoded once already when it was appended
+                    throw new IOException(e.getKVMessage().getMessage());
+                }
+            }
+            if (!persistent) {
+                kvServer.writeSnapshot(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        Files.move(tmp.toPath(), checkpointFile().toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    private void syncDirectory() throws IOException {
+        FileChannel dir = FileChannel.open(checkpointFile()
+                .getAbsoluteFile().getParentFile().toPath(),
+                StandardOpenOption.READ);
+        try {
+            dir.force(true);
+        } finally {
+            dir.close();
+        }
+    }
+
+    private void deleteSegmentsBefore(long first) throws IOException {
+        for (long number : listSegments()) {
+            if (number >= first) {
+                break;
+            }
+            File file = segmentFile(number);
+            if (!file.delete()) {
+                throw new IOException("Unable to remove " + file);
+            }
+        }
+    }
+
+    private File checkpointFile() {
+        return new File(logPath + ".checkpoint");
+    }
+
+    /**
+     * Reports, once, the failure of the last checkpoint taken in the
+     * background. Called with the lock held.
+     */
+    private void checkCheckpointFailure() throws KVException {
+        KVException e = checkpointFailure;
+        if (e != null) {
+            checkpointFailure = null;
+            throw e;
+        }
+    }
+
+    private void startCheckpointer() {
+        checkpointing = true;
+        Thread checkpointer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    takeCheckpoint();
+                } catch (IOException e) {
+                    // kept before close() can see the checkpoint is over
+                    synchronized (TPCLog.this) {
+                        checkpointFailure = checkpointError(e);
+                    }
+                } finally {
+                    checkpointDone();
+                }
+            }
+        }, "TPCLog checkpoint");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * Writes out every pending entry and starts a new segment, so that all
+     * entries appended so far are in earlier segments. Called with the lock
+     * held.
+     */
+    private void startNextSegment() throws IOException {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (failure != null) {
+            throw new IOException(failure.getMessage());
+        }
+        flushing = true;
+        try {
+            write(pending.toArray(new ByteBuffer[pending.size()]));
+            pending.clear();
+            channel.force(false);
+            written = synced = appended;
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        try {
+            channel.close();
+            startSegment(segmentNumber + 1);
+        } finally {
+            flushing = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return offset just past the last intact record of the segment, or 0
+     *         if not even its header was written
+     */
+    private long readSegment(File file, FileChannel segment, boolean replay)
+            throws IOException, KVException {
+        long size = segment.size();
+        if (size < SEGMENT_HEADER_SIZE) {
+            return 0;
+        }
+        // Records are parsed straight out of a large buffer, which keeps the
+        // per-record cost of reading low: replay cannot go faster than this
+        // thread reads, however many threads apply the operations.
+        ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        buf.flip();
+        segment.position(0);
+        fill(segment, buf);
+        if (buf.getInt() != SEGMENT_MAGIC) {
+            throw new IOException(file + " is not a log segment");
+        }
+        long end = SEGMENT_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (true) {
+            if (buf.remaining() < RECORD_HEADER_SIZE) {
+                buf = fill(segment, buf);
+                if (buf.remaining() < RECORD_HEADER_SIZE) {
+                    break;
+                }
+            }
+            int length = buf.getInt(buf.position());
+            int checksum = buf.getInt(buf.position() + 4);
+            if (length < 2 || length > MAX_FRAME_SIZE
+                    || end + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            if (buf.remaining() < RECORD_HEADER_SIZE + length) {
+                buf = fill(segment, buf);
+                if (buf.capacity() < RECORD_HEADER_SIZE + length) {
+                    ByteBuffer bigger = ByteBuffer.allocate(
+                            RECORD_HEADER_SIZE + length);
+                    bigger.put(buf);
+                    bigger.flip();
+                    buf = fill(segment, bigger);
+                }
+                if (buf.remaining() < RECORD_HEADER_SIZE + length) {
+                    break;
+                }
+            }
+            buf.position(buf.position() + RECORD_HEADER_SIZE);
+            byte[] body = new byte[length];
+            buf.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            KVMessage entry;
+            try {
+                entry = new KVMessage(body);
+            } catch (KVException e) {
+                break;
+            }
+            end += RECORD_HEADER_SIZE + length;
+            lastEntry = entry;
+            track(entry);
+            if (replay) {
+                replay(entry);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Moves the unread bytes of buf, which is in flipped state, to its
+     * start and reads from the channel until buf is full or the channel
+     * has no more.
+     *
+     * @return buf, flipped again
+     */
+    private static ByteBuffer fill(FileChannel channel, ByteBuffer buf)
+            throws IOException {
+        buf.compact();
+        while (buf.hasRemaining() && channel.read(buf) >= 0) {
+            // keep reading
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Appends the records to the log, starting new segments as they fill.
+     * Called only by the thread that has set flushing.
+     */
+    private void write(ByteBuffer[] batch) throws IOException {
+        if (channel == null) {
+            openLastSegment();
+        }
+        int start = 0;
+        long end = position;
+        for (int i = 0; i < batch.length; i++) {
+            int length = batch[i].remaining();
+            if (end > SEGMENT_HEADER_SIZE && end + length > segmentSize) {
+                writeFully(batch, start, i - start);
+                channel.force(false);
+                channel.close();
+                startSegment(segmentNumber + 1);
+                start = i;
+                end = position;
+            }
+            end += length;
+        }
+        writeFully(batch, start, batch.length - start);
+    }
+
+    private void writeFully(ByteBuffer[] records, int offset, int length)
+            throws IOException {
+        if (length == 0) {
+            return;
+        }
+        channel.position(position);
+        ByteBuffer last = records[offset + length - 1];
+        while (last.hasRemaining()) {
+            position += channel.write(records, offset, length);
+        }
+    }
+
+    private void openLastSegment() throws IOException {
+        long[] segments = listSegments();
+        if (segments.length == 0) {
+            startSegment(1);
+            return;
+        }
+        segmentNumber = segments[segments.length - 1];
+        channel = FileChannel.open(segmentFile(segmentNumber).toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        position = channel.size();
+    }
+
+    private void startSegment(long number) throws IOException {
+        channel = FileChannel.open(segmentFile(number).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segmentNumber = number;
+        writeFully(channel, segmentHeader(), 0);
+        position = SEGMENT_HEADER_SIZE;
+    }
+
+    private static ByteBuffer encode(KVMessage entry) throws KVException {
+        byte[] body = entry.toBinary();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE
+                + body.length);
+        record.putInt(body.length);
+        record.putInt((int) crc.getValue());
+        record.put(body);
+        record.flip();
+        return record;
+    }
+
+    private static ByteBuffer segmentHeader() {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf,
+            long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private File segmentFile(long number) {
+        return new File(logPath + "." + String.format("%08d", number));
+    }
+
+    /**
+     * @return numbers of the existing segments in ascending order
+     */
+    private long[] listSegments() {
+        File base = new File(logPath).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        String[] names = base.getParentFile().list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.length() == prefix.length() + 8
+                    && name.startsWith(prefix)) {
+                try {
+                    numbers[count] = Long.parseLong(name.substring(
+                            prefix.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Rewrites a log in the old format, a serialized ArrayList of entries at
+     * logPath, as the first segment. The segment is written under a
+     * temporary name and renamed into place before the old log is removed,
+     * so a crash part way leaves one complete copy.
+     */
+    private void convertLegacyLog() throws IOException, KVException {
+        File legacy = new File(logPath);
+        if (!legacy.isFile()) {
+            return;
+        }
+        if (listSegments().length == 0) {
+            File tmp = new File(logPath + ".tmp");
+            FileChannel segment = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                writeFully(segment, segmentHeader(), 0);
+                long offset = SEGMENT_HEADER_SIZE;
+                for (KVMessage entry : readLegacyLog(legacy)) {
+                    ByteBuffer record = encode(entry);
+                    int length = record.remaining();
+                    writeFully(segment, record, offset);
+                    offset += length;
+                }
+                segment.force(true);
+            } finally {
+                segment.close();
+            }
+            if (!tmp.renameTo(segmentFile(1))) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        }
+        if (!legacy.delete()) {
+            throw new IOException("Unable to remove " + legacy);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<KVMessage> readLegacyLog(File legacy) {
+        ObjectInputStream inputStream = null;
+        try {
+            inputStream = new ObjectInputStream(new FileInputStream(legacy));
+            return (ArrayList<KVMessage>) inputStream.readObject();
         } catch (Exception e) {
-            e.printStackTrace();
+            // unreadable, as the old log treated it: start empty
+            return new ArrayList<KVMessage>();
         } finally {
             try {
-                if (outputStream != null) {
-                    outputStream.flush();
-                    outputStream.close();
+                if (inputStream != null) {
+                    inputStream.close();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -101,46 +1266,4 @@ public class TPCLog {
         }
     }
 
-    /**
-     * Load log and rebuild KVServer by iterating over log entries. You do not
-     * need to restore the previous cache state (i.e. ignore GETS).
-     *
-     * @throws KVException if an error occurs in KVServer (though we expect none)
-     */
-    public void rebuildServer() throws KVException {
-        // implement me
-    	this.loadFromDisk();
-    	
-    	for(KVMessage entry : entries){
-    		if (entry.getMsgType().equals(PUT_REQ)
-    				|| entry.getMsgType().equals(DEL_REQ)){
-    			operation = entry;
-    		} else if (entry.getMsgType().equals(COMMIT)){
-    			if(operation != null){
-	    			if(operation.getMsgType().equals(PUT_REQ)){
-	    				kvServer.put(operation.getKey(), operation.getValue());
-	    			} else if(operation.getMsgType().equals(DEL_REQ)) {
-	    				kvServer.del(operation.getKey());
-	    			} else {
-	    				assert(false);
-	    			}
-    			}
-    			operation = new KVMessage(KVConstants.ACK);
-    		} else if (entry.getMsgType().equals(KVConstants.ABORT)){
-    			operation = new KVMessage(KVConstants.ACK);
-    		} else if (entry.getMsgType().equals(KVConstants.ACK)
-    					&& operation.getMsgType().equals(KVConstants.ACK)) {
-    			operation = null;
-    		} else {
-    			assert(false);
-    		}
-    	}
-    }
-    
-    public KVMessage getOperation(){
-    	KVMessage log = operation;
-    	operation = null;
-		return log;
-	}
-
 }
@@ -2,9 +2,19 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.io.IOException;
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -19,7 +29,47 @@ public class TPCMaster {
     private ReentrantLock slavesLock = new ReentrantLock();
     private Condition enoughSlaves = slavesLock.newCondition();
 
+    // starts from the clock, so that a restarted master does not reuse the
+    // IDs of transactions its slaves may still have open
+    private final AtomicLong lastTxnID =
+            new AtomicLong(System.currentTimeMillis() << 20);
+
+    // a transaction holds the lock its key hashes to
+    private final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCKS];
+
+    // runs the messages to the replicas of a request side by side; when
+    // every thread and queue slot is taken, a message is not sent (see
+    // FanOutTask.rejected())
+    private final ThreadPoolExecutor fanOut;
+
+    private volatile int voteTimeout = TIMEOUT;
+    private volatile int decisionTimeout = TIMEOUT;
+    private volatile int getTimeout = TIMEOUT;
+
+    // a get asks the successor once the primary has taken this long
+    private volatile long hedgeDelayNanos = 0;
+
+    // Reads that missed the cache, the gets they sent to the replicas, and
+    // of those the gets sent to the successor because the primary was slow
+    // and those that answered first. Every successful answer of a replica
+    // is timed, as is every read that missed the cache.
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong replicaGets = new AtomicLong();
+    private final AtomicLong hedgedGets = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final LatencyHistogram replicaLatency = new LatencyHistogram();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+
+    // connections kept to each slave, see TPCSlaveInfo.setPoolLimits()
+    private int poolMaxIdle = 0;
+    private int poolMaxTotal = 0;
+
     public static final int TIMEOUT = 3000;
+    public static final int KEY_LOCKS = 1024;
+    public static final int DEFAULT_FAN_OUT_THREADS = 64;
+    // wait before announcing a decision again, doubling with each attempt
+    public static final int RETRY_MIN_MILLIS = 10;
+    public static final int RETRY_MAX_MILLIS = 1000;
 
     /**
      * Creates TPCMaster, expecting numSlaves slave servers to eventually register
@@ -28,9 +78,51 @@ public class TPCMaster {
      * @param cache KVCache to cache results on master
      */
     public TPCMaster(int numSlaves, KVCache cache) {
+        this(numSlaves, cache, DEFAULT_FAN_OUT_THREADS);
+    }
+
+    /**
+     * Creates TPCMaster, expecting numSlaves slave servers to eventually
+     * register, that talks to at most fanOutThreads slaves at once. Each
+     * request in flight talks to two. Once as many more messages wait for
+     * a thread, a vote that cannot be sent counts as a vote to abort and a
+     * get as a failed replica, so a saturated master fails requests within
+     * their timeouts instead of sending on the caller's thread.
+     *
+     * @param numSlaves number of slave servers expected to register
+     * @param cache KVCache to cache results on master
+     * @param fanOutThreads threads sending requests to slaves
+     */
+    public TPCMaster(int numSlaves, KVCache cache, int fanOutThreads) {
         this.numSlaves = numSlaves;
         this.masterCache = cache;
-        // implement me
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+        fanOut = new ThreadPoolExecutor(fanOutThreads, fanOutThreads,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(fanOutThreads),
+                new FanOutThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        fanOut.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how long each phase of a request waits for the slaves. A slave
+     * that has not voted within voteMillis votes to abort. A decision is
+     * resent until the slave acknowledges it, each attempt waiting up to
+     * decisionMillis to connect and as long for the reply. A get gives up
+     * on a replica after getMillis.
+     *
+     * @param voteMillis time for phase 1, from sending the request
+     * @param decisionMillis time for each attempt at announcing a decision
+     * @param getMillis time for a get from the replicas
+     */
+    public void setTimeouts(int voteMillis, int decisionMillis,
+            int getMillis) {
+        this.voteTimeout = voteMillis;
+        this.decisionTimeout = decisionMillis;
+        this.getTimeout = getMillis;
     }
 
     /**
@@ -47,6 +139,7 @@ public class TPCMaster {
         		if(slaves.containsKey(slave.getSlaveID())) {
         			slaves.get(slave.getSlaveID()).updateInfo(slave.getHostname(), slave.getPort());
         		} else {
+        			slave.setPoolLimits(poolMaxIdle, poolMaxTotal);
         			slaves.put(slave.getSlaveID(), slave);
         		}
         	}
@@ -58,6 +151,43 @@ public class TPCMaster {
         }
     }
 
+    /**
+     * Sets how long a get that missed the cache waits for the primary
+     * replica before asking the successor as well. It asks the successor at
+     * once if the primary fails, and returns the first value either
+     * replica sends. With 0, the default, it asks both at once. A delay
+     * around the 95th percentile of replicaLatencyMicros() sends the
+     * successor about one get in twenty; see readReport().
+     *
+     * @param delayMicros microseconds to wait for the primary
+     */
+    public void setHedgeDelay(long delayMicros) {
+        hedgeDelayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+    }
+
+    /**
+     * Keeps connections to each slave open between requests, up to maxIdle
+     * of them, with no more than maxTotal open to a slave at once. A slave
+     * on a blocking SocketServer needs at least maxTotal threads (see
+     * TPCSlaveInfo). By default every request opens a connection.
+     *
+     * @param maxIdle connections to a slave kept open while unused
+     * @param maxTotal connections open to a slave at once, 0 for no limit
+     */
+    public void setConnectionPool(int maxIdle, int maxTotal) {
+        slavesLock.lock();
+        try{
+        	poolMaxIdle = maxIdle;
+        	poolMaxTotal = maxTotal;
+        	for (TPCSlaveInfo slave : slaves.values()) {
+        		slave.setPoolLimits(maxIdle, maxTotal);
+        	}
+        }
+        finally{
+        	slavesLock.unlock();
+        }
+    }
+
     /**
      * Converts Strings to 64-bit longs. Borrowed from http://goo.gl/le1o0W,
      * adapted from String.hashCode().
@@ -136,9 +266,15 @@ public class TPCMaster {
      * @return SlaveInfo of successor replica
      */
     public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {
-    	if(slaves.higherEntry(firstReplica.getSlaveID()) == null) 
-            return slaves.firstEntry().getValue();
-        return slaves.higherEntry(firstReplica.getSlaveID()).getValue();
+        slavesLock.lock();
+        try{
+        	if(slaves.higherEntry(firstReplica.getSlaveID()) == null) 
+        		return slaves.firstEntry().getValue();
+        	return slaves.higherEntry(firstReplica.getSlaveID()).getValue();
+        }
+        finally{
+        	slavesLock.unlock();
+        }
     }
     
     public TPCSlaveInfo[] findCorrespondingSlaves(String key){
@@ -155,86 +291,90 @@ public class TPCMaster {
      *
      * See the spec for details on the expected behavior.
      *
+     * Transactions run concurrently unless they write the same key: each
+     * holds the lock of its key from phase 1 until both replicas have
+     * acknowledged the decision, so the writes of a key reach the slaves and
+     * the cache in the order they take the lock. A slave has any number of
+     * transactions open at once; every message of a transaction carries its
+     * ID, which the slave files its phase1 request under until the decision
+     * comes (see TPCMasterHandler).
+     *
      * @param msg KVMessage corresponding to the transaction for this TPC request
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out for any reason
      */
-    public synchronized void handleTPCRequest(KVMessage msg, boolean isPutReq)
+    public void handleTPCRequest(KVMessage msg, boolean isPutReq)
             throws KVException {
 
     	String key = msg.getKey();
     	String value = null;
     	if(isPutReq)
     		value = msg.getValue();
-    	masterCache.getLock(key).lock();
+    	KVMessage request = new KVMessage(msg);
+    	request.setTxnID(Long.toString(lastTxnID.incrementAndGet()));
+    	TPCSlaveInfo[] slaves = findCorrespondingSlaves(key);
+    	Lock keyLock = keyLocks[(key.hashCode() & Integer.MAX_VALUE) % KEY_LOCKS];
+    	keyLock.lock();
     	try{
-    		TPCSlaveInfo[] slaves = findCorrespondingSlaves(key);
-    		
-    		KVMessage decision = null;
-    		///*
-    		CollectVote cv1 = new CollectVote(slaves[0], msg);
-    		CollectVote cv2 = new CollectVote(slaves[1], msg);
-        	
-        	Thread t1 = new Thread(cv1);
-        	Thread t2 = new Thread(cv2);
-        	
-        	t1.start();
-        	t2.start();
-        	
-        	try {
-        		t1.join();
-            	t2.join();
-        	} catch (InterruptedException e){
-        		System.out.println(e.getMessage());
-        	}
-        	//*/
-        	boolean isCommit = // collectVotes(slaves, msg); 
-        			cv1.vote != null && cv1.vote.getMsgType().equals(READY) &&
-        			cv2.vote != null && cv2.vote.getMsgType().equals(READY);
-        	KVMessage errMsg = cv1.vote == null ? cv2.vote : cv1.vote;
-    		if(isCommit){
-    			decision = new KVMessage(COMMIT);
-    		}
-    		else{
-    			decision = new KVMessage(ABORT);
+    		CollectVote[] votes = {
+    				new CollectVote(slaves[0], request),
+    				new CollectVote(slaves[1], request) };
+    		runAll(votes, voteTimeout);
+    		// a slave still voting after the timeout votes to abort
+    		KVMessage errMsg = null;
+    		for (CollectVote cv : votes) {
+    			KVMessage vote = cv.vote;
+    			if (vote == null) {
+    				vote = new KVMessage(RESP, ERROR_SOCKET_TIMEOUT);
+    			}
+    			if (errMsg == null && !vote.getMsgType().equals(READY)) {
+    				errMsg = vote;
+    			}
     		}
-    		///*
-    		AnnounceDecision ad1 = new AnnounceDecision(slaves[0], decision);
-    		AnnounceDecision ad2 = new AnnounceDecision(slaves[1], decision);
-        	
-        	Thread t3 = new Thread(ad1);
-        	Thread t4 = new Thread(ad2);
-        	
-        	t3.start();
-        	t4.start();
-        	
-        	try {
-        		t3.join();
-            	t4.join();
-        	} catch (InterruptedException e){
-        		System.out.println(e.getMessage());
-        	}
-    		//*/
-    		//announceDecision(slaves, decision);
-        	
+    		KVMessage decision = new KVMessage(errMsg == null ? COMMIT : ABORT);
+    		decision.setTxnID(request.getTxnID());
+    		runAll(new AnnounceDecision[] {
+    				new AnnounceDecision(slaves[0], decision),
+    				new AnnounceDecision(slaves[1], decision) }, 0);
+
         	// see 2pc requirement 7
     		if(decision.getMsgType().equals(ABORT))
     			throw new KVException(errMsg);
 
-    		if(isPutReq){
-    			masterCache.put(key, value);
+    		// a get that missed the cache holds this lock until it has
+    		// cached what it read, which this overwrites
+    		masterCache.getLock(key).lock();
+    		try{
+    			if(isPutReq){
+    				masterCache.put(key, value);
+    			}
+    			else{
+    				masterCache.del(key);
+    			}
     		}
-    		else{
-    			masterCache.del(key);
+    		finally{
+    			masterCache.getLock(key).unlock();
     		}
     	}
     	finally{
-    		masterCache.getLock(key).unlock();
+    		keyLock.unlock();
     	}
     }
     
-    private class CollectVote implements Runnable {
-    	KVMessage vote = null;
+    /**
+     * A message to one replica, run on the fan-out threads.
+     */
+    private abstract class FanOutTask implements Runnable {
+
+    	/**
+    	 * Called instead of run() when the fan-out threads are all busy and
+    	 * their queue is full, on the thread that submitted the task.
+    	 */
+    	abstract void rejected();
+    }
+
+    private class CollectVote extends FanOutTask {
+    	volatile KVMessage vote = null;
     	TPCSlaveInfo info;
     	KVMessage request = null;
     	
@@ -245,25 +385,23 @@ public class TPCMaster {
     	
     	@Override
     	public void run(){
-    		Socket slaveSocket = null;
     		try{
-    			 slaveSocket = info.connectHost(TIMEOUT);
-    			request.sendMessage(slaveSocket);
-    			vote = new KVMessage(slaveSocket, TIMEOUT);
+    			vote = info.sendRequest(request, voteTimeout);
     		}catch (KVException e) {
     			vote = new KVMessage(e.getKVMessage());
-    		}finally {
-    			if(slaveSocket != null){
-					try {
-						info.closeHost(slaveSocket);
-					} catch (KVException e) {
-					}
-    			}
     		}
     	}
+
+    	/**
+    	 * The request was never sent, which votes to abort.
+    	 */
+    	@Override
+    	void rejected(){
+    		vote = new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA);
+    	}
     }
     
-    private class AnnounceDecision implements Runnable {
+    private class AnnounceDecision extends FanOutTask {
     	TPCSlaveInfo info;
     	KVMessage decision = null;
     	
@@ -272,79 +410,159 @@ public class TPCMaster {
     		this.decision = _decision;
     	}
     	
+    	/**
+    	 * Sends the decision until the slave acknowledges it, waiting
+    	 * between attempts from RETRY_MIN_MILLIS, doubling up to
+    	 * RETRY_MAX_MILLIS, so an unreachable slave is not hammered.
+    	 */
     	@Override
     	public void run(){
-    		Socket slaveSocket = null;
     		boolean hasAck = false;
-    		while(true){
-    			if(hasAck)
-    				break;
+    		boolean interrupted = false;
+    		long backoff = RETRY_MIN_MILLIS;
+    		while(!hasAck){
     			try{
-    				slaveSocket = info.connectHost(TIMEOUT);
-    				decision.sendMessage(slaveSocket);
-    			}catch(Exception e){
+    				KVMessage response = info.sendRequest(decision, decisionTimeout);
+    				hasAck = response.getMsgType().equals(ACK);
+    				// see two-phase requirement 7
+    				assert(hasAck);
+    			}catch (KVException e) {
+    				//ignore
     			}
-    			if(slaveSocket != null){
-    				try {
-    					KVMessage response = new KVMessage(slaveSocket, TIMEOUT);
-    					if(response != null && response.getMsgType().equals(ACK))
-    						hasAck = true;
-    					
-    					// see two-phase requirement 7
-    					if(response != null && !response.getMsgType().equals(ACK)){
-    						assert(false);
-    					}
-    					//}
-    				}catch (KVException e) {
-    					//ignore
-    				}finally{
-    					try{
-    						info.closeHost(slaveSocket);
-    					}catch (KVException e){
-    						//ignore
-    					}
+    			if(!hasAck){
+    				try{
+    					Thread.sleep(backoff);
+    				}catch (InterruptedException e) {
+    					// the decision has to be delivered all the same
+    					interrupted = true;
     				}
+    				backoff = Math.min(backoff * 2, RETRY_MAX_MILLIS);
     			}
     		}
+    		if(interrupted)
+    			Thread.currentThread().interrupt();
+    	}
+
+    	/**
+    	 * A decision has to reach the slave however long it takes, so the
+    	 * caller announces it itself.
+    	 */
+    	@Override
+    	void rejected(){
+    		run();
     	}
     }
     
-    private class GetFromSlave implements Runnable {
-    	KVMessage vote = null;
+    private class GetFromSlave extends FanOutTask {
     	TPCSlaveInfo info;
     	KVMessage request = null;
-    	String value = null;
-    	KVMessage excepMsg = null;
+    	BlockingQueue<GetFromSlave> answers;
+    	volatile String value = null;
+    	volatile KVMessage excepMsg = null;
     	
-    	public GetFromSlave(TPCSlaveInfo _info, KVMessage _request){
+    	public GetFromSlave(TPCSlaveInfo _info, KVMessage _request,
+    			BlockingQueue<GetFromSlave> _answers){
     		this.info = _info;
     		this.request = _request;
+    		this.answers = _answers;
     	}
     	
     	@Override
     	public void run(){
-    		Socket slaveSocket = null;
+    		long start = System.nanoTime();
     		try{
-    			slaveSocket = info.connectHost(TIMEOUT);
-    			request.sendMessage(slaveSocket);
-    			KVMessage response = new KVMessage(slaveSocket, TIMEOUT);
+    			KVMessage response = info.sendRequest(request, getTimeout);
     			value = response.getValue();
     			if(value == null)
     				excepMsg = response;
+    			else
+    				replicaLatency.record(System.nanoTime() - start);
     		}catch (KVException e){
     			excepMsg = e.getKVMessage();
     		}
-    		finally{
-    			if(slaveSocket != null){
-    				try {
-    					info.closeHost(slaveSocket);
-    				} catch (KVException e) {
-   					}
-   				}
-    		}
+    		answers.offer(this);
+    	}
+
+    	/**
+    	 * The get was never sent, so this replica has failed.
+    	 */
+    	@Override
+    	void rejected(){
+    		excepMsg = new KVMessage(RESP, ERROR_COULD_NOT_SEND_DATA);
+    		answers.offer(this);
     	}
     }
     
+    /**
+     * Runs tasks on the fan-out threads and waits for them to finish, or
+     * until timeoutMillis have passed since the call. A task still running
+     * then carries on by itself.
+     *
+     * @param tasks the messages to the replicas of a request
+     * @param timeoutMillis how long to wait, 0 to wait until all finish
+     */
+    private void runAll(FanOutTask[] tasks, long timeoutMillis) {
+    	Future<?>[] futures = new Future<?>[tasks.length];
+    	for (int i = 0; i < tasks.length; i++) {
+    		futures[i] = submit(tasks[i]);
+    	}
+    	long deadline = System.nanoTime()
+    			+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    	for (Future<?> future : futures) {
+    		if (future == null) {
+    			continue;
+    		}
+    		try {
+    			if (timeoutMillis == 0) {
+    				future.get();
+    			} else {
+    				future.get(Math.max(0, deadline - System.nanoTime()),
+    						TimeUnit.NANOSECONDS);
+    			}
+    		} catch (TimeoutException e) {
+    			return;
+    		} catch (ExecutionException e) {
+    			// the tasks record their own failures
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			return;
+    		}
+    	}
+    }
+
+    /**
+     * Submits task to the fan-out threads, or has it handle being rejected
+     * if they are all busy and their queue is full.
+     *
+     * @return the future of the task, or null if it was rejected
+     */
+    private Future<?> submit(FanOutTask task) {
+    	try {
+    		return fanOut.submit(task);
+    	} catch (RejectedExecutionException e) {
+    		task.rejected();
+    		return null;
+    	}
+    }
+
+    /**
+     * Names the fan-out threads, and lets the JVM exit while they are idle.
+     */
+    private static class FanOutThreadFactory implements ThreadFactory {
+
+    	private static final AtomicInteger pools = new AtomicInteger();
+    	private final int pool = pools.incrementAndGet();
+    	private final AtomicInteger threads = new AtomicInteger();
+
+    	@Override
+    	public Thread newThread(Runnable task) {
+    		Thread thread = new Thread(task, "tpcmaster-" + pool + "-fanout-"
+    				+ threads.incrementAndGet());
+    		thread.setDaemon(true);
+    		return thread;
+    	}
+    }
+
     /**
 	 * Perform GET operation in the following manner:
 	 * - Try to GET from cache, return immediately if found
@@ -354,6 +572,10 @@ public class TPCMaster {
 	 * - If secondary succeeded, return value
 	 * - If secondary failed, return KVExceptions from both replicas
 	 *
+	 * The other replica is also asked once the primary has taken longer than
+	 * the hedge delay, and the first value to come back is returned; with no
+	 * hedge delay both are asked at once (see setHedgeDelay()).
+	 *
 	 * @param msg KVMessage containing key to get
 	 * @return value corresponding to the Key
 	 * @throws KVException with ERROR_NO_SUCH_KEY if unable to get
@@ -370,30 +592,9 @@ public class TPCMaster {
 	    	if(value != null){
 	    		return value;
 	    	}
-	    	TPCSlaveInfo[] slaves = findCorrespondingSlaves(key);
-	    	
-	    	GetFromSlave gfs1 = new GetFromSlave(slaves[0], msg);
-	    	GetFromSlave gfs2 = new GetFromSlave(slaves[1], msg);
-	    	
-	    	Thread t1 = new Thread(gfs1);
-	    	Thread t2 = new Thread(gfs2);
-	    	
-	    	t1.start();
-	    	t2.start();
-	    	
-	    	try {
-        		t1.join();
-        		if(gfs1.value != null)
-    	    		value = gfs1.value;
-            	t2.join();
-            	if(gfs2.value != null)
-    	    		value = gfs2.value;
-        	} catch (InterruptedException e){
-        		System.out.println(e.getMessage());
-        	}
-	    	
-	    	//value = getFromSlaves(slaves, msg);
-	    	
+	    	long start = System.nanoTime();
+	    	value = getFromReplicas(findCorrespondingSlaves(key), msg);
+	    	readLatency.record(System.nanoTime() - start);
 	    	if(value == null)
 	    		throw new KVException(ERROR_NO_SUCH_KEY);
 	    	
@@ -407,128 +608,112 @@ public class TPCMaster {
 	}
 
 	/**
-	 * Send request to slaves, and check votes
-	 * @param slaves
-	 * @param request
-	 * @return true, if all vote to commit
+	 * Gets a value from the primary replica, or the successor if the primary
+	 * fails or takes longer than the hedge delay, whichever answers with the
+	 * value first. The other get carries on by itself.
+	 *
+	 * @return the value, or null if neither replica had it within the get
+	 *         timeout
 	 */
-	private boolean collectVotes(TPCSlaveInfo[] slaves, KVMessage request){
-		Socket[] slaveSockets = new Socket[slaves.length];
-		try{
-			for(int i = 0; i < slaves.length; i++){
-				slaveSockets[i] = slaves[i].connectHost(TIMEOUT);
-				request.sendMessage(slaveSockets[i]);
-			}
-			for(int i = 0; i < slaves.length; i++){
-				KVMessage vote = new KVMessage(slaveSockets[i], TIMEOUT);
-				if(!vote.getMsgType().equals(READY))
-					return false;
-			}
-			return true;
-		}
-		catch (KVException e){
-			return false;
-		}
-		finally{
-			for(int i = 0; i < slaves.length; i++){
-				if(slaveSockets[i] != null){
-					try {
-						slaves[i].closeHost(slaveSockets[i]);
-					} catch (KVException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+	private String getFromReplicas(TPCSlaveInfo[] slaves, KVMessage msg) {
+		BlockingQueue<GetFromSlave> answers =
+				new ArrayBlockingQueue<GetFromSlave>(2);
+		long start = System.nanoTime();
+		long hedgeAt = start + hedgeDelayNanos;
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(getTimeout);
+		replicaReads.incrementAndGet();
+		replicaGets.incrementAndGet();
+		submit(new GetFromSlave(slaves[0], msg, answers));
+		boolean askedBoth = false;
+		boolean hedged = false;
+		int failed = 0;
+		try {
+			while (true) {
+				long until = askedBoth ? deadline : Math.min(hedgeAt, deadline);
+				GetFromSlave answer = answers.poll(until - System.nanoTime(),
+						TimeUnit.NANOSECONDS);
+				if (answer != null && answer.value != null) {
+					if (hedged && answer.info == slaves[1]) {
+						hedgeWins.incrementAndGet();
+					}
+					return answer.value;
+				}
+				if (answer != null) {
+					failed++;
+				}
+				long now = System.nanoTime();
+				if (!askedBoth && now < deadline
+						&& (answer != null || now >= hedgeAt)) {
+					// the primary failed, or is slower than the hedge delay
+					hedged = answer == null && hedgeDelayNanos > 0;
+					if (hedged) {
+						hedgedGets.incrementAndGet();
 					}
+					replicaGets.incrementAndGet();
+					submit(new GetFromSlave(slaves[1], msg, answers));
+					askedBoth = true;
+				} else if (failed == (askedBoth ? 2 : 1) || now >= deadline) {
+					return null;
 				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
 		}
 	}
 
 	/**
-	 * announce to slaves, repeat until every slave ack
-	 * @param slaves
-	 * @param decision
+	 * @return microseconds within which the given percentage of the
+	 *         successful gets sent to a replica were answered
 	 */
-	private void announceDecision(TPCSlaveInfo[] slaves, KVMessage decision){
-		Socket[] slaveSockets = new Socket[slaves.length];
-		boolean[] hasAck = new boolean[slaves.length];
-		while(true){
-			int i;
-			for(i = 0; i < slaves.length; i++){
-				if(!hasAck[i])
-					break;
-			}
-			if(i == slaves.length)
-				break;
-			
-			for(i = 0; i < slaves.length; i++){
-				if(!hasAck[i]){
-					try {
-						slaveSockets[i] = slaves[i].connectHost(TIMEOUT);
-						decision.sendMessage(slaveSockets[i]);
-					} catch (KVException e) {
-						//ignore
-					}
-				}
-			}
-			
-			for(i = 0; i < slaves.length; i++){
-				if(slaveSockets[i] != null){
-					try {
-						KVMessage response = new KVMessage(slaveSockets[i], TIMEOUT);
-						hasAck[i] = true;
-					}
-					catch (KVException e) {
-						//ignore
-					}
-					finally{
-						try{
-							slaves[i].closeHost(slaveSockets[i]);
-						}
-						catch (KVException e){
-							//ignore
-						}
-					}
-				}
-			}
-		}
+	public double replicaLatencyMicros(double percentile) {
+		return replicaLatency.percentileMicros(percentile);
 	}
 
 	/**
-	 * Try to get the value from the slave
-	 * @param slave
-	 * @param msg
-	 * @return value if success,
-	 * 		null otherwise
+	 * @return microseconds within which the given percentage of the gets
+	 *         that missed the cache were answered, by either replica
 	 */
-	private String getFromSlaves(TPCSlaveInfo[] slaves, KVMessage msg) {
-		Socket[] slaveSockets = new Socket[slaves.length];
-		try{
-			for(int i = 0; i < slaves.length; i++){
-				slaveSockets[i] = slaves[i].connectHost(TIMEOUT);
-				msg.sendMessage(slaveSockets[i]);
-			}
-			for(int i = 0; i < slaves.length; i++){
-				KVMessage response = new KVMessage(slaveSockets[i], TIMEOUT);
-				String val = response.getValue();
-				if(val != null)
-					return val;
-			}
-		}catch (KVException e){
-			return null;
-		}
-		finally{
-			for(int i = 0; i < slaves.length; i++){
-				if(slaveSockets[i] != null){
-					try {
-						slaves[i].closeHost(slaveSockets[i]);
-					} catch (KVException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
-			}
-		}
-		return null;
+	public double readLatencyMicros(double percentile) {
+		return readLatency.percentileMicros(percentile);
+	}
+
+	/**
+	 * @return gets sent to the replicas per read that missed the cache,
+	 *         between 1 and 2
+	 */
+	public double replicaGetsPerRead() {
+		return replicaGets.get() / (double) Math.max(1, replicaReads.get());
+	}
+
+	/**
+	 * Reports the load reads put on the replicas, how often the hedge to
+	 * the successor was sent and won, and the latency of the replicas and
+	 * of the reads that missed the cache, for tuning setHedgeDelay().
+	 */
+	public String readReport() {
+		long hedges = hedgedGets.get();
+		return String.format("%d reads missed the cache, %.2f gets each,"
+				+ " %d hedged (%d won)%n"
+				+ "replica p50 %.0f us, p95 %.0f us, p99 %.0f us%n"
+				+ "read    p50 %.0f us, p95 %.0f us, p99 %.0f us%n",
+				replicaReads.get(), replicaGetsPerRead(), hedges,
+				hedgeWins.get(), replicaLatencyMicros(50),
+				replicaLatencyMicros(95), replicaLatencyMicros(99),
+				readLatencyMicros(50), readLatencyMicros(95),
+				readLatencyMicros(99));
+	}
+
+	/**
+	 * Forgets the reads counted so far in readReport().
+	 */
+	public void resetReadStats() {
+		replicaReads.set(0);
+		replicaGets.set(0);
+		hedgedGets.set(0);
+		hedgeWins.set(0);
+		replicaLatency.reset();
+		readLatency.reset();
 	}
 
 	public class SlaveIDComparator implements Comparator<Long>{
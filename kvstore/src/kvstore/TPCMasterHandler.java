@@ -10,7 +10,7 @@ import java.net.UnknownHostException;
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
  */
-public class TPCMasterHandler implements NetworkHandler {
+public class TPCMasterHandler implements NetworkHandler, MessageHandler {
 
 	private long slaveID;
 	private KVServer kvServer;
@@ -121,11 +121,41 @@ public class TPCMasterHandler implements NetworkHandler {
 	}
 
 	/**
-	 * Runnable class containing routine to service a message from the master.
+	 * Creates a job to carry out a message read by a non-blocking
+	 * SocketServer and enqueues that job in the thread pool. Ignore any
+	 * InterruptedExceptions.
+	 * 
+	 * @param request
+	 *            KVMessage received from the master
+	 * @param responder
+	 *            where to send the response
 	 */
-	private class MasterHandler implements Runnable {
+	@Override
+	public void handle(final KVMessage request, final Responder responder) {
+		try {
+			threadpool.addJob(new Runnable() {
+				@Override
+				public void run() {
+					KVMessage response;
+					try {
+						response = handleMessage(request);
+					} catch (KVException e) {
+						response = e.getKVMessage();
+					}
+					responder.respond(response);
+					if (response.getMsgType().equals(ACK))
+						logAck(response);
+				}
+			});
+		} catch (InterruptedException e) {
+			// ignore
+		}
+	}
 
-		private Socket master;
+	/**
+	 * Runnable class containing routine to service messages from the master.
+	 */
+	private class MasterHandler extends ConnectionWorker {
 
 		/**
 		 * Construct a MasterHandler.
@@ -134,78 +164,107 @@ public class TPCMasterHandler implements NetworkHandler {
 		 *            Socket connected to master with the message
 		 */
 		public MasterHandler(Socket master) {
-			this.master = master;
+			super(master, IDLE_TIMEOUT_MILLISECONDS);
 		}
 
 		/**
-		 * Processes request from master and sends back a response with the
-		 * result. This method needs to handle both phase1 and phase2 messages
-		 * from the master. The delivery of the response is best-effort. If we
-		 * are unable to return any response, there is nothing else we can do.
+		 * Processes request from master. This needs to handle both phase1
+		 * and phase2 messages from the master.
 		 */
 		@Override
-		public void run() {
-			KVMessage response = null;
-			try {
-				KVMessage request = new KVMessage(master);
-
-				if (request.getMsgType().equals(GET_REQ)) {
-					String key = request.getKey();
-					checkKey(key);
-					String value = kvServer.get(key);
-					response = new KVMessage(RESP);
-					response.setKey(key);
-					response.setValue(value);
-				} else if (request.getMsgType().equals(DEL_REQ)
-						|| request.getMsgType().equals(PUT_REQ)) {
-					tpcLog.appendAndFlush(request);
-					if (request.getMsgType().equals(PUT_REQ)) {
-						checkValue(request.getValue());
-						checkKey(request.getKey());
-					} else
-						kvServer.get(request.getKey());
-					response = new KVMessage(READY);
-				}
-				if (request.getMsgType().equals(ABORT)) {
-					tpcLog.appendAndFlush(request);
-					response = new KVMessage(ACK);
-				} else if (request.getMsgType().equals(COMMIT)) {
-					request = tpcLog.getLastEntry();
-					tpcLog.appendAndFlush(new KVMessage(COMMIT));
-					if (request.getMsgType().equals(DEL_REQ)) {
-						String key = request.getKey();
-						checkKey(key);
-						kvServer.del(key);
-					} else if (request.getMsgType().equals(PUT_REQ)) {
-						String key = request.getKey();
-						String value = request.getValue();
-						checkKey(key);
-						checkValue(value);
-						kvServer.put(key, value);
-					}
-					response = new KVMessage(ACK);
-				}
-				if (response == null) {
-					throw new KVException(ERROR_INVALID_FORMAT);
-				}
+		protected KVMessage handleRequest(KVMessage request)
+				throws KVException {
+			return handleMessage(request);
+		}
 
-				// }
-			} catch (KVException e) {
-				response = e.getKVMessage();
-			}
+		/**
+		 * Logs the ACK once it has been sent to the master.
+		 */
+		@Override
+		protected void responseSent(KVMessage response) {
+			if (response.getMsgType().equals(ACK))
+				logAck(response);
+		}
+	}
 
-			try {
-				response.sendMessage(master);
-				if (response.getMsgType().equals(ACK))
-					tpcLog.appendAndFlush(response);
-			} catch (KVException e) {
-				// ignore
-			}
+	/**
+	 * Logs an ACK that has been sent to the master. If the log cannot take
+	 * it, the transaction is left open in the log, as after a crash before
+	 * the ACK was logged, and the log refuses every later request.
+	 */
+	private void logAck(KVMessage ack) {
+		try {
+			tpcLog.appendAndFlush(ack);
+		} catch (KVException e) {
+			System.err.println(e.getKVMessage().getMessage());
+		}
+	}
+
+	/**
+	 * Handles a single phase1 or phase2 message (or a get) from the master.
+	 * The master may have many transactions open here at once, each with
+	 * its own ID; the log keeps the table of those prepared and not decided
+	 * yet (see TPCLog.getPrepared()), and a COMMIT carries out the phase1
+	 * request with its ID. A phase1 request that comes after the decision
+	 * of its transaction gets a vote to abort and is not logged.
+	 * 
+	 * @param request
+	 *            KVMessage received from the master
+	 * @return response to send back to the master
+	 * @throws KVException
+	 *             if the request fails; its KVMessage is the response
+	 */
+	private KVMessage handleMessage(KVMessage request) throws KVException {
+		KVMessage response = null;
 
-			try {
-				master.close();
-			} catch (IOException e1) {
+		if (request.getMsgType().equals(GET_REQ)) {
+			String key = request.getKey();
+			checkKey(key);
+			String value = kvServer.get(key);
+			response = new KVMessage(RESP);
+			response.setKey(key);
+			response.setValue(value);
+		} else if (request.getMsgType().equals(DEL_REQ)
+				|| request.getMsgType().equals(PUT_REQ)) {
+			// an invalid request is refused before it is logged as prepared
+			checkKey(request.getKey());
+			if (request.getMsgType().equals(PUT_REQ))
+				checkValue(request.getValue());
+			else
+				kvServer.get(request.getKey());
+			if (tpcLog.appendPrepare(request))
+				response = new KVMessage(READY);
+			else
+				response = new KVMessage(ABORT, ERROR_TXN_DECIDED);
+			response.setTxnID(request.getTxnID());
+		}
+		if (request.getMsgType().equals(ABORT)) {
+			tpcLog.appendAndFlush(request);
+			response = new KVMessage(ACK);
+			response.setTxnID(request.getTxnID());
+		} else if (request.getMsgType().equals(COMMIT)) {
+			// null if this is the decision sent again because the master
+			// did not get our ACK
+			KVMessage operation = tpcLog.appendDecision(request);
+			if (operation == null) {
+				// nothing left to do
+			} else if (operation.getMsgType().equals(DEL_REQ)) {
+				String key = operation.getKey();
+				checkKey(key);
+				kvServer.del(key);
+			} else if (operation.getMsgType().equals(PUT_REQ)) {
+				String key = operation.getKey();
+				String value = operation.getValue();
+				checkKey(key);
+				checkValue(value);
+				kvServer.put(key, value);
 			}
+			response = new KVMessage(ACK);
+			response.setTxnID(request.getTxnID());
+		}
+		if (response == null) {
+			throw new KVException(ERROR_INVALID_FORMAT);
 		}
+		return response;
 	}
 }
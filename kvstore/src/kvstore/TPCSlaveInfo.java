@@ -4,16 +4,40 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.LinkedList;
 import java.util.regex.*;
 
 /**
- * Data structure to maintain information about SlaveServers
+ * Data structure to maintain information about SlaveServers, and the pool of
+ * connections the master keeps open to one.
+ *
+ * With setPoolLimits() the connections of sendRequest() speak the binary
+ * protocol and stay open after a response, for later requests to reuse
+ * instead of paying for a new TCP connection every time. A slave on a
+ * blocking SocketServer gives each open connection a thread of its
+ * ThreadPool until the master closes it, so maxTotal must not be more than
+ * those threads; a non-blocking SocketServer has no such limit.
  */
 public class TPCSlaveInfo {
 
     private long slaveID;
     private String hostname;
     private int port;
+    private InetSocketAddress address;
+
+    // idle connections, the last returned at the end, and all those open
+    private final LinkedList<KVConnection> idleConnections =
+            new LinkedList<KVConnection>();
+    private int openConnections = 0;
+    private int maxIdle = 0;
+    private int maxTotal = 0;
+
+    // The slave closes a connection left idle for IDLE_TIMEOUT_MILLISECONDS;
+    // giving up on one well before that avoids sending into a closing
+    // socket. One idle for longer than HEALTH_CHECK_MILLIS is first checked
+    // for having been closed by the slave meanwhile, e.g. as it restarted.
+    private static final long MAX_REUSE_IDLE_MILLIS = IDLE_TIMEOUT_MILLISECONDS / 2;
+    private static final long HEALTH_CHECK_MILLIS = 1000;
  // Regex to parse slave info
     private static final Pattern SLAVE_INFO_REGEX = Pattern.compile("^(.*)@(.*):(.*)$");
 
@@ -35,6 +59,7 @@ public class TPCSlaveInfo {
             slaveID = Long.parseLong(slaveInfoMatcher.group(1));
             hostname = slaveInfoMatcher.group(2);
             port = Integer.parseInt(slaveInfoMatcher.group(3));
+            address = new InetSocketAddress(hostname, port);
         } catch (Exception ex) {
             throw new KVException(new KVMessage(
                 RESP, ERROR_INVALID_FORMAT));
@@ -53,9 +78,216 @@ public class TPCSlaveInfo {
         return port;
     }
 
-    public void updateInfo(String _hostname, int _port) {
+    /**
+     * Points this at the address a slave registered again with, and closes
+     * the idle connections to its last address. Connections in use at the
+     * time are closed when they are returned.
+     *
+     * @param _hostname host of the slave
+     * @param _port port of the slave
+     */
+    public synchronized void updateInfo(String _hostname, int _port) {
     	hostname = _hostname;
     	port = _port;
+    	address = new InetSocketAddress(hostname, port);
+    	closeIdleConnections();
+    }
+
+    /**
+     * Sets how many connections to the slave sendRequest() keeps. Up to
+     * maxIdle stay open between requests, and no more than maxTotal are
+     * open at once, a request waiting for one to be returned otherwise.
+     * With maxIdle 0, the default, each request has a connection of its own.
+     *
+     * @param maxIdle connections kept open while no request uses them
+     * @param maxTotal connections open at once, 0 for no limit
+     */
+    public synchronized void setPoolLimits(int maxIdle, int maxTotal) {
+    	this.maxIdle = maxIdle;
+    	this.maxTotal = maxTotal;
+    	while (idleConnections.size() > maxIdle) {
+    		closeConnection(idleConnections.removeFirst());
+    	}
+    	notifyAll();
+    }
+
+    /**
+     * @return connections open to the slave, in use or idle
+     */
+    public synchronized int openConnections() {
+    	return openConnections;
+    }
+
+    /**
+     * Sends a request to the slave and waits for its response, over an idle
+     * connection if the pool has one. A connection the slave closed while it
+     * was idle fails at once, so the request is sent again over a new one;
+     * the master may repeat any request, the slave telling repeated
+     * decisions apart by their transaction ID.
+     *
+     * @param request KVMessage to send
+     * @param timeout milliseconds to wait for a connection, and for the
+     *        response
+     * @return response from the slave
+     * @throws KVException if unable to connect, send or receive
+     */
+    public KVMessage sendRequest(KVMessage request, int timeout)
+            throws KVException {
+    	KVConnection conn = takeIdleConnection();
+    	if (conn != null) {
+    		try {
+    			return exchange(conn, request, timeout);
+    		} catch (KVException e) {
+    			String error = e.getKVMessage().getMessage();
+    			if (!ERROR_COULD_NOT_SEND_DATA.equals(error)
+    					&& !ERROR_COULD_NOT_RECEIVE_DATA.equals(error)) {
+    				throw e;
+    			}
+    			// the others went idle around the same time
+    			synchronized (this) {
+    				closeIdleConnections();
+    			}
+    		}
+    	}
+    	return exchange(openConnection(timeout), request, timeout);
+    }
+
+    private KVMessage exchange(KVConnection conn, KVMessage request,
+    		int timeout) throws KVException {
+    	KVMessage response;
+    	try {
+    		conn.send(request);
+    		conn.setTimeout(timeout);
+    		response = conn.receive();
+    	} catch (KVException e) {
+    		synchronized (this) {
+    			closeConnection(conn);
+    		}
+    		throw e;
+    	}
+    	returnConnection(conn);
+    	return response;
+    }
+
+    /**
+     * @return an idle connection that passes its health check, or null
+     */
+    private KVConnection takeIdleConnection() {
+    	while (true) {
+    		KVConnection conn;
+    		synchronized (this) {
+    			if (idleConnections.isEmpty()) {
+    				return null;
+    			}
+    			conn = idleConnections.removeLast();
+    		}
+    		if (isHealthy(conn)) {
+    			return conn;
+    		}
+    		synchronized (this) {
+    			closeConnection(conn);
+    		}
+    	}
+    }
+
+    /**
+     * Checks a connection taken from the pool: it has not been idle for so
+     * long that the slave is about to close it, nothing arrived on it
+     * unasked, and after a while idle, the slave has not closed it.
+     */
+    private boolean isHealthy(KVConnection conn) {
+    	long idle = conn.getIdleMillis();
+    	if (idle >= MAX_REUSE_IDLE_MILLIS || conn.hasPendingInput()) {
+    		return false;
+    	}
+    	if (idle < HEALTH_CHECK_MILLIS) {
+    		return true;
+    	}
+    	try {
+    		conn.setTimeout(1);
+    		conn.awaitNext();
+    		// the slave sent something, or closed the connection
+    		return false;
+    	} catch (KVException e) {
+    		return e.getKVMessage().getMessage().equals(ERROR_SOCKET_TIMEOUT);
+    	}
+    }
+
+    /**
+     * Opens a new connection once fewer than maxTotal are open, or takes
+     * one returned to the pool meanwhile that passes its health check.
+     *
+     * @throws KVException ERROR_SOCKET_TIMEOUT if none is free within
+     *         timeout, or as connectHost()
+     */
+    private KVConnection openConnection(int timeout) throws KVException {
+    	long deadline = System.currentTimeMillis() + timeout;
+    	while (true) {
+    		synchronized (this) {
+    			if (maxTotal <= 0 || openConnections < maxTotal) {
+    				openConnections++;
+    				break;
+    			}
+    			if (idleConnections.isEmpty()) {
+    				long wait = deadline - System.currentTimeMillis();
+    				if (wait <= 0) {
+    					throw new KVException(new KVMessage(RESP,
+    							ERROR_SOCKET_TIMEOUT));
+    				}
+    				try {
+    					wait(wait);
+    				} catch (InterruptedException e) {
+    					throw new KVException(new KVMessage(RESP,
+    							ERROR_SOCKET_TIMEOUT));
+    				}
+    				continue;
+    			}
+    		}
+    		// a dead one is closed, leaving room to open another
+    		KVConnection conn = takeIdleConnection();
+    		if (conn != null) {
+    			return conn;
+    		}
+    	}
+    	try {
+    		return new KVConnection(connectHost(timeout), true);
+    	} catch (KVException e) {
+    		synchronized (this) {
+    			openConnections--;
+    			notifyAll();
+    		}
+    		throw e;
+    	}
+    }
+
+    /**
+     * Keeps a connection whose response has been read for the next request,
+     * or closes it if the pool is full or the slave has moved.
+     */
+    private synchronized void returnConnection(KVConnection conn) {
+    	if (idleConnections.size() < maxIdle
+    			&& address.equals(conn.getSocket().getRemoteSocketAddress())) {
+    		conn.markIdle();
+    		idleConnections.addLast(conn);
+    		notifyAll();
+    	} else {
+    		closeConnection(conn);
+    	}
+    }
+
+    private void closeIdleConnections() {
+    	while (!idleConnections.isEmpty()) {
+    		closeConnection(idleConnections.removeFirst());
+    	}
+    }
+
+    /**
+     * Closes a connection counted as open. Call holding the lock.
+     */
+    private void closeConnection(KVConnection conn) {
+    	conn.close();
+    	openConnections--;
+    	notifyAll();
     }
     
     /**
@@ -0,0 +1,187 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.*;
+
+public class BTreeStoreTest extends StorageEngineTest<BTreeStore> {
+
+    // small enough for most tests to evict pages
+    static final int CACHE_PAGES = 8;
+
+    @Override
+    protected BTreeStore newStore(File dir) throws Exception {
+        return new BTreeStore(dir.getPath(), CACHE_PAGES);
+    }
+
+    private static String key(int i) {
+        return String.format("key%06d", i);
+    }
+
+    @Test
+    public void oversizedKeyIsRejected() {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 1001; i++) {
+            key.append('k');
+        }
+        try {
+            store.put(key.toString(), "value");
+            fail("oversized key was stored");
+        } catch (KVException e) {
+            assertEquals(ERROR_OVERSIZED_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void randomPutsAndDelsMatchTreeMap() throws Exception {
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+        Random random = new Random(19);
+        for (int n = 0; n < 30000; n++) {
+            String key = key(random.nextInt(5000));
+            if (random.nextInt(3) == 0) {
+                if (expected.remove(key) != null) {
+                    store.del(key);
+                } else {
+                    assertNoKey(key);
+                }
+            } else {
+                String value = n % 100 == 0 ? bigValue(n) : "value" + n;
+                store.put(key, value);
+                expected.put(key, value);
+            }
+            if (n % 7000 == 0) {
+                store.sync();
+            }
+        }
+        checkContents(expected);
+        reopen();
+        checkContents(expected);
+
+        List<Map.Entry<String, String>> scanned = store.scan(key(2500), 100);
+        assertEquals(100, scanned.size());
+        Map.Entry<String, String> want = expected.ceilingEntry(key(2500));
+        for (Map.Entry<String, String> pair : scanned) {
+            assertEquals(want, pair);
+            want = expected.higherEntry(want.getKey());
+        }
+    }
+
+    private void checkContents(TreeMap<String, String> expected)
+            throws KVException {
+        for (int i = 0; i < 5000; i++) {
+            String value = expected.get(key(i));
+            if (value == null) {
+                assertNoKey(key(i));
+            } else {
+                assertEquals(value, store.get(key(i)));
+            }
+        }
+        assertEquals(expected.size(), store.scan("", Integer.MAX_VALUE).size());
+    }
+
+    private static String bigValue(int n) {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 10000) {
+            value.append(n).append(' ');
+        }
+        return value.toString();
+    }
+
+    @Test
+    public void pagesAreReusedAfterCommit() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 2000; i++) {
+                store.put(key(i), "value" + round);
+            }
+            store.sync();
+        }
+        int pages = store.pageCount();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 2000; i++) {
+                store.put(key(i), "value" + round);
+            }
+            store.sync();
+        }
+        assertEquals(pages, store.pageCount());
+        assertTrue(store.freePages() > 0);
+    }
+
+    @Test
+    public void crashKeepsLastCommit() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            store.put(key(i), "committed");
+        }
+        store.sync();
+        for (int i = 0; i < 3000; i++) {
+            store.put(key(i), "lost");
+        }
+        store.del(key(0));
+
+        // a copy of the file as it is now is what a crash would leave
+        File crashed = new File(dir, "crashed");
+        crashed.mkdir();
+        Files.copy(new File(dir, "btree").toPath(),
+                new File(crashed, "btree").toPath());
+        BTreeStore recovered = new BTreeStore(crashed.getPath(), CACHE_PAGES);
+        try {
+            for (int i = 0; i < 3000; i++) {
+                assertEquals("committed", recovered.get(key(i)));
+            }
+        } finally {
+            recovered.close();
+            new File(crashed, "btree").delete();
+            crashed.delete();
+        }
+        assertEquals("lost", store.get(key(1)));
+        assertNoKey(key(0));
+    }
+
+    @Test
+    public void pinnedPagesAreNotReused() throws Exception {
+        final int keys = 20000;
+        for (int i = 0; i < keys; i++) {
+            store.put(key(i), "0");
+        }
+        // rewrites and commits everything twice once the snapshot is begun
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            boolean rewritten = false;
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                if (!rewritten && size() > 1024) {
+                    rewritten = true;
+                    try {
+                        for (int round = 1; round <= 2; round++) {
+                            for (int i = 0; i < keys; i++) {
+                                store.put(key(i), Integer.toString(round));
+                            }
+                            store.sync();
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        store.writeSnapshot(out);
+
+        KVStore copy = new KVStore();
+        copy.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < keys; i++) {
+            assertEquals("0", copy.get(key(i)));
+            assertEquals("2", store.get(key(i)));
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package kvstore;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmark programs in this directory. Benchmarks are
+ * plain main() programs rather than JUnit tests so that "ant test" stays
+ * fast; run one with "ant runbenchmark -Dbenchmark=NameBenchmark" and pass
+ * arguments with -Dargs="...".
+ */
+public class BenchmarkUtils {
+
+    static int intArg(String[] args, int i, int defaultValue) {
+        return args.length > i ? Integer.parseInt(args[i]) : defaultValue;
+    }
+
+    static double opsPerSec(long ops, long nanos) {
+        return ops * 1e9 / nanos;
+    }
+
+    /**
+     * Returns the p-th percentile (0 < p <= 100) of the given latencies in
+     * microseconds. Sorts the array in place.
+     */
+    static double percentileMicros(long[] nanos, double p) {
+        Arrays.sort(nanos);
+        int i = (int) Math.ceil(p / 100.0 * nanos.length) - 1;
+        return nanos[Math.max(0, Math.min(nanos.length - 1, i))] / 1000.0;
+    }
+
+    static String sizeName(long bytes) {
+        if (bytes >= 1024 * 1024 && bytes % (1024 * 1024) == 0) {
+            return (bytes / (1024 * 1024)) + "M";
+        }
+        if (bytes >= 1024 && bytes % 1024 == 0) {
+            return (bytes / 1024) + "K";
+        }
+        return Long.toString(bytes);
+    }
+
+    /**
+     * Draws count ranks from a Zipfian distribution over 0..n-1 with
+     * exponent theta, rank 0 being the most popular. Drawn up front so that
+     * generating keys does not show up in the measurement.
+     */
+    static int[] zipfRanks(int n, double theta, int count, Random random) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, theta);
+            cdf[i] = sum;
+        }
+        int[] ranks = new int[count];
+        for (int i = 0; i < count; i++) {
+            int r = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            ranks[i] = Math.min(n - 1, r < 0 ? -r - 1 : r);
+        }
+        return ranks;
+    }
+
+}
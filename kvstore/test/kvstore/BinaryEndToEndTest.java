@@ -0,0 +1,117 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BinaryEndToEndTest extends EndToEndTemplate {
+
+    @Test
+    public void testPutGetDel() throws KVException, IOException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        KVClient binaryClient = new KVClient(hostname, 8080, true);
+
+        binaryClient.put("fuzzy", "wuzzy");
+        assertEquals("wuzzy", binaryClient.get("fuzzy"));
+        binaryClient.put("fuzzy", "ursa \u00e9");
+        assertEquals("ursa \u00e9", binaryClient.get("fuzzy"));
+        binaryClient.del("fuzzy");
+        try {
+            binaryClient.get("fuzzy");
+            fail("get after del should error");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY,
+                    e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void testMixedProtocols() throws KVException, IOException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        KVClient binaryClient = new KVClient(hostname, 8080, true);
+
+        binaryClient.put("key", "binary");
+        assertEquals("binary", client.get("key"));
+        client.put("key", "xml");
+        assertEquals("xml", binaryClient.get("key"));
+    }
+
+    @Test
+    public void testKeepAlive() throws KVException, IOException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        KVClient keepAliveClient = new KVClient(hostname, 8080, true, true);
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                keepAliveClient.put("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("value" + i, keepAliveClient.get("key" + i));
+            }
+            // The idle connection pins one of the two workers; the other one
+            // still serves one-shot clients.
+            assertEquals("value3", client.get("key3"));
+            keepAliveClient.del("key3");
+            try {
+                keepAliveClient.get("key3");
+                fail("get after del should error");
+            } catch (KVException e) {
+                assertEquals(KVConstants.ERROR_NO_SUCH_KEY,
+                        e.getKVMessage().getMessage());
+            }
+            keepAliveClient.close();
+            assertEquals("value4", keepAliveClient.get("key4"));
+        } finally {
+            keepAliveClient.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeepAliveRequiresBinary() throws IOException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        new KVClient(hostname, 8080, false, true);
+    }
+
+    @Test
+    public void testPipeline() throws KVException, IOException {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        KVClient binaryClient = new KVClient(hostname, 8080, true);
+        KVClient.Pipeline pipeline = binaryClient.pipeline();
+
+        int n = 500;
+        for (int i = 0; i < n; i++) {
+            pipeline.put("key" + i, "value" + i);
+            pipeline.get("key" + i);
+        }
+        pipeline.del("key0");
+        pipeline.get("key0");
+        assertEquals(2 * n + 2, pipeline.size());
+
+        List<KVMessage> responses = pipeline.execute();
+        assertEquals(0, pipeline.size());
+        assertEquals(2 * n + 2, responses.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(KVConstants.SUCCESS, responses.get(2 * i).getMessage());
+            assertEquals("value" + i, responses.get(2 * i + 1).getValue());
+        }
+        assertEquals(KVConstants.SUCCESS, responses.get(2 * n).getMessage());
+        assertEquals(KVConstants.ERROR_NO_SUCH_KEY,
+                responses.get(2 * n + 1).getMessage());
+        assertEquals("value1", client.get("key1"));
+    }
+
+    @Test
+    public void testPipelineOverXML() throws KVException {
+        KVClient.Pipeline pipeline = client.pipeline();
+        pipeline.put("key", "xml");
+        pipeline.get("key");
+        List<KVMessage> responses = pipeline.execute();
+        assertEquals(KVConstants.SUCCESS, responses.get(0).getMessage());
+        assertEquals("xml", responses.get(1).getValue());
+    }
+
+}
@@ -0,0 +1,151 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.*;
+
+public class BitcaskStoreTest extends StorageEngineTest<BitcaskStore> {
+
+    @Override
+    protected BitcaskStore newStore(File dir) throws Exception {
+        return new BitcaskStore(dir.getPath(), 4096, 0);
+    }
+
+    /**
+     * Merges files in the background as they are written.
+     */
+    @Override
+    protected BitcaskStore newBusyStore(File dir) throws Exception {
+        return new BitcaskStore(dir.getPath(), 65536, 0.3);
+    }
+
+    @Test
+    public void reopenKeepsLatestValues() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            store.put("key" + i, "first" + i);
+        }
+        for (int i = 0; i < 500; i += 2) {
+            store.put("key" + i, "second" + i);
+        }
+        for (int i = 0; i < 500; i += 5) {
+            store.del("key" + i);
+        }
+        store.put("key0", "back");
+        assertTrue(store.fileCount() > 1);
+
+        reopen();
+        for (int i = 1; i < 500; i++) {
+            if (i % 5 == 0) {
+                assertNoKey("key" + i);
+            } else {
+                assertEquals((i % 2 == 0 ? "second" : "first") + i,
+                        store.get("key" + i));
+            }
+        }
+        assertEquals("back", store.get("key0"));
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws Exception {
+        store.put("kept", "value");
+        store.put("torn", "value");
+        store.close();
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        File last = files[files.length - 1];
+        RandomAccessFile file = new RandomAccessFile(last, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        store = newStore(dir);
+        assertEquals("value", store.get("kept"));
+        assertNoKey("torn");
+        store.put("after", "value");
+        reopen();
+        assertEquals("value", store.get("kept"));
+        assertEquals("value", store.get("after"));
+    }
+
+    @Test
+    public void compactionReclaimsDeadRecords() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.put("key" + i, "value" + round + "." + i);
+            }
+        }
+        for (int i = 0; i < 100; i += 3) {
+            store.del("key" + i);
+        }
+        long before = store.fileBytes();
+        assertTrue(store.deadBytes() > before / 2);
+
+        store.compact();
+        assertTrue(store.fileBytes() < before / 4);
+        reopen();
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                assertNoKey("key" + i);
+            } else {
+                assertEquals("value9." + i, store.get("key" + i));
+            }
+        }
+    }
+
+    @Test
+    public void compactsInBackground() throws Exception {
+        store.close();
+        store = new BitcaskStore(dir.getPath(), 4096, 0.5);
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 50; i++) {
+                store.put("key" + i, "value" + round + "." + i);
+            }
+            assertEquals("value" + round + ".7", store.get("key7"));
+        }
+        store.awaitCompaction();
+        assertTrue(store.merges() > 0);
+        reopen();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value49." + i, store.get("key" + i));
+        }
+    }
+
+    @Test
+    public void reportsFailedBackgroundMerge() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                store.put("key" + i, "value" + round + "." + i);
+            }
+        }
+        store.close();
+        int last = 0;
+        for (String name : dir.list()) {
+            last = Math.max(last, Integer.parseInt(name.substring(5)));
+        }
+        store = new BitcaskStore(dir.getPath(), 4096, 0.5);
+        // opening started file last + 1 and the next roll starts last + 2,
+        // so the merge that roll starts fails to create its first file
+        File blocker = new File(dir, String.format("data.%08d", last + 3));
+        assertTrue(blocker.mkdir());
+        int files = store.fileCount();
+        for (int i = 0; store.fileCount() == files; i++) {
+            store.put("new" + i, "value" + i);
+        }
+        store.awaitCompaction();
+        assertEquals(0, store.merges());
+        try {
+            store.sync();
+            fail("background merge failure was dropped");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("compact"));
+        }
+        store.sync();
+        assertEquals("value9.7", store.get("key7"));
+        assertTrue(blocker.delete());
+    }
+
+}
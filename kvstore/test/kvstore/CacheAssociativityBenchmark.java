@@ -0,0 +1,74 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures KVCache lookup latency as associativity grows. Each cache is
+ * filled by inserting twice as many keys as it has slots; hits then look up
+ * the keys still resident through getOptimistic() as KVServer does, and
+ * misses look up keys that were never inserted.
+ *
+ * Arguments: [lookups] [numSets]
+ */
+public class CacheAssociativityBenchmark {
+
+    static final int[] WAYS = { 8, 16, 64, 256, 1024 };
+
+    public static void main(String[] args) {
+        int lookups = BenchmarkUtils.intArg(args, 0, 2000000);
+        int numSets = BenchmarkUtils.intArg(args, 1, 16);
+
+        System.out.format("%-6s %12s %12s%n", "ways", "hit ns", "miss ns");
+        for (int round = 0; round < 2; round++) {
+            for (int ways : WAYS) {
+                KVCache cache = new KVCache(numSets, ways);
+                int inserted = 2 * numSets * ways;
+                for (int i = 0; i < inserted; i++) {
+                    String key = "key" + i;
+                    cache.getLock(key).lock();
+                    try {
+                        cache.put(key, key);
+                    } finally {
+                        cache.getLock(key).unlock();
+                    }
+                }
+                List<String> resident = new ArrayList<String>();
+                List<String> absent = new ArrayList<String>();
+                for (int i = 0; i < inserted; i++) {
+                    if (cache.getOptimistic("key" + i) != null) {
+                        resident.add("key" + i);
+                    }
+                    absent.add("absent" + i);
+                }
+                double hit = lookupNanos(cache, resident, lookups);
+                double miss = lookupNanos(cache, absent, lookups);
+                if (round > 0) {
+                    System.out.format("%-6d %12.1f %12.1f%n", ways, hit, miss);
+                }
+            }
+        }
+    }
+
+    static double lookupNanos(KVCache cache, List<String> keys, int lookups) {
+        Random random = new Random(1);
+        String[] picks = new String[lookups];
+        for (int i = 0; i < lookups; i++) {
+            picks[i] = keys.get(random.nextInt(keys.size()));
+        }
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (cache.getOptimistic(picks[i]) != null) {
+                found++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found < 0) {
+            throw new AssertionError();
+        }
+        return (double) elapsed / lookups;
+    }
+
+}
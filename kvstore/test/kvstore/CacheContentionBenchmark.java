@@ -0,0 +1,86 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures KVServer get throughput on a skewed key distribution, where a few
+ * hot keys, and so a few cache sets, receive most of the reads. Keys follow
+ * a Zipfian distribution (theta 0.99 by default) over a key space that is
+ * mostly cached; each thread issues gets with an optional share of puts.
+ *
+ * Arguments: [opsPerThread] [keys] [putPercent] [theta]
+ */
+public class CacheContentionBenchmark {
+
+    static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    public static void main(String[] args) throws Exception {
+        int opsPerThread = BenchmarkUtils.intArg(args, 0, 500000);
+        int keys = BenchmarkUtils.intArg(args, 1, 1000);
+        int putPercent = BenchmarkUtils.intArg(args, 2, 0);
+        double theta = args.length > 3 ? Double.parseDouble(args[3]) : 0.99;
+
+        KVServer server = new KVServer(100, 10);
+        String value = Utils.makeLongString(64);
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key" + i;
+            server.put(names[i], value);
+        }
+
+        System.out.println("available processors: "
+                + Runtime.getRuntime().availableProcessors());
+        System.out.format("%-8s %12s%n", "threads", "ops/sec");
+        run(server, 4, opsPerThread, names, putPercent, theta, value);
+        for (int threads : THREADS) {
+            double ops = run(server, threads, opsPerThread, names, putPercent,
+                    theta, value);
+            System.out.format("%-8d %12.0f%n", threads, ops);
+        }
+    }
+
+    static double run(final KVServer server, int threads, final int ops,
+            final String[] names, final int putPercent, double theta,
+            final String value) throws Exception {
+        final Exception[] failure = new Exception[1];
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            final int[] ranks = BenchmarkUtils.zipfRanks(names.length, theta,
+                    ops, random);
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < ops; i++) {
+                            String key = names[ranks[i]];
+                            if (putPercent > 0
+                                    && random.nextInt(100) < putPercent) {
+                                server.put(key, value);
+                            } else {
+                                server.get(key);
+                            }
+                        }
+                    } catch (KVException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return BenchmarkUtils.opsPerSec((long) threads * ops, elapsed);
+    }
+
+}
@@ -0,0 +1,115 @@
+package kvstore;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares one-shot XML, one-shot binary and persistent binary connections
+ * against a KVServer on the loopback interface. Each client thread issues an
+ * even mix of puts and gets over a small key space; throughput and p50/p99
+ * latency are reported for each mode and thread count.
+ *
+ * Persistent connections hold a server worker for as long as they stay open,
+ * so the thread counts are kept below the number of workers.
+ *
+ * Arguments: [opsPerThread] [valueSize]
+ */
+public class ConnectionReuseBenchmark {
+
+    static final int[] THREADS = { 1, 8 };
+    static final int WORKERS = 16;
+    static final int KEYS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int opsPerThread = BenchmarkUtils.intArg(args, 0, 5000);
+        int valueSize = BenchmarkUtils.intArg(args, 1, 128);
+        String value = Utils.makeLongString(valueSize);
+
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname, 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10), WORKERS));
+        ServerRunner runner = new ServerRunner(ss, "benchserver");
+        runner.start();
+        try {
+            KVClient seed = new KVClient(hostname, ss.getPort(), true);
+            for (int i = 0; i < KEYS; i++) {
+                seed.put("key" + i, value);
+            }
+
+            System.out.format("%-18s %7s %12s %10s %10s%n", "mode", "threads",
+                    "ops/sec", "p50 us", "p99 us");
+            String[] modes = { "xml one-shot", "binary one-shot",
+                    "binary keep-alive" };
+            for (int threads : THREADS) {
+                for (int m = 0; m < modes.length; m++) {
+                    KVClient client = new KVClient(hostname, ss.getPort(),
+                            m > 0, m == 2);
+                    run(client, threads, opsPerThread / 4, value);
+                    long[] latencies = new long[threads * opsPerThread];
+                    long elapsed = run(client, threads, opsPerThread, value,
+                            latencies);
+                    client.close();
+                    System.out.format("%-18s %7d %12.0f %10.1f %10.1f%n",
+                            modes[m], threads,
+                            BenchmarkUtils.opsPerSec(latencies.length, elapsed),
+                            BenchmarkUtils.percentileMicros(latencies, 50),
+                            BenchmarkUtils.percentileMicros(latencies, 99));
+                }
+            }
+        } finally {
+            runner.stop();
+        }
+        System.exit(0);
+    }
+
+    static long run(KVClient client, int threads, int ops, String value)
+            throws Exception {
+        return run(client, threads, ops, value, new long[threads * ops]);
+    }
+
+    /**
+     * Runs ops requests on each of threads threads sharing client, recording
+     * per-request latency into latencies. Returns the elapsed wall time.
+     */
+    static long run(final KVClient client, int threads, final int ops,
+            final String value, final long[] latencies) throws Exception {
+        final Exception[] failure = new Exception[1];
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * ops;
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < ops; i++) {
+                            String key = "key" + ((offset + i) % KEYS);
+                            long start = System.nanoTime();
+                            if ((i & 1) == 0) {
+                                client.get(key);
+                            } else {
+                                client.put(key, value);
+                            }
+                            latencies[offset + i] = System.nanoTime() - start;
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return elapsed;
+    }
+
+}
@@ -0,0 +1,62 @@
+package kvstore;
+
+import java.util.Random;
+
+/**
+ * Single-threaded KVCache throughput for the operations the replacement
+ * policy is involved in: puts that miss and evict, hits that set reference
+ * bits, and dels followed by re-inserts. The set lock is taken around each
+ * call as KVServer does.
+ *
+ * Arguments: [ops] [numSets] [maxElemsPerSet]
+ */
+public class KVCacheBenchmark {
+
+    public static void main(String[] args) {
+        int ops = BenchmarkUtils.intArg(args, 0, 5000000);
+        int numSets = BenchmarkUtils.intArg(args, 1, 100);
+        int maxElemsPerSet = BenchmarkUtils.intArg(args, 2, 10);
+
+        int capacity = numSets * maxElemsPerSet;
+        String[] keys = new String[capacity * 4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+        int[] picks = new int[ops];
+        Random random = new Random(42);
+        for (int i = 0; i < ops; i++) {
+            picks[i] = random.nextInt(keys.length);
+        }
+
+        System.out.format("%-16s %12s%n", "workload", "ops/sec");
+        String[] workloads = { "put (evicting)", "get/put 50/50",
+                "del/put 50/50" };
+        for (int round = 0; round < 2; round++) {
+            for (int w = 0; w < workloads.length; w++) {
+                KVCache cache = new KVCache(numSets, maxElemsPerSet);
+                long start = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    String key = keys[picks[i]];
+                    cache.getLock(key).lock();
+                    try {
+                        if (w == 0 || (i & 1) == 0) {
+                            cache.put(key, key);
+                        } else if (w == 1) {
+                            cache.get(key);
+                        } else {
+                            cache.del(key);
+                        }
+                    } finally {
+                        cache.getLock(key).unlock();
+                    }
+                }
+                double rate = BenchmarkUtils.opsPerSec(ops,
+                        System.nanoTime() - start);
+                if (round > 0) {
+                    System.out.format("%-16s %12.0f%n", workloads[w], rate);
+                }
+            }
+        }
+    }
+
+}
@@ -2,6 +2,8 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.util.*;
+
 import org.junit.*;
 
 public class KVCacheTest {
@@ -37,4 +39,152 @@ public class KVCacheTest {
     	assertNull(cache.get("k4"));
     }
 
+    @Test
+    public void testOptimisticGetWithSecondChance(){
+    	KVCache cache = new KVCache(1, 3);
+    	cache.put("k1", "k1");
+    	cache.put("k2", "k2");
+    	cache.put("k3", "k3");
+    	assertEquals("k1", cache.getOptimistic("k1"));
+    	cache.put("k4", "k4");
+    	assertNotNull(cache.getOptimistic("k1"));
+    	assertNull(cache.getOptimistic("k2"));
+    	cache.put("k5", "k5");
+    	assertNull(cache.getOptimistic("k3"));
+    	cache.del("k1");
+    	assertNull(cache.getOptimistic("k1"));
+    }
+
+    /**
+     * Readers racing with writers in the same set must only ever see a value
+     * that was put for the key they asked for.
+     */
+    @Test
+    public void testOptimisticGetDuringWrites() throws InterruptedException {
+    	final KVCache cache = new KVCache(2, 4);
+    	final boolean[] failed = new boolean[1];
+    	final int rounds = 200000;
+    	Thread writer = new Thread() {
+    		@Override
+    		public void run() {
+    			for(int i = 0; i < rounds; i++){
+    				String key = "k" + (i % 12);
+    				cache.getLock(key).lock();
+    				try{
+    					if(i % 7 == 0){
+    						cache.del(key);
+    					}else{
+    						cache.put(key, key + ":" + i);
+    					}
+    				}finally{
+    					cache.getLock(key).unlock();
+    				}
+    			}
+    		}
+    	};
+    	Thread reader = new Thread() {
+    		@Override
+    		public void run() {
+    			for(int i = 0; i < rounds; i++){
+    				String key = "k" + (i % 12);
+    				String value = cache.getOptimistic(key);
+    				if(value != null && !value.startsWith(key + ":")){
+    					failed[0] = true;
+    				}
+    			}
+    		}
+    	};
+    	writer.start();
+    	reader.start();
+    	writer.join();
+    	reader.join();
+    	assertFalse(failed[0]);
+    }
+
+    /**
+     * Compare a single set against a straightforward second-chance queue
+     * over random puts, gets and dels.
+     */
+    @Test
+    public void testEvictionOrderMatchesQueueModel(){
+    	checkAgainstQueueModel(4, 8);
+    }
+
+    @Test
+    public void testHighAssociativityMatchesQueueModel(){
+    	checkAgainstQueueModel(256, 400);
+    }
+
+    private void checkAgainstQueueModel(int ways, int keys){
+    	KVCache cache = new KVCache(1, ways);
+    	LinkedList<String> queue = new LinkedList<String>();
+    	Map<String, String> values = new HashMap<String, String>();
+    	Set<String> referenced = new HashSet<String>();
+    	Random random = new Random(7);
+    	for(int i = 0; i < 20000 + 50 * keys; i++){
+    		String key = "k" + random.nextInt(keys);
+    		int op = random.nextInt(3);
+    		if(op == 0){
+    			String value = "v" + i;
+    			cache.put(key, value);
+    			if(values.containsKey(key)){
+    				referenced.add(key);
+    			}else{
+    				if(queue.size() == ways){
+    					String victim = queue.removeFirst();
+    					while(referenced.remove(victim)){
+    						queue.addLast(victim);
+    						victim = queue.removeFirst();
+    					}
+    					values.remove(victim);
+    				}
+    				queue.addLast(key);
+    			}
+    			values.put(key, value);
+    		}else if(op == 1){
+    			assertEquals(values.get(key), cache.get(key));
+    			if(values.containsKey(key)){
+    				referenced.add(key);
+    			}
+    		}else{
+    			cache.del(key);
+    			if(values.remove(key) != null){
+    				queue.remove(key);
+    				referenced.remove(key);
+    			}
+    		}
+    	}
+    }
+
+    @Test
+    public void testMinValueHashCode(){
+    	// "polygenelubricants".hashCode() == Integer.MIN_VALUE, for which
+    	// Math.abs() stays negative
+    	String key = "polygenelubricants";
+    	assertEquals(Integer.MIN_VALUE, key.hashCode());
+    	KVCache cache = new KVCache(100, 10);
+    	int setId = cache.getSetId(key);
+    	assertTrue(setId >= 0 && setId < 100);
+    	cache.put(key, "value");
+    	assertEquals("value", cache.get(key));
+    }
+
+    @Test
+    public void testSequentialKeysSpreadOverSets(){
+    	int[] counts = new int[128];
+    	KVCache cache = new KVCache(128, 8);
+    	for(int i = 0; i < 1024; i++){
+    		counts[cache.getSetId(String.format("user:%06d", i))]++;
+    	}
+    	// String.hashCode() % 128 leaves 24 of these sets empty
+    	int empty = 0;
+    	for(int count : counts){
+    		assertTrue(count < 24);
+    		if(count == 0){
+    			empty++;
+    		}
+    	}
+    	assertTrue(empty <= 2);
+    }
+
 }
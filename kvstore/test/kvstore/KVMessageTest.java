@@ -96,6 +96,81 @@ public class KVMessageTest {
     	assertEquals(kvm.getValue(), kvm1.getValue());
     }
 
+    @Test
+    public void binaryRoundTripsPutReq() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("key \u00e9\u4e2d");
+        kvm.setValue(Utils.makeLongString(300));
+        KVMessage kvm1 = new KVMessage(kvm.toBinary());
+        assertEquals(PUT_REQ, kvm1.getMsgType());
+        assertEquals(kvm.getKey(), kvm1.getKey());
+        assertEquals(kvm.getValue(), kvm1.getValue());
+        assertNull(kvm1.getMessage());
+    }
+
+    @Test
+    public void binaryRoundTripsErrorResp() throws KVException {
+        KVMessage kvm = new KVMessage(RESP, ERROR_NO_SUCH_KEY);
+        KVMessage kvm1 = new KVMessage(kvm.toBinary());
+        assertEquals(RESP, kvm1.getMsgType());
+        assertEquals(ERROR_NO_SUCH_KEY, kvm1.getMessage());
+        assertNull(kvm1.getKey());
+        assertNull(kvm1.getValue());
+    }
+
+    @Test
+    public void binaryRejectsTruncatedBody() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("key");
+        kvm.setValue("value");
+        byte[] body = kvm.toBinary();
+        try {
+            new KVMessage(Arrays.copyOf(body, body.length - 1));
+            fail("Didn't fail on truncated body");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryRejectsPutReqWithoutValue() {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("key");
+        try {
+            kvm.toBinary();
+            fail("Didn't fail on putreq without value");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void transactionIDRoundTrips() throws KVException {
+        KVMessage kvm = new KVMessage(DEL_REQ);
+        kvm.setKey("key");
+        kvm.setTxnID("42");
+        KVMessage fromBinary = new KVMessage(kvm.toBinary());
+        assertEquals("42", fromBinary.getTxnID());
+        assertEquals("key", fromBinary.getKey());
+        KVMessage fromXML = new KVMessage(new ByteArrayInputStream(
+                kvm.toXML().getBytes()));
+        assertEquals("42", fromXML.getTxnID());
+        assertNull(new KVMessage(new KVMessage(ACK).toBinary()).getTxnID());
+    }
+
+    @Test
+    public void rejectsTransactionIDOutsideTransaction() {
+        KVMessage kvm = new KVMessage(GET_REQ);
+        kvm.setKey("key");
+        kvm.setTxnID("42");
+        try {
+            kvm.toBinary();
+            fail("Didn't fail on getreq with a transaction ID");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
     /* Begin helper methods */
 
     private void setupSocket(String filename) {
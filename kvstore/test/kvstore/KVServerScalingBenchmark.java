@@ -0,0 +1,87 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures KVServer throughput from 1 to 32 threads. The key space is much
+ * larger than the cache, so most gets miss and go to the store, which is the
+ * path that used to be serialized by a single server-wide lock. Each thread
+ * picks keys uniformly at random and issues gets, with puts mixed in at the
+ * given percentage.
+ *
+ * Arguments: [opsPerThread] [keys] [putPercent]
+ */
+public class KVServerScalingBenchmark {
+
+    static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    public static void main(String[] args) throws Exception {
+        int opsPerThread = BenchmarkUtils.intArg(args, 0, 200000);
+        int keys = BenchmarkUtils.intArg(args, 1, 100000);
+        int putPercent = BenchmarkUtils.intArg(args, 2, 10);
+
+        KVServer server = new KVServer(100, 10);
+        String value = Utils.makeLongString(64);
+        for (int i = 0; i < keys; i++) {
+            server.put("key" + i, value);
+        }
+
+        System.out.println("available processors: "
+                + Runtime.getRuntime().availableProcessors());
+        System.out.format("%-8s %12s %8s%n", "threads", "ops/sec", "scaling");
+        run(server, 4, opsPerThread, keys, putPercent, value);
+        double single = 0;
+        for (int threads : THREADS) {
+            double ops = run(server, threads, opsPerThread, keys, putPercent,
+                    value);
+            if (threads == 1) {
+                single = ops;
+            }
+            System.out.format("%-8d %12.0f %7.2fx%n", threads, ops,
+                    ops / single);
+        }
+    }
+
+    static double run(final KVServer server, int threads, final int ops,
+            final int keys, final int putPercent, final String value)
+            throws Exception {
+        final Exception[] failure = new Exception[1];
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < ops; i++) {
+                            String key = "key" + random.nextInt(keys);
+                            if (random.nextInt(100) < putPercent) {
+                                server.put(key, value);
+                            } else {
+                                server.get(key);
+                            }
+                        }
+                    } catch (KVException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return BenchmarkUtils.opsPerSec((long) threads * ops, elapsed);
+    }
+
+}
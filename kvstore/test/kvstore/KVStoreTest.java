@@ -3,6 +3,18 @@ package kvstore;
 import static kvstore.KVConstants.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
 import org.junit.*;
 
 public class KVStoreTest {
@@ -22,4 +34,326 @@ public class KVStoreTest {
         assertEquals(val, store.get(key));
     }
 
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + i, "value \u00e9 " + i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeSnapshot(out);
+
+        KVStore restored = new KVStore();
+        restored.put("stale", "gone");
+        restored.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value \u00e9 " + i, restored.get("key" + i));
+        }
+        try {
+            restored.get("stale");
+            fail("restore kept an old key");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void corruptSnapshotIsRejected() throws Exception {
+        store.put(key(), "value");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeSnapshot(out);
+        byte[] bytes = out.toByteArray();
+        bytes[bytes.length / 2] ^= 1;
+
+        KVStore restored = new KVStore();
+        restored.put("kept", "value");
+        try {
+            restored.readSnapshot(new ByteArrayInputStream(bytes));
+            fail("corrupt snapshot was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("value", restored.get("kept"));
+    }
+
+    @Test
+    public void compressedSnapshotRoundTrip() throws Exception {
+        // spans several blocks, with one value bigger than a block
+        String big = Utils.makeLongString(200 * 1024);
+        store.put("big", big);
+        for (int i = 0; i < 20000; i++) {
+            store.put("key" + i, "value " + i);
+        }
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        store.writeSnapshot(plain, false);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        store.writeSnapshot(compressed, true);
+        assertTrue(compressed.size() < plain.size());
+
+        KVStore restored = new KVStore();
+        restored.readSnapshot(new ByteArrayInputStream(
+                compressed.toByteArray()));
+        assertEquals(big, restored.get("big"));
+        for (int i = 0; i < 20000; i++) {
+            assertEquals("value " + i, restored.get("key" + i));
+        }
+    }
+
+    @Test
+    public void restoreFromFileReadsSnapshotAndXml() throws Exception {
+        store.put(key(), "value & <more>");
+        File file = File.createTempFile("kvstore", ".dump");
+        try {
+            store.dumpSnapshotToFile(file.getPath(), true);
+            KVStore restored = new KVStore();
+            restored.restoreFromFile(file.getPath());
+            assertEquals("value & <more>", restored.get(key()));
+
+            store.dumpToFile(file.getPath());
+            restored = new KVStore();
+            restored.restoreFromFile(file.getPath());
+            assertEquals("value & <more>", restored.get(key()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readsVersion1Snapshot() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(KVSnapshot.MAGIC);
+        out.writeInt(1);
+        for (String s : new String[] { key(), "value \u00e9" }) {
+            byte[] utf8 = s.getBytes("UTF-8");
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+        out.writeInt(-1);
+        out.writeLong(1);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        store.readSnapshot(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("value \u00e9", store.get(key()));
+    }
+
+    @Test
+    public void xmlDumpRoundTripsLargeStore() throws Exception {
+        // Tests run with a 128 MB heap; building this store as a DOM
+        // document runs out of memory
+        int pairs = 200000;
+        String pad = Utils.makeLongString(100);
+        for (int i = 0; i < pairs; i++) {
+            store.put("key" + i, pad + i);
+        }
+        File file = File.createTempFile("kvstore", ".xml");
+        try {
+            store.dumpToFile(file.getPath());
+            store = null;
+            KVStore restored = new KVStore();
+            restored.restoreFromFile(file.getPath());
+            for (int i = 0; i < pairs; i++) {
+                assertEquals(pad + i, restored.get("key" + i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void snapshotIsPointInTime() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        KVStore.Snapshot snapshot = store.snapshot();
+        Iterator<Map.Entry<String, String>> pairs = snapshot.iterator();
+        store.put("key0", "changed");
+        store.put("key0", "changed again");
+        store.del("key1");
+        store.put("key1", "back");
+        store.del("key2");
+        store.put("new", "value");
+
+        Map<String, String> seen = new HashMap<String, String>();
+        while (pairs.hasNext()) {
+            Map.Entry<String, String> pair = pairs.next();
+            assertNull("key seen twice", seen.put(pair.getKey(),
+                    pair.getValue()));
+            if (seen.size() == 50) {
+                store.del("key99");
+                store.put("key98", "late");
+            }
+        }
+        snapshot.close();
+        assertEquals(100, seen.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, seen.get("key" + i));
+        }
+        assertEquals("changed again", store.get("key0"));
+        assertEquals("late", store.get("key98"));
+    }
+
+    @Test
+    public void snapshotUnderConcurrentWritesIsConsistent() throws Exception {
+        // The writer sets every key to round r in key order, deleting some
+        // first, so at any moment the rounds never increase along the keys
+        // and differ by at most one; a point-in-time view must show the same.
+        final int keys = 2000;
+        for (int i = 0; i < keys; i++) {
+            store.put("key" + i, "0");
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int round = 1; !done.get(); round++) {
+                    for (int i = 0; i < keys; i++) {
+                        if (i % 7 == 0) {
+                            try {
+                                store.del("key" + i);
+                            } catch (KVException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                        store.put("key" + i, Integer.toString(round));
+                    }
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int s = 0; s < 50; s++) {
+                int[] rounds = new int[keys];
+                Arrays.fill(rounds, -1);
+                int count = 0;
+                KVStore.Snapshot snapshot = store.snapshot();
+                try {
+                    for (Map.Entry<String, String> pair : snapshot) {
+                        rounds[Integer.parseInt(pair.getKey().substring(3))] =
+                                Integer.parseInt(pair.getValue());
+                        count++;
+                    }
+                } finally {
+                    snapshot.close();
+                }
+                // the key being rewritten may be between its del and put
+                assertTrue(count >= keys - 1);
+                int first = -1;
+                int previous = Integer.MAX_VALUE;
+                for (int i = 0; i < keys; i++) {
+                    if (rounds[i] == -1) {
+                        continue;
+                    }
+                    first = first == -1 ? rounds[i] : first;
+                    assertTrue(rounds[i] <= previous);
+                    assertTrue(first - rounds[i] <= 1);
+                    previous = rounds[i];
+                }
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void offHeapValues() throws Exception {
+        store = new KVStore(true);
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 256 * 1024) {
+            large.append("\u00e9\u20ac\ud83d\ude00 ");
+        }
+        String[] values = { "", "v", "value \u00e9", large.toString() };
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < values.length; i++) {
+                store.put("key" + i, values[i]);
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], store.get("key" + i));
+        }
+        store.del("key3");
+        long slabBytes = store.offHeapBytes();
+        for (int round = 0; round < 100; round++) {
+            store.put("key3", values[3]);
+            store.del("key3");
+        }
+        // the chunk freed by each del is reused by the next put
+        assertEquals(slabBytes, store.offHeapBytes());
+    }
+
+    @Test
+    public void offHeapGetsDuringOverwrites() throws Exception {
+        // every value is one digit repeated, so a get copying a chunk that
+        // was freed and reused would see a mix of digits
+        store = new KVStore(true);
+        final int keys = 100;
+        for (int i = 0; i < keys; i++) {
+            store.put("key" + i, "0000");
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int round = 1; !done.get(); round++) {
+                    char digit = (char) ('0' + round % 10);
+                    char[] value = new char[1000 + round % 200];
+                    Arrays.fill(value, digit);
+                    for (int i = 0; i < keys; i++) {
+                        store.put("key" + i, new String(value));
+                    }
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int n = 0; n < 200000; n++) {
+                String value = store.get("key" + n % keys);
+                for (int i = 1; i < value.length(); i++) {
+                    assertEquals(value.charAt(0), value.charAt(i));
+                }
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void offHeapSnapshotIsPointInTime() throws Exception {
+        store = new KVStore(true);
+        snapshotIsPointInTime();
+    }
+
+    @Test
+    public void offHeapSnapshotUnderConcurrentWritesIsConsistent()
+            throws Exception {
+        store = new KVStore(true);
+        snapshotUnderConcurrentWritesIsConsistent();
+    }
+
+    @Test
+    public void offHeapSnapshotRoundTrip() throws Exception {
+        store = new KVStore(true);
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + i, "value \u00e9 " + i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeSnapshot(out);
+        store.put("stale", "gone");
+        store.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value \u00e9 " + i, store.get("key" + i));
+        }
+        long chunkBytes = store.offHeapChunkBytes();
+        // the values replaced by the restore were freed
+        store.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(chunkBytes, store.offHeapChunkBytes());
+    }
+
+    private static String key() {
+        return "this is the key.";
+    }
+
 }
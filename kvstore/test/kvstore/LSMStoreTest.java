@@ -0,0 +1,85 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.*;
+
+public class LSMStoreTest extends StorageEngineTest<LSMStore> {
+
+    static final int MEMTABLE_SIZE = 16 * 1024;
+
+    @Override
+    protected LSMStore newStore(File dir) throws Exception {
+        return new LSMStore(dir.getPath(), MEMTABLE_SIZE);
+    }
+
+    @Test
+    public void compactionKeepsLatestValues() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 1000; i++) {
+                store.put("key" + i, "value" + round + "." + i);
+            }
+            for (int i = round; i < 1000; i += 10) {
+                store.del("key" + i);
+            }
+        }
+        store.sync();
+        store.compact();
+        assertTrue(store.tableCounts()[0] < 4);
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 9) {
+                assertNoKey("key" + i);
+            } else {
+                assertEquals("value9." + i, store.get("key" + i));
+            }
+        }
+
+        reopen();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 9) {
+                assertNoKey("key" + i);
+            } else {
+                assertEquals("value9." + i, store.get("key" + i));
+            }
+        }
+        String report = store.amplificationReport();
+        assertTrue(report.contains("write amplification"));
+    }
+
+    @Test
+    public void unlistedTablesAreDeleted() throws Exception {
+        store.put("a", "1");
+        store.close();
+        File stray = new File(dir, "table.99999999");
+        stray.createNewFile();
+        File manifest = new File(dir, "manifest");
+        assertTrue(manifest.isFile());
+
+        store = new LSMStore(dir.getPath(), MEMTABLE_SIZE);
+        assertFalse(stray.exists());
+        assertEquals("1", store.get("a"));
+    }
+
+    @Test
+    public void corruptBlockIsReported() throws Exception {
+        store.put("a", "1");
+        store.close();
+        File table = new File(dir, "table.00000001");
+        RandomAccessFile file = new RandomAccessFile(table, "rw");
+        file.seek(10);
+        file.write(file.read() ^ 1);
+        file.close();
+
+        store = new LSMStore(dir.getPath(), MEMTABLE_SIZE);
+        try {
+            store.get("a");
+            fail("corrupt block was read");
+        } catch (KVException e) {
+            assertTrue(e.getKVMessage().getMessage().contains("corrupt"));
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+public class NonBlockingEndToEndTest {
+
+    String hostname;
+    ServerRunner serverRunner;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        hostname = InetAddress.getLocalHost().getHostAddress();
+
+        SocketServer ss = new SocketServer(hostname, 8080, true);
+        KVServer kvs = new KVServer(100, 10);
+        ServerClientHandler sch = new ServerClientHandler(kvs, 2);
+        ss.addHandler(sch);
+
+        serverRunner = new ServerRunner(ss, "server");
+        serverRunner.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        serverRunner.stop();
+    }
+
+    @Test
+    public void testXML() throws KVException {
+        KVClient client = new KVClient(hostname, 8080);
+        client.put("fuzzy", "wuzzy");
+        assertEquals("wuzzy", client.get("fuzzy"));
+        client.del("fuzzy");
+        try {
+            client.get("fuzzy");
+            fail("get after del should error");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY,
+                    e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void testBinary() throws KVException {
+        KVClient client = new KVClient(hostname, 8080, true);
+        client.put("fuzzy", "ursa \u00e9");
+        assertEquals("ursa \u00e9", client.get("fuzzy"));
+        client.put("big", Utils.makeLongString(200 * 1024));
+        assertEquals(200 * 1024, client.get("big").length());
+    }
+
+    @Test
+    public void testIdleConnectionsDoNotHoldWorkers() throws KVException {
+        // Many more open connections than the two worker threads; each must
+        // still be served while the others sit idle.
+        List<KVClient> clients = new ArrayList<KVClient>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                KVClient client = new KVClient(hostname, 8080, true, true);
+                client.put("key" + i, "value" + i);
+                clients.add(client);
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                assertEquals("value" + i, clients.get(i).get("key" + i));
+            }
+            assertEquals("value7", new KVClient(hostname, 8080).get("key7"));
+        } finally {
+            for (KVClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPipeline() throws KVException {
+        KVClient client = new KVClient(hostname, 8080, true);
+        KVClient.Pipeline pipeline = client.pipeline();
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            pipeline.put("key" + i, Utils.makeLongString(1024));
+            pipeline.get("key" + i);
+        }
+        List<KVMessage> responses = pipeline.execute();
+        assertEquals(2 * n, responses.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(KVConstants.SUCCESS, responses.get(2 * i).getMessage());
+            assertEquals(1024, responses.get(2 * i + 1).getValue().length());
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package kvstore;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the blocking and non-blocking SocketServer modes. Several client
+ * threads with persistent binary connections issue gets and puts, first on
+ * their own and then while a crowd of idle clients holds connections open
+ * without sending anything. A blocking server gives each of those clients a
+ * worker thread, so once they outnumber the workers the active clients stall.
+ *
+ * Arguments: [opsPerThread] [idleConnections]
+ */
+public class NonBlockingServerBenchmark {
+
+    static final int WORKERS = 16;
+    static final int THREADS = 8;
+    static final int KEYS = 1000;
+    static final long DEADLINE_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int opsPerThread = BenchmarkUtils.intArg(args, 0, 5000);
+        int idleConnections = BenchmarkUtils.intArg(args, 1, 1000);
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+
+        System.out.format("%-13s %6s %12s %10s %10s%n", "server", "idle",
+                "ops/sec", "p50 us", "p99 us");
+        boolean[] modes = { false, true };
+        for (boolean nonBlocking : modes) {
+            int[] idleCounts = { 0, idleConnections };
+            for (int idle : idleCounts) {
+                SocketServer ss = new SocketServer(hostname, 0, nonBlocking);
+                ss.addHandler(new ServerClientHandler(new KVServer(100, 10),
+                        WORKERS));
+                ServerRunner runner = new ServerRunner(ss, "benchserver");
+                runner.start();
+                List<Socket> idlers = new ArrayList<Socket>();
+                KVClient client = new KVClient(hostname, ss.getPort(),
+                        true, true);
+                KVClient.Pipeline seed = client.pipeline();
+                for (int i = 0; i < KEYS; i++) {
+                    seed.put("key" + i, "seed");
+                }
+                seed.execute();
+                try {
+                    for (int i = 0; i < idle; i++) {
+                        idlers.add(new Socket(hostname, ss.getPort()));
+                    }
+                    // let the server accept them before the clients start
+                    Thread.sleep(500);
+                    String name = nonBlocking ? "non-blocking" : "blocking";
+                    long[] latencies = new long[THREADS * opsPerThread];
+                    long elapsed = run(client, opsPerThread / 4, latencies);
+                    if (elapsed >= 0) {
+                        elapsed = run(client, opsPerThread, latencies);
+                    }
+                    client.close();
+                    if (elapsed < 0) {
+                        System.out.format("%-13s %6d %12s%n", name, idle,
+                                "stalled");
+                    } else {
+                        System.out.format("%-13s %6d %12.0f %10.1f %10.1f%n",
+                                name, idle, BenchmarkUtils.opsPerSec(
+                                        latencies.length, elapsed),
+                                BenchmarkUtils.percentileMicros(latencies, 50),
+                                BenchmarkUtils.percentileMicros(latencies, 99));
+                    }
+                } finally {
+                    for (Socket idler : idlers) {
+                        idler.close();
+                    }
+                    runner.stop();
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs the client threads and returns the elapsed time, or -1 if they
+     * did not finish within DEADLINE_MILLIS.
+     */
+    static long run(final KVClient client, final int ops,
+            final long[] latencies) throws Exception {
+        final String value = Utils.makeLongString(128);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t * ops;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < ops; i++) {
+                            String key = "key" + ((offset + i) % KEYS);
+                            long start = System.nanoTime();
+                            if ((i & 1) == 0) {
+                                client.put(key, value);
+                            } else {
+                                client.get(key);
+                            }
+                            latencies[offset + i] = System.nanoTime() - start;
+                        }
+                    } catch (KVException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (worker.isAlive()) {
+                return -1;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+}
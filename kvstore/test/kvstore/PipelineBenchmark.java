@@ -0,0 +1,83 @@
+package kvstore;
+
+import java.net.InetAddress;
+
+/**
+ * Measures bulk loading through KVClient.Pipeline against issuing the same
+ * puts one at a time over a persistent binary connection, at several value
+ * sizes. Then reads every key back the same two ways.
+ *
+ * Arguments: [keys]
+ */
+public class PipelineBenchmark {
+
+    static final int[] VALUE_SIZES = { 16, 1024, 16 * 1024 };
+
+    public static void main(String[] args) throws Exception {
+        int keys = BenchmarkUtils.intArg(args, 0, 20000);
+
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname, 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10), 4));
+        ServerRunner runner = new ServerRunner(ss, "benchserver");
+        runner.start();
+        try {
+            KVClient client = new KVClient(hostname, ss.getPort(), true, true);
+            System.out.format("%-8s %-4s %12s %12s %8s %10s%n", "value", "op",
+                    "sequential", "pipelined", "speedup", "MB/s");
+            for (int size : VALUE_SIZES) {
+                String value = Utils.makeLongString(size);
+                int n = Math.max(1000, keys * 1024 / Math.max(size, 1024));
+                sequential(client, value, n / 4, true);
+                pipelined(client, value, n / 4, true);
+                String[] ops = { "put", "get" };
+                for (int i = 0; i < ops.length; i++) {
+                    boolean put = i == 0;
+                    double seq = sequential(client, value, n, put);
+                    double pipe = pipelined(client, value, n, put);
+                    System.out.format("%-8s %-4s %12.0f %12.0f %7.1fx %10.1f%n",
+                            BenchmarkUtils.sizeName(size), ops[i], seq, pipe,
+                            pipe / seq, pipe * size / (1024 * 1024));
+                }
+            }
+            client.close();
+        } finally {
+            runner.stop();
+        }
+        System.exit(0);
+    }
+
+    static double sequential(KVClient client, String value, int n,
+            boolean put) throws KVException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            if (put) {
+                client.put("key" + i, value);
+            } else {
+                client.get("key" + i);
+            }
+        }
+        return BenchmarkUtils.opsPerSec(n, System.nanoTime() - start);
+    }
+
+    static double pipelined(KVClient client, String value, int n,
+            boolean put) throws KVException {
+        long start = System.nanoTime();
+        KVClient.Pipeline pipeline = client.pipeline();
+        for (int i = 0; i < n; i++) {
+            if (put) {
+                pipeline.put("key" + i, value);
+            } else {
+                pipeline.get("key" + i);
+            }
+        }
+        for (KVMessage response : pipeline.execute()) {
+            if (put ? !KVConstants.SUCCESS.equals(response.getMessage())
+                    : response.getValue() == null) {
+                throw new KVException(response);
+            }
+        }
+        return BenchmarkUtils.opsPerSec(n, System.nanoTime() - start);
+    }
+
+}
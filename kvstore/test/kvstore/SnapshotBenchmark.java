@@ -0,0 +1,139 @@
+package kvstore;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time, file size and peak heap of dumping a KVStore to a file and restoring
+ * it again, as XML (dumpToFile) and as a binary snapshot with and without
+ * compression (dumpSnapshotToFile). Peak heap is the highest heap use seen
+ * during the operation, less the heap in use just before it, so it is what
+ * the operation needs on top of the store being dumped; for a restore that
+ * includes the restored copy of the store. An operation that runs out of
+ * memory is reported as such.
+ *
+ * Give the JVM enough heap for two copies of the store, the one dumped and
+ * the one restored: ant runbenchmark -Dbenchmark.maxmemory=4g ...
+ *
+ * Arguments: [keys] [valueSize] [dir]
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = BenchmarkUtils.intArg(args, 0, 1000000);
+        int valueSize = BenchmarkUtils.intArg(args, 1, 32);
+        File dir = new File(args.length > 2 ? args[2] : "bin");
+        File file = new File(dir, "snapshotbenchmark.dump");
+
+        KVStore store = new KVStore();
+        String pad = Utils.makeLongString(Math.max(0, valueSize - 10));
+        for (int i = 0; i < keys; i++) {
+            store.put("key" + i, pad + i);
+        }
+        System.out.format("%d keys, %d byte values%n", keys, valueSize);
+        System.out.format("%-16s %10s %10s %12s %10s %12s%n", "format",
+                "MB", "dump ms", "dump heap MB", "restore ms",
+                "restore heap MB");
+
+        String[] names = { "xml", "binary", "binary, deflate" };
+        for (int format = 0; format < names.length; format++) {
+            file.delete();
+            String[] dump = measure(new Dump(store, file, format));
+            long size = file.length();
+            String[] restore = dump[0].equals("OOM") ? new String[] { "-",
+                    "-" } : measure(new Restore(file));
+            System.out.format("%-16s %10.1f %10s %12s %10s %12s%n",
+                    names[format], size / 1e6, dump[0], dump[1], restore[0],
+                    restore[1]);
+        }
+        file.delete();
+    }
+
+    /**
+     * Runs op once and returns its time in ms and the heap it needed in MB,
+     * or "OOM" for both if it ran out of memory.
+     */
+    private static String[] measure(Op op) throws Exception {
+        System.gc();
+        long before = heapUsed();
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        try {
+            op.run();
+        } catch (OutOfMemoryError e) {
+            return new String[] { "OOM", "OOM" };
+        }
+        long elapsed = System.nanoTime() - start;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return new String[] { String.format("%.0f", elapsed / 1e6),
+                String.format("%.0f", Math.max(0, peak - before) / 1e6) };
+    }
+
+    private static long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    private static class Dump implements Op {
+
+        private KVStore store;
+        private File file;
+        private int format;
+
+        Dump(KVStore store, File file, int format) {
+            this.store = store;
+            this.file = file;
+            this.format = format;
+        }
+
+        @Override
+        public void run() throws Exception {
+            if (format == 0) {
+                store.dumpToFile(file.getPath());
+            } else {
+                store.dumpSnapshotToFile(file.getPath(), format == 2);
+            }
+        }
+    }
+
+    private static class Restore implements Op {
+
+        private File file;
+
+        Restore(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() throws Exception {
+            new KVStore().restoreFromFile(file.getPath());
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package kvstore;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Write throughput and latency of a KVStore while a snapshot of it is being
+ * written to a file. Fills the store, then has writer threads put random
+ * keys throughout three phases: before the snapshot, while
+ * dumpSnapshotToFile() runs, and after it. Reports the time spent in GC in
+ * each phase too, as with millions of keys pauses dominate the worst case.
+ *
+ * Needs a heap of a few GB for the default 5M keys, e.g.
+ * ant runbenchmark -Dbenchmark.maxmemory=4g ...
+ *
+ * Arguments: [keys] [writers] [dir]
+ */
+public class SnapshotWriteBenchmark {
+
+    static final long PHASE_NANOS = 2000000000L;
+    static final int MAX_SAMPLES = 1 << 20;
+
+    static volatile int phase = 0;
+
+    public static void main(String[] args) throws Exception {
+        final int keys = BenchmarkUtils.intArg(args, 0, 5000000);
+        int threads = BenchmarkUtils.intArg(args, 1, 2);
+        File dir = new File(args.length > 2 ? args[2] : "bin");
+        File file = new File(dir, "snapshotwritebenchmark.dump");
+
+        final KVStore store = new KVStore();
+        for (int i = 0; i < keys; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        System.gc();
+
+        String[] names = { "before", "during snapshot", "after" };
+        final long[][][] nanos = new long[threads][names.length][];
+        final int[][] counts = new int[threads][names.length];
+        final long[][] totals = new long[threads][names.length];
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            for (int p = 0; p < names.length; p++) {
+                nanos[t][p] = new long[MAX_SAMPLES];
+            }
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    int current;
+                    while ((current = phase) < 3) {
+                        String key = "key" + random.nextInt(keys);
+                        long start = System.nanoTime();
+                        store.put(key, "new" + start);
+                        long elapsed = System.nanoTime() - start;
+                        int n = counts[index][current]++;
+                        nanos[index][current][n % MAX_SAMPLES] = elapsed;
+                        totals[index][current] += elapsed;
+                    }
+                }
+            };
+            writers[t].start();
+        }
+
+        long[] elapsed = new long[names.length];
+        long[] gcMillis = new long[names.length];
+        long start = System.nanoTime();
+        long gcStart = gcMillis();
+        Thread.sleep(PHASE_NANOS / 1000000);
+        elapsed[0] = System.nanoTime() - start;
+        gcMillis[0] = gcMillis() - gcStart;
+        phase = 1;
+        start = System.nanoTime();
+        gcStart = gcMillis();
+        store.dumpSnapshotToFile(file.getPath(), false);
+        elapsed[1] = System.nanoTime() - start;
+        gcMillis[1] = gcMillis() - gcStart;
+        phase = 2;
+        start = System.nanoTime();
+        gcStart = gcMillis();
+        Thread.sleep(PHASE_NANOS / 1000000);
+        elapsed[2] = System.nanoTime() - start;
+        gcMillis[2] = gcMillis() - gcStart;
+        phase = 3;
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        System.out.format("%d keys, %d writers, snapshot %.0f MB%n", keys,
+                threads, file.length() / 1e6);
+        file.delete();
+
+        System.out.format("%-16s %8s %12s %10s %10s %10s %8s%n", "phase",
+                "ms", "writes/sec", "mean us", "p99 us", "max us", "gc ms");
+        for (int p = 0; p < names.length; p++) {
+            long writes = 0;
+            long total = 0;
+            int samples = 0;
+            for (int t = 0; t < threads; t++) {
+                writes += counts[t][p];
+                total += totals[t][p];
+                samples += Math.min(counts[t][p], MAX_SAMPLES);
+            }
+            long[] all = new long[samples];
+            int n = 0;
+            for (int t = 0; t < threads; t++) {
+                int c = Math.min(counts[t][p], MAX_SAMPLES);
+                System.arraycopy(nanos[t][p], 0, all, n, c);
+                n += c;
+            }
+            double p99 = BenchmarkUtils.percentileMicros(all, 99);
+            System.out.format("%-16s %8.0f %12.0f %10.2f %10.1f %10.1f %8d%n",
+                    names[p], elapsed[p] / 1e6,
+                    BenchmarkUtils.opsPerSec(writes, elapsed[p]),
+                    total / 1000.0 / Math.max(1, writes), p99,
+                    all.length > 0 ? all[all.length - 1] / 1000.0 : 0,
+                    gcMillis[p]);
+        }
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc
+                : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+
+}
@@ -37,5 +37,29 @@ public class SocketServerTest {
         ss.start();
     }
 
+    @Test(timeout = 2000)
+    public void nonBlockingServerStopsPromptly() throws Exception {
+        final SocketServer nbss = new SocketServer(localhostName, 0, true);
+        nbss.addHandler(new ServerClientHandler(new KVServer(10, 10)));
+        nbss.connect();
+        assertTrue(nbss.getPort() > 0 && nbss.getPort() < 65536);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    nbss.start();
+                } catch (IOException e) {
+                    // fails the join below
+                }
+            }
+        };
+        server.start();
+        Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        nbss.stop();
+        server.join(1000);
+        assertFalse(server.isAlive());
+        assertTrue(System.currentTimeMillis() - start < 50);
+    }
 
 }
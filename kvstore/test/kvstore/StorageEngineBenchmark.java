@@ -0,0 +1,204 @@
+package kvstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Throughput, heap and disk use of a StorageEngine. Loads keys with values
+ * of valueSize bytes, then reads and overwrites random keys, and reports the
+ * heap left in use after a full GC (what the engine holds on to) and the
+ * bytes it keeps in dir. Run it once per engine in a fresh JVM, so the heap
+ * figures are the engine's own. For an LSMStore it also reports the write
+ * and read amplification (see LSMStore.amplificationReport()). Each phase
+ * reports the collections that ran in it, their total and longest pause.
+ *
+ * The engine "offheap" is a KVStore keeping its values off the heap (see
+ * SlabAllocator), whose slabs count against -XX:MaxDirectMemorySize, not
+ * -Xmx.
+ *
+ * Every SAMPLE_INTERVALth random get is timed on its own for the median
+ * and 99th percentile latency. Keys times valueSize several times the heap
+ * (-Xmx) compares the disk-backed engines where a KVStore cannot run.
+ *
+ * Arguments: [engine: kvstore | offheap | bitcask | lsm | btree] [keys]
+ *            [valueSize] [dir]
+ */
+public class StorageEngineBenchmark {
+
+    static final int SAMPLE_INTERVAL = 16;
+
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "bitcask";
+        int keys = BenchmarkUtils.intArg(args, 1, 1000000);
+        int valueSize = BenchmarkUtils.intArg(args, 2, 100);
+        File dir = new File(args.length > 3 ? args[3] : "bin",
+                "storageenginebenchmark");
+        removeDir(dir);
+
+        System.gc();
+        long heapBefore = heapUsed();
+        GcPauses pauses = new GcPauses();
+        StorageEngine store = open(engine, dir);
+        String pad = Utils.makeLongString(Math.max(0, valueSize - 10));
+        System.out.format("%s, %d keys, %d byte values%n", engine, keys,
+                valueSize);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            store.put("key" + i, pad + i);
+        }
+        report("load", keys, System.nanoTime() - start, pauses);
+
+        Random random = new Random(1);
+        long[] latencies = new long[keys / SAMPLE_INTERVAL];
+        start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            String key = "key" + random.nextInt(keys);
+            if (i % SAMPLE_INTERVAL == 0 && i / SAMPLE_INTERVAL
+                    < latencies.length) {
+                long getStart = System.nanoTime();
+                store.get(key);
+                latencies[i / SAMPLE_INTERVAL] = System.nanoTime() - getStart;
+            } else {
+                store.get(key);
+            }
+        }
+        report("random get", keys, System.nanoTime() - start, pauses);
+        if (latencies.length > 0) {
+            System.out.format("get latency  p50 %.1f us, p99 %.1f us%n",
+                    BenchmarkUtils.percentileMicros(latencies, 50),
+                    BenchmarkUtils.percentileMicros(latencies, 99));
+        }
+        latencies = null;
+
+        start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            int key = random.nextInt(keys);
+            store.put("key" + key, pad + key);
+        }
+        report("random put", keys, System.nanoTime() - start, pauses);
+
+        System.gc();
+        System.out.format("heap %.0f MB, disk %.0f MB%n",
+                (heapUsed() - heapBefore) / 1e6, dirBytes(dir) / 1e6);
+        if (store instanceof KVStore && engine.equals("offheap")) {
+            System.out.format("off heap %.0f MB in slabs, %.0f MB in chunks%n",
+                    ((KVStore) store).offHeapBytes() / 1e6,
+                    ((KVStore) store).offHeapChunkBytes() / 1e6);
+        }
+        if (store instanceof LSMStore) {
+            System.out.print(((LSMStore) store).amplificationReport());
+        }
+        store.close();
+        removeDir(dir);
+    }
+
+    static StorageEngine open(String engine, File dir) throws KVException {
+        if (engine.equals("kvstore")) {
+            return new KVStore();
+        } else if (engine.equals("offheap")) {
+            return new KVStore(true);
+        } else if (engine.equals("bitcask")) {
+            return new BitcaskStore(dir.getPath());
+        } else if (engine.equals("lsm")) {
+            return new LSMStore(dir.getPath());
+        } else if (engine.equals("btree")) {
+            return new BTreeStore(dir.getPath());
+        }
+        throw new IllegalArgumentException("Unknown engine " + engine);
+    }
+
+    private static void report(String name, int ops, long nanos,
+            GcPauses pauses) throws InterruptedException {
+        // notifications come from another thread, shortly after the pause
+        Thread.sleep(100);
+        System.out.format("%-12s %10.0f ops/sec, %s%n", name,
+                BenchmarkUtils.opsPerSec(ops, nanos), pauses.takeReport());
+    }
+
+    /**
+     * Collects the pause of every garbage collection, as the JVM reports
+     * them in notifications.
+     */
+    private static class GcPauses implements NotificationListener {
+
+        private int collections = 0;
+        private long totalMillis = 0;
+        private long longestMillis = 0;
+
+        GcPauses() {
+            for (GarbageCollectorMXBean collector
+                    : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).addNotificationListener(
+                        this, null, null);
+            }
+        }
+
+        @Override
+        public synchronized void handleNotification(Notification notification,
+                Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo
+                    .GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            long millis = GarbageCollectionNotificationInfo.from(
+                    (CompositeData) notification.getUserData()).getGcInfo()
+                    .getDuration();
+            collections++;
+            totalMillis += millis;
+            longestMillis = Math.max(longestMillis, millis);
+        }
+
+        /**
+         * @return the collections since the last report
+         */
+        synchronized String takeReport() {
+            String report = String.format(
+                    "GC %d collections, %d ms, longest %d ms", collections,
+                    totalMillis, longestMillis);
+            collections = 0;
+            totalMillis = 0;
+            longestMillis = 0;
+            return report;
+        }
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long dirBytes(File dir) {
+        long bytes = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static void removeDir(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    throw new IOException("Unable to delete " + file);
+                }
+            }
+        }
+        dir.delete();
+    }
+
+}
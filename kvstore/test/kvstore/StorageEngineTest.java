@@ -0,0 +1,184 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.*;
+
+/**
+ * Tests of the StorageEngine contract every disk-backed engine keeps. Each
+ * engine's test extends this with newStore() and its own tests; store is a
+ * fresh store in the empty directory dir.
+ */
+public abstract class StorageEngineTest<S extends StorageEngine> {
+
+    static final int KEYS = 20000;
+
+    File dir;
+    S store;
+
+    /**
+     * @return a store keeping its files in dir, configured as most tests
+     *         of the engine want it
+     */
+    protected abstract S newStore(File dir) throws Exception;
+
+    /**
+     * @return a store in dir for snapshotAndGetsDuringWrites(), which an
+     *         engine may configure to reorganize its files meanwhile
+     */
+    protected S newBusyStore(File dir) throws Exception {
+        return newStore(dir);
+    }
+
+    @Before
+    public void setupStore() throws Exception {
+        dir = File.createTempFile(getClass().getSimpleName() + "-", "");
+        dir.delete();
+        dir.mkdir();
+        store = newStore(dir);
+    }
+
+    @After
+    public void removeDir() throws IOException {
+        store.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    void reopen() throws Exception {
+        store.close();
+        store = newStore(dir);
+    }
+
+    void assertNoKey(String key) {
+        try {
+            store.get(key);
+            fail(key + " should not be stored");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void putGetAndDel() throws KVException {
+        store.put("key", "value \u00e9");
+        assertEquals("value \u00e9", store.get("key"));
+        store.put("key", "other");
+        assertEquals("other", store.get("key"));
+        store.del("key");
+        assertNoKey("key");
+        try {
+            store.del("key");
+            fail("del of a missing key succeeded");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void closeKeepsWrites() throws Exception {
+        store.put("a", "1");
+        store.put("b", "2");
+        store.del("a");
+        reopen();
+        assertNoKey("a");
+        assertEquals("2", store.get("b"));
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + i, "value " + i);
+        }
+        store.del("key3");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeSnapshot(out);
+
+        KVStore copy = new KVStore();
+        copy.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("value 4", copy.get("key4"));
+
+        store.put("stale", "gone");
+        store.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        reopen();
+        for (int i = 0; i < 1000; i++) {
+            if (i == 3) {
+                assertNoKey("key3");
+            } else {
+                assertEquals("value " + i, store.get("key" + i));
+            }
+        }
+        assertNoKey("stale");
+    }
+
+    @Test
+    public void snapshotAndGetsDuringWrites() throws Exception {
+        store.close();
+        store = newBusyStore(dir);
+        for (int i = 0; i < KEYS; i++) {
+            store.put("key" + i, "0");
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int round = 1; !done.get(); round++) {
+                        for (int i = 0; i < KEYS; i++) {
+                            store.put("key" + i, Integer.toString(round));
+                            int value = Integer.parseInt(store.get("key" + i));
+                            assertTrue(value == round);
+                            if (i % 5000 == 0) {
+                                store.sync();
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(200);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.writeSnapshot(out);
+        Thread.sleep(200);
+        done.set(true);
+        writer.join();
+        assertNull(failure.get());
+
+        // keys are put in order, so values never increase along the keys
+        KVStore copy = new KVStore();
+        copy.readSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        int previous = Integer.MAX_VALUE;
+        for (int i = 0; i < KEYS; i++) {
+            int value = Integer.parseInt(copy.get("key" + i));
+            assertTrue(value <= previous);
+            previous = value;
+        }
+        assertTrue(previous + 1 >= Integer.parseInt(copy.get("key0")));
+    }
+
+    @Test
+    public void serverUsesStore() throws Exception {
+        KVServer server = new KVServer(10, 10, store);
+        server.put("key", "value");
+        server.close();
+        store = newStore(dir);
+        server = new KVServer(10, 10, store);
+        assertEquals("value", server.get("key"));
+    }
+
+}
@@ -0,0 +1,141 @@
+package kvstore;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A TPCMaster and its slaves in this process, for the TPCMaster benchmarks.
+ * Each slave has its own TPCLog in dir and IDs are spread evenly over the
+ * ring, so each slave is the first replica of as many keys as the others.
+ *
+ * In one process the slaves are a loopback connection away, and on a
+ * machine with few cores the message handling of every process shares them.
+ * With latencyMillis above 0 each slave therefore takes that long to pick up
+ * a connection, as a slave on another machine would be a network round trip
+ * and a disk force away, without using the CPU meanwhile. A slowPercent
+ * share of connections takes slowMillis instead, as when a slave stalls on
+ * a garbage collection or a busy disk.
+ */
+public class TPCBenchmarkCluster {
+
+    final TPCMaster master;
+    private final File dir;
+    private final ServerRunner[] runners;
+    private final TPCLog[] logs;
+
+    TPCBenchmarkCluster(TPCMaster master, int numSlaves, int latencyMillis,
+            File dir) throws Exception {
+        this(master, numSlaves, latencyMillis, 0, 0, dir);
+    }
+
+    TPCBenchmarkCluster(TPCMaster master, int numSlaves, int latencyMillis,
+            int slowPercent, int slowMillis, File dir) throws Exception {
+        this.master = master;
+        this.dir = dir;
+        dir.mkdirs();
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        runners = new ServerRunner[numSlaves];
+        logs = new TPCLog[numSlaves];
+        long step = Long.MAX_VALUE / numSlaves * 2;
+        for (int i = 0; i < numSlaves; i++) {
+            long slaveID = Long.MIN_VALUE + step * i + step / 2;
+            SocketServer server = new SocketServer(hostname, 0);
+            KVServer kvServer = new KVServer(100, 10);
+            File logBase = new File(dir, "log." + i);
+            removeLog(logBase);
+            logs[i] = new TPCLog(logBase.getPath(), kvServer);
+            NetworkHandler handler = new TPCMasterHandler(slaveID, kvServer,
+                    logs[i], 4);
+            if (latencyMillis > 0 || slowPercent > 0) {
+                handler = new DelayedHandler(handler, latencyMillis,
+                        slowPercent, slowMillis);
+            }
+            server.addHandler(handler);
+            runners[i] = new ServerRunner(server, "slave" + i);
+            runners[i].start();
+            master.registerSlave(new TPCSlaveInfo(slaveID + "@"
+                    + server.getHostname() + ":" + server.getPort()));
+        }
+    }
+
+    /**
+     * hashTo64bit() spreads keys over the ring only if they are long enough,
+     * so they are 19 random digits, as in TPCEndToEndTemplate.
+     */
+    static String[] randomKeys(int count, Random random) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = String.format("%019d", random.nextLong()
+                    & Long.MAX_VALUE);
+        }
+        return keys;
+    }
+
+    /**
+     * Stops the slaves and removes their logs. Their thread pools do not
+     * stop, so the benchmark has to call System.exit().
+     */
+    void stop() throws Exception {
+        for (int i = 0; i < runners.length; i++) {
+            runners[i].stop();
+            logs[i].close();
+            removeLog(new File(dir, "log." + i));
+        }
+        dir.delete();
+    }
+
+    /**
+     * Passes each connection on to a slave's handler after a delay.
+     */
+    private static class DelayedHandler implements NetworkHandler {
+
+        private final NetworkHandler handler;
+        private final int latencyMillis;
+        private final int slowPercent;
+        private final int slowMillis;
+
+        DelayedHandler(NetworkHandler handler, int latencyMillis,
+                int slowPercent, int slowMillis) {
+            this.handler = handler;
+            this.latencyMillis = latencyMillis;
+            this.slowPercent = slowPercent;
+            this.slowMillis = slowMillis;
+        }
+
+        @Override
+        public void handle(final Socket sock) {
+            final int delayMillis =
+                    ThreadLocalRandom.current().nextInt(100) < slowPercent
+                    ? slowMillis : latencyMillis;
+            Thread delayed = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        // hand it on early
+                    }
+                    handler.handle(sock);
+                }
+            };
+            delayed.setDaemon(true);
+            delayed.start();
+        }
+    }
+
+    private static void removeLog(File base) {
+        File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(base.getName() + ".")) {
+                file.delete();
+            }
+        }
+    }
+
+}
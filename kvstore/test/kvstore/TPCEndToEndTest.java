@@ -2,6 +2,8 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Random;
 
 import org.junit.Test;
@@ -75,6 +77,224 @@ public class TPCEndToEndTest extends TPCEndToEndTemplate {
 		System.out.println();
 	}
 	
+	@Test(timeout = 20000)
+	public void concurrentTransactionsAllCommit() throws Exception {
+		writeConcurrently(8, 25);
+		assertReplicasAgree(25);
+	}
+
+	@Test(timeout = 20000)
+	public void pooledConnectionsStayWithinLimits() throws Exception {
+		// the slaves have a single thread each, which an open connection
+		// holds on to
+		master.setConnectionPool(1, 1);
+		writeConcurrently(4, 10);
+		for (int i = 0; i < 10; i++) {
+			for (TPCSlaveInfo slave : master.findCorrespondingSlaves(
+					"ckey" + i)) {
+				assertTrue(slave.openConnections() <= 1);
+			}
+		}
+		assertEquals(1, master.findFirstReplica("ckey0").openConnections());
+
+		// closes them, for getFromSlave() to get the slaves' threads
+		master.setConnectionPool(0, 0);
+		assertEquals(0, master.findFirstReplica("ckey0").openConnections());
+		assertReplicasAgree(10);
+	}
+
+	@Test(timeout = 20000)
+	public void hedgedReadAvoidsSlowPrimary() throws Exception {
+		// next to KEY1, so SLAVE1 is its primary; the slaves' logs keep what
+		// earlier tests wrote
+		String key = KEY1.substring(1) + "0";
+		master.setHedgeDelay(100000);
+		put(key, "val1");
+		evictFromCache();
+		// the primary answers within the hedge delay
+		assertEquals("val1", master.handleGet(getRequest(key)));
+		assertEquals(1.0, master.replicaGetsPerRead(), 0);
+
+		// the primary of key takes the get and never answers
+		ServerSocket silent = new ServerSocket(0);
+		master.registerSlave(new TPCSlaveInfo(SLAVE1 + "@" + hostname + ":"
+				+ silent.getLocalPort()));
+		evictFromCache();
+		master.resetReadStats();
+		long start = System.currentTimeMillis();
+		assertEquals("val1", master.handleGet(getRequest(key)));
+		assertTrue(System.currentTimeMillis() - start < TPCMaster.TIMEOUT);
+		assertEquals(2.0, master.replicaGetsPerRead(), 0);
+		assertTrue(master.readReport().contains("1 hedged (1 won)"));
+		silent.close();
+	}
+
+	private void put(String key, String value) throws KVException {
+		KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+		put.setKey(key);
+		put.setValue(value);
+		master.handleTPCRequest(put, true);
+	}
+
+	/**
+	 * Fills the master's cache of 4 entries with keys nothing reads, whose
+	 * replicas are not SLAVE1.
+	 */
+	private void evictFromCache() throws KVException {
+		for (int i = 0; i < 4; i++) {
+			put(KEY2.substring(1) + i, "filler");
+		}
+	}
+
+	/**
+	 * Has each of threads writers put keys ckey0 and up through the master.
+	 */
+	private void writeConcurrently(int threads, final int keys)
+			throws Exception {
+		final Exception[] failure = new Exception[1];
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < keys; i++) {
+							// every writer goes over the same keys, so writes
+							// of a key conflict as well as run side by side
+							KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+							put.setKey("ckey" + i);
+							put.setValue("cval" + thread);
+							master.handleTPCRequest(put, true);
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(failure[0]);
+	}
+
+	/**
+	 * Checks that the replicas of keys ckey0 and up agree with each other
+	 * and the cache.
+	 */
+	private void assertReplicasAgree(int keys) throws KVException {
+		for (int i = 0; i < keys; i++) {
+			String key = "ckey" + i;
+			String value = master.handleGet(getRequest(key));
+			assertTrue(value.startsWith("cval"));
+			for (TPCSlaveInfo slave : master.findCorrespondingSlaves(key)) {
+				assertEquals(value, getFromSlave(slave, key));
+			}
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void slowVoteAborts() throws Exception {
+		// the second replica of key takes the vote and never answers, then
+		// acknowledges the decision; key is next to KEY1, and never written
+		String key = KEY1.substring(1) + "1";
+		final ServerSocket silent = new ServerSocket(0);
+		Thread slave = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Socket vote = silent.accept();
+					Socket decision = silent.accept();
+					KVConnection conn = KVConnection.accept(decision);
+					conn.receive();
+					conn.send(new KVMessage(KVConstants.ACK));
+					decision.close();
+					vote.close();
+				} catch (Exception e) {
+					// the test fails on the put
+				}
+			}
+		};
+		slave.start();
+		master.registerSlave(new TPCSlaveInfo(SLAVE2 + "@" + hostname + ":"
+				+ silent.getLocalPort()));
+		master.setTimeouts(300, TPCMaster.TIMEOUT, TPCMaster.TIMEOUT);
+
+		KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+		put.setKey(key);
+		put.setValue("val1");
+		long start = System.currentTimeMillis();
+		try {
+			master.handleTPCRequest(put, true);
+			fail();
+		} catch (KVException e) {
+			// the phase or the read of the vote times out first
+			assertTrue(e.getKVMessage().getMessage().startsWith(
+					"Network Error"));
+		}
+		assertTrue(System.currentTimeMillis() - start < TPCMaster.TIMEOUT);
+		slave.join();
+		silent.close();
+		assertNull(getFromSlave(master.findFirstReplica(key), key));
+	}
+
+	@Test(timeout = 20000)
+	public void saturatedMasterFailsGetsFast() throws Exception {
+		// both replicas take gets and never answer; with one fan-out thread
+		// and one queue slot, the first get holds both; KEY1 and KEY3 are in
+		// different sets of the cache, so the second get does not wait
+		ServerSocket silent = new ServerSocket(0);
+		final TPCMaster busy = new TPCMaster(2, new KVCache(64, 4), 1);
+		busy.registerSlave(new TPCSlaveInfo(SLAVE1 + "@" + hostname + ":"
+				+ silent.getLocalPort()));
+		busy.registerSlave(new TPCSlaveInfo(SLAVE2 + "@" + hostname + ":"
+				+ silent.getLocalPort()));
+		busy.setTimeouts(TPCMaster.TIMEOUT, TPCMaster.TIMEOUT, 2000);
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					busy.handleGet(getRequest(KEY1));
+				} catch (KVException e) {
+					// times out, as the replicas never answer
+				}
+			}
+		};
+		first.start();
+		Thread.sleep(200);
+
+		long start = System.currentTimeMillis();
+		try {
+			busy.handleGet(getRequest(KEY3));
+			fail();
+		} catch (KVException e) {
+			assertEquals(KVConstants.ERROR_NO_SUCH_KEY,
+					e.getKVMessage().getMessage());
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		first.join();
+		silent.close();
+	}
+
+	private static KVMessage getRequest(String key) {
+		KVMessage get = new KVMessage(KVConstants.GET_REQ);
+		get.setKey(key);
+		return get;
+	}
+
+	private static String getFromSlave(TPCSlaveInfo slave, String key)
+			throws KVException {
+		Socket sock = slave.connectHost(TPCMaster.TIMEOUT);
+		try {
+			getRequest(key).sendMessage(sock);
+			return new KVMessage(sock, TPCMaster.TIMEOUT).getValue();
+		} finally {
+			slave.closeHost(sock);
+		}
+	}
+
 	/*
 	@Test(timeout = 15000)
     public void testPutGet3() throws KVException {
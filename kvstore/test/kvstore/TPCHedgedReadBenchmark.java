@@ -0,0 +1,88 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Load on the replicas and tail latency of reads that miss the master's
+ * cache, for each way TPCMaster.handleGet() can ask the replicas. The slaves
+ * of a TPCBenchmarkCluster take latencyMillis to answer, and slowMillis for
+ * slowPercent of the gets. One client reads random keys through a master
+ * whose cache holds a single entry:
+ *
+ * - both: both replicas at once, the first value wins (hedge delay 0);
+ * - primary: the primary only, unless it fails (a hedge delay longer than
+ *   any get);
+ * - hedged: the primary, and the successor too once the primary has taken
+ *   longer than the 95th percentile of the replicas' latency measured in
+ *   the primary run.
+ *
+ * Arguments: [reads] [slaves] [keys] [latencyMillis] [slowPercent]
+ *            [slowMillis] [dir]
+ */
+public class TPCHedgedReadBenchmark {
+
+    static final int WARMUP_READS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int reads = BenchmarkUtils.intArg(args, 0, 1000);
+        int numSlaves = BenchmarkUtils.intArg(args, 1, 4);
+        int keys = BenchmarkUtils.intArg(args, 2, 1000);
+        int latencyMillis = BenchmarkUtils.intArg(args, 3, 1);
+        int slowPercent = BenchmarkUtils.intArg(args, 4, 5);
+        int slowMillis = BenchmarkUtils.intArg(args, 5, 20);
+        File dir = new File(args.length > 6 ? args[6] : "bin",
+                "tpchedgedread");
+
+        TPCMaster master = new TPCMaster(numSlaves, new KVCache(1, 1));
+        TPCBenchmarkCluster cluster = new TPCBenchmarkCluster(master,
+                numSlaves, latencyMillis, slowPercent, slowMillis, dir);
+        String[] keyNames = TPCBenchmarkCluster.randomKeys(keys,
+                new Random(1));
+        String value = Utils.makeLongString(64);
+        for (String key : keyNames) {
+            KVMessage put = new KVMessage(PUT_REQ);
+            put.setKey(key);
+            put.setValue(value);
+            master.handleTPCRequest(put, true);
+        }
+        System.out.format("%d slaves, %d ms latency, %d%% of gets %d ms%n",
+                numSlaves, latencyMillis, slowPercent, slowMillis);
+
+        // warm up: the message handling is slow until it is compiled
+        run(master, 0, WARMUP_READS, keyNames);
+        report("both", master, run(master, 0, reads, keyNames));
+        long never = TPCMaster.TIMEOUT * 1000L;
+        report("primary", master, run(master, never, reads, keyNames));
+        long p95 = (long) master.replicaLatencyMicros(95);
+        report("hedged at " + p95 + " us", master,
+                run(master, p95, reads, keyNames));
+
+        cluster.stop();
+        // the slaves' thread pools do not stop
+        System.exit(0);
+    }
+
+    static double run(TPCMaster master, long hedgeDelayMicros, int reads,
+            String[] keys) throws KVException {
+        master.setHedgeDelay(hedgeDelayMicros);
+        master.resetReadStats();
+        Random random = new Random(2);
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            KVMessage get = new KVMessage(GET_REQ);
+            get.setKey(keys[random.nextInt(keys.length)]);
+            master.handleGet(get);
+        }
+        return BenchmarkUtils.opsPerSec(reads, System.nanoTime() - start);
+    }
+
+    private static void report(String mode, TPCMaster master,
+            double readsPerSec) {
+        System.out.format("%s: %.0f reads/sec%n%s", mode, readsPerSec,
+                master.readReport());
+    }
+
+}
@@ -0,0 +1,98 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+/**
+ * Latency of TPCLog.appendAndFlush() once the log already holds 1k, 100k and
+ * 1M entries. The history is written beforehand in the original log format
+ * (a serialized ArrayList at logPath), which every TPCLog version can load,
+ * as put/commit/ack triples over a thousand keys; the time to open the log
+ * and replay it is reported too.
+ *
+ * Arguments: [appends] [dir]
+ */
+public class TPCLogAppendBenchmark {
+
+    static final int[] HISTORY_SIZES = { 1000, 100000, 1000000 };
+
+    public static void main(String[] args) throws Exception {
+        int appends = BenchmarkUtils.intArg(args, 0, 300);
+        File dir = new File(args.length > 1 ? args[1] : "bin");
+
+        System.out.format("%-8s %10s %10s %10s %10s%n", "entries", "open ms",
+                "mean us", "p50 us", "p99 us");
+        for (int history : HISTORY_SIZES) {
+            File base = new File(dir, "benchlog." + history);
+            removeLog(base);
+            writeHistory(base, history);
+
+            long start = System.nanoTime();
+            TPCLog log = new TPCLog(base.getPath(), new KVServer(100, 10));
+            long open = System.nanoTime() - start;
+
+            KVMessage[] entries = triples(appends);
+            long[] nanos = new long[appends];
+            long total = 0;
+            for (int i = 0; i < appends; i++) {
+                long t = System.nanoTime();
+                log.appendAndFlush(entries[i]);
+                nanos[i] = System.nanoTime() - t;
+                total += nanos[i];
+            }
+            System.out.format("%-8s %10.0f %10.1f %10.1f %10.1f%n",
+                    history >= 1000000 ? history / 1000000 + "M"
+                            : history / 1000 + "k", open / 1e6,
+                    total / 1000.0 / appends,
+                    BenchmarkUtils.percentileMicros(nanos, 50),
+                    BenchmarkUtils.percentileMicros(nanos, 99));
+            removeLog(base);
+        }
+    }
+
+    private static KVMessage[] triples(int count) {
+        KVMessage[] entries = new KVMessage[count];
+        for (int i = 0; i < count; i++) {
+            if (i % 3 == 0) {
+                KVMessage put = new KVMessage(PUT_REQ);
+                put.setKey("key" + (i / 3) % 1000);
+                put.setValue("value" + i);
+                entries[i] = put;
+            } else {
+                entries[i] = new KVMessage(i % 3 == 1 ? COMMIT : ACK);
+            }
+        }
+        return entries;
+    }
+
+    private static void writeHistory(File base, int history) throws Exception {
+        ArrayList<KVMessage> entries = new ArrayList<KVMessage>(history);
+        for (KVMessage entry : triples(history)) {
+            entries.add(entry);
+        }
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(
+                base));
+        try {
+            out.writeObject(entries);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void removeLog(File base) {
+        File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(base.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+}
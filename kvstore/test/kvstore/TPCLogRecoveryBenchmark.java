@@ -0,0 +1,115 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Slave recovery time with a long log history, replayed in full and after a
+ * checkpoint. Writes a log of put (90%) and del (10%) transactions over a
+ * fixed set of keys, applying them to a KVServer as a slave would, then
+ * times rebuilding a fresh KVServer from it. Then checkpoints, logs a short
+ * tail of further transactions and times recovery again.
+ *
+ * Arguments: [operations] [keys] [tailOperations] [dir] [replayThreads]
+ */
+public class TPCLogRecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int operations = BenchmarkUtils.intArg(args, 0, 10000000);
+        int keys = BenchmarkUtils.intArg(args, 1, 100000);
+        int tail = BenchmarkUtils.intArg(args, 2, operations / 100);
+        File dir = new File(args.length > 3 ? args[3] : "bin");
+        int threads = BenchmarkUtils.intArg(args, 4,
+                Runtime.getRuntime().availableProcessors());
+        File base = new File(dir, "recoverylog");
+        removeLog(base);
+
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        KVServer server = new KVServer(100, 10);
+        TPCLog log = open(base, server, threads);
+        run(log, server, operations, keys, random);
+        log.close();
+        System.out.format("wrote %d operations over %d keys in %.1f s, "
+                + "log %.0f MB%n", operations, keys,
+                (System.nanoTime() - start) / 1e9, logBytes(base) / 1e6);
+
+        start = System.nanoTime();
+        server = new KVServer(100, 10);
+        log = open(base, server, threads);
+        System.out.format("full replay, %d thread%s: %8.0f ms%n", threads,
+                threads == 1 ? "" : "s",
+                (System.nanoTime() - start) / 1e6);
+
+        start = System.nanoTime();
+        log.checkpoint();
+        System.out.format("checkpoint:         %8.0f ms, %.0f MB on disk%n",
+                (System.nanoTime() - start) / 1e6, logBytes(base) / 1e6);
+        run(log, server, tail, keys, random);
+        log.close();
+
+        start = System.nanoTime();
+        server = new KVServer(100, 10);
+        log = open(base, server, threads);
+        System.out.format("snapshot + %d ops: %8.0f ms%n", tail,
+                (System.nanoTime() - start) / 1e6);
+        log.close();
+        removeLog(base);
+    }
+
+    private static TPCLog open(File base, KVServer server, int threads)
+            throws KVException {
+        TPCLog log = new TPCLog(base.getPath(), server, TPCLog.SyncPolicy.OS,
+                TPCLog.DEFAULT_SEGMENT_SIZE, threads);
+        log.setCheckpointInterval(0);
+        return log;
+    }
+
+    private static void run(TPCLog log, KVServer server, int operations,
+            int keys, Random random) throws KVException {
+        KVMessage commit = new KVMessage(COMMIT);
+        KVMessage ack = new KVMessage(ACK);
+        for (int i = 0; i < operations; i++) {
+            String key = "key" + random.nextInt(keys);
+            boolean del = random.nextInt(10) == 0 && server.hasKey(key);
+            KVMessage request = new KVMessage(del ? DEL_REQ : PUT_REQ);
+            request.setKey(key);
+            if (!del) {
+                request.setValue("value" + i);
+            }
+            log.appendAndFlush(request);
+            log.appendAndFlush(commit);
+            if (del) {
+                server.del(key);
+            } else {
+                server.put(key, request.getValue());
+            }
+            log.appendAndFlush(ack);
+        }
+    }
+
+    private static long logBytes(File base) {
+        long bytes = 0;
+        for (File file : base.getAbsoluteFile().getParentFile().listFiles()) {
+            if (file.getName().startsWith(base.getName())) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static void removeLog(File base) {
+        File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(base.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+}
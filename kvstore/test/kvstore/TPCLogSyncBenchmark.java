@@ -0,0 +1,118 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+
+/**
+ * Throughput and latency of TPCLog.appendAndFlush() under each sync policy
+ * with 1, 4 and 16 threads appending at once. "always, serial" takes a lock
+ * around every append, so that each entry gets a force of its own as it
+ * would without group commit; "always" lets concurrent appends share one.
+ *
+ * Arguments: [appends] [valueSize] [dir]
+ */
+public class TPCLogSyncBenchmark {
+
+    static final int[] THREADS = { 1, 4, 16 };
+
+    public static void main(String[] args) throws Exception {
+        int appends = BenchmarkUtils.intArg(args, 0, 20000);
+        int valueSize = BenchmarkUtils.intArg(args, 1, 100);
+        File dir = new File(args.length > 2 ? args[2] : "bin");
+
+        String[] names = { "always, serial", "always", "every 10ms",
+                "every 100 records", "os" };
+        TPCLog.SyncPolicy[] policies = { TPCLog.SyncPolicy.ALWAYS,
+                TPCLog.SyncPolicy.ALWAYS, TPCLog.SyncPolicy.everyMillis(10),
+                TPCLog.SyncPolicy.everyRecords(100), TPCLog.SyncPolicy.OS };
+        KVMessage entry = new KVMessage(PUT_REQ);
+        entry.setKey("key");
+        entry.setValue(Utils.makeLongString(valueSize));
+
+        System.out.format("%-18s %8s %12s %10s %10s%n", "policy", "threads",
+                "appends/sec", "mean us", "p99 us");
+        for (int p = 0; p < policies.length; p++) {
+            for (int threads : THREADS) {
+                File base = new File(dir, "synclog");
+                removeLog(base);
+                TPCLog log = new TPCLog(base.getPath(), new KVServer(10, 10),
+                        policies[p]);
+                run(log, entry, threads, appends / 10, p == 0);
+                long[] nanos = new long[appends - appends % threads];
+                long start = System.nanoTime();
+                run(log, entry, threads, nanos, p == 0);
+                long elapsed = System.nanoTime() - start;
+                log.close();
+                removeLog(base);
+
+                long total = 0;
+                for (long n : nanos) {
+                    total += n;
+                }
+                System.out.format("%-18s %8d %12.0f %10.1f %10.1f%n",
+                        names[p], threads,
+                        BenchmarkUtils.opsPerSec(nanos.length, elapsed),
+                        total / 1000.0 / nanos.length,
+                        BenchmarkUtils.percentileMicros(nanos, 99));
+            }
+        }
+    }
+
+    private static void run(TPCLog log, KVMessage entry, int threads,
+            int appends, boolean serial) throws InterruptedException {
+        run(log, entry, threads, new long[appends - appends % threads],
+                serial);
+    }
+
+    /**
+     * Appends nanos.length entries from the given number of threads,
+     * recording the latency of each append.
+     */
+    private static void run(final TPCLog log, final KVMessage entry,
+            int threads, final long[] nanos, final boolean serial)
+            throws InterruptedException {
+        final int perThread = nanos.length / threads;
+        Thread[] appenders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t * perThread;
+            appenders[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < first + perThread; i++) {
+                        long start = System.nanoTime();
+                        try {
+                            if (serial) {
+                                synchronized (entry) {
+                                    log.appendAndFlush(entry);
+                                }
+                            } else {
+                                log.appendAndFlush(entry);
+                            }
+                        } catch (KVException e) {
+                            throw new RuntimeException(e);
+                        }
+                        nanos[i] = System.nanoTime() - start;
+                    }
+                }
+            };
+            appenders[t].start();
+        }
+        for (Thread appender : appenders) {
+            appender.join();
+        }
+    }
+
+    private static void removeLog(File base) {
+        File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(base.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,602 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+
+public class TPCLogTest {
+
+    File dir;
+    String logPath;
+
+    @Before
+    public void setupDir() throws IOException {
+        dir = File.createTempFile("TPCLogTest-", "");
+        dir.delete();
+        dir.mkdir();
+        logPath = new File(dir, "log.1@localhost").getPath();
+    }
+
+    @After
+    public void removeDir() {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                for (File inner : file.listFiles()) {
+                    inner.delete();
+                }
+            }
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static KVMessage put(String key, String value) {
+        KVMessage msg = new KVMessage(PUT_REQ);
+        msg.setKey(key);
+        msg.setValue(value);
+        return msg;
+    }
+
+    private static KVMessage del(String key) {
+        KVMessage msg = new KVMessage(DEL_REQ);
+        msg.setKey(key);
+        return msg;
+    }
+
+    private static void commit(TPCLog log, KVMessage request)
+            throws KVException {
+        log.appendAndFlush(request);
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(new KVMessage(ACK));
+    }
+
+    private static void abort(TPCLog log, KVMessage request)
+            throws KVException {
+        log.appendAndFlush(request);
+        log.appendAndFlush(new KVMessage(ABORT));
+        log.appendAndFlush(new KVMessage(ACK));
+    }
+
+    /**
+     * Logs and applies a transaction as TPCMasterHandler does: the commit
+     * is logged before it reaches the store.
+     */
+    private static void commit(TPCLog log, KVServer server,
+            KVMessage request) throws KVException {
+        log.appendAndFlush(request);
+        log.appendAndFlush(new KVMessage(COMMIT));
+        if (request.getMsgType().equals(PUT_REQ)) {
+            server.put(request.getKey(), request.getValue());
+        } else {
+            server.del(request.getKey());
+        }
+        log.appendAndFlush(new KVMessage(ACK));
+    }
+
+    private int countSegments() {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.matches(".*\\.[0-9]{8}")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private File lastSegment() {
+        File last = null;
+        for (File file : dir.listFiles()) {
+            if (file.getName().matches(".*\\.[0-9]{8}") && (last == null
+                    || file.getName().compareTo(last.getName()) > 0)) {
+                last = file;
+            }
+        }
+        return last;
+    }
+
+    @Test
+    public void replaysCommittedOperations() throws KVException {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10));
+        commit(log, put("a", "1"));
+        commit(log, put("b", "2"));
+        abort(log, put("c", "3"));
+        commit(log, del("a"));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertNull(log.getOperation());
+        assertEquals("2", server.get("b"));
+        assertFalse(server.hasKey("a"));
+        assertFalse(server.hasKey("c"));
+        assertEquals(ACK, log.getLastEntry().getMsgType());
+        log.close();
+    }
+
+    @Test
+    public void keepsInterruptedOperation() throws KVException {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10));
+        commit(log, put("a", "1"));
+        log.appendAndFlush(put("a", "2"));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        KVMessage operation = log.getOperation();
+        assertEquals(PUT_REQ, operation.getMsgType());
+        assertEquals("2", operation.getValue());
+        assertEquals("2", log.getLastEntry().getValue());
+        assertEquals("1", server.get("a"));
+        log.close();
+    }
+
+    private static KVMessage inTransaction(KVMessage msg, String txnID) {
+        msg.setTxnID(txnID);
+        return msg;
+    }
+
+    @Test
+    public void lateAckDoesNotEndNextTransaction() throws KVException {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10));
+        log.appendAndFlush(inTransaction(put("a", "1"), "1"));
+        log.appendAndFlush(inTransaction(new KVMessage(COMMIT), "1"));
+        // the ACK of 1 is logged after it was sent, so after 2 began
+        log.appendAndFlush(inTransaction(put("b", "2"), "2"));
+        log.appendAndFlush(inTransaction(new KVMessage(ACK), "1"));
+        assertEquals("2", log.getPrepared("2").getValue());
+        assertNull(log.getPrepared("1"));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertEquals("1", server.get("a"));
+        assertFalse(server.hasKey("b"));
+        assertEquals("2", log.getPrepared("2").getValue());
+        log.appendAndFlush(inTransaction(new KVMessage(COMMIT), "2"));
+        log.appendAndFlush(inTransaction(new KVMessage(ACK), "2"));
+        assertNull(log.getPrepared("2"));
+        log.close();
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertEquals("2", server.get("b"));
+        assertNull(log.getOperation());
+        log.close();
+    }
+
+    @Test
+    public void resolvesInterleavedTransactions() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logPath, server);
+        commit(log, server, put("c", "0"));
+        log.appendAndFlush(inTransaction(put("a", "1"), "1"));
+        log.appendAndFlush(inTransaction(put("b", "2"), "2"));
+        log.appendAndFlush(inTransaction(del("c"), "3"));
+        log.checkpoint();
+        KVMessage prepared = log.appendDecision(
+                inTransaction(new KVMessage(COMMIT), "2"));
+        assertEquals("b", prepared.getKey());
+        server.put("b", "2");
+        assertEquals(DEL_REQ, log.appendDecision(
+                inTransaction(new KVMessage(ABORT), "3")).getMsgType());
+        log.appendAndFlush(inTransaction(new KVMessage(ACK), "3"));
+        log.close();
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertFalse(server.hasKey("a"));
+        assertEquals("2", server.get("b"));
+        assertEquals("0", server.get("c"));
+        assertEquals(2, log.openTransactions());
+        assertEquals("a", log.getPrepared("1").getKey());
+        // decided before the restart, so its COMMIT is not carried out again
+        assertNull(log.getPrepared("2"));
+        assertNull(log.appendDecision(
+                inTransaction(new KVMessage(COMMIT), "2")));
+        assertEquals("a", log.appendDecision(
+                inTransaction(new KVMessage(COMMIT), "1")).getKey());
+        assertNull(log.appendDecision(
+                inTransaction(new KVMessage(COMMIT), "1")));
+        log.close();
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertEquals("1", server.get("a"));
+        assertEquals("2", server.get("b"));
+        log.close();
+    }
+
+    @Test
+    public void refusesPrepareAfterDecision() throws KVException {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10));
+        // the master stopped waiting for the vote and aborted
+        log.appendAndFlush(inTransaction(new KVMessage(ABORT), "1"));
+        log.appendAndFlush(inTransaction(new KVMessage(ACK), "1"));
+        assertFalse(log.appendPrepare(inTransaction(put("a", "1"), "1")));
+        assertTrue(log.appendPrepare(inTransaction(put("b", "2"), "2")));
+        assertTrue(log.appendPrepare(put("c", "3")));
+        assertEquals(2, log.openTransactions());
+        log.close();
+
+        // the decision is remembered across a restart
+        log = new TPCLog(logPath, new KVServer(10, 10));
+        assertFalse(log.appendPrepare(inTransaction(put("a", "1"), "1")));
+        assertNull(log.getPrepared("1"));
+        assertEquals(2, log.openTransactions());
+        log.close();
+    }
+
+    @Test
+    public void discardsTornRecord() throws Exception {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10));
+        commit(log, put("a", "1"));
+        commit(log, put("b", "2"));
+        log.close();
+
+        // cut the last record short, as a crash in the middle of a write would
+        File segment = lastSegment();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long intact = file.length();
+        file.setLength(intact - 3);
+        file.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertEquals("2", server.get("b"));
+        assertEquals(COMMIT, log.getLastEntry().getMsgType());
+        log.appendAndFlush(new KVMessage(ACK));
+        commit(log, put("c", "3"));
+        log.close();
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertEquals("3", server.get("c"));
+        assertNull(log.getOperation());
+        log.close();
+    }
+
+    @Test
+    public void discardsCorruptRecord() throws Exception {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10));
+        commit(log, put("a", "1"));
+        log.appendAndFlush(put("b", "2"));
+        log.close();
+
+        // flip the last byte of the value "2"
+        File segment = lastSegment();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long length = file.length();
+        file.seek(length - 1);
+        file.write('3');
+        file.close();
+
+        log = new TPCLog(logPath, new KVServer(10, 10));
+        assertEquals(ACK, log.getLastEntry().getMsgType());
+        assertNull(log.getOperation());
+        log.close();
+        assertTrue(segment.length() < length);
+    }
+
+    @Test
+    public void rollsSegments() throws KVException {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10),
+                TPCLog.SyncPolicy.ALWAYS, 256);
+        for (int i = 0; i < 100; i++) {
+            commit(log, put("key" + i, "value" + i));
+        }
+        log.close();
+        assertTrue(dir.listFiles().length > 10);
+        for (File file : dir.listFiles()) {
+            assertTrue(file.getName(), file.length() <= 256);
+        }
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS, 256);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, server.get("key" + i));
+        }
+        log.close();
+    }
+
+    @Test
+    public void failedWriteFailsEveryLaterAppend() throws KVException {
+        TPCLog log = new TPCLog(logPath, new KVServer(10, 10),
+                TPCLog.SyncPolicy.ALWAYS, 1);
+        // the second append starts segment 2, which a directory is in the
+        // way of
+        assertTrue(new File(logPath + ".00000002").mkdir());
+        log.appendAndFlush(put("a", "1"));
+        try {
+            log.appendDecision(new KVMessage(COMMIT));
+            fail("decision was not written");
+        } catch (KVException e) {
+            assertTrue(e.getKVMessage().getMessage().contains(logPath));
+        }
+        try {
+            log.appendAndFlush(new KVMessage(ABORT));
+            fail("log took an append after a failed write");
+        } catch (KVException e) {
+            // expected
+        }
+        try {
+            log.close();
+            fail("close reported the entries written");
+        } catch (KVException e) {
+            // expected
+        }
+
+        assertTrue(new File(logPath + ".00000002").delete());
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS, 1);
+        assertEquals("a", log.getPrepared(null).getKey());
+        assertEquals("1", log.appendDecision(new KVMessage(COMMIT))
+                .getValue());
+        log.close();
+    }
+
+    @Test
+    public void convertsLegacyLog() throws Exception {
+        ArrayList<KVMessage> entries = new ArrayList<KVMessage>();
+        entries.add(put("a", "1"));
+        entries.add(new KVMessage(COMMIT));
+        entries.add(new KVMessage(ACK));
+        entries.add(del("b"));
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(
+                logPath));
+        out.writeObject(entries);
+        out.close();
+
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logPath, server);
+        assertEquals("1", server.get("a"));
+        assertEquals(DEL_REQ, log.getOperation().getMsgType());
+        assertFalse(new File(logPath).exists());
+        log.appendAndFlush(new KVMessage(ABORT));
+        log.close();
+
+        log = new TPCLog(logPath, new KVServer(10, 10));
+        assertEquals(ABORT, log.getLastEntry().getMsgType());
+        log.close();
+    }
+
+    @Test
+    public void replaysUnderEverySyncPolicy() throws KVException {
+        TPCLog.SyncPolicy[] policies = { TPCLog.SyncPolicy.OS,
+                TPCLog.SyncPolicy.everyRecords(10),
+                TPCLog.SyncPolicy.everyMillis(5) };
+        for (TPCLog.SyncPolicy policy : policies) {
+            String path = logPath + "-" + policy.toString().replace(' ', '-');
+            TPCLog log = new TPCLog(path, new KVServer(10, 10), policy);
+            for (int i = 0; i < 50; i++) {
+                commit(log, put("key" + i, "value" + i));
+            }
+            log.close();
+
+            KVServer server = new KVServer(10, 10);
+            log = new TPCLog(path, server, policy);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(policy.toString(), "value" + i,
+                        server.get("key" + i));
+            }
+            log.close();
+        }
+    }
+
+    @Test
+    public void writesEveryConcurrentAppend() throws Exception {
+        final TPCLog log = new TPCLog(logPath, new KVServer(10, 10));
+        final int threads = 8;
+        final int appends = 200;
+        Thread[] appenders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            appenders[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < appends; i++) {
+                        try {
+                            log.appendAndFlush(new KVMessage(ABORT));
+                        } catch (KVException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            };
+            appenders[t].start();
+        }
+        for (Thread appender : appenders) {
+            appender.join();
+        }
+        log.close();
+
+        // segment header, then a 10 byte record per abort
+        assertEquals(4 + 10 * threads * appends, lastSegment().length());
+        TPCLog reopened = new TPCLog(logPath, new KVServer(10, 10));
+        assertEquals(ABORT, reopened.getLastEntry().getMsgType());
+        reopened.close();
+    }
+
+    @Test
+    public void checkpointTruncatesLog() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS,
+                256);
+        for (int i = 0; i < 50; i++) {
+            commit(log, server, put("key" + i, "value" + i));
+        }
+        assertTrue(countSegments() > 5);
+        log.checkpoint();
+        assertEquals(1, countSegments());
+        assertTrue(new File(logPath + ".checkpoint").isFile());
+        for (int i = 0; i < 10; i++) {
+            commit(log, server, del("key" + i));
+        }
+        commit(log, server, put("key10", "changed"));
+        log.close();
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS, 256);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(server.hasKey("key" + i));
+        }
+        assertEquals("changed", server.get("key10"));
+        for (int i = 11; i < 50; i++) {
+            assertEquals("value" + i, server.get("key" + i));
+        }
+        assertNull(log.getOperation());
+        log.close();
+    }
+
+    @Test
+    public void checkpointKeepsOpenTransaction() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logPath, server);
+        commit(log, server, put("a", "1"));
+        // committed in the log but not yet applied when the snapshot is taken
+        log.appendAndFlush(put("b", "2"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.checkpoint();
+        server.put("b", "2");
+        log.close();
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertEquals("1", server.get("a"));
+        assertEquals("2", server.get("b"));
+        assertEquals(COMMIT, log.getLastEntry().getMsgType());
+        assertEquals(ACK, log.getOperation().getMsgType());
+        log.appendAndFlush(new KVMessage(ACK));
+        log.close();
+    }
+
+    @Test
+    public void checkpointSyncsPersistentStore() throws Exception {
+        File storeDir = new File(dir, "store");
+        LSMStore store = new LSMStore(storeDir.getPath());
+        KVServer server = new KVServer(10, 10, store);
+        TPCLog log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS,
+                256);
+        for (int i = 0; i < 50; i++) {
+            commit(log, server, put("key" + i, "value" + i));
+        }
+        log.checkpoint();
+        assertEquals(1, countSegments());
+        // no snapshot in the checkpoint: the store has written its tables
+        assertTrue(new File(logPath + ".checkpoint").length() < 100);
+        commit(log, server, put("key0", "changed"));
+        commit(log, server, del("key1"));
+        log.close();
+        // what a crash leaves: the tables, but not the memtable with the
+        // last two transactions, which only the log has
+        File crashedDir = new File(dir, "crashed");
+        crashedDir.mkdir();
+        for (File file : storeDir.listFiles()) {
+            Files.copy(file.toPath(), new File(crashedDir,
+                    file.getName()).toPath());
+        }
+        store.close();
+
+        server = new KVServer(10, 10, new LSMStore(crashedDir.getPath()));
+        log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS, 256);
+        assertEquals("changed", server.get("key0"));
+        assertFalse(server.hasKey("key1"));
+        for (int i = 2; i < 50; i++) {
+            assertEquals("value" + i, server.get("key" + i));
+        }
+        log.close();
+        server.close();
+    }
+
+    @Test
+    public void checkpointsInBackground() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS,
+                256);
+        log.setCheckpointInterval(30);
+        for (int i = 0; i < 100; i++) {
+            commit(log, server, put("key" + i, "value" + i));
+        }
+        log.close();
+        assertTrue(new File(logPath + ".checkpoint").isFile());
+        assertTrue(countSegments() < 20);
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server, TPCLog.SyncPolicy.ALWAYS, 256);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, server.get("key" + i));
+        }
+        log.close();
+    }
+
+    @Test
+    public void reportsFailedBackgroundCheckpoint() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logPath, server);
+        // a directory where the checkpoint is written fails every checkpoint
+        File tmp = new File(logPath + ".checkpoint.tmp");
+        assertTrue(tmp.mkdir());
+        log.setCheckpointInterval(3);
+        commit(log, server, put("a", "1"));
+        try {
+            log.close();
+            fail("background checkpoint failure was dropped");
+        } catch (KVException e) {
+            assertTrue(e.getKVMessage().getMessage().contains("checkpoint"));
+        }
+        assertFalse(new File(logPath + ".checkpoint").exists());
+
+        assertTrue(tmp.delete());
+        server = new KVServer(10, 10);
+        log = new TPCLog(logPath, server);
+        assertEquals("1", server.get("a"));
+        log.checkpoint();
+        log.close();
+        assertTrue(new File(logPath + ".checkpoint").isFile());
+    }
+
+    @Test
+    public void parallelReplayKeepsPerKeyOrder() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(logPath, server, TPCLog.SyncPolicy.OS);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            String key = "key" + random.nextInt(50);
+            if (expected.containsKey(key) && random.nextInt(4) == 0) {
+                commit(log, server, del(key));
+                expected.remove(key);
+            } else {
+                commit(log, server, put(key, "value" + i));
+                expected.put(key, "value" + i);
+            }
+        }
+        log.close();
+
+        for (int threads = 1; threads <= 4; threads *= 2) {
+            server = new KVServer(10, 10);
+            log = new TPCLog(logPath, server, TPCLog.SyncPolicy.OS,
+                    TPCLog.DEFAULT_SEGMENT_SIZE, threads);
+            for (int k = 0; k < 50; k++) {
+                String key = "key" + k;
+                if (expected.containsKey(key)) {
+                    assertEquals(expected.get(key), server.get(key));
+                } else {
+                    assertFalse(server.hasKey(key));
+                }
+            }
+            log.close();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * What the master adds to each operation. One client puts random keys
+ * through TPCMaster.handleTPCRequest(), then gets random keys through
+ * TPCMaster.handleGet(), to slaves of a TPCBenchmarkCluster that answer at
+ * once. The master cache holds a single entry, so every get goes to the
+ * replicas. Reports the median and 99th percentile latency of each, the
+ * threads started and the CPU time of the process per operation. The slaves
+ * do the same work whatever the master does, so the difference between two
+ * masters is the master's own.
+ *
+ * With pool above 0 the master keeps up to pool connections open to each
+ * slave (see TPCMaster.setConnectionPool()); the slaves have 4 threads.
+ *
+ * Arguments: [ops] [slaves] [keys] [pool] [dir]
+ */
+public class TPCMasterOverheadBenchmark {
+
+    static final int WARMUP_OPS = 4000;
+
+    public static void main(String[] args) throws Exception {
+        int ops = BenchmarkUtils.intArg(args, 0, 4000);
+        int numSlaves = BenchmarkUtils.intArg(args, 1, 4);
+        int keys = BenchmarkUtils.intArg(args, 2, 1000);
+        int pool = BenchmarkUtils.intArg(args, 3, 0);
+        File dir = new File(args.length > 4 ? args[4] : "bin",
+                "tpcmasteroverhead");
+
+        TPCMaster master = new TPCMaster(numSlaves, new KVCache(1, 1));
+        master.setConnectionPool(pool, pool);
+        TPCBenchmarkCluster cluster = new TPCBenchmarkCluster(master,
+                numSlaves, 0, dir);
+        String[] keyNames = TPCBenchmarkCluster.randomKeys(keys,
+                new Random(1));
+        String value = Utils.makeLongString(64);
+        System.out.format("%d slaves, %d keys, %d ops, pool of %d%n",
+                numSlaves, keys, ops, pool);
+        System.out.format("%-6s %10s %10s %10s %14s%n", "op", "p50 us",
+                "p99 us", "threads/op", "cpu us/op");
+
+        // every get finds its key
+        for (String key : keyNames) {
+            KVMessage put = new KVMessage(PUT_REQ);
+            put.setKey(key);
+            put.setValue(value);
+            master.handleTPCRequest(put, true);
+        }
+        // warm up: the XML handling dominates until it is compiled
+        run(master, true, WARMUP_OPS, keyNames, value, false);
+        run(master, false, WARMUP_OPS, keyNames, value, false);
+        run(master, true, ops, keyNames, value, true);
+        run(master, false, ops, keyNames, value, true);
+
+        cluster.stop();
+        // the slaves' thread pools do not stop
+        System.exit(0);
+    }
+
+    static void run(TPCMaster master, boolean puts, int ops, String[] keys,
+            String value, boolean report) throws KVException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Random random = new Random(puts ? 2 : 3);
+        long[] latencies = new long[ops];
+        long threadsBefore = threads.getTotalStartedThreadCount();
+        long cpuBefore = processCpuNanos();
+        for (int i = 0; i < ops; i++) {
+            String key = keys[random.nextInt(keys.length)];
+            long start = System.nanoTime();
+            if (puts) {
+                KVMessage put = new KVMessage(PUT_REQ);
+                put.setKey(key);
+                put.setValue(value);
+                master.handleTPCRequest(put, true);
+            } else {
+                KVMessage get = new KVMessage(GET_REQ);
+                get.setKey(key);
+                master.handleGet(get);
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        if (!report) {
+            return;
+        }
+        System.out.format("%-6s %10.0f %10.0f %10.2f %14.0f%n",
+                puts ? "put" : "get",
+                BenchmarkUtils.percentileMicros(latencies, 50),
+                BenchmarkUtils.percentileMicros(latencies, 99),
+                (threads.getTotalStartedThreadCount() - threadsBefore)
+                        / (double) ops,
+                (processCpuNanos() - cpuBefore) / 1000.0 / ops);
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory
+                .getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+}
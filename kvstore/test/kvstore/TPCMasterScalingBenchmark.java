@@ -0,0 +1,100 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Cluster write throughput with 1 to 32 clients writing at once. Starts a
+ * TPCMaster and the given number of slaves in this process, each slave with
+ * its own TPCLog in dir, and has each client thread put random keys through
+ * TPCMaster.handleTPCRequest(). A write waits for both phases of 2PC at two
+ * slaves, so one client leaves the slaves idle most of the time; writes of
+ * different keys overlap, and throughput grows with the clients until the
+ * slaves are busy.
+ *
+ * The slaves are a TPCBenchmarkCluster, each taking latencyMillis to pick
+ * up a connection.
+ *
+ * Arguments: [putsPerThread] [slaves] [keys] [latencyMillis] [dir]
+ */
+public class TPCMasterScalingBenchmark {
+
+    static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+    static final int WARMUP_PUTS = 4000;
+
+    public static void main(String[] args) throws Exception {
+        int putsPerThread = BenchmarkUtils.intArg(args, 0, 50);
+        int numSlaves = BenchmarkUtils.intArg(args, 1, 8);
+        int keys = BenchmarkUtils.intArg(args, 2, 10000);
+        int latencyMillis = BenchmarkUtils.intArg(args, 3, 2);
+        File dir = new File(args.length > 4 ? args[4] : "bin",
+                "tpcmasterscaling");
+
+        TPCMaster master = new TPCMaster(numSlaves, new KVCache(100, 10));
+        TPCBenchmarkCluster cluster = new TPCBenchmarkCluster(master,
+                numSlaves, latencyMillis, dir);
+        String[] keyNames = TPCBenchmarkCluster.randomKeys(keys,
+                new Random(1));
+        String value = Utils.makeLongString(64);
+        System.out.format("%d slaves, %d keys, %d ms latency%n", numSlaves,
+                keys, latencyMillis);
+        System.out.format("%-8s %12s %8s%n", "threads", "puts/sec",
+                "scaling");
+        // warm up: the XML handling dominates until it is compiled
+        run(master, 4, WARMUP_PUTS / 4, keyNames, value);
+        double single = 0;
+        for (int threads : THREADS) {
+            double puts = run(master, threads, putsPerThread, keyNames,
+                    value);
+            if (threads == 1) {
+                single = puts;
+            }
+            System.out.format("%-8d %12.0f %7.2fx%n", threads, puts,
+                    puts / single);
+        }
+
+        cluster.stop();
+        // the slaves' thread pools do not stop
+        System.exit(0);
+    }
+
+    static double run(final TPCMaster master, int threads, final int puts,
+            final String[] keys, final String value) throws Exception {
+        final Exception[] failure = new Exception[1];
+        Thread[] clients = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            clients[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < puts; i++) {
+                            KVMessage put = new KVMessage(PUT_REQ);
+                            put.setKey(keys[random.nextInt(keys.length)]);
+                            put.setValue(value);
+                            master.handleTPCRequest(put, true);
+                        }
+                    } catch (KVException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return BenchmarkUtils.opsPerSec((long) threads * puts, elapsed);
+    }
+
+}
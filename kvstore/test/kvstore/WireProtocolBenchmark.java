@@ -0,0 +1,133 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+
+/**
+ * Compares the XML and binary wire protocols for get/put/del at several value
+ * sizes, first for encoding and decoding alone and then end to end against a
+ * KVServer on the loopback interface.
+ *
+ * Arguments: [codecIterations] [networkIterations]
+ */
+public class WireProtocolBenchmark {
+
+    static final int[] VALUE_SIZES = { 16, 1024, 2048, 16 * 1024, 128 * 1024 };
+
+    public static void main(String[] args) throws Exception {
+        int codecIterations = BenchmarkUtils.intArg(args, 0, 20000);
+        int networkIterations = BenchmarkUtils.intArg(args, 1, 2000);
+
+        System.out.println("Codec round trips (request + response), ops/sec");
+        System.out.format("%-8s %-4s %12s %12s %8s%n", "value", "op", "xml",
+                "binary", "speedup");
+        for (int size : VALUE_SIZES) {
+            String value = Utils.makeLongString(size);
+            String[] ops = { "put", "get", "del" };
+            for (String op : ops) {
+                KVMessage[] pair = messagePair(op, "benchkey", value);
+                int n = Math.max(200, codecIterations * 1024 / Math.max(size, 1024));
+                codec(pair, n / 4, false);
+                double xml = codec(pair, n, false);
+                codec(pair, n / 4, true);
+                double binary = codec(pair, n, true);
+                System.out.format("%-8s %-4s %12.0f %12.0f %7.1fx%n",
+                        BenchmarkUtils.sizeName(size), op, xml, binary,
+                        binary / xml);
+            }
+        }
+
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname, 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10), 4));
+        ServerRunner runner = new ServerRunner(ss, "benchserver");
+        runner.start();
+        try {
+            System.out.println();
+            System.out.println("Loopback KVClient requests, ops/sec");
+            System.out.format("%-8s %-4s %12s %12s %8s%n", "value", "op",
+                    "xml", "binary", "speedup");
+            KVClient xmlClient = new KVClient(hostname, ss.getPort(), false);
+            KVClient binaryClient = new KVClient(hostname, ss.getPort(), true);
+            for (int size : VALUE_SIZES) {
+                String value = Utils.makeLongString(size);
+                int n = Math.max(100, networkIterations * 1024
+                        / Math.max(size, 1024));
+                network(xmlClient, value, n / 4);
+                double[] xml = network(xmlClient, value, n);
+                network(binaryClient, value, n / 4);
+                double[] binary = network(binaryClient, value, n);
+                String[] ops = { "put", "get", "del" };
+                for (int i = 0; i < ops.length; i++) {
+                    System.out.format("%-8s %-4s %12.0f %12.0f %7.1fx%n",
+                            BenchmarkUtils.sizeName(size), ops[i], xml[i],
+                            binary[i], binary[i] / xml[i]);
+                }
+            }
+        } finally {
+            runner.stop();
+        }
+        System.exit(0);
+    }
+
+    static KVMessage[] messagePair(String op, String key, String value) {
+        KVMessage request;
+        KVMessage response;
+        if (op.equals("put")) {
+            request = new KVMessage(PUT_REQ);
+            request.setValue(value);
+            response = new KVMessage(RESP, SUCCESS);
+        } else if (op.equals("get")) {
+            request = new KVMessage(GET_REQ);
+            response = new KVMessage(RESP);
+            response.setKey(key);
+            response.setValue(value);
+        } else {
+            request = new KVMessage(DEL_REQ);
+            response = new KVMessage(RESP, SUCCESS);
+        }
+        request.setKey(key);
+        return new KVMessage[] { request, response };
+    }
+
+    static double codec(KVMessage[] pair, int n, boolean binary)
+            throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            for (KVMessage msg : pair) {
+                if (binary) {
+                    new KVMessage(msg.toBinary());
+                } else {
+                    byte[] xml = msg.toXML().getBytes("UTF-8");
+                    new KVMessage(new ByteArrayInputStream(xml));
+                }
+            }
+        }
+        return BenchmarkUtils.opsPerSec(n, System.nanoTime() - start);
+    }
+
+    /** Returns put, get and del throughput for n keys. */
+    static double[] network(KVClient client, String value, int n)
+            throws KVException {
+        double[] result = new double[3];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            client.put("key" + i, value);
+        }
+        result[0] = BenchmarkUtils.opsPerSec(n, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            client.get("key" + i);
+        }
+        result[1] = BenchmarkUtils.opsPerSec(n, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            client.del("key" + i);
+        }
+        result[2] = BenchmarkUtils.opsPerSec(n, System.nanoTime() - start);
+        return result;
+    }
+
+}